@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.ResolverDataConnectorDependency;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * Builds the connectors and contexts the benchmarks resolve against.
+ *
+ * The connector under test depends on a number of data connectors named
+ * dc0, dc1, ...; the source attributes (source0, source1, ...) are provided
+ * by the last of them, so a lookup walks all the other dependencies first.
+ * An LDAP connector named {@value #LDAP_CONNECTOR_ID} provides the stored
+ * sharedToken.
+ */
+final class BenchmarkSupport {
+
+	/** IdP identifier used by all connectors. */
+	static final String IDP_IDENTIFIER = "https://idp.example.org/idp/shibboleth";
+
+	/** Salt used by all connectors. */
+	static final byte[] SALT = "ThisIsRandomText".getBytes();
+
+	/** ID of the LDAP connector providing the stored sharedToken. */
+	static final String LDAP_CONNECTOR_ID = "ldap";
+
+	/** Name of the stored sharedToken attribute. */
+	static final String STORED_ATTRIBUTE_NAME = "auEduPersonSharedToken";
+
+	/** sharedToken value provided by the LDAP connector. */
+	static final String STORED_SHAREDTOKEN = "T2R-XLs892IvCYgWo3hJeOhn-UE";
+
+	/** Constructor. */
+	private BenchmarkSupport() {
+	}
+
+	/**
+	 * @param sourceAttributes number of source attributes
+	 * @return the sourceAttributeID of a connector using that many source attributes
+	 */
+	static String sourceAttributeId(int sourceAttributes) {
+		StringBuilder ids = new StringBuilder();
+		for (int i = 0; i < sourceAttributes; i++) {
+			if (i > 0) {
+				ids.append(',');
+			}
+			ids.append("source").append(i);
+		}
+		return ids.toString();
+	}
+
+	/**
+	 * Creates the data connector dependencies, including the LDAP connector.
+	 *
+	 * @param dependencies number of data connectors other than the LDAP connector
+	 * @param sourceAttributes number of source attributes, provided by the last data connector
+	 * @return the dependencies
+	 */
+	static Set<ResolverDataConnectorDependency> dataConnectorDependencies(int dependencies, int sourceAttributes) {
+		Set<ResolverDataConnectorDependency> result = new LinkedHashSet<ResolverDataConnectorDependency>();
+		for (int i = 0; i < dependencies; i++) {
+			ResolverDataConnectorDependency dependency = new ResolverDataConnectorDependency("dc" + i);
+			Set<String> names = new HashSet<String>();
+			if (i == dependencies - 1) {
+				for (int j = 0; j < sourceAttributes; j++) {
+					names.add("source" + j);
+				}
+			} else {
+				names.add("other" + i);
+			}
+			dependency.setAttributeNames(names);
+			result.add(dependency);
+		}
+		ResolverDataConnectorDependency ldap = new ResolverDataConnectorDependency(LDAP_CONNECTOR_ID);
+		ldap.setAttributeNames(Collections.singleton(STORED_ATTRIBUTE_NAME));
+		result.add(ldap);
+		return result;
+	}
+
+	/**
+	 * Creates a work context recording the resolution of the data connectors
+	 * returned by {@link #dataConnectorDependencies(int, int)}.
+	 *
+	 * @param dependencies number of data connectors other than the LDAP connector
+	 * @param sourceAttributes number of source attributes, provided by the last data connector
+	 * @return the work context
+	 * @throws ComponentInitializationException if a data connector cannot be initialized
+	 * @throws ResolutionException if a resolution cannot be recorded
+	 */
+	static AttributeResolverWorkContext workContext(int dependencies, int sourceAttributes)
+			throws ComponentInitializationException, ResolutionException {
+		AttributeResolverWorkContext workContext = new AttributeResolverWorkContext();
+		for (int i = 0; i < dependencies; i++) {
+			Map<String, IdPAttribute> attributes = new HashMap<String, IdPAttribute>();
+			if (i == dependencies - 1) {
+				for (int j = 0; j < sourceAttributes; j++) {
+					attributes.put("source" + j, attribute("source" + j, j == 0 ? "jsmith" : "value" + j));
+				}
+			} else {
+				attributes.put("other" + i, attribute("other" + i, "value" + i));
+			}
+			record(workContext, "dc" + i, attributes);
+		}
+		record(workContext, LDAP_CONNECTOR_ID, Collections.singletonMap(STORED_ATTRIBUTE_NAME,
+				attribute(STORED_ATTRIBUTE_NAME, STORED_SHAREDTOKEN)));
+		return workContext;
+	}
+
+	/**
+	 * @param principal the principal name
+	 * @return a resolution context for the principal
+	 */
+	static AttributeResolutionContext resolutionContext(String principal) {
+		AttributeResolutionContext resolutionContext = new AttributeResolutionContext();
+		resolutionContext.setPrincipal(principal);
+		resolutionContext.setAttributeIssuerID(IDP_IDENTIFIER);
+		return resolutionContext;
+	}
+
+	/**
+	 * Creates a connector generating values on the fly.
+	 *
+	 * @param dependencies number of data connectors other than the LDAP connector
+	 * @param sourceAttributes number of source attributes
+	 * @return the connector, not yet initialized
+	 */
+	static SharedTokenDataConnector connector(int dependencies, int sourceAttributes) {
+		SharedTokenDataConnector connector = new SharedTokenDataConnector();
+		connector.setId("sharedToken");
+		connector.setSourceAttributeId(sourceAttributeId(sourceAttributes));
+		connector.setGeneratedAttributeId("auEduPersonSharedToken");
+		connector.setIdpIdentifier(IDP_IDENTIFIER);
+		connector.setSalt(SALT);
+		connector.setDataConnectorDependencies(dataConnectorDependencies(dependencies, sourceAttributes));
+		return connector;
+	}
+
+	/**
+	 * @param id the attribute ID
+	 * @param value the attribute value
+	 * @return a single valued attribute
+	 */
+	private static IdPAttribute attribute(String id, String value) {
+		IdPAttribute attribute = new IdPAttribute(id);
+		attribute.setValues(Collections.singletonList(new StringAttributeValue(value)));
+		return attribute;
+	}
+
+	/**
+	 * Records the resolution of a data connector providing fixed attributes.
+	 *
+	 * @param workContext the work context
+	 * @param id the data connector ID
+	 * @param attributes the attributes it provides
+	 * @throws ComponentInitializationException if the data connector cannot be initialized
+	 * @throws ResolutionException if the resolution cannot be recorded
+	 */
+	private static void record(AttributeResolverWorkContext workContext, String id,
+			Map<String, IdPAttribute> attributes) throws ComponentInitializationException, ResolutionException {
+		StaticDataConnector connector = new StaticDataConnector(attributes);
+		connector.setId(id);
+		connector.initialize();
+		workContext.recordDataConnectorResolution(connector, attributes);
+	}
+
+	/** Data connector providing fixed attributes. */
+	private static final class StaticDataConnector extends AbstractDataConnector {
+
+		/** The attributes provided. */
+		private final Map<String, IdPAttribute> attributes;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param attributes the attributes provided
+		 */
+		private StaticDataConnector(Map<String, IdPAttribute> attributes) {
+			this.attributes = attributes;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		protected Map<String, IdPAttribute> doDataConnectorResolve(AttributeResolutionContext resolutionContext,
+				AttributeResolverWorkContext resolverWorkContext) throws ResolutionException {
+			return attributes;
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks computing a sharedToken value, against the original
+ * DigestUtils / Base64 / replaceAll implementation as a baseline, and
+ * computing a pairwise value against a Mac keyed for each value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedTokenGeneratorBenchmark {
+
+	/** IdP identifier used for all values. */
+	private static final String IDP_IDENTIFIER = "https://idp.example.org/idp/shibboleth";
+
+	/** Relying party of the pairwise values. */
+	private static final String RELYING_PARTY = "https://sp.example.org/shibboleth";
+
+	/** Local ID hashed, a typical uid or a longer uid+mail combination. */
+	@Param({ "jsmith", "jsmith001jsmith@example.org" })
+	public String localId;
+
+	/** The salt. */
+	private byte[] salt;
+
+	/** The generator under test. */
+	private SharedTokenGenerator generator;
+
+	/** The pairwise generator under test. */
+	private SharedTokenPairwiseGenerator pairwiseGenerator;
+
+	/** Set up the generator. */
+	@Setup
+	public void setUp() {
+		salt = "ThisIsRandomText".getBytes();
+		generator = new SharedTokenGenerator(salt, IDP_IDENTIFIER);
+		pairwiseGenerator = new SharedTokenPairwiseGenerator(salt);
+	}
+
+	/**
+	 * @return the value computed by {@link SharedTokenGenerator}
+	 */
+	@Benchmark
+	public String generate() {
+		return generator.generate(localId, IDP_IDENTIFIER);
+	}
+
+	/**
+	 * @return the value computed as the connector originally did
+	 */
+	@Benchmark
+	public String legacy() {
+		String globalUniqueID = localId + IDP_IDENTIFIER + new String(salt);
+		byte[] hashValue = DigestUtils.sha1(globalUniqueID);
+		String persistentId = new String(Base64.encodeBase64(hashValue));
+		persistentId = persistentId.replaceAll("/", "_");
+		persistentId = persistentId.replaceAll("\\+", "-");
+		return persistentId.replaceAll("=", "");
+	}
+
+	/**
+	 * @return the pairwise value computed by {@link SharedTokenPairwiseGenerator}
+	 */
+	@Benchmark
+	public String pairwise() {
+		return pairwiseGenerator.generate(localId, RELYING_PARTY);
+	}
+
+	/**
+	 * @return the pairwise value computed with a Mac keyed for the value
+	 * @throws GeneralSecurityException if HmacSHA256 is not available
+	 */
+	@Benchmark
+	public String pairwiseMac() throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+		mac.update(localId.getBytes(StandardCharsets.UTF_8));
+		mac.update((byte) 0);
+		return SharedTokenCodec.encode(mac.doFinal(RELYING_PARTY.getBytes(StandardCharsets.UTF_8)), 0);
+	}
+
+}
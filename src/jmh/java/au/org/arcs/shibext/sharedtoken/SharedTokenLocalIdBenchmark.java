@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.ResolverAttributeDefinitionDependency;
+import net.shibboleth.idp.attribute.resolver.ResolverDataConnectorDependency;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+
+/**
+ * Benchmarks building the local ID from the source attributes and looking up
+ * IDs among the connector's dependencies.  The dependency lookups are only
+ * done at initialization, when the source attribute lookups are compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedTokenLocalIdBenchmark {
+
+	/** Number of comma-separated source attributes. */
+	@Param({ "1", "2", "3", "4", "5" })
+	public int sourceAttributes;
+
+	/** Number of data connector dependencies, besides the LDAP connector. */
+	@Param({ "1", "5", "20" })
+	public int dependencies;
+
+	/** The connector under test. */
+	private SharedTokenDataConnector connector;
+
+	/** The resolution context. */
+	private AttributeResolutionContext resolutionContext;
+
+	/** The work context. */
+	private AttributeResolverWorkContext workContext;
+
+	/** Attribute dependencies of the connector. */
+	private Set<ResolverAttributeDefinitionDependency> attributeDependencies;
+
+	/** Data connector dependencies of the connector. */
+	private Set<ResolverDataConnectorDependency> dataConnectorDependencies;
+
+	/** Set up the connector and contexts. */
+	@Setup
+	public void setUp() throws Exception {
+		connector = BenchmarkSupport.connector(dependencies, sourceAttributes);
+		connector.initialize();
+		resolutionContext = BenchmarkSupport.resolutionContext("jsmith");
+		workContext = BenchmarkSupport.workContext(dependencies, sourceAttributes);
+		attributeDependencies = connector.getAttributeDependencies();
+		dataConnectorDependencies = connector.getDataConnectorDependencies();
+	}
+
+	/** Release the connector. */
+	@TearDown
+	public void tearDown() {
+		connector.destroy();
+	}
+
+	/**
+	 * @return the local ID
+	 * @throws ResolutionException if the local ID cannot be built
+	 */
+	@Benchmark
+	public String getLocalId() throws ResolutionException {
+		return connector.getLocalId(resolutionContext, workContext);
+	}
+
+	/**
+	 * Looks up the last source attribute, which is only found on the last
+	 * data connector dependency.
+	 *
+	 * @return whether the ID was found
+	 */
+	@Benchmark
+	public boolean dependenciesContainsId() {
+		return connector.dependenciesContainsId(attributeDependencies, dataConnectorDependencies,
+				"source" + (sourceAttributes - 1));
+	}
+
+	/**
+	 * Looks up an ID that is not among the dependencies.
+	 *
+	 * @return whether the ID was found
+	 */
+	@Benchmark
+	public boolean dependenciesContainsIdMiss() {
+		return connector.dependenciesContainsId(attributeDependencies, dataConnectorDependencies, "missing");
+	}
+
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+
+/**
+ * Benchmarks a full resolution by the connector, with the database held in
+ * an in-memory H2 database.
+ *
+ * <ul>
+ * <li>CACHE_HIT: storeDatabase=true, the value is in the cache</li>
+ * <li>DB_HIT: storeDatabase=true without a cache, the value is in the database</li>
+ * <li>DB_MISS: storeDatabase=true without a cache, each resolution creates and stores a new value</li>
+ * <li>LDAP_HIT: storeDatabase=false, the value is provided by the LDAP connector</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedTokenResolveBenchmark {
+
+	/** Resolution paths benchmarked. */
+	public enum Path {
+		/** Value found in the cache. */
+		CACHE_HIT,
+		/** Value found in the database. */
+		DB_HIT,
+		/** Value created and stored in the database. */
+		DB_MISS,
+		/** Value provided by the LDAP connector. */
+		LDAP_HIT
+	}
+
+	/** Principal whose value is stored before the benchmark. */
+	private static final String PRINCIPAL = "jsmith";
+
+	/** Sequence of principals without a stored value. */
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	/** The resolution path. */
+	@Param
+	public Path path;
+
+	/** The connector under test. */
+	private SharedTokenDataConnector connector;
+
+	/** The database, kept open for the whole benchmark. */
+	private Connection database;
+
+	/** Set up the database and the connector. */
+	@Setup
+	public void setUp() throws Exception {
+		connector = BenchmarkSupport.connector(1, 1);
+		if (path != Path.LDAP_HIT) {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:sharedtoken");
+			database = dataSource.getConnection();
+			try (Statement st = database.createStatement()) {
+				st.execute("CREATE TABLE IF NOT EXISTS tb_st (uid VARCHAR(100) NOT NULL, sharedToken VARCHAR(50), PRIMARY KEY (uid))");
+			}
+			connector.setStoreDatabase(true);
+			connector.setDataSource(dataSource);
+			if (path == Path.CACHE_HIT) {
+				connector.setCacheSize(10000);
+			}
+		} else {
+			connector.setLdapConnectorId(BenchmarkSupport.LDAP_CONNECTOR_ID);
+			connector.setStoredAttributeName(BenchmarkSupport.STORED_ATTRIBUTE_NAME);
+		}
+		connector.initialize();
+
+		// store the value of the principal resolved by the hit paths
+		ThreadContexts contexts = new ThreadContexts();
+		contexts.setUp();
+		connector.doDataConnectorResolve(contexts.resolutionContext, contexts.workContext);
+	}
+
+	/** Remove the values created during an iteration, so the database does not keep growing. */
+	@TearDown(Level.Iteration)
+	public void purgeMisses() throws SQLException {
+		if (path == Path.DB_MISS) {
+			try (Statement st = database.createStatement()) {
+				st.executeUpdate("DELETE FROM tb_st WHERE uid <> '" + PRINCIPAL + "'");
+			}
+		}
+	}
+
+	/** Release the connector and drop the database. */
+	@TearDown
+	public void tearDown() throws SQLException {
+		connector.destroy();
+		if (database != null) {
+			database.close();
+		}
+	}
+
+	/** Contexts used by one benchmark thread. */
+	@State(Scope.Thread)
+	public static class ThreadContexts {
+
+		/** The resolution context. */
+		private AttributeResolutionContext resolutionContext;
+
+		/** The work context. */
+		private AttributeResolverWorkContext workContext;
+
+		/** Set up the contexts. */
+		@Setup
+		public void setUp() throws Exception {
+			resolutionContext = BenchmarkSupport.resolutionContext(PRINCIPAL);
+			workContext = BenchmarkSupport.workContext(1, 1);
+		}
+	}
+
+	/**
+	 * @param contexts the contexts of this thread
+	 * @return the resolved attributes
+	 * @throws ResolutionException if resolution fails
+	 */
+	@Benchmark
+	public Map<String, IdPAttribute> resolve(ThreadContexts contexts) throws ResolutionException {
+		if (path == Path.DB_MISS) {
+			contexts.resolutionContext.setPrincipal("miss" + MISSES.incrementAndGet());
+		}
+		return connector.doDataConnectorResolve(contexts.resolutionContext, contexts.workContext);
+	}
+
+}
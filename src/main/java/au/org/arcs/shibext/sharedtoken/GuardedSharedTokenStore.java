@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * {@link SharedTokenStorage} sending every operation on another store
+ * through a {@link SharedTokenBackendGuard}, so a stalled or failing
+ * database fails lookups quickly instead of holding the login threads.
+ */
+public class GuardedSharedTokenStore implements SharedTokenStorage {
+
+	/** The guarded store. */
+	private final SharedTokenStorage store;
+
+	/** The guard operations go through. */
+	private final SharedTokenBackendGuard guard;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store the store to guard
+	 * @param guard the guard operations go through
+	 */
+	public GuardedSharedTokenStore(SharedTokenStorage store, SharedTokenBackendGuard guard) {
+		this.store = store;
+		this.guard = guard;
+	}
+
+	/**
+	 * @return the guarded store
+	 */
+	public SharedTokenStorage getStore() {
+		return store;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDialect(SharedTokenStoreDialect dialect) {
+		store.setDialect(dialect);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) {
+		store.setQueryTimeout(seconds);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(SharedTokenSchema schema) {
+		store.setSchema(schema);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSharedToken(String uid) throws IMASTException {
+		return guard.call(() -> store.getSharedToken(uid));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		return guard.call(() -> store.findPrincipals(sharedTokens));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The value is looked up first, and only generated if there is none, on
+	 * the calling thread: the generator may need state of the caller's
+	 * thread, and its failures are not failures of the database.
+	 */
+	@Override
+	public String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException {
+		String sharedToken = getSharedToken(uid);
+		if (sharedToken != null) {
+			return sharedToken;
+		}
+		String generated;
+		try {
+			generated = generator.call();
+		} catch (IMASTException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IMASTException("Failed to generate SharedToken", e);
+		}
+		return guard.call(() -> store.getOrCreateSharedToken(uid, () -> generated));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException {
+		guard.call(() -> {
+			store.storeSharedTokens(sharedTokens);
+			return null;
+		});
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedToken(String uid, String sharedToken) throws IMASTException {
+		guard.call(() -> {
+			store.storeSharedToken(uid, sharedToken);
+			return null;
+		});
+	}
+
+}
@@ -35,5 +35,51 @@ public class MiscHelper {
 
         return null;
     }
+
+    /**
+     * Escapes a string for use as an attribute value in a distinguished name,
+     * as described in RFC 4514 section 2.4.
+     * 
+     * @param s the string to escape
+     * 
+     * @return the escaped string
+     */
+    public static String escapeDnValue(String s) {
+        StringBuilder escaped = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+            case '+':
+            case ',':
+            case ';':
+            case '<':
+            case '>':
+            case '=':
+            case '\\':
+                escaped.append('\\').append(c);
+                break;
+            case '\0':
+                escaped.append("\\00");
+                break;
+            case ' ':
+                // only leading and trailing spaces need escaping
+                if (i == 0 || i == s.length() - 1) {
+                    escaped.append('\\');
+                }
+                escaped.append(c);
+                break;
+            case '#':
+                if (i == 0) {
+                    escaped.append('\\');
+                }
+                escaped.append(c);
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
 	
 }
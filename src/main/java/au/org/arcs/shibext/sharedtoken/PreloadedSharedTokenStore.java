@@ -0,0 +1,425 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SharedTokenStorage} answering lookups from an in-memory index of
+ * the whole of tb_st, so that the logins following a restart do not all go
+ * to the database.  The index is a {@link SharedTokenIndex}, outside the
+ * heap.
+ *
+ * Once started, a background thread streams tb_st from each DataSource
+ * into the index.  Until it has finished, lookups go to the underlying
+ * store.  With a refresh interval, rows added since (by this node or
+ * others) are then read by their seq column, which must be a number
+ * assigned in increasing order on insert.  Rows committed out of seq order
+ * may be missed; like values the index does not have yet for any other
+ * reason, they are read from the underlying store and added to the index
+ * when first looked up.
+ *
+ * The index keeps a hash of each principal name rather than the name, so it
+ * cannot answer reverse lookups.  Optionally, a reverse map from value to
+ * principal name is kept on the heap alongside it.
+ */
+public class PreloadedSharedTokenStore implements SharedTokenStorage {
+
+	/** How far below the highest seq read a refresh starts, to catch rows committed out of order. */
+	private static final long REFRESH_OVERLAP = 1000;
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(PreloadedSharedTokenStore.class);
+
+	/** The underlying store. */
+	private final SharedTokenStorage store;
+
+	/** DataSources tb_st is read from. */
+	private final List<DataSource> dataSources;
+
+	/** Number of rows fetched from the database at a time. */
+	private final int fetchSize;
+
+	/** Interval between reads of new rows, null to read tb_st only once. */
+	private final Duration refreshInterval;
+
+	/** The index, sharedToken values keyed by principal name. */
+	private final SharedTokenIndex index = new SharedTokenIndex();
+
+	/** Principal names keyed by sharedToken value, null if reverse lookups go to the underlying store. */
+	private final ConcurrentMap<String, String> principals;
+
+	/** Highest seq read from each DataSource, -1 if none. */
+	private final long[] watermarks;
+
+	/** Number of lookups answered by the index. */
+	private final LongAdder hits = new LongAdder();
+
+	/** Number of lookups sent to the underlying store. */
+	private final LongAdder misses = new LongAdder();
+
+	/** SQL dialect, detected from the database if not set. */
+	private volatile SharedTokenStoreDialect dialect;
+
+	/** The table and columns values are kept in. */
+	private volatile SharedTokenSchema schema = SharedTokenSchema.DEFAULT;
+
+	/** Whether tb_st has been read, so the index can answer lookups. */
+	private volatile boolean ready;
+
+	/** Thread reading tb_st, running while the store is started. */
+	private ScheduledExecutorService loader;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store the underlying store
+	 * @param dataSources DataSources to read tb_st from
+	 * @param fetchSize number of rows fetched from the database at a time
+	 * @param refreshInterval interval between reads of new rows, null to read tb_st only once
+	 * @param reverse whether to also keep principal names keyed by value, for reverse lookups
+	 */
+	public PreloadedSharedTokenStore(SharedTokenStorage store, List<DataSource> dataSources, int fetchSize,
+			Duration refreshInterval, boolean reverse) {
+		if (dataSources.isEmpty()) {
+			throw new IllegalArgumentException("At least one DataSource is required");
+		}
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be positive");
+		}
+		if (refreshInterval != null && (refreshInterval.isNegative() || refreshInterval.isZero())) {
+			throw new IllegalArgumentException("Refresh interval must be positive");
+		}
+		this.store = store;
+		this.dataSources = new ArrayList<DataSource>(dataSources);
+		this.fetchSize = fetchSize;
+		this.refreshInterval = refreshInterval;
+		watermarks = new long[dataSources.size()];
+		principals = reverse ? new ConcurrentHashMap<String, String>() : null;
+	}
+
+	/**
+	 * @return the underlying store
+	 */
+	public SharedTokenStorage getStore() {
+		return store;
+	}
+
+	/**
+	 * Starts reading tb_st in the background.
+	 *
+	 * @param name name of the connector, used to name the thread
+	 */
+	public synchronized void start(String name) {
+		loader = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sharedtoken-preload-" + name);
+			t.setDaemon(true);
+			return t;
+		});
+		loader.execute(this::load);
+		if (refreshInterval != null) {
+			long interval = refreshInterval.toMillis();
+			loader.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops reading tb_st.
+	 */
+	public synchronized void close() {
+		if (loader != null) {
+			loader.shutdownNow();
+			loader = null;
+		}
+	}
+
+	/**
+	 * Reads the whole of tb_st into the index.  On failure, lookups keep going
+	 * to the underlying store, and with a refresh interval the read is tried
+	 * again at the next refresh.  Failures other than SQL errors, such as the
+	 * index being full, are caught too: they would otherwise cancel the
+	 * scheduled refreshes without a trace.
+	 */
+	private void load() {
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < dataSources.size(); i++) {
+				watermarks[i] = read(dataSources.get(i), null);
+			}
+		} catch (SQLException | RuntimeException e) {
+			log.warn("PreloadedSharedTokenStore: failed to read tb_st, looking up values in the database{}",
+					refreshInterval != null ? " until the next refresh" : "", e);
+			return;
+		}
+		ready = true;
+		log.info("PreloadedSharedTokenStore: read {} values in {} ms", index.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Reads the rows added since the last read, or the whole of tb_st if it
+	 * has not been read yet.
+	 */
+	private void refresh() {
+		if (!ready) {
+			load();
+			return;
+		}
+		for (int i = 0; i < dataSources.size(); i++) {
+			try {
+				watermarks[i] = Math.max(watermarks[i], read(dataSources.get(i), watermarks[i] - REFRESH_OVERLAP));
+			} catch (SQLException | RuntimeException e) {
+				log.warn("PreloadedSharedTokenStore: failed to read new rows of tb_st, will retry", e);
+			}
+		}
+	}
+
+	/**
+	 * Streams rows of tb_st into the index.
+	 *
+	 * @param dataSource the DataSource to read from
+	 * @param after seq after which to read rows, null to read all of them
+	 * @return the highest seq read, or -1 if none was (or seq is not used)
+	 * @throws SQLException if the rows cannot be read
+	 */
+	private long read(DataSource dataSource, Long after) throws SQLException {
+		SharedTokenSchema s = schema;
+		String sql = s.sql(refreshInterval == null ? "SELECT {uid}, {token} FROM {table}"
+				: after == null ? "SELECT {uid}, {token}, {seq} FROM {table}"
+				: "SELECT {uid}, {token}, {seq} FROM {table} WHERE {seq} > ?");
+		long highest = -1;
+		try (Connection conn = dataSource.getConnection()) {
+			SharedTokenStoreDialect d = dialect;
+			if (d == null) {
+				d = SharedTokenStoreDialect.detect(conn.getMetaData());
+			}
+			boolean autoCommit = conn.getAutoCommit();
+			// some drivers only use a cursor inside a transaction
+			conn.setAutoCommit(false);
+			try (PreparedStatement st = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY)) {
+				st.setFetchSize(d.getStreamingFetchSize(fetchSize));
+				if (refreshInterval != null && after != null) {
+					st.setLong(1, after);
+				}
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						String uid = rs.getString(1);
+						String sharedToken = s.getToken(rs, 2);
+						if (uid != null && sharedToken != null) {
+							put(uid, sharedToken);
+						}
+						if (refreshInterval != null) {
+							highest = Math.max(highest, rs.getLong(3));
+						}
+					}
+				}
+				conn.commit();
+			} finally {
+				conn.setAutoCommit(autoCommit);
+			}
+		}
+		return highest;
+	}
+
+	/**
+	 * @return whether tb_st has been read and the index answers lookups
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return number of values in the index
+	 */
+	public int getSize() {
+		return index.size();
+	}
+
+	/**
+	 * @return number of bytes of direct memory taken by the index
+	 */
+	public long getIndexBytes() {
+		return index.getTableBytes();
+	}
+
+	/**
+	 * @return number of lookups answered by the index
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of lookups sent to the underlying store
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDialect(SharedTokenStoreDialect dialect) {
+		this.dialect = dialect;
+		store.setDialect(dialect);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) {
+		store.setQueryTimeout(seconds);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(SharedTokenSchema schema) {
+		this.schema = schema;
+		store.setSchema(schema);
+	}
+
+	/**
+	 * @param uid the principal name
+	 * @return the value in the index, or null if it has none or is not ready
+	 */
+	private String lookup(String uid) {
+		if (!ready) {
+			return null;
+		}
+		String sharedToken = index.get(uid);
+		if (sharedToken != null) {
+			hits.increment();
+		}
+		return sharedToken;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSharedToken(String uid) throws IMASTException {
+		String sharedToken = lookup(uid);
+		if (sharedToken != null) {
+			return sharedToken;
+		}
+		misses.increment();
+		sharedToken = store.getSharedToken(uid);
+		if (sharedToken != null) {
+			put(uid, sharedToken);
+		}
+		return sharedToken;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException {
+		String sharedToken = lookup(uid);
+		if (sharedToken != null) {
+			return sharedToken;
+		}
+		misses.increment();
+		sharedToken = store.getOrCreateSharedToken(uid, generator);
+		put(uid, sharedToken);
+		return sharedToken;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * With the reverse map, values it has are answered from memory once
+	 * tb_st has been read, and only the others go to the underlying store.
+	 */
+	@Override
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		if (principals == null || !ready) {
+			return store.findPrincipals(sharedTokens);
+		}
+		Map<String, String> found = new HashMap<String, String>();
+		List<String> missing = new ArrayList<String>();
+		for (String sharedToken : sharedTokens) {
+			String uid = principals.get(sharedToken);
+			if (uid != null) {
+				found.put(sharedToken, uid);
+			} else {
+				missing.add(sharedToken);
+			}
+		}
+		if (!missing.isEmpty()) {
+			Map<String, String> read = store.findPrincipals(missing);
+			for (Map.Entry<String, String> entry : read.entrySet()) {
+				principals.put(entry.getKey(), entry.getValue());
+			}
+			found.putAll(read);
+		}
+		return found;
+	}
+
+	/**
+	 * Adds a value to the index, and to the reverse map if kept.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the value
+	 */
+	private void put(String uid, String sharedToken) {
+		index.put(uid, sharedToken);
+		if (principals != null) {
+			principals.put(sharedToken, uid);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The values reach the index when read back, as principals that already
+	 * have a value keep it.
+	 */
+	@Override
+	public void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException {
+		store.storeSharedTokens(sharedTokens);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedToken(String uid, String sharedToken) throws IMASTException {
+		store.storeSharedToken(uid, sharedToken);
+	}
+
+	/** Management interface of the preloaded index. */
+	public interface SharedTokenPreloadMXBean {
+
+		/** @return whether tb_st has been read and the index answers lookups */
+		boolean isReady();
+
+		/** @return number of values in the index */
+		int getSize();
+
+		/** @return number of bytes of direct memory taken by the index */
+		long getIndexBytes();
+
+		/** @return number of lookups answered by the index */
+		long getHits();
+
+		/** @return number of lookups sent to the database */
+		long getMisses();
+	}
+
+}
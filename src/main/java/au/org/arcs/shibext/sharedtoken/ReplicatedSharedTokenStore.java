@@ -0,0 +1,501 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SharedTokenStorage} reading from replicas of the primary database.
+ *
+ * Writes, and the re-read after an insert that did not take effect, go to
+ * the primary.  Lookups go to the replicas in turn, except for a principal
+ * this node stored a value for within the read-your-writes window, which is
+ * read from the primary.  A replica that finds no value may lag behind the
+ * primary, so the miss is confirmed on the primary before a new value is
+ * generated.  If every replica fails, the primary is read instead.
+ *
+ * With hedging, a lookup not answered by its replica within the hedge delay
+ * is also sent to the next replica, and the first answer wins.  The delay is
+ * the 95th percentile of recent replica lookups, but no less than the
+ * configured minimum, so about one lookup in twenty is hedged.
+ */
+public class ReplicatedSharedTokenStore implements SharedTokenStorage {
+
+	/** Maximum number of threads running hedged lookups. */
+	private static final int MAX_READ_THREADS = 64;
+
+	/** Number of lookups between recomputations of the hedge delay. */
+	private static final int HEDGE_DELAY_REFRESH = 256;
+
+	/** Number of lookups the hedge delay is computed from before starting over. */
+	private static final long HEDGE_DELAY_WINDOW = 10000;
+
+	/** Number of writes between removals of expired read-your-writes entries. */
+	private static final int RECENT_WRITES_SWEEP = 1024;
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(ReplicatedSharedTokenStore.class);
+
+	/** Store values are written to. */
+	private final SharedTokenStorage primary;
+
+	/** Store of each replica, in order. */
+	private final List<SharedTokenStore> replicas;
+
+	/** Health of each replica, in order. */
+	private final List<SharedTokenShardHealth> health;
+
+	/** How long after a write a principal is read from the primary, in nanoseconds; 0 to always read replicas. */
+	private final long readYourWritesNanos;
+
+	/** Whether lookups are hedged. */
+	private final boolean hedging;
+
+	/** Smallest hedge delay, in nanoseconds. */
+	private final long minHedgeDelayNanos;
+
+	/** Runs hedged lookups.  Only set when hedging. */
+	private final ThreadPoolExecutor readExecutor;
+
+	/** Time until which each recently written principal is read from the primary, from {@link System#nanoTime()}. */
+	private final ConcurrentHashMap<String, Long> recentWrites = new ConcurrentHashMap<String, Long>();
+
+	/** Number of writes recorded, to sweep expired entries of recentWrites now and then. */
+	private final AtomicInteger writes = new AtomicInteger();
+
+	/** Index of the replica to send the next lookup to first. */
+	private final AtomicInteger nextReplica = new AtomicInteger();
+
+	/** Latency of recent replica lookups. */
+	private volatile SharedTokenLatencyHistogram replicaLatency = new SharedTokenLatencyHistogram();
+
+	/** Number of replica lookups, to recompute the hedge delay now and then. */
+	private final AtomicLong replicaLookups = new AtomicLong();
+
+	/** Current hedge delay, in nanoseconds. */
+	private volatile long hedgeDelayNanos;
+
+	/** Number of lookups answered by a replica. */
+	private final LongAdder replicaReads = new LongAdder();
+
+	/** Number of lookups answered by the primary. */
+	private final LongAdder primaryReads = new LongAdder();
+
+	/** Number of lookups also sent to a second replica. */
+	private final LongAdder hedgedReads = new LongAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param primary store values are written to
+	 * @param dataSources connections to the replicas, in order
+	 * @param replicaNames names of the replicas, in the same order
+	 * @param readYourWrites how long after a write a principal is read from the primary
+	 * @param hedge whether lookups are hedged
+	 * @param minHedgeDelay smallest hedge delay
+	 */
+	public ReplicatedSharedTokenStore(SharedTokenStorage primary, List<DataSource> dataSources,
+			List<String> replicaNames, Duration readYourWrites, boolean hedge, Duration minHedgeDelay) {
+		if (dataSources.isEmpty()) {
+			throw new IllegalArgumentException("no replicas");
+		}
+		if (dataSources.size() != replicaNames.size()) {
+			throw new IllegalArgumentException(dataSources.size() + " replicas but " + replicaNames.size() + " names");
+		}
+		if (readYourWrites.isNegative() || minHedgeDelay.isNegative()) {
+			throw new IllegalArgumentException("negative read-your-writes window or hedge delay");
+		}
+		this.primary = primary;
+		List<SharedTokenStore> stores = new ArrayList<SharedTokenStore>();
+		List<SharedTokenShardHealth> healths = new ArrayList<SharedTokenShardHealth>();
+		for (int i = 0; i < dataSources.size(); i++) {
+			stores.add(new SharedTokenStore(dataSources.get(i)));
+			healths.add(new SharedTokenShardHealth(replicaNames.get(i)));
+		}
+		replicas = Collections.unmodifiableList(stores);
+		health = Collections.unmodifiableList(healths);
+		readYourWritesNanos = readYourWrites.toNanos();
+		hedging = hedge && replicas.size() > 1;
+		minHedgeDelayNanos = minHedgeDelay.toNanos();
+		hedgeDelayNanos = minHedgeDelayNanos;
+		if (hedging) {
+			readExecutor = new ThreadPoolExecutor(0, MAX_READ_THREADS, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), r -> {
+						Thread t = new Thread(r, "sharedtoken-replica-read");
+						t.setDaemon(true);
+						return t;
+					});
+		} else {
+			readExecutor = null;
+		}
+	}
+
+	/**
+	 * @return health of each replica, in order
+	 */
+	public List<SharedTokenShardHealth> getReplicaHealth() {
+		return health;
+	}
+
+	/**
+	 * @return number of lookups answered by a replica
+	 */
+	public long getReplicaReads() {
+		return replicaReads.sum();
+	}
+
+	/**
+	 * @return number of lookups answered by the primary
+	 */
+	public long getPrimaryReads() {
+		return primaryReads.sum();
+	}
+
+	/**
+	 * @return number of lookups also sent to a second replica
+	 */
+	public long getHedgedReads() {
+		return hedgedReads.sum();
+	}
+
+	/**
+	 * @return the current hedge delay, in nanoseconds; 0 if lookups are not hedged
+	 */
+	public long getHedgeDelayNanos() {
+		return hedging ? hedgeDelayNanos : 0;
+	}
+
+	/**
+	 * Stops the threads running hedged lookups.
+	 */
+	public void close() {
+		if (readExecutor != null) {
+			readExecutor.shutdown();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDialect(SharedTokenStoreDialect dialect) {
+		primary.setDialect(dialect);
+		for (SharedTokenStore replica : replicas) {
+			replica.setDialect(dialect);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) {
+		primary.setQueryTimeout(seconds);
+		for (SharedTokenStore replica : replicas) {
+			replica.setQueryTimeout(seconds);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(SharedTokenSchema schema) {
+		primary.setSchema(schema);
+		for (SharedTokenStore replica : replicas) {
+			replica.setSchema(schema);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSharedToken(String uid) throws IMASTException {
+		if (!isRecentlyWritten(uid)) {
+			String sharedToken = readFromReplicas(uid);
+			if (sharedToken != null) {
+				return sharedToken;
+			}
+		}
+		primaryReads.increment();
+		return primary.getSharedToken(uid);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The values are looked up in one replica, or the next if it fails, and
+	 * those it has no principal for are looked up again on the primary, as
+	 * the replica may lag behind.
+	 */
+	@Override
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		Map<String, String> principals = new HashMap<String, String>();
+		int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+		for (int i = 0; i < replicas.size(); i++) {
+			int replica = (first + i) % replicas.size();
+			try {
+				principals.putAll(replicas.get(replica).findPrincipals(sharedTokens));
+				health.get(replica).recordSuccess();
+				break;
+			} catch (IMASTException | RuntimeException e) {
+				health.get(replica).recordFailure(e);
+				log.debug("ReplicatedSharedTokenStore: reverse lookup failed on replica {}",
+						health.get(replica).getName(), e);
+			}
+		}
+		Set<String> remaining = new HashSet<String>(sharedTokens);
+		remaining.removeAll(principals.keySet());
+		if (!remaining.isEmpty()) {
+			principals.putAll(primary.findPrincipals(remaining));
+		}
+		return principals;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException {
+		if (!isRecentlyWritten(uid)) {
+			String sharedToken = readFromReplicas(uid);
+			if (sharedToken != null) {
+				return sharedToken;
+			}
+		}
+		primaryReads.increment();
+		boolean[] generated = { false };
+		String sharedToken = primary.getOrCreateSharedToken(uid, () -> {
+			generated[0] = true;
+			return generator.call();
+		});
+		if (generated[0]) {
+			recordWrite(uid);
+		}
+		return sharedToken;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException {
+		primary.storeSharedTokens(sharedTokens);
+		for (String uid : sharedTokens.keySet()) {
+			recordWrite(uid);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedToken(String uid, String sharedToken) throws IMASTException {
+		primary.storeSharedToken(uid, sharedToken);
+		recordWrite(uid);
+	}
+
+	/**
+	 * Records that a value was written for a principal, so it is read from
+	 * the primary until the read-your-writes window has passed.
+	 *
+	 * @param uid the principal name
+	 */
+	private void recordWrite(String uid) {
+		if (readYourWritesNanos == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		recentWrites.put(uid, now + readYourWritesNanos);
+		if (writes.incrementAndGet() % RECENT_WRITES_SWEEP == 0) {
+			recentWrites.values().removeIf(until -> until - now < 0);
+		}
+	}
+
+	/**
+	 * @param uid the principal name
+	 * @return whether a value was written for the principal within the read-your-writes window
+	 */
+	private boolean isRecentlyWritten(String uid) {
+		Long until = recentWrites.get(uid);
+		if (until == null) {
+			return false;
+		}
+		if (until - System.nanoTime() < 0) {
+			recentWrites.remove(uid, until);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up a value in the replicas.  The lookup goes to one replica, and to
+	 * the next if that fails or, when hedging, does not answer within the
+	 * hedge delay.  Lookups still running when another has answered are left
+	 * to complete.
+	 *
+	 * @param uid the principal name
+	 * @return the value, or null if the replica that answered has none or every replica failed
+	 * @throws IMASTException if the thread is interrupted while waiting
+	 */
+	private String readFromReplicas(String uid) throws IMASTException {
+		int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+		if (!hedging) {
+			for (int i = 0; i < replicas.size(); i++) {
+				try {
+					String sharedToken = readFromReplica((first + i) % replicas.size(), uid);
+					replicaReads.increment();
+					return sharedToken;
+				} catch (IMASTException | RuntimeException e) {
+					log.debug("ReplicatedSharedTokenStore: lookup of {} failed on replica {}", uid,
+							health.get((first + i) % replicas.size()).getName(), e);
+				}
+			}
+			log.warn("ReplicatedSharedTokenStore: lookup of {} failed on every replica, reading the primary", uid);
+			return null;
+		}
+
+		CompletionService<String> lookups = new ExecutorCompletionService<String>(readExecutor);
+		int sent = 0;
+		int pending = 0;
+		try {
+			if (submit(lookups, (first + sent) % replicas.size(), uid)) {
+				sent++;
+				pending++;
+			} else {
+				return readFromReplica(first, uid);
+			}
+			boolean hedged = false;
+			while (pending > 0) {
+				Future<String> done;
+				if (!hedged && sent < replicas.size()) {
+					done = lookups.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+					if (done == null) {
+						hedged = true;
+						if (submit(lookups, (first + sent) % replicas.size(), uid)) {
+							log.debug("ReplicatedSharedTokenStore: hedging lookup of {}", uid);
+							hedgedReads.increment();
+							sent++;
+							pending++;
+						}
+						continue;
+					}
+				} else {
+					done = lookups.take();
+				}
+				pending--;
+				try {
+					String sharedToken = done.get();
+					replicaReads.increment();
+					return sharedToken;
+				} catch (ExecutionException e) {
+					log.debug("ReplicatedSharedTokenStore: lookup of {} failed on a replica", uid, e.getCause());
+					if (pending == 0 && sent < replicas.size()
+							&& submit(lookups, (first + sent) % replicas.size(), uid)) {
+						sent++;
+						pending++;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IMASTException("Interrupted while reading SharedToken from replicas", e);
+		} catch (IMASTException | RuntimeException e) {
+			log.debug("ReplicatedSharedTokenStore: lookup of {} failed on replica {}", uid,
+					health.get(first).getName(), e);
+		}
+		log.warn("ReplicatedSharedTokenStore: lookup of {} failed on every replica tried, reading the primary", uid);
+		return null;
+	}
+
+	/**
+	 * Sends a lookup to a replica in the background.
+	 *
+	 * @param lookups the lookups of the current read
+	 * @param replica index of the replica
+	 * @param uid the principal name
+	 * @return whether the lookup was sent; false if all threads are busy
+	 */
+	private boolean submit(CompletionService<String> lookups, int replica, String uid) {
+		try {
+			lookups.submit(() -> readFromReplica(replica, uid));
+			return true;
+		} catch (RejectedExecutionException e) {
+			log.debug("ReplicatedSharedTokenStore: no thread free to read replica {}", health.get(replica).getName());
+			return false;
+		}
+	}
+
+	/**
+	 * Looks up a value in a replica and records the outcome and latency.
+	 *
+	 * @param replica index of the replica
+	 * @param uid the principal name
+	 * @return the value, or null if the replica has none
+	 * @throws IMASTException if the lookup fails
+	 */
+	private String readFromReplica(int replica, String uid) throws IMASTException {
+		long start = System.nanoTime();
+		try {
+			String sharedToken = replicas.get(replica).getSharedToken(uid);
+			health.get(replica).recordSuccess();
+			recordLatency(System.nanoTime() - start);
+			return sharedToken;
+		} catch (IMASTException | RuntimeException e) {
+			health.get(replica).recordFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Records the latency of a successful replica lookup, and now and then
+	 * recomputes the hedge delay from the latencies recorded.
+	 *
+	 * @param nanos the latency
+	 */
+	private void recordLatency(long nanos) {
+		SharedTokenLatencyHistogram latency = replicaLatency;
+		latency.record(nanos);
+		if (hedging && replicaLookups.incrementAndGet() % HEDGE_DELAY_REFRESH == 0) {
+			hedgeDelayNanos = Math.max(minHedgeDelayNanos, latency.getPercentile(95));
+			if (latency.getCount() >= HEDGE_DELAY_WINDOW) {
+				// start over, so the delay follows the replicas' current latency
+				replicaLatency = new SharedTokenLatencyHistogram();
+			}
+		}
+	}
+
+	/** Health and lookups of the replicas of a connector. */
+	public interface SharedTokenReplicasMXBean {
+
+		/** @return health of each replica, in order */
+		List<SharedTokenShardHealth> getReplicas();
+
+		/** @return number of lookups answered by a replica */
+		long getReplicaReads();
+
+		/** @return number of lookups answered by the primary */
+		long getPrimaryReads();
+
+		/** @return number of lookups also sent to a second replica */
+		long getHedgedReads();
+
+		/** @return the current hedge delay in milliseconds, 0 if lookups are not hedged */
+		double getHedgeDelayMillis();
+	}
+
+}
@@ -0,0 +1,211 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.sql.DataSource;
+
+/**
+ * {@link SharedTokenStorage} spread over several databases.  Each principal's
+ * sharedToken is kept in the shard chosen by a {@link SharedTokenShardRouter},
+ * so a shard only holds, and is only asked about, its share of the
+ * principals.
+ *
+ * The outcome of every operation is recorded in the {@link SharedTokenShardHealth}
+ * of its shard.  A failing shard only fails the principals it holds.
+ */
+public class ShardedSharedTokenStore implements SharedTokenStorage {
+
+	/** Chooses the shard of a principal. */
+	private final SharedTokenShardRouter router;
+
+	/** Store of each shard, in order. */
+	private final List<SharedTokenStore> shards;
+
+	/** Health of each shard, in order. */
+	private final List<SharedTokenShardHealth> health;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dataSources connections to the shards, in order
+	 * @param shardNames names of the shards, in the same order
+	 * @param sharding how the shard of a principal is chosen
+	 */
+	public ShardedSharedTokenStore(List<DataSource> dataSources, List<String> shardNames,
+			SharedTokenShardRouter.Sharding sharding) {
+		if (dataSources.size() != shardNames.size()) {
+			throw new IllegalArgumentException(dataSources.size() + " shards but " + shardNames.size() + " names");
+		}
+		router = new SharedTokenShardRouter(shardNames, sharding);
+		List<SharedTokenStore> stores = new ArrayList<SharedTokenStore>();
+		List<SharedTokenShardHealth> healths = new ArrayList<SharedTokenShardHealth>();
+		for (int i = 0; i < dataSources.size(); i++) {
+			stores.add(new SharedTokenStore(dataSources.get(i)));
+			healths.add(new SharedTokenShardHealth(shardNames.get(i)));
+		}
+		shards = Collections.unmodifiableList(stores);
+		health = Collections.unmodifiableList(healths);
+	}
+
+	/**
+	 * @return the router choosing the shard of a principal
+	 */
+	public SharedTokenShardRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * @return health of each shard, in order
+	 */
+	public List<SharedTokenShardHealth> getShardHealth() {
+		return health;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDialect(SharedTokenStoreDialect dialect) {
+		for (SharedTokenStore shard : shards) {
+			shard.setDialect(dialect);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) {
+		for (SharedTokenStore shard : shards) {
+			shard.setQueryTimeout(seconds);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(SharedTokenSchema schema) {
+		for (SharedTokenStore shard : shards) {
+			shard.setSchema(schema);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSharedToken(String uid) throws IMASTException {
+		int shard = router.shardOf(uid);
+		return call(shard, () -> shards.get(shard).getSharedToken(uid));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * A value says nothing of the shard holding it, so every shard is asked
+	 * in turn about the values not found yet.
+	 */
+	@Override
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		Map<String, String> principals = new HashMap<String, String>();
+		Set<String> remaining = new HashSet<String>(sharedTokens);
+		for (int i = 0; i < shards.size() && !remaining.isEmpty(); i++) {
+			int shard = i;
+			Map<String, String> found = call(shard, () -> shards.get(shard).findPrincipals(remaining));
+			principals.putAll(found);
+			remaining.removeAll(found.keySet());
+		}
+		return principals;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException {
+		int shard = router.shardOf(uid);
+		return call(shard, () -> shards.get(shard).getOrCreateSharedToken(uid, generator));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The values are stored one shard at a time; if a shard fails, the shards
+	 * after it are still written before the first failure is thrown.
+	 */
+	@Override
+	public void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException {
+		Map<Integer, Map<String, String>> byShard = new HashMap<Integer, Map<String, String>>();
+		for (Map.Entry<String, String> entry : sharedTokens.entrySet()) {
+			byShard.computeIfAbsent(router.shardOf(entry.getKey()), k -> new HashMap<String, String>())
+					.put(entry.getKey(), entry.getValue());
+		}
+		IMASTException failure = null;
+		for (Map.Entry<Integer, Map<String, String>> entry : byShard.entrySet()) {
+			int shard = entry.getKey();
+			try {
+				call(shard, () -> {
+					shards.get(shard).storeSharedTokens(entry.getValue());
+					return null;
+				});
+			} catch (IMASTException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedToken(String uid, String sharedToken) throws IMASTException {
+		int shard = router.shardOf(uid);
+		call(shard, () -> {
+			shards.get(shard).storeSharedToken(uid, sharedToken);
+			return null;
+		});
+	}
+
+	/**
+	 * Runs an operation on a shard and records its outcome.
+	 *
+	 * @param shard index of the shard
+	 * @param operation the operation
+	 * @return the result of the operation
+	 * @throws IMASTException if the operation fails
+	 */
+	private <T> T call(int shard, ShardOperation<T> operation) throws IMASTException {
+		try {
+			T result = operation.run();
+			health.get(shard).recordSuccess();
+			return result;
+		} catch (IMASTException | RuntimeException e) {
+			health.get(shard).recordFailure(e);
+			throw e;
+		}
+	}
+
+	/** An operation on a shard. */
+	@FunctionalInterface
+	private interface ShardOperation<T> {
+
+		/**
+		 * @return the result
+		 * @throws IMASTException if the operation fails
+		 */
+		T run() throws IMASTException;
+	}
+
+	/** Health of the shards of a connector. */
+	public interface SharedTokenShardsMXBean {
+
+		/** @return health of each shard, in order */
+		List<SharedTokenShardHealth> getShards();
+	}
+
+}
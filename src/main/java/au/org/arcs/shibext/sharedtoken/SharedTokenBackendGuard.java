@@ -0,0 +1,431 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ldaptive.LdapException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Protects the login threads from a stalled or failing backend (the database
+ * or LDAP).  Each operation sent to the backend goes through:
+ *
+ * <ul>
+ * <li>a circuit breaker, which opens after a number of consecutive failures
+ * and then rejects operations at once.  After the open time one operation is
+ * let through as a probe: if it succeeds the circuit closes, otherwise it
+ * opens again;</li>
+ * <li>a bulkhead, which rejects an operation when the maximum number of
+ * operations are already running;</li>
+ * <li>a deadline, after which the caller stops waiting.  The operation is
+ * then left to complete on its own thread, still holding its place in the
+ * bulkhead, so a stalled backend ties up at most as many threads as the
+ * bulkhead allows.  A deadline therefore requires a bulkhead.</li>
+ * </ul>
+ *
+ * Only errors of the backend count as failures: SQL and LDAP errors, also
+ * when wrapped in an {@link IMASTException}, and operations timing out.
+ * Other errors, such as a search finding no entry, show the backend answered.
+ *
+ * A rejected or timed out operation fails with a
+ * {@link SharedTokenBackendUnavailableException}, which
+ * {@link #logUnavailable(Throwable)} logs at most once a minute.
+ */
+public class SharedTokenBackendGuard {
+
+	/** Interval between logs of the backend being unavailable, in nanoseconds. */
+	private static final long LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/** State of the circuit breaker. */
+	public enum State {
+		/** Operations are let through. */
+		CLOSED,
+		/** Operations are rejected. */
+		OPEN,
+		/** One operation is let through to probe the backend, the others are rejected. */
+		HALF_OPEN
+	}
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenBackendGuard.class);
+
+	/** Name of the backend. */
+	private final String name;
+
+	/** Deadline of an operation in nanoseconds, 0 for none. */
+	private final long timeoutNanos;
+
+	/** Maximum number of operations running at once, 0 for no limit. */
+	private final int maxConcurrency;
+
+	/** Places in the bulkhead, null if the number of operations is not limited. */
+	private final Semaphore bulkhead;
+
+	/** Number of consecutive failures that open the circuit, 0 to never open it. */
+	private final int failureThreshold;
+
+	/** How long the circuit stays open before a probe, in nanoseconds. */
+	private final long openNanos;
+
+	/** Runs operations with a deadline, on at most maxConcurrency threads.  Only set when there is a deadline. */
+	private final ThreadPoolExecutor executor;
+
+	/** State of the circuit breaker. */
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+	/** When the circuit last opened, from {@link System#nanoTime()}. */
+	private volatile long openedAt;
+
+	/** Number of operations that failed since the last success. */
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	/** Number of operations let through. */
+	private final LongAdder calls = new LongAdder();
+
+	/** Number of operations that failed. */
+	private final LongAdder failures = new LongAdder();
+
+	/** Number of operations that timed out. */
+	private final LongAdder timeouts = new LongAdder();
+
+	/** Number of operations rejected by the circuit breaker or the bulkhead. */
+	private final LongAdder rejections = new LongAdder();
+
+	/** When the backend being unavailable was last logged, from {@link System#nanoTime()}. */
+	private final AtomicLong lastLogged = new AtomicLong(System.nanoTime() - LOG_INTERVAL_NANOS);
+
+	/** Number of times the backend being unavailable was not logged since it was last logged. */
+	private final LongAdder suppressed = new LongAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name name of the backend, for logs
+	 * @param timeout deadline of an operation, or null for none
+	 * @param maxConcurrency maximum number of operations running at once, 0 for no limit; required with a timeout
+	 * @param failureThreshold number of consecutive failures that open the circuit, 0 to never open it
+	 * @param openTime how long the circuit stays open before a probe
+	 */
+	public SharedTokenBackendGuard(String name, Duration timeout, int maxConcurrency, int failureThreshold,
+			Duration openTime) {
+		if (maxConcurrency < 0 || failureThreshold < 0) {
+			throw new IllegalArgumentException("negative concurrency or failure threshold");
+		}
+		if ((timeout != null && (timeout.isNegative() || timeout.isZero())) || openTime.isNegative()) {
+			throw new IllegalArgumentException("timeout must be positive and open time must not be negative");
+		}
+		if (timeout != null && maxConcurrency == 0) {
+			// operations left running after their deadline would pile up without limit
+			throw new IllegalArgumentException("a timeout requires a maximum concurrency");
+		}
+		this.name = name;
+		this.timeoutNanos = timeout == null ? 0 : timeout.toNanos();
+		this.maxConcurrency = maxConcurrency;
+		this.bulkhead = maxConcurrency == 0 ? null : new Semaphore(maxConcurrency);
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openTime.toNanos();
+		if (timeoutNanos > 0) {
+			// the bulkhead limits the number of operations queued or running to the number of threads
+			executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), r -> {
+						Thread t = new Thread(r, "sharedtoken-" + name);
+						t.setDaemon(true);
+						return t;
+					});
+			executor.allowCoreThreadTimeOut(true);
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Runs an operation on the backend.
+	 *
+	 * @param operation the operation
+	 * @return the result of the operation
+	 * @throws SharedTokenBackendUnavailableException if the operation is rejected or times out
+	 * @throws IMASTException if the operation fails
+	 */
+	public <T> T call(Operation<T> operation) throws IMASTException {
+		boolean probe = enter();
+		if (bulkhead != null && !bulkhead.tryAcquire()) {
+			if (probe) {
+				// the backend is still busy: stay open for another openTime, then let a later operation probe
+				openedAt = System.nanoTime();
+				state.set(State.OPEN);
+			}
+			rejections.increment();
+			throw new SharedTokenBackendUnavailableException(this, "too many operations waiting");
+		}
+		calls.increment();
+		T result;
+		try {
+			result = executor == null ? runAndRelease(operation) : runWithDeadline(operation);
+		} catch (IMASTException | RuntimeException e) {
+			if (isBackendFailure(e)) {
+				onFailure(probe, e);
+			} else {
+				onSuccess();
+			}
+			throw e;
+		}
+		onSuccess();
+		return result;
+	}
+
+	/**
+	 * Tells whether an error is a failure of the backend: an SQL or LDAP
+	 * error, possibly wrapped in {@link IMASTException}s, or no answer in time.
+	 *
+	 * @param error the error
+	 * @return whether the error counts as a failure of the backend
+	 */
+	static boolean isBackendFailure(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof SQLException || t instanceof LdapException
+					|| t instanceof SharedTokenBackendUnavailableException) {
+				return true;
+			}
+			if (!(t instanceof IMASTException)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the circuit breaker lets an operation through.
+	 *
+	 * @return whether the operation is the probe of a half-open circuit
+	 * @throws SharedTokenBackendUnavailableException if the circuit is open
+	 */
+	private boolean enter() throws SharedTokenBackendUnavailableException {
+		State current = state.get();
+		if (current == State.CLOSED) {
+			return false;
+		}
+		if (current == State.OPEN && System.nanoTime() - openedAt >= openNanos
+				&& state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			log.info("SharedTokenBackendGuard: probing {}", name);
+			return true;
+		}
+		rejections.increment();
+		throw new SharedTokenBackendUnavailableException(this, "circuit open");
+	}
+
+	/**
+	 * Runs an operation on the calling thread and releases its place in the bulkhead.
+	 *
+	 * @param operation the operation
+	 * @return the result of the operation
+	 * @throws IMASTException if the operation fails
+	 */
+	private <T> T runAndRelease(Operation<T> operation) throws IMASTException {
+		try {
+			return operation.run();
+		} finally {
+			if (bulkhead != null) {
+				bulkhead.release();
+			}
+		}
+	}
+
+	/**
+	 * Runs an operation on another thread, waiting for it until the deadline.
+	 *
+	 * @param operation the operation
+	 * @return the result of the operation
+	 * @throws IMASTException if the operation fails or times out
+	 */
+	private <T> T runWithDeadline(Operation<T> operation) throws IMASTException {
+		Future<T> future;
+		try {
+			future = executor.submit(() -> runAndRelease(operation));
+		} catch (RejectedExecutionException e) {
+			if (bulkhead != null) {
+				bulkhead.release();
+			}
+			rejections.increment();
+			throw new SharedTokenBackendUnavailableException(this, "no thread free");
+		}
+		try {
+			return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			timeouts.increment();
+			throw new SharedTokenBackendUnavailableException(this,
+					"no answer within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IMASTException("Interrupted while waiting for " + name, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IMASTException) {
+				throw (IMASTException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IMASTException(name + " operation failed", cause);
+		}
+	}
+
+	/**
+	 * Records an operation that succeeded, closing the circuit.
+	 */
+	private void onSuccess() {
+		consecutiveFailures.set(0);
+		if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+			log.info("SharedTokenBackendGuard: {} is available again, circuit closed", name);
+		}
+	}
+
+	/**
+	 * Records an operation that failed, opening the circuit if it was the
+	 * probe or one failure too many.
+	 *
+	 * @param probe whether the operation was the probe of a half-open circuit
+	 * @param error the error
+	 */
+	private void onFailure(boolean probe, Throwable error) {
+		failures.increment();
+		int failed = consecutiveFailures.incrementAndGet();
+		if (probe) {
+			openedAt = System.nanoTime();
+			state.set(State.OPEN);
+			log.warn("SharedTokenBackendGuard: probe of {} failed, circuit open for {} ms: {}", name,
+					TimeUnit.NANOSECONDS.toMillis(openNanos), error.getMessage());
+		} else if (failureThreshold > 0 && failed >= failureThreshold) {
+			openedAt = System.nanoTime();
+			if (state.compareAndSet(State.CLOSED, State.OPEN)) {
+				log.warn("SharedTokenBackendGuard: {} failed {} times in a row, circuit open for {} ms: {}", name,
+						failed, TimeUnit.NANOSECONDS.toMillis(openNanos), error.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Logs an error caused by the backend being unavailable, without a stack
+	 * trace and at most once a minute.
+	 *
+	 * @param error the error
+	 */
+	public void logUnavailable(Throwable error) {
+		long now = System.nanoTime();
+		long last = lastLogged.get();
+		if (now - last >= LOG_INTERVAL_NANOS && lastLogged.compareAndSet(last, now)) {
+			long skipped = suppressed.sumThenReset();
+			log.error("SharedTokenBackendGuard: {} ({} similar errors not logged in the last minute)",
+					error.getMessage(), skipped);
+		} else {
+			suppressed.increment();
+		}
+	}
+
+	/**
+	 * Stops the threads running operations with a deadline.
+	 */
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return name of the backend
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return state of the circuit breaker
+	 */
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * @return number of operations let through
+	 */
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	/**
+	 * @return number of operations that failed, including those that timed out
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * @return number of operations that timed out
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return number of operations rejected by the circuit breaker or the bulkhead
+	 */
+	public long getRejections() {
+		return rejections.sum();
+	}
+
+	/**
+	 * @return number of operations running, or -1 if the number is not limited
+	 */
+	public int getActiveOperations() {
+		return bulkhead == null ? -1 : maxConcurrency - bulkhead.availablePermits();
+	}
+
+	/** An operation on the backend. */
+	@FunctionalInterface
+	public interface Operation<T> {
+
+		/**
+		 * @return the result
+		 * @throws IMASTException if the operation fails
+		 */
+		T run() throws IMASTException;
+	}
+
+	/** State and counts of a backend of a connector. */
+	public interface SharedTokenBackendMXBean {
+
+		/** @return state of the circuit breaker: CLOSED, OPEN or HALF_OPEN */
+		String getState();
+
+		/** @return number of operations let through */
+		long getCalls();
+
+		/** @return number of operations that failed, including those that timed out */
+		long getFailures();
+
+		/** @return number of operations that timed out */
+		long getTimeouts();
+
+		/** @return number of operations rejected by the circuit breaker or the bulkhead */
+		long getRejections();
+
+		/** @return number of operations running, or -1 if the number is not limited */
+		int getActiveOperations();
+	}
+
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+/**
+ * Thrown when a {@link SharedTokenBackendGuard} does not let an operation
+ * through to its backend, or gives up waiting for it: the circuit is open,
+ * too many operations are already waiting, or the deadline has passed.
+ */
+public class SharedTokenBackendUnavailableException extends IMASTException {
+
+	/** Serial version UID. */
+	private static final long serialVersionUID = 4410537125082170925L;
+
+	/** The guard that rejected the operation. */
+	private final transient SharedTokenBackendGuard guard;
+
+	/**
+	 * @param guard the guard that rejected the operation
+	 * @param message message describing why
+	 */
+	public SharedTokenBackendUnavailableException(SharedTokenBackendGuard guard, String message) {
+		super(guard.getName() + " unavailable: " + message);
+		this.guard = guard;
+	}
+
+	/**
+	 * @return the guard that rejected the operation
+	 */
+	public SharedTokenBackendGuard getGuard() {
+		return guard;
+	}
+
+	/**
+	 * Finds a backend being unavailable among the causes of an error.
+	 *
+	 * @param error the error
+	 * @return the first cause that is a SharedTokenBackendUnavailableException, or null if none is
+	 */
+	public static SharedTokenBackendUnavailableException find(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+			if (cause instanceof SharedTokenBackendUnavailableException) {
+				return (SharedTokenBackendUnavailableException) cause;
+			}
+		}
+		return null;
+	}
+
+}
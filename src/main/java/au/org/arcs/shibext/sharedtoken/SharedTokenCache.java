@@ -0,0 +1,316 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded in-process cache of sharedToken values, keyed by principal name.
+ *
+ * A stored sharedToken never changes, so values read from (or written to) the
+ * {@link SharedTokenStore} can be served from memory on subsequent logins.
+ * Entries are evicted least-recently-used once the configured size is
+ * reached and, optionally, no longer returned by {@link #get(String)} after a
+ * fixed time since they were written.  Expired entries are kept until they are
+ * evicted, so {@link #getStale(String)} can still serve them while the
+ * store is unavailable.
+ *
+ * The cache can have a second tier in a {@link StorageService}, such as the
+ * memcached or JPA storage shared by the nodes of an IdP cluster, so a value
+ * read or stored by one node is found by the others.  Values missing from
+ * memory are looked for there, and cached values are written through to it
+ * under a dedicated context, expiring after a fixed time.  A value read from
+ * the storage service expires from memory no later than its record does.
+ * Failures of the storage service are logged and treated as misses, the
+ * cache never fails a login.  Either tier can be used alone.
+ */
+public class SharedTokenCache {
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenCache.class);
+
+	/** The backing cache, null if values are only kept in the storage service. */
+	private final Cache<String, Entry> cache;
+
+	/** Time after which an entry expires in nanoseconds, 0 for no expiry. */
+	private final long timeToLiveNanos;
+
+	/** Storage service shared by the IdP nodes, null if values are only kept in memory. */
+	private final StorageService storageService;
+
+	/** Context of the values in the storage service. */
+	private final String storageContext;
+
+	/** Time after which a value expires from the storage service, in milliseconds. */
+	private final long storageTimeToLiveMillis;
+
+	/** Whether the last access to the storage service failed, to log failures once. */
+	private final AtomicBoolean storageFailing = new AtomicBoolean();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maximumSize maximum number of entries held in the cache, must be positive
+	 * @param timeToLive time after which an entry expires, or null for no expiry
+	 */
+	public SharedTokenCache(long maximumSize, Duration timeToLive) {
+		this(maximumSize, timeToLive, null, null, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maximumSize maximum number of entries held in memory, 0 to only use the storage service
+	 * @param timeToLive time after which an entry expires from memory, or null for no expiry
+	 * @param storageService storage service shared by the IdP nodes, or null to only keep values in memory
+	 * @param storageContext context of the values in the storage service
+	 * @param storageTimeToLive time after which a value expires from the storage service
+	 */
+	public SharedTokenCache(long maximumSize, Duration timeToLive, StorageService storageService,
+			String storageContext, Duration storageTimeToLive) {
+		if (maximumSize < 0 || (maximumSize == 0 && storageService == null)) {
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		if (storageService != null) {
+			if (MiscHelper.isEmpty(storageContext)) {
+				throw new IllegalArgumentException("Storage context must not be empty");
+			}
+			if (storageTimeToLive == null || storageTimeToLive.isNegative() || storageTimeToLive.isZero()) {
+				throw new IllegalArgumentException("Storage time to live must be positive");
+			}
+			storageTimeToLiveMillis = storageTimeToLive.toMillis();
+		} else {
+			storageTimeToLiveMillis = 0;
+		}
+		this.storageService = storageService;
+		this.storageContext = storageContext;
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats();
+		if (timeToLive != null) {
+			if (timeToLive.isNegative() || timeToLive.isZero()) {
+				throw new IllegalArgumentException("Cache time to live must be positive");
+			}
+			timeToLiveNanos = timeToLive.toNanos();
+		} else {
+			timeToLiveNanos = 0;
+		}
+		cache = maximumSize > 0 ? builder.build() : null;
+		log.debug("SharedTokenCache: created with maximum size {} and time to live {}", maximumSize, timeToLive);
+		if (storageService != null) {
+			log.debug("SharedTokenCache: writing through to storage service {} in context {} for {}",
+					storageService.getId(), storageContext, storageTimeToLive);
+		}
+	}
+
+	/**
+	 * Gets the cached sharedToken for a principal.
+	 *
+	 * @param uid the principal name
+	 * @return the cached sharedToken, or null if not cached
+	 */
+	public String get(String uid) {
+		Entry entry = cache != null ? cache.getIfPresent(uid) : null;
+		if (entry != null && (!entry.expiring || System.nanoTime() - entry.expires < 0)) {
+			return entry.sharedToken;
+		}
+		return readStorage(uid);
+	}
+
+	/**
+	 * Gets the cached sharedToken for a principal, even if it has expired.
+	 *
+	 * @param uid the principal name
+	 * @return the cached sharedToken, or null if not cached or evicted
+	 */
+	public String getStale(String uid) {
+		Entry entry = cache != null ? cache.getIfPresent(uid) : null;
+		return entry != null ? entry.sharedToken : readStorage(uid);
+	}
+
+	/**
+	 * Caches the sharedToken for a principal, writing it through to the
+	 * storage service.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken value
+	 */
+	public void put(String uid, String sharedToken) {
+		if (cache != null) {
+			cache.put(uid, newEntry(sharedToken, null));
+		}
+		if (storageService != null) {
+			try {
+				// a stored sharedToken never changes, so a record already there holds the same value
+				storageService.create(storageContext, storageKey(uid), sharedToken,
+						System.currentTimeMillis() + storageTimeToLiveMillis);
+				storageSucceeded();
+			} catch (IOException e) {
+				storageFailed(e);
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached sharedToken for a principal, if any.
+	 *
+	 * @param uid the principal name
+	 */
+	public void invalidate(String uid) {
+		if (cache != null) {
+			cache.invalidate(uid);
+		}
+		if (storageService != null) {
+			try {
+				storageService.delete(storageContext, storageKey(uid));
+				storageSucceeded();
+			} catch (IOException e) {
+				storageFailed(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the approximate number of entries in the cache
+	 */
+	public long size() {
+		return cache != null ? cache.size() : 0;
+	}
+
+	/**
+	 * Reads the sharedToken for a principal from the storage service, keeping
+	 * it in memory if found.
+	 *
+	 * @param uid the principal name
+	 * @return the stored sharedToken, or null if not stored or the storage service failed
+	 */
+	private String readStorage(String uid) {
+		if (storageService == null) {
+			return null;
+		}
+		StorageRecord<?> record;
+		try {
+			record = storageService.read(storageContext, storageKey(uid));
+			storageSucceeded();
+		} catch (IOException e) {
+			storageFailed(e);
+			return null;
+		}
+		if (record == null) {
+			return null;
+		}
+		String sharedToken = record.getValue();
+		if (cache != null) {
+			cache.put(uid, newEntry(sharedToken, record.getExpiration()));
+		}
+		return sharedToken;
+	}
+
+	/**
+	 * Creates the entry of a value cached now, expiring after the time to
+	 * live, or when its record in the storage service expires if that is
+	 * sooner.
+	 *
+	 * @param sharedToken the sharedToken value
+	 * @param storageExpiration when the value's record expires from the
+	 *            storage service, in milliseconds since the epoch, or null if
+	 *            it was not read from there or does not expire
+	 * @return the entry
+	 */
+	private Entry newEntry(String sharedToken, Long storageExpiration) {
+		long now = System.nanoTime();
+		boolean expiring = timeToLiveNanos != 0;
+		long expires = now + timeToLiveNanos;
+		if (storageExpiration != null) {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(storageExpiration - System.currentTimeMillis());
+			if (!expiring || remaining < timeToLiveNanos) {
+				expiring = true;
+				expires = now + remaining;
+			}
+		}
+		return new Entry(sharedToken, expiring, expires);
+	}
+
+	/**
+	 * Gets the key a principal's value is stored under, the principal name or,
+	 * if it is longer than the storage service allows, its SHA-256 hash.
+	 *
+	 * @param uid the principal name
+	 * @return the key
+	 */
+	private String storageKey(String uid) {
+		if (uid.length() <= storageService.getCapabilities().getKeySize()) {
+			return uid;
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(uid.getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/** Notes the storage service worked, logging its recovery. */
+	private void storageSucceeded() {
+		if (storageFailing.compareAndSet(true, false)) {
+			log.info("SharedTokenCache: storage service {} is available again", storageService.getId());
+		}
+	}
+
+	/**
+	 * Notes the storage service failed, logging only the first of consecutive
+	 * failures.
+	 *
+	 * @param e the failure
+	 */
+	private void storageFailed(IOException e) {
+		if (storageFailing.compareAndSet(false, true)) {
+			log.warn("SharedTokenCache: storage service {} failed, using the database until it recovers",
+					storageService.getId(), e);
+		} else {
+			log.debug("SharedTokenCache: storage service {} failed", storageService.getId(), e);
+		}
+	}
+
+	/** A cached sharedToken and when it expires. */
+	private static final class Entry {
+
+		/** The sharedToken value. */
+		private final String sharedToken;
+
+		/** Whether the value expires. */
+		private final boolean expiring;
+
+		/** When the value expires, from {@link System#nanoTime()}, if it does. */
+		private final long expires;
+
+		/**
+		 * @param sharedToken the sharedToken value
+		 * @param expiring whether the value expires
+		 * @param expires when the value expires, from {@link System#nanoTime()}, if it does
+		 */
+		private Entry(String sharedToken, boolean expiring, long expires) {
+			this.sharedToken = sharedToken;
+			this.expiring = expiring;
+			this.expires = expires;
+		}
+	}
+
+}
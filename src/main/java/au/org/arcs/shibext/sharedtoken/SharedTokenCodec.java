@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+/**
+ * Converts between the raw 20 byte SHA-1 hash and the 27 character
+ * URL-safe, unpadded Base64 form of a sharedToken.
+ */
+public final class SharedTokenCodec {
+
+	/** Length of the raw hash, in bytes. */
+	public static final int RAW_LENGTH = 20;
+
+	/** Length of the encoded sharedToken, in characters. */
+	public static final int ENCODED_LENGTH = 27;
+
+	/** URL-safe Base64 alphabet (RFC 4648 section 5). */
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	/** Value of each character of the alphabet, -1 for characters not in it. */
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		java.util.Arrays.fill(VALUES, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	/** Constructor. */
+	private SharedTokenCodec() {
+	}
+
+	/**
+	 * Encodes a raw hash.
+	 *
+	 * @param raw array holding the raw hash
+	 * @param offset offset of the hash in the array
+	 * @return the sharedToken
+	 */
+	public static String encode(byte[] raw, int offset) {
+		char[] out = new char[ENCODED_LENGTH];
+		int o = 0;
+		int i = offset;
+		// 6 groups of 3 bytes give 24 characters
+		for (int end = offset + 18; i < end; i += 3) {
+			int b = (raw[i] & 0xff) << 16 | (raw[i + 1] & 0xff) << 8 | (raw[i + 2] & 0xff);
+			out[o++] = ALPHABET[b >>> 18];
+			out[o++] = ALPHABET[(b >>> 12) & 0x3f];
+			out[o++] = ALPHABET[(b >>> 6) & 0x3f];
+			out[o++] = ALPHABET[b & 0x3f];
+		}
+		// the remaining 2 bytes give 3 characters, without padding
+		int b = (raw[i] & 0xff) << 8 | (raw[i + 1] & 0xff);
+		out[o++] = ALPHABET[b >>> 10];
+		out[o++] = ALPHABET[(b >>> 4) & 0x3f];
+		out[o] = ALPHABET[(b << 2) & 0x3f];
+		return new String(out);
+	}
+
+	/**
+	 * Decodes a sharedToken into its raw hash.
+	 *
+	 * @param sharedToken the sharedToken
+	 * @param raw array to write the raw hash to
+	 * @param offset offset in the array to write the hash at
+	 * @return true if the sharedToken was in canonical form and was decoded,
+	 *         false if it was not (and nothing was written)
+	 */
+	public static boolean decode(String sharedToken, byte[] raw, int offset) {
+		if (sharedToken == null || sharedToken.length() != ENCODED_LENGTH) {
+			return false;
+		}
+		// validate first so that nothing is written for a non-canonical value
+		for (int i = 0; i < ENCODED_LENGTH; i++) {
+			if (value(sharedToken.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		// the last character only carries 4 bits, the low 2 must be zero
+		if ((value(sharedToken.charAt(ENCODED_LENGTH - 1)) & 0x3) != 0) {
+			return false;
+		}
+		int o = offset;
+		int i = 0;
+		for (; i < 24; i += 4) {
+			int b = value(sharedToken.charAt(i)) << 18 | value(sharedToken.charAt(i + 1)) << 12
+					| value(sharedToken.charAt(i + 2)) << 6 | value(sharedToken.charAt(i + 3));
+			raw[o++] = (byte) (b >>> 16);
+			raw[o++] = (byte) (b >>> 8);
+			raw[o++] = (byte) b;
+		}
+		int b = value(sharedToken.charAt(i)) << 10 | value(sharedToken.charAt(i + 1)) << 4
+				| value(sharedToken.charAt(i + 2)) >>> 2;
+		raw[o++] = (byte) (b >>> 8);
+		raw[o] = (byte) b;
+		return true;
+	}
+
+	/**
+	 * @param c a character
+	 * @return the value of the character in the alphabet, or -1 if it is not in it
+	 */
+	private static int value(char c) {
+		return c < 128 ? VALUES[c] : -1;
+	}
+
+	/**
+	 * Decodes a sharedToken into its raw hash.
+	 *
+	 * @param sharedToken the sharedToken
+	 * @return the raw hash, or null if the sharedToken is not in canonical form
+	 */
+	public static byte[] decode(String sharedToken) {
+		byte[] raw = new byte[RAW_LENGTH];
+		return decode(sharedToken, raw, 0) ? raw : null;
+	}
+
+}
@@ -3,32 +3,47 @@
  */
 package au.org.arcs.shibext.sharedtoken;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
 import javax.sql.DataSource;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.ldaptive.AttributeModification;
 import org.ldaptive.AttributeModificationType;
-import org.ldaptive.Connection;
+import org.ldaptive.ConnectionFactory;
 import org.ldaptive.LdapAttribute;
 import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
 import org.ldaptive.ModifyRequest;
-import org.ldaptive.Response;
 import org.ldaptive.ResultCode;
+import org.ldaptive.SearchExecutor;
 import org.ldaptive.SearchResult;
-import org.ldaptive.provider.ProviderConnection;
+import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+
 import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
 import net.shibboleth.idp.attribute.resolver.ResolvedAttributeDefinition;
 import net.shibboleth.idp.attribute.resolver.ResolvedDataConnector;
@@ -62,6 +77,21 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 
 	private static String SEPARATOR = ",";
 
+	/** Maximum number of backfills waiting to be written. */
+	private static final int BACKFILL_QUEUE_SIZE = 10000;
+
+	/** How long to wait for queued backfills when the connector is destroyed. */
+	private static final long BACKFILL_SHUTDOWN_SECONDS = 5;
+
+	/** Number of times a value is added to LDAP when the directory refuses it for a conflicting value. */
+	private static final int LDAP_CONFLICT_ATTEMPTS = 3;
+
+	/** Wait before the second attempt, doubled for each further one, in milliseconds. */
+	private static final long LDAP_CONFLICT_BACKOFF_MILLIS = 50;
+
+	/** Local IDs that can be logged as they are. */
+	private static final Pattern PRINTABLE_LOCAL_ID = Pattern.compile("^[a-zA-Z0-9@\\\\]+$");
+
 	/** ID of the attribute generated by this data connector. */
 	private String generatedAttributeId = "auEduPersonSharedToken";
 
@@ -79,6 +109,18 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	/** Salt used when computing the ID. */
 	private byte[] salt;
 
+	/** Computes sharedToken values, created at initialization from the salt. */
+	private SharedTokenGenerator tokenGenerator;
+
+	/** ID of the pairwise attribute generated alongside the sharedToken, not generated if null. */
+	private String pairwiseAttributeId;
+
+	/** Key of the pairwise values, the salt if null. */
+	private byte[] pairwiseSalt;
+
+	/** Computes pairwise values, created at initialization if pairwiseAttributeId is set. */
+	private SharedTokenPairwiseGenerator pairwiseGenerator;
+
 	/** Whether to store the sharedToken values into Ldap */
 	private boolean storeLdap = false;
 
@@ -87,11 +129,176 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 
 	private String storedAttributeName = "auEduPersonSharedToken";
 
+	/** Attribute of the LDAP connector results holding the DN of the entry to store new values in, e.g. entryDN. */
+	private String ldapEntryDnAttribute;
+
+	/** DN of the entry to store new values in, with {principal} replaced by the escaped principal name. */
+	private String ldapDnTemplate;
+
+	/** Writes sharedToken values to LDAP over a pool of connections. */
+	private final SharedTokenLdapWriter ldapWriter = new SharedTokenLdapWriter();
+
 	/** Whether to store the sharedToken values into a database */
 	private boolean storeDatabase = false;
 
 	/** SharedToken data store.  DataSource to use for retrieving and storing sharedToken values. */
-	private SharedTokenStore stStore;
+	private SharedTokenStorage stStore;
+
+	/** DataSource of databaseConnectionID, kept to read tb_st in bulk. */
+	private DataSource dataSource;
+
+	/** DataSources of the shards when sharedToken values are spread over several databases. */
+	private List<DataSource> shardDataSources;
+
+	/** Names of the shards, in the order of shardDataSources.  Consistent hashing places the shards by name. */
+	private List<String> shardNames;
+
+	/** How the shard of a principal is chosen, as a {@link SharedTokenShardRouter.Sharding} name. */
+	private String sharding = "modulo";
+
+	/** DataSources of read replicas of the database.  Lookups are sent to them rather than to the primary if set. */
+	private List<DataSource> replicaDataSources;
+
+	/** Names of the replicas, in the order of replicaDataSources. */
+	private List<String> replicaNames;
+
+	/** How long after this node stores a value for a principal the value is read from the primary rather than replicas. */
+	private Duration readYourWritesWindow = Duration.ofSeconds(10);
+
+	/** Whether a lookup not answered by its replica within the hedge delay is also sent to another replica. */
+	private boolean hedgeReads = false;
+
+	/** Smallest hedge delay; the delay is otherwise the 95th percentile of replica lookups. */
+	private Duration hedgeMinDelay = Duration.ofMillis(10);
+
+	/** Directory of the snapshot and journal files sharedToken values are kept in instead of a database, if set. */
+	private String fileStoreDirectory;
+
+	/** Interval between compactions of the journal into the snapshot file. */
+	private Duration fileStoreCompactionInterval = Duration.ofHours(1);
+
+	/** Whether to read the whole of tb_st into memory at startup and answer lookups from it. */
+	private boolean preload = false;
+
+	/** Number of rows fetched at a time when reading tb_st. */
+	private int preloadFetchSize = 10000;
+
+	/** Interval between reads of rows added to tb_st since, null to read it only at startup. */
+	private Duration preloadRefreshInterval;
+
+	/** Whether the preloaded values are also kept keyed by value, to answer reverse lookups from memory. */
+	private boolean preloadReverseIndex = false;
+
+	/** SQL dialect of the database, as a {@link SharedTokenStoreDialect} name.  Detected from the database if not set. */
+	private String databaseDialect;
+
+	/** Name of the table sharedToken values are kept in. */
+	private String databaseTable = SharedTokenSchema.DEFAULT.getTable();
+
+	/** Name of the principal name column. */
+	private String databaseUidColumn = SharedTokenSchema.DEFAULT.getUidColumn();
+
+	/** Name of the sharedToken column. */
+	private String databaseTokenColumn = SharedTokenSchema.DEFAULT.getTokenColumn();
+
+	/** Name of the column numbering rows in insert order, used by preloadRefreshInterval. */
+	private String databaseSeqColumn = SharedTokenSchema.DEFAULT.getSeqColumn();
+
+	/** Format of the sharedToken column: text, or binary for the 20 raw bytes. */
+	private String databaseTokenFormat = "text";
+
+	/** What to do about the table at startup: none, verify or create. */
+	private String databaseSchema = "none";
+
+	/** The table and columns sharedToken values are kept in. */
+	private SharedTokenSchema tokenSchema;
+
+	/** Maximum number of sharedToken values to cache in memory when storeDatabase=true.  0 disables the cache. */
+	private long cacheSize = 0;
+
+	/** Time after which a cached sharedToken value expires.  If not set, values do not expire. */
+	private Duration cacheTTL;
+
+	/** Storage service shared by the IdP nodes, caching sharedToken values behind the in-memory cache.  Null to not use one. */
+	private StorageService cacheStorageService;
+
+	/** Context of the cached sharedToken values in the storage service, defaults to one per connector ID. */
+	private String cacheStorageContext;
+
+	/** Time after which a sharedToken value cached in the storage service expires. */
+	private Duration cacheStorageTTL = Duration.ofDays(1);
+
+	/** In-memory cache in front of the SharedToken data store.  Only set when caching is enabled. */
+	private SharedTokenCache tokenCache;
+
+	/** Whether new sharedToken values are journalled locally and written to the database in the background. */
+	private boolean writeBehind = false;
+
+	/** Directory holding the write-behind journal. */
+	private String writeBehindDirectory;
+
+	/** Interval between background writes of journalled values. */
+	private Duration writeBehindInterval = Duration.ofSeconds(1);
+
+	/** Maximum number of journalled values written to the database in one batch. */
+	private int writeBehindBatchSize = 500;
+
+	/** Background writer of journalled values.  Only set when write-behind is enabled. */
+	private SharedTokenWriteBehind tokenWriteBehind;
+
+	/** Coalesces concurrent lookups (and generation) of the sharedToken for the same principal. */
+	private final SharedTokenSingleFlight inFlightLookups = new SharedTokenSingleFlight();
+
+	/** Comma separated sources of sharedToken values (cache, database, ldap), in the order they are looked up. */
+	private String tokenSources;
+
+	/** The sources of sharedToken values in lookup order.  Only set when tokenSources is set. */
+	private List<TokenSource> tokenChain;
+
+	/** Writes values found in a source into the sources looked up before it.  Only set when tokenSources is set. */
+	private ExecutorService backfillExecutor;
+
+	/** Deadline of each database operation, including getting a connection.  No deadline if not set. */
+	private Duration databaseTimeout;
+
+	/** Maximum number of database operations running at once.  0 for no limit. */
+	private int databaseMaxConcurrency = 0;
+
+	/** Deadline of each LDAP search and modification done to store a value.  No deadline if not set. */
+	private Duration ldapTimeout;
+
+	/** Maximum number of LDAP searches and modifications running at once.  0 for no limit. */
+	private int ldapMaxConcurrency = 0;
+
+	/** Number of consecutive failures of a backend that open its circuit.  0 never opens it. */
+	private int circuitBreakerThreshold = 0;
+
+	/** How long an open circuit rejects operations before letting one through as a probe. */
+	private Duration circuitBreakerOpenTime = Duration.ofSeconds(30);
+
+	/** What is released while a backend is unavailable: omit (nothing) or cache (expired cached values too). */
+	private String degradedPolicy = "omit";
+
+	/** Guards database operations.  Only set when a deadline, bulkhead or circuit breaker is configured. */
+	private SharedTokenBackendGuard databaseGuard;
+
+	/** Guards LDAP operations.  Only set when a deadline, bulkhead or circuit breaker is configured. */
+	private SharedTokenBackendGuard ldapGuard;
+
+	/** Where metrics are published: jmx, dropwizard or none. */
+	private String metrics = "none";
+
+	/** Registry metrics are recorded in when metrics=dropwizard. */
+	private MetricRegistry metricRegistry;
+
+	/** Records the latency of each stage, cache hits and errors.  Set at initialization. */
+	private SharedTokenMetrics tokenMetrics = SharedTokenMetrics.NONE;
+
+	/** Where to look up each source attribute, in sourceAttributeId order.  Compiled at initialization. */
+	private SourceAttribute[] sourceAttributes;
+
+	/** IDs accepted as data connector dependencies when looking up source attributes.  Compiled at initialization. */
+	private Set<String> dataConnectorDependencyIds;
 
 	/**
 	 * Constructor.  Takes no arguments, all parameters are to be supplied as properties.
@@ -116,20 +323,86 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 			throw new ComponentInitializationException(
 					"Generated attribute ID must be set and not empty");
 
-		// throw an error is both storeDatabase and storeLdap are true
-		if (storeDatabase && storeLdap) {
-			throw new ComponentInitializationException("Only one of storeDatabase, storeLdap can be set to true");
+		if (salt == null)
+			throw new ComponentInitializationException(
+					"Salt must be set");
+		tokenGenerator = new SharedTokenGenerator(salt, idpIdentifier);
+
+		if (pairwiseAttributeId != null) {
+			if (pairwiseAttributeId.equals(generatedAttributeId)) {
+				throw new ComponentInitializationException(
+						"Pairwise attribute ID must differ from the generated attribute ID");
+			}
+			pairwiseGenerator = new SharedTokenPairwiseGenerator(pairwiseSalt != null ? pairwiseSalt : salt);
+		}
+
+		if (tokenSources != null) {
+			tokenChain = parseTokenSources();
+		} else if (storeDatabase && storeLdap) {
+			// throw an error is both storeDatabase and storeLdap are true, unless the order of the stores is configured
+			throw new ComponentInitializationException("Only one of storeDatabase, storeLdap can be set to true"
+					+ " unless tokenSources is set");
 		}
+		boolean usesDatabase = storeDatabase || chainContains(TokenSource.DATABASE);
+		boolean usesLdap = !storeDatabase || chainContains(TokenSource.LDAP);
 
-		if (storeDatabase) {
+		if (shardDataSources != null) {
+			if (stStore != null) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " can only have one of databaseConnectionID, databaseConnectionIDs");
+			}
+			stStore = createShardedStore();
+		}
+		if (fileStoreDirectory != null) {
+			if (stStore != null || replicaDataSources != null) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " cannot use fileStoreDirectory with a Database Connection");
+			}
+			stStore = openFileStore();
+		}
+		if (replicaDataSources != null) {
+			if (shardDataSources != null) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " can only use replicaConnectionIDs with databaseConnectionID");
+			}
 			if (stStore == null) {
 				throw new ComponentInitializationException("SharedToken ID " + getId()
-						+ " data connector requires a Database Connection when storeDatabase=true");
+						+ " requires databaseConnectionID when replicaConnectionIDs is set");
 			}
-		} else {
-			if (storeLdap && ldapConnectorId == null) {
+			stStore = createReplicatedStore();
+		}
+		if (usesDatabase) {
+			if (stStore == null) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " data connector requires a Database Connection when using the database");
+			}
+			if (databaseDialect != null) {
+				try {
+					stStore.setDialect(SharedTokenStoreDialect.valueOf(databaseDialect.trim().toUpperCase(Locale.ROOT)));
+				} catch (IllegalArgumentException e) {
+					throw new ComponentInitializationException("SharedToken ID " + getId()
+							+ " has unknown databaseDialect " + databaseDialect);
+				}
+			}
+			tokenSchema = createSchema();
+			stStore.setSchema(tokenSchema);
+			manageSchema();
+			if (databaseTimeout != null) {
+				// round up, as 0 would mean no timeout
+				stStore.setQueryTimeout((int) Math.max(1, (databaseTimeout.toMillis() + 999) / 1000));
+			}
+			databaseGuard = createGuard("database", databaseTimeout, databaseMaxConcurrency);
+			if (databaseGuard != null) {
+				stStore = new GuardedSharedTokenStore(stStore, databaseGuard);
+			}
+			if (preload) {
+				stStore = createPreloadedStore();
+			}
+		}
+		if (usesLdap) {
+			if ((storeLdap || chainContains(TokenSource.LDAP)) && ldapConnectorId == null) {
 				throw new ComponentInitializationException("SharedToken ID " + getId()
-						+ " data connector requires an LDAP Connector ID when storing sharedToken values into LDAP");
+						+ " data connector requires an LDAP Connector ID when reading or storing sharedToken values in LDAP");
 			}
 
 			// whenever we are using LDAP for reading or writing, we need to see the LDAP connector among dependencies
@@ -142,6 +415,71 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 			}
 		}
 
+		if (cacheSize > 0 || cacheStorageService != null) {
+			if (tokenChain != null ? chainContains(TokenSource.CACHE) : storeDatabase) {
+				if (cacheStorageContext == null) {
+					cacheStorageContext = SharedTokenDataConnector.class.getPackage().getName() + "." + getId();
+				}
+				try {
+					tokenCache = new SharedTokenCache(cacheSize, cacheTTL, cacheStorageService, cacheStorageContext,
+							cacheStorageTTL);
+				} catch (IllegalArgumentException e) {
+					throw new ComponentInitializationException("SharedToken ID " + getId()
+							+ " has an invalid cache configuration: " + e.getMessage(), e);
+				}
+			} else {
+				log.warn("SharedTokenDataConnector {} has cacheSize or cacheStorageServiceRef set but does not use a cache, cache will not be used", getId());
+			}
+		}
+
+		if (writeBehind) {
+			if (!storeDatabase) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " can only use writeBehind with storeDatabase=true");
+			}
+			if (MiscHelper.isEmpty(writeBehindDirectory)) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " requires writeBehindDirectory when writeBehind=true");
+			}
+			tokenWriteBehind = new SharedTokenWriteBehind(stStore, Paths.get(writeBehindDirectory),
+					writeBehindInterval, writeBehindBatchSize);
+			try {
+				tokenWriteBehind.start(getId());
+			} catch (IOException e) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " failed to open write-behind journal in " + writeBehindDirectory, e);
+			}
+		}
+
+		if (tokenChain != null) {
+			backfillExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(BACKFILL_QUEUE_SIZE), r -> {
+						Thread t = new Thread(r, "sharedtoken-backfill-" + getId());
+						t.setDaemon(true);
+						return t;
+					}, (r, executor) -> log.warn("SharedTokenDataConnector {}: backfill queue full, dropping a backfill", getId()));
+		}
+
+		if (storeLdap) {
+			// a timeout needs a bulkhead, which defaults to the size of the write pool
+			ldapGuard = createGuard("ldap", ldapTimeout, ldapTimeout != null && ldapMaxConcurrency == 0
+					? ldapWriter.getMaxPoolSize() : ldapMaxConcurrency);
+		}
+
+		if (!"omit".equals(degradedPolicy) && !"cache".equals(degradedPolicy)) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has unknown degradedPolicy " + degradedPolicy);
+		}
+		if ("cache".equals(degradedPolicy) && tokenCache == null) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " requires a cache when degradedPolicy=cache");
+		}
+
+		if (ldapWriter.getMinPoolSize() > ldapWriter.getMaxPoolSize()) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has ldapWritePoolMinSize greater than ldapWritePoolMaxSize");
+		}
+
 		// warn if both storeLdap=false and storeDatabase=false
 		if (!storeDatabase && !getStoreLdap()) {
 			log.warn("SharedTokenDataConnector {} is configured to store values neither in database nor in LDAP.  SharedToken values generated on the fly SHOULD NOT be used on production systems.", getId());
@@ -154,7 +492,380 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 				throw new ComponentInitializationException("Source attribute ID " + ids[i] + " not listed in dependencies of connector " + getId());
 			}
 		}
+		sourceAttributes = compileSourceAttributes(ids);
+		dataConnectorDependencyIds = compileDataConnectorDependencyIds();
+
+		tokenMetrics = createMetrics();
+
+	}
+
+	/**
+	 * Parses and checks tokenSources.
+	 *
+	 * @return the sources of sharedToken values, in lookup order
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if tokenSources is not a valid list of sources, or does
+	 *             not list a source that values are stored in
+	 */
+	private List<TokenSource> parseTokenSources() throws ComponentInitializationException {
+		List<TokenSource> chain = new ArrayList<TokenSource>();
+		for (String name : tokenSources.split(SEPARATOR)) {
+			TokenSource source;
+			try {
+				source = TokenSource.valueOf(name.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " has unknown token source " + name + " in tokenSources");
+			}
+			if (chain.contains(source)) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " lists token source " + name + " more than once in tokenSources");
+			}
+			chain.add(source);
+		}
+		if (chain.contains(TokenSource.CACHE) && cacheSize <= 0 && cacheStorageService == null) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " requires cacheSize or cacheStorageServiceRef when tokenSources includes cache");
+		}
+		if (storeDatabase && !chain.contains(TokenSource.DATABASE)) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has storeDatabase=true but tokenSources does not include database");
+		}
+		if (storeLdap && !chain.contains(TokenSource.LDAP)) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has storeLdap=true but tokenSources does not include ldap");
+		}
+		log.debug("SharedTokenDataConnector {}: looking up sharedToken values in {}", getId(), chain);
+		return chain;
+	}
+
+	/**
+	 * @param source a source of sharedToken values
+	 * @return whether tokenSources is set and includes the source
+	 */
+	private boolean chainContains(TokenSource source) {
+		return tokenChain != null && tokenChain.contains(source);
+	}
+
+	/**
+	 * Creates the store spreading sharedToken values over the shard DataSources.
+	 *
+	 * @return the store
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if the shards or the sharding are misconfigured
+	 */
+	private ShardedSharedTokenStore createShardedStore() throws ComponentInitializationException {
+		if (shardDataSources.isEmpty()) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " requires at least one DataSource in databaseConnectionIDs");
+		}
+		List<String> names = shardNames;
+		if (names == null) {
+			names = new ArrayList<String>();
+			for (int i = 0; i < shardDataSources.size(); i++) {
+				names.add("shard" + i);
+			}
+		}
+		try {
+			ShardedSharedTokenStore store = new ShardedSharedTokenStore(shardDataSources, names,
+					SharedTokenShardRouter.Sharding.fromName(sharding));
+			log.debug("SharedTokenDataConnector {}: spreading sharedToken values over shards {} by {}",
+					getId(), names, store.getRouter().getSharding());
+			return store;
+		} catch (IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has invalid shards: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Creates the guard of a backend, if any of its deadline, bulkhead or
+	 * circuit breaker is configured.
+	 *
+	 * @param backend the backend: database or ldap
+	 * @param timeout deadline of each operation, or null for none
+	 * @param maxConcurrency maximum number of operations running at once, 0 for no limit
+	 *
+	 * @return the guard, or null if the backend is not guarded
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if the guard is misconfigured
+	 */
+	private SharedTokenBackendGuard createGuard(String backend, Duration timeout, int maxConcurrency)
+			throws ComponentInitializationException {
+		if (timeout == null && maxConcurrency == 0 && circuitBreakerThreshold == 0) {
+			return null;
+		}
+		try {
+			SharedTokenBackendGuard guard = new SharedTokenBackendGuard(getId() + " " + backend, timeout,
+					maxConcurrency, circuitBreakerThreshold, circuitBreakerOpenTime);
+			log.debug("SharedTokenDataConnector {}: guarding {} with timeout {}, at most {} operations"
+					+ " and circuit opening after {} failures", getId(), backend, timeout, maxConcurrency,
+					circuitBreakerThreshold);
+			return guard;
+		} catch (IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has invalid " + backend + " timeout, concurrency or circuit breaker: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the SharedToken data store, without the preloaded index and the guard around it
+	 */
+	private SharedTokenStorage unguardedStore() {
+		SharedTokenStorage store = stStore;
+		if (store instanceof PreloadedSharedTokenStore) {
+			store = ((PreloadedSharedTokenStore) store).getStore();
+		}
+		return store instanceof GuardedSharedTokenStore ? ((GuardedSharedTokenStore) store).getStore() : store;
+	}
+
+	/**
+	 * Creates the store answering lookups from tb_st read into memory, and
+	 * starts reading it.  tb_st is read from the first replica if there are
+	 * replicas, so as to spare the primary.
+	 *
+	 * @return the store
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if there is no database to read or the settings are invalid
+	 */
+	private PreloadedSharedTokenStore createPreloadedStore() throws ComponentInitializationException {
+		List<DataSource> sources;
+		if (replicaDataSources != null) {
+			sources = Collections.singletonList(replicaDataSources.get(0));
+		} else if (shardDataSources != null) {
+			sources = shardDataSources;
+		} else if (dataSource != null) {
+			sources = Collections.singletonList(dataSource);
+		} else {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " requires databaseConnectionID or databaseConnectionIDs when preload=true");
+		}
+		try {
+			PreloadedSharedTokenStore store = new PreloadedSharedTokenStore(stStore, sources, preloadFetchSize,
+					preloadRefreshInterval, preloadReverseIndex);
+			if (databaseDialect != null) {
+				store.setDialect(SharedTokenStoreDialect.valueOf(databaseDialect.trim().toUpperCase(Locale.ROOT)));
+			}
+			store.setSchema(tokenSchema);
+			store.start(getId());
+			return store;
+		} catch (IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has invalid preload settings: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Creates the description of the table sharedToken values are kept in.
+	 *
+	 * @return the table and columns
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if a name or the token format is invalid
+	 */
+	private SharedTokenSchema createSchema() throws ComponentInitializationException {
+		String format = databaseTokenFormat == null ? "text" : databaseTokenFormat.trim().toLowerCase(Locale.ROOT);
+		if (!"text".equals(format) && !"binary".equals(format)) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has unknown databaseTokenFormat " + databaseTokenFormat);
+		}
+		try {
+			return new SharedTokenSchema(databaseTable, databaseUidColumn, databaseTokenColumn, databaseSeqColumn,
+					"binary".equals(format));
+		} catch (IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId() + " " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Verifies, or creates and verifies, the table in each database written
+	 * to, as set by databaseSchema.  Replicas are only verified.
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if a table is missing or not as configured
+	 */
+	private void manageSchema() throws ComponentInitializationException {
+		SharedTokenSchema.Management management;
+		try {
+			management = SharedTokenSchema.Management.fromName(databaseSchema == null ? "none" : databaseSchema);
+		} catch (IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has unknown databaseSchema " + databaseSchema);
+		}
+		if (management == SharedTokenSchema.Management.NONE) {
+			return;
+		}
+		if (fileStoreDirectory != null) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " cannot use databaseSchema with fileStoreDirectory");
+		}
+
+		List<DataSource> primaries = shardDataSources != null ? shardDataSources
+				: Collections.singletonList(dataSource);
+		List<DataSource> all = new ArrayList<DataSource>(primaries);
+		if (replicaDataSources != null) {
+			all.addAll(replicaDataSources);
+		}
+		for (int i = 0; i < all.size(); i++) {
+			boolean create = management == SharedTokenSchema.Management.CREATE && i < primaries.size();
+			try (Connection conn = all.get(i).getConnection()) {
+				if (create) {
+					SharedTokenStoreDialect dialect = databaseDialect != null
+							? SharedTokenStoreDialect.valueOf(databaseDialect.trim().toUpperCase(Locale.ROOT))
+							: SharedTokenStoreDialect.detect(conn.getMetaData());
+					tokenSchema.create(conn, dialect);
+				} else {
+					tokenSchema.verify(conn);
+				}
+			} catch (SQLException e) {
+				throw new ComponentInitializationException("SharedToken ID " + getId() + " cannot use table "
+						+ tokenSchema + ": " + e.getMessage(), e);
+			}
+		}
+		log.info("SharedTokenDataConnector {}: {} table {}", getId(),
+				management == SharedTokenSchema.Management.CREATE ? "created or verified" : "verified", tokenSchema);
+	}
+
+	/**
+	 * Opens the store keeping sharedToken values in files.
+	 *
+	 * @return the store
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if the files cannot be opened
+	 */
+	private SharedTokenFileStore openFileStore() throws ComponentInitializationException {
+		try {
+			SharedTokenFileStore store = new SharedTokenFileStore(Paths.get(fileStoreDirectory),
+					fileStoreCompactionInterval);
+			store.open(getId());
+			return store;
+		} catch (IOException | IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " failed to open fileStoreDirectory " + fileStoreDirectory, e);
+		}
+	}
+
+	/**
+	 * Creates the store reading from the replica DataSources and writing to
+	 * the primary store.
+	 *
+	 * @return the store
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if the replicas are misconfigured
+	 */
+	private ReplicatedSharedTokenStore createReplicatedStore() throws ComponentInitializationException {
+		List<String> names = replicaNames;
+		if (names == null) {
+			names = new ArrayList<String>();
+			for (int i = 0; i < replicaDataSources.size(); i++) {
+				names.add("replica" + i);
+			}
+		}
+		try {
+			ReplicatedSharedTokenStore store = new ReplicatedSharedTokenStore(stStore, replicaDataSources, names,
+					readYourWritesWindow, hedgeReads, hedgeMinDelay);
+			log.debug("SharedTokenDataConnector {}: reading sharedToken values from replicas {}{}", getId(), names,
+					store.getHedgeDelayNanos() > 0 ? ", hedged" : "");
+			return store;
+		} catch (IllegalArgumentException e) {
+			throw new ComponentInitializationException("SharedToken ID " + getId()
+					+ " has invalid replicas: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Creates the metrics configured by the metrics property.
+	 *
+	 * @return the metrics
+	 *
+	 * @throws ComponentInitializationException
+	 *             thrown if the metrics are misconfigured or cannot be registered
+	 */
+	private SharedTokenMetrics createMetrics() throws ComponentInitializationException {
+		String type = metrics == null ? "none" : metrics.trim().toLowerCase(Locale.ROOT);
+		if ("none".equals(type)) {
+			return SharedTokenMetrics.NONE;
+		} else if ("jmx".equals(type)) {
+			SharedTokenJmxMetrics jmxMetrics = new SharedTokenJmxMetrics();
+			try {
+				jmxMetrics.register(getId());
+				SharedTokenStorage store = unguardedStore();
+				if (store instanceof ShardedSharedTokenStore) {
+					jmxMetrics.registerShards((ShardedSharedTokenStore) store);
+				}
+				if (store instanceof ReplicatedSharedTokenStore) {
+					jmxMetrics.registerReplicas((ReplicatedSharedTokenStore) store);
+				}
+				if (stStore instanceof PreloadedSharedTokenStore) {
+					jmxMetrics.registerPreload((PreloadedSharedTokenStore) stStore);
+				}
+				if (databaseGuard != null) {
+					jmxMetrics.registerBackend("database", databaseGuard);
+				}
+				if (ldapGuard != null) {
+					jmxMetrics.registerBackend("ldap", ldapGuard);
+				}
+			} catch (JMException e) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " failed to register its metrics MXBeans", e);
+			}
+			return jmxMetrics;
+		} else if ("dropwizard".equals(type)) {
+			if (metricRegistry == null) {
+				throw new ComponentInitializationException("SharedToken ID " + getId()
+						+ " requires a metric registry when metrics=dropwizard");
+			}
+			return new SharedTokenDropwizardMetrics(metricRegistry,
+					MetricRegistry.name(SharedTokenDataConnector.class.getPackage().getName(), getId()));
+		}
+		throw new ComponentInitializationException("SharedToken ID " + getId()
+				+ " has unknown metrics " + metrics);
+	}
 
+	/** Release the resources held by the connector.
+	 * @see net.shibboleth.utilities.java.support.component.AbstractInitializableComponent#doDestroy()
+	 */
+	@Override
+	protected void doDestroy() {
+		if (backfillExecutor != null) {
+			backfillExecutor.shutdown();
+			try {
+				if (!backfillExecutor.awaitTermination(BACKFILL_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+					log.warn("SharedTokenDataConnector {}: dropping backfills still queued at shutdown", getId());
+					backfillExecutor.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				backfillExecutor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (stStore instanceof PreloadedSharedTokenStore) {
+			((PreloadedSharedTokenStore) stStore).close();
+		}
+		if (tokenWriteBehind != null) {
+			tokenWriteBehind.stop();
+		}
+		if (unguardedStore() instanceof ReplicatedSharedTokenStore) {
+			((ReplicatedSharedTokenStore) unguardedStore()).close();
+		}
+		if (unguardedStore() instanceof SharedTokenFileStore) {
+			((SharedTokenFileStore) unguardedStore()).close();
+		}
+		if (databaseGuard != null) {
+			databaseGuard.close();
+		}
+		if (ldapGuard != null) {
+			ldapGuard.close();
+		}
+		ldapWriter.close();
+		tokenMetrics.close();
+		super.doDestroy();
 	}
 
 	/** Resolve the shared token value to be provided by this connector
@@ -175,11 +886,23 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 
 		log.debug("starting SharedTokenDataConnector.resolve( ) ...");
 
+		long start = System.nanoTime();
+		SharedTokenMetrics.Stage stage = storeDatabase ? SharedTokenMetrics.Stage.RESOLVE_DATABASE
+				: SharedTokenMetrics.Stage.RESOLVE_LDAP;
 		Map<String, IdPAttribute> attributes = new LazyMap<String, IdPAttribute>();
 
 		String sharedToken = null;
 		try {
-			if (storeDatabase) {
+			if (tokenChain != null) {
+				log.debug("Try to get SharedToken from {}", tokenChain);
+				String uid = resolutionContext.getPrincipal();
+				if (uid == null) {
+					log.error("Principal must not be null");
+					throw new ResolutionException("Principal must not be null");
+				}
+				sharedToken = inFlightLookups.execute(uid,
+						() -> getOrCreateSharedTokenInSources(uid, resolutionContext, resolverWorkContext));
+			} else if (storeDatabase) {
 				log.debug("storeDatabase = true. Try to get SharedToken from database");
 				// Collection<Object> colUid =
 				// super.getValuesFromAllDependencies(
@@ -195,13 +918,18 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 					throw new ResolutionException("Principal must not be null");
 				}
 
-				sharedToken = stStore.getSharedToken(uid);
-				if (sharedToken == null) {
-					log.debug("sharedToken does not exist, will generate a new one and store in database.");
-					sharedToken = getSharedToken(resolutionContext, resolverWorkContext);
-					stStore.storeSharedToken(uid, sharedToken);
+				if (tokenCache != null) {
+					sharedToken = tokenCache.get(uid);
+					tokenMetrics.recordCacheLookup(sharedToken != null);
+				}
+				if (sharedToken != null) {
+					log.debug("sharedToken found in cache.");
 				} else {
-					log.debug("sharedToken exists, will not generate a new one.");
+					sharedToken = inFlightLookups.execute(uid,
+							() -> getOrCreateSharedTokenInDatabase(uid, resolutionContext, resolverWorkContext));
+					if (tokenCache != null) {
+						tokenCache.put(uid, sharedToken);
+					}
 				}
 			} else {
 				log.debug("storeDatabase = false. Try to get SharedToken from LDAP.");
@@ -242,28 +970,35 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 				// Yes, we could import the attribute from LDAP explicitly under a different name
 				// And then pass that name to this connector as an additional parameter.
 				// But for now, let's get storedAttributeName as a ResolvedAttribute from the sharedTokenDC directly.
-				IdPAttribute sharedTokenFromLDAP = null;
+				String sharedTokenFromLDAP = null;
 				if (ldapConnectorId != null) {
-					ResolvedDataConnector ldapDc = resolverWorkContext.getResolvedDataConnectors().get(ldapConnectorId);
-					sharedTokenFromLDAP = ldapDc.getResolvedAttributes().get(storedAttributeName);
+					sharedTokenFromLDAP = getSharedTokenFromLdapConnector(resolverWorkContext);
 				}
 
-				if (sharedTokenFromLDAP==null || sharedTokenFromLDAP.getValues().size() < 1) {
+				if (sharedTokenFromLDAP == null) {
 					log.debug("sharedToken does not exist, will generate a new one.");
-					sharedToken = getSharedToken(resolutionContext, resolverWorkContext);
-					if (storeLdap) {
-						log.debug("storeLdap=true, will store the SharedToken in LDAP.");
-						storeSharedTokenInLdap(resolutionContext, resolverWorkContext, sharedToken);
-					} else
-						log.debug("storeLdap=false, not to store sharedToken in Ldap");
+					String uid = resolutionContext.getPrincipal();
+					if (storeLdap && uid != null) {
+						sharedToken = inFlightLookups.execute(uid,
+								() -> createSharedTokenInLdap(resolutionContext, resolverWorkContext));
+					} else {
+						sharedToken = createSharedTokenInLdap(resolutionContext, resolverWorkContext);
+					}
 				} else {
 					log.debug("sharedToken exists, will not to generate a new one.");
-					sharedToken = sharedTokenFromLDAP.getValues().get(0).getNativeValue().toString();
+					sharedToken = sharedTokenFromLDAP;
 				}
 			}
 		} catch (Exception e) {
 			// catch any exception so that the IdP will not screw up.
-			log.error("Failed to resolve sharedToken", e);
+			SharedTokenBackendUnavailableException unavailable = SharedTokenBackendUnavailableException.find(e);
+			if (unavailable != null) {
+				// a stalled backend fails every login, do not log each of them
+				unavailable.getGuard().logUnavailable(unavailable);
+			} else {
+				log.error("Failed to resolve sharedToken", e);
+			}
+			tokenMetrics.recordError(stage, e);
 
 			// however, if we encountered an error (possibly in saving the attribute value),
 			// do not pass the value out - as the error would get masked and overlooked
@@ -271,6 +1006,15 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 				log.error("Discarding sharedToken value {} due to errors encountered: {}", sharedToken, e.getMessage());
 				sharedToken = null;
 			}
+
+			// a value stored earlier never changes, so an expired cached one is still right
+			if (unavailable != null && "cache".equals(degradedPolicy) && resolutionContext.getPrincipal() != null) {
+				sharedToken = tokenCache.getStale(resolutionContext.getPrincipal());
+				if (sharedToken != null) {
+					log.debug("serving cached sharedToken of {} while {} is unavailable",
+							resolutionContext.getPrincipal(), unavailable.getGuard().getName());
+				}
+			}
 		}
 		if (sharedToken != null) {
 			IdPAttribute attribute = new IdPAttribute(generatedAttributeId);
@@ -278,10 +1022,59 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 			values.add(new StringAttributeValue(sharedToken));
 			attribute.setValues(values);
 			attributes.put(attribute.getId(), attribute);
+			tokenMetrics.recordLatency(stage, System.nanoTime() - start);
+		}
+		if (pairwiseGenerator != null) {
+			String pairwiseToken = getPairwiseToken(resolutionContext, resolverWorkContext);
+			if (pairwiseToken != null) {
+				IdPAttribute attribute = new IdPAttribute(pairwiseAttributeId);
+				Collection<IdPAttributeValue> values = new ArrayList<IdPAttributeValue>();
+				values.add(new StringAttributeValue(pairwiseToken));
+				attribute.setValues(values);
+				attributes.put(attribute.getId(), attribute);
+			}
 		}
 		return attributes;
 	}
 
+	/**
+	 * Gets the pairwise value of the principal for the relying party the
+	 * attributes are resolved for.
+	 *
+	 * The value is computed from the local ID on every resolution rather than
+	 * stored, as it only depends on the local ID, the relying party and the
+	 * key.
+	 *
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return the pairwise value, or null if there is no relying party or the
+	 *         value cannot be computed
+	 */
+	private String getPairwiseToken(AttributeResolutionContext resolutionContext,
+			AttributeResolverWorkContext resolverWorkContext) {
+		String relyingPartyId = resolutionContext.getAttributeRecipientID();
+		if (relyingPartyId == null) {
+			log.debug("no attribute recipient, not generating {}", pairwiseAttributeId);
+			return null;
+		}
+		try {
+			String localId = getLocalId(resolutionContext, resolverWorkContext);
+			long start = System.nanoTime();
+			String pairwiseToken = pairwiseGenerator.generate(localId, relyingPartyId);
+			tokenMetrics.recordLatency(SharedTokenMetrics.Stage.GENERATE, System.nanoTime() - start);
+			log.debug("the pairwise value for {}: {}", relyingPartyId, pairwiseToken);
+			return pairwiseToken;
+		} catch (Exception e) {
+			// as for the sharedToken, do not let the IdP fail the login
+			log.error("Failed to create the pairwise value", e);
+			tokenMetrics.recordError(SharedTokenMetrics.Stage.GENERATE, e);
+			return null;
+		}
+	}
+
 	/**
 	 * Gets the sharedToken.
 	 *
@@ -299,11 +1092,356 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 
 		String localId = getLocalId(resolutionContext, resolverWorkContext);
 		String persistentId = this.createSharedToken(resolutionContext,
-				localId, salt);
+				localId);
 		return persistentId;
 
 	}
 
+	/**
+	 * Gets the sharedToken from the database, generating and storing a new
+	 * one if none exists yet.
+	 *
+	 * @param uid
+	 *            the principal name
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return sharedToken
+	 *
+	 * @throws IMASTException
+	 *             thrown if there is a problem retrieving, generating or storing the value
+	 */
+	private String getOrCreateSharedTokenInDatabase(String uid, AttributeResolutionContext resolutionContext,
+			AttributeResolverWorkContext resolverWorkContext) throws IMASTException {
+		long start = System.nanoTime();
+		// becomes DATABASE_WRITE once a new value has to be stored
+		SharedTokenMetrics.Stage[] stage = { SharedTokenMetrics.Stage.DATABASE_READ };
+		String sharedToken;
+		try {
+			if (tokenWriteBehind != null) {
+				sharedToken = tokenWriteBehind.get(uid);
+				if (sharedToken == null) {
+					sharedToken = stStore.getSharedToken(uid);
+				}
+				if (sharedToken == null) {
+					log.debug("sharedToken does not exist, will generate a new one and journal it for the database.");
+					stage[0] = SharedTokenMetrics.Stage.DATABASE_WRITE;
+					try {
+						sharedToken = getSharedToken(resolutionContext, resolverWorkContext);
+					} catch (ResolutionException e) {
+						throw new IMASTException("Failed to generate sharedToken", e);
+					}
+					tokenWriteBehind.store(uid, sharedToken);
+				}
+			} else {
+				sharedToken = stStore.getOrCreateSharedToken(uid, () -> {
+					log.debug("sharedToken does not exist, will generate a new one and store in database.");
+					stage[0] = SharedTokenMetrics.Stage.DATABASE_WRITE;
+					return getSharedToken(resolutionContext, resolverWorkContext);
+				});
+			}
+		} catch (IMASTException e) {
+			tokenMetrics.recordError(stage[0], e);
+			throw e;
+		}
+		tokenMetrics.recordLatency(stage[0], System.nanoTime() - start);
+		return sharedToken;
+	}
+
+	/**
+	 * Gets the sharedToken value the LDAP connector resolved.
+	 *
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return the value of storedAttributeName in the results of the LDAP connector, or null if there is none
+	 *
+	 * @throws IMASTException
+	 *             thrown if the LDAP connector has not been resolved
+	 */
+	private String getSharedTokenFromLdapConnector(AttributeResolverWorkContext resolverWorkContext)
+			throws IMASTException {
+		ResolvedDataConnector ldapDc = resolverWorkContext.getResolvedDataConnectors().get(ldapConnectorId);
+		if (ldapDc == null) {
+			// do not mistake a failed lookup for a missing value
+			throw new IMASTException("LDAPDataConnector " + ldapConnectorId + " not found in resolverWorkContext.getResolvedDataConnectors()");
+		}
+		IdPAttribute sharedTokenFromLDAP = ldapDc.getResolvedAttributes().get(storedAttributeName);
+		if (sharedTokenFromLDAP == null || sharedTokenFromLDAP.getValues().size() < 1) {
+			return null;
+		}
+		return sharedTokenFromLDAP.getValues().get(0).getNativeValue().toString();
+	}
+
+	/**
+	 * Gets the sharedToken from the first of the configured tokenSources that
+	 * has it, and writes it back into the sources looked up before that one.
+	 * If no source has a value, a new one is generated and stored in the first
+	 * persistent source that values are stored in, then written to the other
+	 * sources values are stored in.
+	 *
+	 * Writes to the cache are done at once, writes to the database and LDAP
+	 * in the background, except for storing a new value.
+	 *
+	 * @param uid
+	 *            the principal name
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return sharedToken
+	 *
+	 * @throws IMASTException
+	 *             thrown if there is a problem retrieving or storing the value
+	 * @throws ResolutionException
+	 *             thrown if there is a problem generating the value
+	 */
+	private String getOrCreateSharedTokenInSources(String uid, AttributeResolutionContext resolutionContext,
+			AttributeResolverWorkContext resolverWorkContext) throws IMASTException, ResolutionException {
+		String sharedToken = null;
+		int found = 0;
+		for (; found < tokenChain.size(); found++) {
+			sharedToken = readFromSource(tokenChain.get(found), uid, resolverWorkContext);
+			if (sharedToken != null) {
+				log.debug("sharedToken found in {}", tokenChain.get(found));
+				break;
+			}
+		}
+
+		TokenSource stored = null;
+		if (sharedToken == null) {
+			log.debug("sharedToken not found in {}, will generate a new one.", tokenChain);
+			sharedToken = getSharedToken(resolutionContext, resolverWorkContext);
+			for (TokenSource source : tokenChain) {
+				if (source != TokenSource.CACHE && isStoredIn(source)) {
+					sharedToken = storeInSource(source, uid, sharedToken, resolutionContext, resolverWorkContext);
+					stored = source;
+					break;
+				}
+			}
+		}
+
+		// write the value back into the sources looked up before the one it was found in
+		for (int i = 0; i < found; i++) {
+			TokenSource source = tokenChain.get(i);
+			if (source != stored && isStoredIn(source)) {
+				backfill(source, uid, sharedToken, resolutionContext, resolverWorkContext);
+			}
+		}
+		return sharedToken;
+	}
+
+	/**
+	 * @param source a source of sharedToken values
+	 * @return whether values are written to the source
+	 */
+	private boolean isStoredIn(TokenSource source) {
+		switch (source) {
+		case CACHE:
+			return true;
+		case DATABASE:
+			return storeDatabase;
+		default:
+			return storeLdap;
+		}
+	}
+
+	/**
+	 * Reads the sharedToken from a source.
+	 *
+	 * @param source
+	 *            the source
+	 * @param uid
+	 *            the principal name
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return the sharedToken, or null if the source does not have one
+	 *
+	 * @throws IMASTException
+	 *             thrown if there is a problem reading the value
+	 */
+	private String readFromSource(TokenSource source, String uid, AttributeResolverWorkContext resolverWorkContext)
+			throws IMASTException {
+		switch (source) {
+		case CACHE:
+			String cached = tokenCache.get(uid);
+			tokenMetrics.recordCacheLookup(cached != null);
+			return cached;
+		case DATABASE:
+			String pending = tokenWriteBehind != null ? tokenWriteBehind.get(uid) : null;
+			if (pending != null) {
+				return pending;
+			}
+			long start = System.nanoTime();
+			try {
+				String sharedToken = stStore.getSharedToken(uid);
+				tokenMetrics.recordLatency(SharedTokenMetrics.Stage.DATABASE_READ, System.nanoTime() - start);
+				return sharedToken;
+			} catch (IMASTException e) {
+				tokenMetrics.recordError(SharedTokenMetrics.Stage.DATABASE_READ, e);
+				throw e;
+			}
+		default:
+			return getSharedTokenFromLdapConnector(resolverWorkContext);
+		}
+	}
+
+	/**
+	 * Stores a sharedToken in a source, before it is released.
+	 *
+	 * @param source
+	 *            the source
+	 * @param uid
+	 *            the principal name
+	 * @param sharedToken
+	 *            the value to store
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return the value stored, which may differ from the one given if the
+	 *         database already had one
+	 *
+	 * @throws IMASTException
+	 *             thrown if there is a problem storing the value
+	 */
+	private String storeInSource(TokenSource source, String uid, String sharedToken,
+			AttributeResolutionContext resolutionContext, AttributeResolverWorkContext resolverWorkContext)
+			throws IMASTException {
+		switch (source) {
+		case CACHE:
+			tokenCache.put(uid, sharedToken);
+			return sharedToken;
+		case DATABASE:
+			return storeInDatabase(uid, sharedToken);
+		default:
+			return storeSharedTokenInLdap(resolutionContext, resolverWorkContext, sharedToken);
+		}
+	}
+
+	/**
+	 * Stores a sharedToken in the database, or queues it if the database is
+	 * written behind.
+	 *
+	 * @param uid
+	 *            the principal name
+	 * @param sharedToken
+	 *            the value to store
+	 *
+	 * @return the value stored, which may differ from the one given if the
+	 *         database already had one
+	 *
+	 * @throws IMASTException
+	 *             thrown if there is a problem storing the value
+	 */
+	private String storeInDatabase(String uid, String sharedToken) throws IMASTException {
+		if (tokenWriteBehind != null) {
+			tokenWriteBehind.store(uid, sharedToken);
+			return sharedToken;
+		}
+		long start = System.nanoTime();
+		try {
+			String stored = stStore.getOrCreateSharedToken(uid, () -> sharedToken);
+			tokenMetrics.recordLatency(SharedTokenMetrics.Stage.DATABASE_WRITE, System.nanoTime() - start);
+			if (!stored.equals(sharedToken)) {
+				log.warn("Database already has a different sharedToken for {}, keeping {} rather than {}",
+						uid, stored, sharedToken);
+			}
+			return stored;
+		} catch (IMASTException e) {
+			tokenMetrics.recordError(SharedTokenMetrics.Stage.DATABASE_WRITE, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a sharedToken back into a source looked up before the one it was
+	 * found in.  The cache is written at once, other sources in the background;
+	 * failures are logged and the write is tried again at the next login.
+	 *
+	 * The contexts belong to the request and are not used by the background
+	 * thread: the DN of the LDAP entry to write to, or the search filter to
+	 * find it with, is worked out first on the request thread, and only the
+	 * values needed to write it are handed over.  The directory is not
+	 * searched on the request thread.
+	 *
+	 * @param source
+	 *            the source
+	 * @param uid
+	 *            the principal name
+	 * @param sharedToken
+	 *            the value to write
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 */
+	private void backfill(TokenSource source, String uid, String sharedToken,
+			AttributeResolutionContext resolutionContext, AttributeResolverWorkContext resolverWorkContext) {
+		switch (source) {
+		case CACHE:
+			tokenCache.put(uid, sharedToken);
+			return;
+		case DATABASE:
+			backfillExecutor.execute(() -> {
+				try {
+					log.debug("writing sharedToken of {} back into {}", uid, source);
+					storeInDatabase(uid, sharedToken);
+				} catch (Exception e) {
+					log.warn("Failed to write sharedToken of {} back into {}: {}", uid, source, e.getMessage());
+				}
+			});
+			return;
+		default:
+			LdapTarget target;
+			try {
+				target = prepareLdapTarget(resolutionContext, getResolvedLdapConnector(resolverWorkContext));
+			} catch (IMASTException e) {
+				log.warn("Failed to write sharedToken of {} back into {}: {}", uid, source, e.getMessage());
+				return;
+			}
+			backfillExecutor.execute(() -> {
+				try {
+					log.debug("writing sharedToken of {} back into {}", uid, source);
+					storeSharedTokenInLdap(target, sharedToken);
+				} catch (Exception e) {
+					log.warn("Failed to write sharedToken of {} back into {}: {}", uid, source, e.getMessage());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Generates a new sharedToken and, if storeLdap=true, stores it in LDAP.
+	 *
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return sharedToken, the one another node stored first if any
+	 *
+	 * @throws IMASTException
+	 *             thrown if there is a problem storing the value
+	 * @throws ResolutionException
+	 *             thrown if there is a problem generating the value
+	 */
+	private String createSharedTokenInLdap(AttributeResolutionContext resolutionContext,
+			AttributeResolverWorkContext resolverWorkContext) throws IMASTException, ResolutionException {
+		String sharedToken = getSharedToken(resolutionContext, resolverWorkContext);
+		if (storeLdap) {
+			log.debug("storeLdap=true, will store the SharedToken in LDAP.");
+			sharedToken = storeSharedTokenInLdap(resolutionContext, resolverWorkContext, sharedToken);
+		} else
+			log.debug("storeLdap=false, not to store sharedToken in Ldap");
+		return sharedToken;
+	}
+
 	/**
 	 * Store the sharedToken in LDAP.
 	 *
@@ -311,38 +1449,170 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	 *            current resolution context
 	 * @param sharedToken
 	 *
+	 * @return the value the entry ends up with, the one another node stored
+	 *         first if any
 	 */
 
-	private void storeSharedTokenInLdap(
+	private String storeSharedTokenInLdap(
 			AttributeResolutionContext resolutionContext, AttributeResolverWorkContext resolverWorkContext, String sharedToken)
 			throws IMASTException {
 
 		log.debug("storing sharedToken value {} in LDAP connector {}", sharedToken, ldapConnectorId);
 
-		try {
-			// store the sharedToken value in LDAP, using the configured data connector
+		// becomes LDAP_MODIFY once the entry is known
+		SharedTokenMetrics.Stage[] stage = { SharedTokenMetrics.Stage.LDAP_SEARCH };
+		// store the sharedToken value in LDAP, using the configured data connector
+		ResolvedDataConnector ldapDcResolved = getResolvedLdapConnector(resolverWorkContext);
+		return callLdap(stage, () -> {
+			LdapTarget target = findLdapTarget(prepareLdapTarget(resolutionContext, ldapDcResolved), stage);
+			return modifyLdapEntry(target, sharedToken, stage);
+		});
+	}
 
-			// get the LDAP connector
-			ResolvedDataConnector ldapDcResolved = resolverWorkContext.getResolvedDataConnectors().get(ldapConnectorId);
-			if (ldapDcResolved == null) {
-			    log.error("LDAPDataConnector {} not found in resolverWorkContext.getResolvedDataConnectors()", ldapConnectorId);
-			    throw new IMASTException("LDAPDataConnector "+getLdapConnectorId()+" not found in resolverWorkContext.getResolvedDataConnectors()");
-			}
-			LDAPDataConnector ldapDc = (LDAPDataConnector)ldapDcResolved.getResolvedConnector();
+	/**
+	 * Stores a sharedToken in an entry prepared before, searching for it
+	 * first if its DN was not known.
+	 *
+	 * @param target
+	 *            the entry, or how to find it
+	 * @param sharedToken
+	 *            the value to store
+	 *
+	 * @return the value the entry ends up with, the one another node stored
+	 *         first if any
+	 *
+	 * @throws IMASTException
+	 *             thrown if the entry cannot be modified
+	 */
+	private String storeSharedTokenInLdap(LdapTarget target, String sharedToken) throws IMASTException {
+		SharedTokenMetrics.Stage[] stage = { SharedTokenMetrics.Stage.LDAP_SEARCH };
+		return callLdap(stage, () -> modifyLdapEntry(findLdapTarget(target, stage), sharedToken, stage));
+	}
 
-			// We need to construct a map of resolved attribute values in order to construct a search filter.
+	/**
+	 * Gets the LDAP connector from the connectors resolved for the request.
+	 *
+	 * @param resolverWorkContext
+	 *            current resolver work context
+	 *
+	 * @return the resolved LDAP connector
+	 *
+	 * @throws IMASTException
+	 *             thrown if the LDAP connector was not resolved
+	 */
+	private ResolvedDataConnector getResolvedLdapConnector(AttributeResolverWorkContext resolverWorkContext)
+			throws IMASTException {
+		ResolvedDataConnector ldapDcResolved = resolverWorkContext.getResolvedDataConnectors().get(ldapConnectorId);
+		if (ldapDcResolved == null) {
+		    log.error("LDAPDataConnector {} not found in resolverWorkContext.getResolvedDataConnectors()", ldapConnectorId);
+		    IMASTException e = new IMASTException("LDAPDataConnector "+getLdapConnectorId()+" not found in resolverWorkContext.getResolvedDataConnectors()");
+		    tokenMetrics.recordError(SharedTokenMetrics.Stage.LDAP_SEARCH, e);
+		    throw e;
+		}
+		return ldapDcResolved;
+	}
 
-			// uh, can we get this structure easier or do we need to build it?
-			Map<String, List<IdPAttributeValue>> resolvedAttributeValues = new TreeMap<String,List<IdPAttributeValue>>();
-			Map<String, IdPAttribute> resolvedAttributes = resolutionContext.getResolvedIdPAttributes();
-			for (Iterator<String> itAttr = resolvedAttributes.keySet().iterator(); itAttr.hasNext(); ) {
-				String attrKey = itAttr.next();
-			    resolvedAttributeValues.put(attrKey, resolvedAttributes.get(attrKey).getValues());
+	/**
+	 * Runs an LDAP operation through the LDAP guard, if any, recording its
+	 * failure.
+	 *
+	 * @param stage
+	 *            set to the stage in progress by the operation, for metrics
+	 * @param operation
+	 *            the operation
+	 *
+	 * @return the result of the operation
+	 *
+	 * @throws IMASTException
+	 *             thrown if the operation fails or the directory is unavailable
+	 */
+	private <T> T callLdap(SharedTokenMetrics.Stage[] stage, SharedTokenBackendGuard.Operation<T> operation)
+			throws IMASTException {
+		try {
+			if (ldapGuard != null) {
+				return ldapGuard.call(operation);
 			}
+			return operation.run();
+
+		} catch (SharedTokenBackendUnavailableException e) {
+			// logged by doDataConnectorResolve, at most once a minute
+			tokenMetrics.recordError(stage[0], e);
+			throw e;
+		} catch (Exception e) {
+			// catch any exception, the program will go on.
+			log.error("Failed to store sharedToken into LDAP", e);
+			tokenMetrics.recordError(stage[0], e);
+			throw new IMASTException("Failed to save attribute into ldap entry", e);
 
-			// now we can construct a search filter
+		}
+	}
+
+	/**
+	 * Works out the entry to store a new sharedToken in, without contacting
+	 * the directory: the DN of the entry if known, otherwise the LDAP
+	 * connector's search filter, built from the attributes resolved so far.
+	 *
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param ldapDcResolved
+	 *            the resolved LDAP connector
+	 *
+	 * @return the entry, or how to find it
+	 *
+	 * @throws IMASTException
+	 *             thrown if the search filter cannot be built
+	 */
+	private LdapTarget prepareLdapTarget(AttributeResolutionContext resolutionContext,
+			ResolvedDataConnector ldapDcResolved) throws IMASTException {
+		LDAPDataConnector ldapDc = (LDAPDataConnector)ldapDcResolved.getResolvedConnector();
+		// use the DN of the entry the LDAP connector already found, or the configured DN template,
+		// and only search the directory again if neither is available
+		String targetDn = getTargetDn(resolutionContext, ldapDcResolved);
+		if (targetDn != null) {
+			log.debug("storing sharedToken in entry {} without searching", targetDn);
+			return new LdapTarget(ldapDc.getConnectionFactory(), targetDn);
+		}
+		// We need to construct a map of resolved attribute values in order to construct a search filter.
+
+		// uh, can we get this structure easier or do we need to build it?
+		Map<String, List<IdPAttributeValue>> resolvedAttributeValues = new TreeMap<String,List<IdPAttributeValue>>();
+		Map<String, IdPAttribute> resolvedAttributes = resolutionContext.getResolvedIdPAttributes();
+		for (Iterator<String> itAttr = resolvedAttributes.keySet().iterator(); itAttr.hasNext(); ) {
+			String attrKey = itAttr.next();
+		    resolvedAttributeValues.put(attrKey, resolvedAttributes.get(attrKey).getValues());
+		}
+
+		// now we can construct a search filter, to run when the value is stored
+		try {
 			ExecutableSearchFilter sf = ldapDc.getExecutableSearchBuilder().build(resolutionContext, resolvedAttributeValues);
-			SearchResult sr = sf.execute(ldapDc.getSearchExecutor(), ldapDc.getConnectionFactory());
+			return new LdapTarget(ldapDc.getConnectionFactory(), ldapDc.getSearchExecutor(), sf);
+		} catch (ResolutionException e) {
+			throw new IMASTException("Failed to save attribute into ldap entry", e);
+		}
+	}
+
+	/**
+	 * Finds the entry to store a new sharedToken in, searching the directory
+	 * if its DN is not known yet.
+	 *
+	 * @param target
+	 *            the entry, or how to find it
+	 * @param stage
+	 *            set to the stage in progress, for metrics
+	 *
+	 * @return the entry, with its DN
+	 *
+	 * @throws IMASTException
+	 *             thrown if the entry cannot be found
+	 */
+	private LdapTarget findLdapTarget(LdapTarget target, SharedTokenMetrics.Stage[] stage) throws IMASTException {
+		if (target.dn != null) {
+			return target;
+		}
+		try {
+			long start = System.nanoTime();
+			SearchResult sr = target.searchFilter.execute(target.searchExecutor, target.connectionFactory);
+			tokenMetrics.recordLatency(stage[0], System.nanoTime() - start);
 			if ( sr.size() == 0 ) throw new IMASTException("No search results found - cannot store sharedToken");
 			String targetDn = null;
 			for (Iterator<LdapEntry> itSr = sr.getEntries().iterator(); itSr.hasNext(); ) {
@@ -353,33 +1623,135 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 			if ( sr.size() > 1 ) {
 				log.warn("Multiple search results found, only last one will be updated ({})", targetDn);
 			}
+			return new LdapTarget(target.connectionFactory, targetDn);
+		} catch (LdapException e) {
+			throw new IMASTException("Failed to save attribute into ldap entry", e);
+		}
+	}
 
+	/**
+	 * Adds a new sharedToken to an entry.
+	 *
+	 * @param target
+	 *            the entry
+	 * @param sharedToken
+	 *            the value to store
+	 * @param stage
+	 *            set to the stage in progress, for metrics
+	 *
+	 * @return the value the entry ends up with, the one another node stored
+	 *         first if any
+	 *
+	 * @throws IMASTException
+	 *             thrown if the entry cannot be modified
+	 */
+	private String modifyLdapEntry(LdapTarget target, String sharedToken, SharedTokenMetrics.Stage[] stage)
+			throws IMASTException {
+		try {
 			// now construct a Modify operation
-			ModifyRequest mr = new ModifyRequest(targetDn,
+			ModifyRequest mr = new ModifyRequest(target.dn,
 					new AttributeModification(AttributeModificationType.ADD,
 							new LdapAttribute(storedAttributeName, sharedToken)));
 
 			log.info("adding {}:{} to {}:{}", storedAttributeName, sharedToken,
-					getLdapConnectorId(), targetDn);
-
-			// and get a connection and apply the modify operation
-			Connection ldapConn = ldapDc.getConnectionFactory().getConnection();
-			checkLdapResponse(ldapConn.open());
-			ProviderConnection conn = ldapConn.getProviderConnection();
-			checkLdapResponse(conn.modify(mr));
-			ldapConn.close();
-
-		} catch (Exception e) {
-			// catch any exception, the program will go on.
-			log.error("Failed to store sharedToken into LDAP", e);
+					getLdapConnectorId(), target.dn);
+
+			// and apply the modify operation over a pooled connection
+			stage[0] = SharedTokenMetrics.Stage.LDAP_MODIFY;
+			long start = System.nanoTime();
+			String stored = addSharedTokenToLdap(target, mr, sharedToken);
+			tokenMetrics.recordLatency(stage[0], System.nanoTime() - start);
+			return stored;
+		} catch (LdapException e) {
 			throw new IMASTException("Failed to save attribute into ldap entry", e);
+		}
+	}
 
+	/**
+	 * Adds a sharedToken to an entry, treating a refusal because the entry
+	 * already has a value as another node having stored one first.  The
+	 * directory answers attributeOrValueExists if the entry has the same
+	 * value, which is then kept, and constraintViolation if the single-valued
+	 * attribute holds another value, which is then read back and returned.
+	 * If that value cannot be seen yet, the add is tried again, a bounded
+	 * number of times.
+	 *
+	 * @param target
+	 *            the entry
+	 * @param mr
+	 *            the modification adding the value
+	 * @param sharedToken
+	 *            the value to store
+	 *
+	 * @return the value the entry ends up with
+	 *
+	 * @throws LdapException
+	 *             thrown if the entry cannot be modified or read
+	 * @throws IMASTException
+	 *             thrown if the directory does not report success
+	 */
+	private String addSharedTokenToLdap(LdapTarget target, ModifyRequest mr, String sharedToken)
+			throws LdapException, IMASTException {
+		String targetDn = target.dn;
+		for (int attempt = 1;; attempt++) {
+			try {
+				ldapWriter.modify(target.connectionFactory, mr);
+				return sharedToken;
+			} catch (LdapException e) {
+				if (e.getResultCode() == ResultCode.ATTRIBUTE_OR_VALUE_EXISTS) {
+					log.debug("{} already has {}:{}, stored by another node", targetDn, storedAttributeName,
+							sharedToken);
+					return sharedToken;
+				}
+				if (e.getResultCode() != ResultCode.CONSTRAINT_VIOLATION || attempt == LDAP_CONFLICT_ATTEMPTS) {
+					throw e;
+				}
+				String stored = ldapWriter.read(target.connectionFactory, targetDn, storedAttributeName);
+				if (stored != null) {
+					log.info("{} already has {}:{}, keeping it rather than {}", targetDn, storedAttributeName,
+							stored, sharedToken);
+					return stored;
+				}
+				log.debug("{} refused {}:{} but has no value yet, trying again", targetDn, storedAttributeName,
+						sharedToken);
+				try {
+					Thread.sleep(LDAP_CONFLICT_BACKOFF_MILLIS << (attempt - 1));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
 		}
 	}
 
-	private void checkLdapResponse(Response<Void> ldapResponse) throws IMASTException {
-		if (ldapResponse.getResultCode()!=ResultCode.SUCCESS)
-			throw new IMASTException("LDAP response was not SUCCESS but " + ldapResponse.getResultCode().toString() + " " + ldapResponse.getMessage());
+	/**
+	 * Gets the DN of the entry to store a new sharedToken in without searching
+	 * the directory: the value of ldapEntryDnAttribute in the results of the
+	 * LDAP connector, or else ldapDnTemplate filled in with the principal name.
+	 *
+	 * @param resolutionContext
+	 *            current resolution context
+	 * @param ldapDcResolved
+	 *            the resolved LDAP connector
+	 *
+	 * @return the DN, or null if it is not known and the entry must be searched for
+	 */
+	private String getTargetDn(AttributeResolutionContext resolutionContext, ResolvedDataConnector ldapDcResolved) {
+		if (ldapEntryDnAttribute != null) {
+			IdPAttribute dnAttribute = ldapDcResolved.getResolvedAttributes().get(ldapEntryDnAttribute);
+			if (dnAttribute != null && dnAttribute.getValues().size() == 1) {
+				Object dn = dnAttribute.getValues().get(0).getNativeValue();
+				if (dn instanceof String && !MiscHelper.isEmpty((String) dn)) {
+					return (String) dn;
+				}
+			}
+			log.debug("LDAP connector {} did not provide a single {} value, cannot use it as the entry DN",
+					ldapConnectorId, ldapEntryDnAttribute);
+		}
+		if (ldapDnTemplate != null && resolutionContext.getPrincipal() != null) {
+			return ldapDnTemplate.replace("{principal}", MiscHelper.escapeDnValue(resolutionContext.getPrincipal()));
+		}
+		return null;
 	}
 
 	/**
@@ -395,7 +1767,7 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	 * data into the log file.
 	 */
 	private String printableLocalId(String localId) {
-		if (Pattern.matches("^[a-zA-Z0-9@\\\\]+$", localId))
+		if (PRINTABLE_LOCAL_ID.matcher(localId).matches())
 			return localId;
 		else
 			return "BASE64:"+Base64.encodeBase64String(localId.getBytes());
@@ -409,8 +1781,6 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	 * @param localId
 	 *            principal the the persistent ID represents, might be a
 	 *            combination of attributes, e.g. uid+mail.
-	 * @param salt
-	 *            salt used when computing a persistent ID via SHA-1 hash
 	 *
 	 * @return the created identifier
 	 *
@@ -418,8 +1788,7 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	 *             thrown if there is a problem
 	 */
 	private String createSharedToken(
-			AttributeResolutionContext resolutionContext, String localId,
-			byte[] salt) throws ResolutionException {
+			AttributeResolutionContext resolutionContext, String localId) throws ResolutionException {
 		String persistentId;
 		log.debug("creating a sharedToken value");
 		try {
@@ -429,51 +1798,26 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 			} else {
 				localEntityId = idpIdentifier;
 			}
-			String globalUniqueID = localId + localEntityId + new String(salt);
-			log.debug("the globalUniqueID (user/idp/salt): {} / {} / {}", printableLocalId(localId), localEntityId,  new String(salt));
-			byte[] hashValue = DigestUtils.sha1(globalUniqueID);
-			byte[] encodedValue = Base64.encodeBase64(hashValue);
-			persistentId = new String(encodedValue);
-			persistentId = this.replace(persistentId);
-			log.debug("the created sharedToken: " + persistentId);
+			if (log.isDebugEnabled()) {
+				log.debug("the globalUniqueID (user/idp/salt): {} / {} / {}", printableLocalId(localId), localEntityId,  new String(salt));
+			}
+			long start = System.nanoTime();
+			persistentId = tokenGenerator.generate(localId, localEntityId);
+			tokenMetrics.recordLatency(SharedTokenMetrics.Stage.GENERATE, System.nanoTime() - start);
+			log.debug("the created sharedToken: {}", persistentId);
 			if (log.isInfoEnabled()) {
 			    log.info("Created a new shared token value {} for localId {}", persistentId, printableLocalId(localId));
 			}
 
 		} catch (Exception e) {
 			log.error("Failed to create the sharedToken", e);
+			tokenMetrics.recordError(SharedTokenMetrics.Stage.GENERATE, e);
 			throw new ResolutionException("Failed to create the sharedToken", e);
 		}
 		return persistentId;
 
 	}
 
-	private String replace(String persistentId) {
-		// begin = convert non-alphanum chars in base64 to alphanum
-		// (/+=)
-		log.debug("converting Base64 shared token to Url-safe Base64");
-		if (persistentId.contains("/") || persistentId.contains("+")
-				|| persistentId.contains("=")) {
-			String aepst;
-			if (persistentId.contains("/")) {
-				aepst = persistentId.replaceAll("/", "_");
-				persistentId = aepst;
-			}
-
-			if (persistentId.contains("+")) {
-				aepst = persistentId.replaceAll("\\+", "-");
-				persistentId = aepst;
-			}
-
-			if (persistentId.contains("=")) {
-				aepst = persistentId.replaceAll("=", "");
-				persistentId = aepst;
-			}
-		}
-
-		return persistentId;
-	}
-
 	/**
 	 * Gets the local ID component of the persistent ID.
 	 *
@@ -485,44 +1829,44 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	 * @throws ResolutionException
 	 *             thrown if there is a problem resolving the local id
 	 */
-	private String getLocalId(AttributeResolutionContext resolutionContext, AttributeResolverWorkContext resolverWorkContext)
+	// package-private for the benchmarks
+	String getLocalId(AttributeResolutionContext resolutionContext, AttributeResolverWorkContext resolverWorkContext)
 			throws ResolutionException {
 
 		log.debug("get local ID (from source ID attribute values)");
 
-		String[] ids = sourceAttributeId.split(SEPARATOR);
 		// get list of already resolved attributes (from dependencies)
 		Map <String,ResolvedAttributeDefinition> resolvedAttributesMap =
 				resolverWorkContext.getResolvedIdPAttributeDefinitions();
 		Map <String, ResolvedDataConnector> resolvedDataConnectors = resolverWorkContext.getResolvedDataConnectors();
 
-		StringBuffer localIdValue = new StringBuffer();
-		for (int i = 0; i < ids.length; i++) {
+		StringBuilder localIdValue = new StringBuilder();
+		for (SourceAttribute source : sourceAttributes) {
 			Collection<IdPAttributeValue> sourceIdValues = null;
 
-			// first try looking up the sourceAttributeId among explicitly defined attributes
-			ResolvedAttributeDefinition attrDef = resolvedAttributesMap.get(ids[i]);
-
-			if ( attrDef != null  && dependenciesContainsId(getAttributeDependencies(), null, attrDef.getId()) ) {
-				// NOTE: not checking if the attribute is listed among dependencies
-				sourceIdValues = attrDef.getResolvedAttribute().getValues();
-				if (sourceIdValues != null && !sourceIdValues.isEmpty())
-					log.trace("found source attribute {} in attribute {}", ids[i], attrDef.getId());
+			// first try looking up the sourceAttributeId among explicitly defined attributes,
+			// if it is listed among the attribute dependencies
+			if (source.attributeDependency) {
+				ResolvedAttributeDefinition attrDef = resolvedAttributesMap.get(source.id);
+				if (attrDef != null) {
+					sourceIdValues = attrDef.getResolvedAttribute().getValues();
+					if (sourceIdValues != null && !sourceIdValues.isEmpty())
+						log.trace("found source attribute {} in attribute {}", source.id, attrDef.getId());
+				}
 			}
 
-			// next try try looking up the sourceAttributeId across all connectors
+			// next try looking up the sourceAttributeId across all resolved connectors
 			if (sourceIdValues == null || sourceIdValues.isEmpty()) {
-				for (Iterator<String> dcIt = resolvedDataConnectors.keySet().iterator(); dcIt.hasNext(); ) {
-					ResolvedDataConnector dc = resolvedDataConnectors.get(dcIt.next());
+				for (ResolvedDataConnector dc : resolvedDataConnectors.values()) {
 					// only consider connectors explicitly listed as dependencies
-					if (!dependenciesContainsId(null, getDataConnectorDependencies(), dc.getId()))
+					if (!dataConnectorDependencyIds.contains(dc.getId()))
 						continue;
-					IdPAttribute dcAttr = dc.getResolvedAttributes().get(ids[i]);
+					IdPAttribute dcAttr = dc.getResolvedAttributes().get(source.id);
 					// only get the right attr
 					if (dcAttr != null)
 						sourceIdValues = dcAttr.getValues();
 					if (sourceIdValues != null && !sourceIdValues.isEmpty()) {
-						log.trace("found source attribute {} in connector {}", ids[i], dc.getId());
+						log.trace("found source attribute {} in connector {}", source.id, dc.getId());
 						break;
 					}
 				}
@@ -530,46 +1874,122 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 
 			if (sourceIdValues == null || sourceIdValues.isEmpty()) {
 				log.error("Source attribute {} for connector {} provide no values",
-						ids[i], getId());
+						source.id, getId());
 				throw new ResolutionException("Source attribute "
-						+ ids[i] + " for connector " + getId()
+						+ source.id + " for connector " + getId()
 						+ " provided no values");
 			}
 
 			if (sourceIdValues.size() > 1) {
 				log.warn("Source attribute {} for connector {} has more than one value, only the first value is used",
-						ids[i], getId());
+						source.id, getId());
 			}
 
 			Object localIdNativeValue = sourceIdValues.iterator().next().getNativeValue();
-			log.trace("Local attribute {} returned native value {} of type {}", ids[i], localIdNativeValue, localIdNativeValue.getClass());
+			log.trace("Local attribute {} returned native value {} of type {}", source.id, localIdNativeValue, localIdNativeValue.getClass());
 			if (localIdNativeValue == null ||
 				localIdNativeValue.equals(EmptyAttributeValue.EmptyType.NULL_VALUE) ||
 				localIdNativeValue.equals(EmptyAttributeValue.EmptyType.ZERO_LENGTH_VALUE)) {
 				log.error("Source attribute {} for connector {} provided EmptyAttributeValue {}",
-						ids[i], getId(), localIdNativeValue);
+						source.id, getId(), localIdNativeValue);
 				throw new ResolutionException("Source attribute "
-						+ ids[i] + " for connector " + getId()
+						+ source.id + " for connector " + getId()
 						+ " provided EmptyAttributeValue " + localIdNativeValue);
 			}
 			localIdValue.append(localIdNativeValue.toString());
 		}
-		log.debug("local ID: {}", printableLocalId(localIdValue.toString()));
+		String localId = localIdValue.toString();
+		if (log.isDebugEnabled()) {
+			log.debug("local ID: {}", printableLocalId(localId));
+		}
 
-		return localIdValue.toString();
+		return localId;
 	}
 
-	private boolean dependenciesContainsId(Set<ResolverAttributeDefinitionDependency> attrDependencies,
-			Set<ResolverDataConnectorDependency> dcDependencies, String id) {
-
-		if (attrDependencies != null)
-			for (Iterator<ResolverAttributeDefinitionDependency> it=attrDependencies.iterator(); it.hasNext(); ) {
-				if (it.next().getDependencyPluginId().equals(id)) return true;
-			}
-		if (dcDependencies != null)
-			for (Iterator<ResolverDataConnectorDependency> it=dcDependencies.iterator(); it.hasNext(); ) {
-				ResolverDataConnectorDependency dc = it.next();
-				if (dc.getDependencyPluginId().equals(id)) return true;
+	/**
+	 * Compiles where to look up each source attribute, so that resolving the
+	 * local ID does not scan the dependencies.
+	 *
+	 * A source attribute is looked up among the resolved attribute definitions
+	 * if it is listed among the attribute dependencies, and then in the
+	 * resolved data connectors accepted by
+	 * {@link #compileDataConnectorDependencyIds()}, in the order they were
+	 * resolved.
+	 *
+	 * @param ids
+	 *            the source attribute IDs
+	 *
+	 * @return the source attributes, in the order given
+	 */
+	private SourceAttribute[] compileSourceAttributes(String[] ids) {
+		Set<String> attributeDependencyIds = new HashSet<String>();
+		for (ResolverAttributeDefinitionDependency dependency : getAttributeDependencies()) {
+			attributeDependencyIds.add(dependency.getDependencyPluginId());
+		}
+
+		SourceAttribute[] compiled = new SourceAttribute[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			compiled[i] = new SourceAttribute(ids[i], attributeDependencyIds.contains(ids[i]));
+			log.debug("SharedTokenDataConnector {}: source attribute {} is looked up in attribute dependency: {}",
+					getId(), ids[i], compiled[i].attributeDependency);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Compiles the IDs {@link #dependenciesContainsId} accepts as data
+	 * connector dependencies: the IDs of the data connector dependencies and
+	 * the attribute names listed on them.
+	 *
+	 * @return the accepted IDs
+	 */
+	private Set<String> compileDataConnectorDependencyIds() {
+		Set<String> compiled = new HashSet<String>();
+		for (ResolverDataConnectorDependency dependency : getDataConnectorDependencies()) {
+			compiled.add(dependency.getDependencyPluginId());
+			compiled.addAll(dependency.getAttributeNames());
+		}
+		return compiled;
+	}
+
+	/**
+	 * Looks up the principal holding a sharedToken value, for support staff
+	 * and deprovisioning given a value by a service provider.
+	 *
+	 * @param sharedToken the value
+	 * @return the principal name, or null if no principal holds the value
+	 * @throws IMASTException if the values are not kept in a database, or cannot be read
+	 */
+	public String findPrincipal(String sharedToken) throws IMASTException {
+		return findPrincipals(Collections.singleton(sharedToken)).get(sharedToken);
+	}
+
+	/**
+	 * Looks up the principals holding many sharedToken values at once.
+	 *
+	 * @param sharedTokens the values
+	 * @return the principal names keyed by value, leaving out values no principal holds
+	 * @throws IMASTException if the values are not kept in a database, or cannot be read
+	 */
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		if (stStore == null) {
+			throw new IMASTException("SharedToken ID " + getId() + " does not keep values in a database");
+		}
+		return stStore.findPrincipals(sharedTokens);
+	}
+
+	// package-private for the benchmarks
+	boolean dependenciesContainsId(Set<ResolverAttributeDefinitionDependency> attrDependencies,
+			Set<ResolverDataConnectorDependency> dcDependencies, String id) {
+
+		if (attrDependencies != null)
+			for (Iterator<ResolverAttributeDefinitionDependency> it=attrDependencies.iterator(); it.hasNext(); ) {
+				if (it.next().getDependencyPluginId().equals(id)) return true;
+			}
+		if (dcDependencies != null)
+			for (Iterator<ResolverDataConnectorDependency> it=dcDependencies.iterator(); it.hasNext(); ) {
+				ResolverDataConnectorDependency dc = it.next();
+				if (dc.getDependencyPluginId().equals(id)) return true;
 
 				// accept also a name of an attribute on a DataConnector dependency
 				for (Iterator<String> it2 = dc.getAttributeNames().iterator(); it2.hasNext(); ) {
@@ -654,6 +2074,40 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 		this.storeDatabase = storeDatabase;
 	}
 
+	/**
+	 * @return the ID of the pairwise attribute, null if not generated
+	 */
+	public String getPairwiseAttributeId() {
+		return pairwiseAttributeId;
+	}
+
+	/**
+	 * @param pairwiseAttributeId
+	 *            the ID of the pairwise attribute to generate alongside the
+	 *            sharedToken, null to not generate it
+	 */
+	public void setPairwiseAttributeId(String pairwiseAttributeId) {
+		this.pairwiseAttributeId = MiscHelper.isEmpty(pairwiseAttributeId) ? null : pairwiseAttributeId;
+	}
+
+	/**
+	 * @return the key of the pairwise values, null to use the salt
+	 */
+	public byte[] getPairwiseSalt() {
+		return pairwiseSalt;
+	}
+
+	/**
+	 * @param pairwiseSalt
+	 *            the key of the pairwise values, null to use the salt
+	 */
+	public void setPairwiseSalt(byte[] pairwiseSalt) {
+		if (pairwiseSalt != null && pairwiseSalt.length < MINIMUM_SALT_LENGTH) {
+			log.warn("Provided pairwise salt less than " + MINIMUM_SALT_LENGTH + " bytes in size.");
+		}
+		this.pairwiseSalt = pairwiseSalt;
+	}
+
 	public void setSalt(byte[] salt) {
 		if (salt.length < MINIMUM_SALT_LENGTH) {
 			log.warn("Provided salt less than "+MINIMUM_SALT_LENGTH+" bytes in size.");
@@ -670,6 +2124,7 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 	public void setDataSource(DataSource source) {
 		if (source != null) {
 			stStore = new SharedTokenStore(source);
+			dataSource = source;
 		} else {
 			log.error("DataSource must not be null");
 			throw new IllegalArgumentException(
@@ -677,6 +2132,431 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 		}
 	}
 
+	/**
+	 * @param dataSources DataSources of the shards to spread sharedToken values over
+	 */
+	public void setDataSources(List<DataSource> dataSources) {
+		if (dataSources == null || dataSources.contains(null)) {
+			log.error("DataSources must not be null");
+			throw new IllegalArgumentException(
+					"DataSources must not be null");
+		}
+		shardDataSources = new ArrayList<DataSource>(dataSources);
+	}
+
+	/**
+	 * @param shardNames names of the shards, in the order of the DataSources; shard0, shard1, ... if not set
+	 */
+	public void setDataSourceNames(List<String> shardNames) {
+		this.shardNames = shardNames == null ? null : new ArrayList<String>(shardNames);
+	}
+
+	/**
+	 * @param dataSources DataSources of read replicas of the database
+	 */
+	public void setReplicaDataSources(List<DataSource> dataSources) {
+		if (dataSources == null || dataSources.contains(null)) {
+			log.error("DataSources must not be null");
+			throw new IllegalArgumentException(
+					"DataSources must not be null");
+		}
+		replicaDataSources = new ArrayList<DataSource>(dataSources);
+	}
+
+	/**
+	 * @param replicaNames names of the replicas, in the order of the DataSources; replica0, replica1, ... if not set
+	 */
+	public void setReplicaDataSourceNames(List<String> replicaNames) {
+		this.replicaNames = replicaNames == null ? null : new ArrayList<String>(replicaNames);
+	}
+
+	/**
+	 * @return how long after this node stores a value for a principal it is read from the primary
+	 */
+	public Duration getReadYourWritesWindow() {
+		return readYourWritesWindow;
+	}
+
+	/**
+	 * @param readYourWritesWindow how long after this node stores a value for a principal it is read from the primary
+	 */
+	public void setReadYourWritesWindow(Duration readYourWritesWindow) {
+		this.readYourWritesWindow = readYourWritesWindow;
+	}
+
+	/**
+	 * @return whether slow replica lookups are also sent to another replica
+	 */
+	public boolean isHedgeReads() {
+		return hedgeReads;
+	}
+
+	/**
+	 * @param hedgeReads whether slow replica lookups are also sent to another replica
+	 */
+	public void setHedgeReads(boolean hedgeReads) {
+		this.hedgeReads = hedgeReads;
+	}
+
+	/**
+	 * @return the smallest delay before a replica lookup is hedged
+	 */
+	public Duration getHedgeMinDelay() {
+		return hedgeMinDelay;
+	}
+
+	/**
+	 * @param hedgeMinDelay the smallest delay before a replica lookup is hedged
+	 */
+	public void setHedgeMinDelay(Duration hedgeMinDelay) {
+		this.hedgeMinDelay = hedgeMinDelay;
+	}
+
+	/**
+	 * @return directory of the files sharedToken values are kept in instead of a database
+	 */
+	public String getFileStoreDirectory() {
+		return fileStoreDirectory;
+	}
+
+	/**
+	 * @param fileStoreDirectory directory of the files sharedToken values are kept in instead of a database
+	 */
+	public void setFileStoreDirectory(String fileStoreDirectory) {
+		this.fileStoreDirectory = fileStoreDirectory;
+	}
+
+	/**
+	 * @return interval between compactions of the journal into the snapshot file
+	 */
+	public Duration getFileStoreCompactionInterval() {
+		return fileStoreCompactionInterval;
+	}
+
+	/**
+	 * @param fileStoreCompactionInterval interval between compactions of the journal into the snapshot file
+	 */
+	public void setFileStoreCompactionInterval(Duration fileStoreCompactionInterval) {
+		this.fileStoreCompactionInterval = fileStoreCompactionInterval;
+	}
+
+	/**
+	 * @return whether tb_st is read into memory at startup and lookups answered from it
+	 */
+	public boolean isPreload() {
+		return preload;
+	}
+
+	/**
+	 * @param preload whether to read tb_st into memory at startup and answer lookups from it
+	 */
+	public void setPreload(boolean preload) {
+		this.preload = preload;
+	}
+
+	/**
+	 * @return number of rows fetched at a time when reading tb_st
+	 */
+	public int getPreloadFetchSize() {
+		return preloadFetchSize;
+	}
+
+	/**
+	 * @param preloadFetchSize number of rows fetched at a time when reading tb_st
+	 */
+	public void setPreloadFetchSize(int preloadFetchSize) {
+		this.preloadFetchSize = preloadFetchSize;
+	}
+
+	/**
+	 * @return interval between reads of rows added to tb_st, null if it is only read at startup
+	 */
+	public Duration getPreloadRefreshInterval() {
+		return preloadRefreshInterval;
+	}
+
+	/**
+	 * @param preloadRefreshInterval interval between reads of rows added to tb_st, null to read it only at startup
+	 */
+	public void setPreloadRefreshInterval(Duration preloadRefreshInterval) {
+		this.preloadRefreshInterval = preloadRefreshInterval;
+	}
+
+	/**
+	 * @return whether the preloaded values are also kept keyed by value, for reverse lookups
+	 */
+	public boolean isPreloadReverseIndex() {
+		return preloadReverseIndex;
+	}
+
+	/**
+	 * @param preloadReverseIndex whether to also keep the preloaded values keyed by value, for reverse lookups
+	 */
+	public void setPreloadReverseIndex(boolean preloadReverseIndex) {
+		this.preloadReverseIndex = preloadReverseIndex;
+	}
+
+	/**
+	 * @return how the shard of a principal is chosen: modulo or consistent
+	 */
+	public String getSharding() {
+		return sharding;
+	}
+
+	/**
+	 * @param sharding how the shard of a principal is chosen: modulo (the default) or consistent
+	 */
+	public void setSharding(String sharding) {
+		this.sharding = sharding;
+	}
+
+	/**
+	 * @return whether new sharedToken values are written to the database in the background
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * @param writeBehind whether new sharedToken values are journalled locally and written to the database in the background
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * @param writeBehindDirectory directory holding the write-behind journal
+	 */
+	public void setWriteBehindDirectory(String writeBehindDirectory) {
+		this.writeBehindDirectory = writeBehindDirectory;
+	}
+
+	/**
+	 * @param writeBehindInterval interval between background writes of journalled values
+	 */
+	public void setWriteBehindInterval(Duration writeBehindInterval) {
+		if (writeBehindInterval == null || writeBehindInterval.isNegative() || writeBehindInterval.isZero()) {
+			throw new IllegalArgumentException("Write-behind interval must be positive");
+		}
+		this.writeBehindInterval = writeBehindInterval;
+	}
+
+	/**
+	 * @param writeBehindBatchSize maximum number of journalled values written to the database in one batch
+	 */
+	public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+		if (writeBehindBatchSize <= 0) {
+			throw new IllegalArgumentException("Write-behind batch size must be positive");
+		}
+		this.writeBehindBatchSize = writeBehindBatchSize;
+	}
+
+	/**
+	 * @param size the minimum number of pooled LDAP connections used for writes
+	 */
+	public void setLdapWritePoolMinSize(int size) {
+		ldapWriter.setMinPoolSize(size);
+	}
+
+	/**
+	 * @param size the maximum number of pooled LDAP connections used for writes
+	 */
+	public void setLdapWritePoolMaxSize(int size) {
+		ldapWriter.setMaxPoolSize(size);
+	}
+
+	/**
+	 * @param blockWaitTime how long a write waits for a free LDAP connection when the pool is exhausted
+	 */
+	public void setLdapWritePoolBlockWaitTime(Duration blockWaitTime) {
+		ldapWriter.setBlockWaitTime(blockWaitTime);
+	}
+
+	/**
+	 * @param validatePeriod how often idle pooled LDAP connections are validated
+	 */
+	public void setLdapWritePoolValidatePeriod(Duration validatePeriod) {
+		ldapWriter.setValidatePeriod(validatePeriod);
+	}
+
+	/**
+	 * @param validateOnCheckOut whether to validate a pooled LDAP connection each time it is used for a write
+	 */
+	public void setLdapWritePoolValidateOnCheckOut(boolean validateOnCheckOut) {
+		ldapWriter.setValidateOnCheckOut(validateOnCheckOut);
+	}
+
+	/**
+	 * @return the configured SQL dialect name, null if detected from the database
+	 */
+	public String getDatabaseDialect() {
+		return databaseDialect;
+	}
+
+	/**
+	 * @param databaseDialect the SQL dialect name (MYSQL, POSTGRESQL, ORACLE, SQLSERVER, H2 or GENERIC)
+	 */
+	public void setDatabaseDialect(String databaseDialect) {
+		this.databaseDialect = databaseDialect;
+	}
+
+	/**
+	 * @return the name of the table sharedToken values are kept in
+	 */
+	public String getDatabaseTable() {
+		return databaseTable;
+	}
+
+	/**
+	 * @param databaseTable the table name, optionally qualified by a schema name
+	 */
+	public void setDatabaseTable(String databaseTable) {
+		this.databaseTable = databaseTable;
+	}
+
+	/**
+	 * @return the name of the principal name column
+	 */
+	public String getDatabaseUidColumn() {
+		return databaseUidColumn;
+	}
+
+	/**
+	 * @param databaseUidColumn the principal name column
+	 */
+	public void setDatabaseUidColumn(String databaseUidColumn) {
+		this.databaseUidColumn = databaseUidColumn;
+	}
+
+	/**
+	 * @return the name of the sharedToken column
+	 */
+	public String getDatabaseTokenColumn() {
+		return databaseTokenColumn;
+	}
+
+	/**
+	 * @param databaseTokenColumn the sharedToken column
+	 */
+	public void setDatabaseTokenColumn(String databaseTokenColumn) {
+		this.databaseTokenColumn = databaseTokenColumn;
+	}
+
+	/**
+	 * @return the name of the column numbering rows in insert order
+	 */
+	public String getDatabaseSeqColumn() {
+		return databaseSeqColumn;
+	}
+
+	/**
+	 * @param databaseSeqColumn the column numbering rows in insert order, read by preloadRefreshInterval
+	 */
+	public void setDatabaseSeqColumn(String databaseSeqColumn) {
+		this.databaseSeqColumn = databaseSeqColumn;
+	}
+
+	/**
+	 * @return the format of the sharedToken column
+	 */
+	public String getDatabaseTokenFormat() {
+		return databaseTokenFormat;
+	}
+
+	/**
+	 * @param databaseTokenFormat text, or binary to keep the 20 raw bytes of canonical values
+	 */
+	public void setDatabaseTokenFormat(String databaseTokenFormat) {
+		this.databaseTokenFormat = databaseTokenFormat;
+	}
+
+	/**
+	 * @return what is done about the table at startup
+	 */
+	public String getDatabaseSchema() {
+		return databaseSchema;
+	}
+
+	/**
+	 * @param databaseSchema none, verify or create
+	 */
+	public void setDatabaseSchema(String databaseSchema) {
+		this.databaseSchema = databaseSchema;
+	}
+
+	/**
+	 * @return the maximum number of cached sharedToken values
+	 */
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize the maximum number of sharedToken values to cache, 0 to disable caching
+	 */
+	public void setCacheSize(long cacheSize) {
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative");
+		}
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * @return the time after which cached sharedToken values expire
+	 */
+	public Duration getCacheTTL() {
+		return cacheTTL;
+	}
+
+	/**
+	 * @param cacheTTL the time after which cached sharedToken values expire, null for no expiry
+	 */
+	public void setCacheTTL(Duration cacheTTL) {
+		this.cacheTTL = cacheTTL;
+	}
+
+	/**
+	 * @return the storage service caching sharedToken values across IdP nodes
+	 */
+	public StorageService getCacheStorageService() {
+		return cacheStorageService;
+	}
+
+	/**
+	 * @param cacheStorageService the storage service caching sharedToken values across IdP nodes, null to not use one
+	 */
+	public void setCacheStorageService(StorageService cacheStorageService) {
+		this.cacheStorageService = cacheStorageService;
+	}
+
+	/**
+	 * @return the context of the cached sharedToken values in the storage service
+	 */
+	public String getCacheStorageContext() {
+		return cacheStorageContext;
+	}
+
+	/**
+	 * @param cacheStorageContext the context of the cached sharedToken values in the storage service
+	 */
+	public void setCacheStorageContext(String cacheStorageContext) {
+		this.cacheStorageContext = cacheStorageContext;
+	}
+
+	/**
+	 * @return the time after which sharedToken values cached in the storage service expire
+	 */
+	public Duration getCacheStorageTTL() {
+		return cacheStorageTTL;
+	}
+
+	/**
+	 * @param cacheStorageTTL the time after which sharedToken values cached in the storage service expire
+	 */
+	public void setCacheStorageTTL(Duration cacheStorageTTL) {
+		this.cacheStorageTTL = cacheStorageTTL;
+	}
+
 	/**
 	 * @return the ldapConnectorId
 	 */
@@ -684,6 +2564,139 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 		return ldapConnectorId;
 	}
 
+	/**
+	 * @return comma separated sources of sharedToken values, in the order they are looked up
+	 */
+	public String getTokenSources() {
+		return tokenSources;
+	}
+
+	/**
+	 * @param tokenSources comma separated sources of sharedToken values (cache, database, ldap), in the order they are looked up
+	 */
+	public void setTokenSources(String tokenSources) {
+		this.tokenSources = MiscHelper.isEmpty(tokenSources) ? null : tokenSources;
+	}
+
+	/**
+	 * @return attribute of the LDAP connector results holding the DN of the entry to store new values in
+	 */
+	public String getLdapEntryDnAttribute() {
+		return ldapEntryDnAttribute;
+	}
+
+	/**
+	 * @param ldapEntryDnAttribute attribute of the LDAP connector results holding the DN of the entry to store new values in
+	 */
+	public void setLdapEntryDnAttribute(String ldapEntryDnAttribute) {
+		this.ldapEntryDnAttribute = ldapEntryDnAttribute;
+	}
+
+	/**
+	 * @return DN of the entry to store new values in, with {principal} standing for the principal name
+	 */
+	public String getLdapDnTemplate() {
+		return ldapDnTemplate;
+	}
+
+	/**
+	 * @param ldapDnTemplate DN of the entry to store new values in, with {principal} standing for the principal name
+	 */
+	public void setLdapDnTemplate(String ldapDnTemplate) {
+		this.ldapDnTemplate = ldapDnTemplate;
+	}
+
+	/**
+	 * @return the deadline of each database operation, null for none
+	 */
+	public Duration getDatabaseTimeout() {
+		return databaseTimeout;
+	}
+
+	/**
+	 * @param databaseTimeout the deadline of each database operation, including getting a connection; null for none
+	 */
+	public void setDatabaseTimeout(Duration databaseTimeout) {
+		this.databaseTimeout = databaseTimeout;
+	}
+
+	/**
+	 * @param databaseMaxConcurrency maximum number of database operations running at once, 0 for no limit
+	 */
+	public void setDatabaseMaxConcurrency(int databaseMaxConcurrency) {
+		this.databaseMaxConcurrency = databaseMaxConcurrency;
+	}
+
+	/**
+	 * @return the deadline of each LDAP operation done to store a value, null for none
+	 */
+	public Duration getLdapTimeout() {
+		return ldapTimeout;
+	}
+
+	/**
+	 * @param ldapTimeout the deadline of each LDAP operation done to store a value; null for none
+	 */
+	public void setLdapTimeout(Duration ldapTimeout) {
+		this.ldapTimeout = ldapTimeout;
+	}
+
+	/**
+	 * @param ldapMaxConcurrency maximum number of LDAP operations running at once, 0 for no limit
+	 */
+	public void setLdapMaxConcurrency(int ldapMaxConcurrency) {
+		this.ldapMaxConcurrency = ldapMaxConcurrency;
+	}
+
+	/**
+	 * @param circuitBreakerThreshold number of consecutive failures of a backend that open its circuit, 0 to never open it
+	 */
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * @param circuitBreakerOpenTime how long an open circuit rejects operations before a probe
+	 */
+	public void setCircuitBreakerOpenTime(Duration circuitBreakerOpenTime) {
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	/**
+	 * @return what is released while a backend is unavailable: omit or cache
+	 */
+	public String getDegradedPolicy() {
+		return degradedPolicy;
+	}
+
+	/**
+	 * @param degradedPolicy what is released while a backend is unavailable: omit (the default) or cache
+	 */
+	public void setDegradedPolicy(String degradedPolicy) {
+		this.degradedPolicy = degradedPolicy == null ? null : degradedPolicy.trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return where metrics are published: jmx, dropwizard or none
+	 */
+	public String getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param metrics where metrics are published: jmx, dropwizard or none (the default)
+	 */
+	public void setMetrics(String metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param metricRegistry registry metrics are recorded in when metrics=dropwizard
+	 */
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+	}
+
 	/**
 	 * @param ldapConnectorId the ldapConnectorId to set
 	 */
@@ -706,4 +2719,82 @@ public class SharedTokenDataConnector extends AbstractDataConnector {
 		this.storedAttributeName = storedAttributeName;
 	}
 
+	/** Sources of sharedToken values. */
+	private enum TokenSource {
+		/** The in-memory cache. */
+		CACHE,
+		/** The database. */
+		DATABASE,
+		/** The results of the LDAP connector. */
+		LDAP
+	}
+
+	/**
+	 * The LDAP entry to store a sharedToken in, or the search finding it,
+	 * worked out on the request thread.
+	 */
+	private static final class LdapTarget {
+
+		/** Connection factory of the LDAP connector. */
+		private final ConnectionFactory connectionFactory;
+
+		/** DN of the entry, null until found by the search. */
+		private final String dn;
+
+		/** Search executor of the LDAP connector, null if the DN is known. */
+		private final SearchExecutor searchExecutor;
+
+		/** Search filter finding the entry, null if the DN is known. */
+		private final ExecutableSearchFilter searchFilter;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param connectionFactory connection factory of the LDAP connector
+		 * @param dn DN of the entry
+		 */
+		private LdapTarget(ConnectionFactory connectionFactory, String dn) {
+			this.connectionFactory = connectionFactory;
+			this.dn = dn;
+			searchExecutor = null;
+			searchFilter = null;
+		}
+
+		/**
+		 * Constructor.
+		 *
+		 * @param connectionFactory connection factory of the LDAP connector
+		 * @param searchExecutor search executor of the LDAP connector
+		 * @param searchFilter search filter finding the entry
+		 */
+		private LdapTarget(ConnectionFactory connectionFactory, SearchExecutor searchExecutor,
+				ExecutableSearchFilter searchFilter) {
+			this.connectionFactory = connectionFactory;
+			dn = null;
+			this.searchExecutor = searchExecutor;
+			this.searchFilter = searchFilter;
+		}
+	}
+
+	/** Where to look up a source attribute. */
+	private static final class SourceAttribute {
+
+		/** The source attribute ID. */
+		private final String id;
+
+		/** Whether the attribute is listed among the attribute dependencies. */
+		private final boolean attributeDependency;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param id the source attribute ID
+		 * @param attributeDependency whether the attribute is listed among the attribute dependencies
+		 */
+		private SourceAttribute(String id, boolean attributeDependency) {
+			this.id = id;
+			this.attributeDependency = attributeDependency;
+		}
+	}
+
 }
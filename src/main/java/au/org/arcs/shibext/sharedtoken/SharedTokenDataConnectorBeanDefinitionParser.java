@@ -3,6 +3,10 @@
  */
 package au.org.arcs.shibext.sharedtoken;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.namespace.QName;
 
 import net.shibboleth.idp.attribute.resolver.spring.dc.AbstractDataConnectorParser;
@@ -10,7 +14,9 @@ import net.shibboleth.utilities.java.support.xml.AttributeSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.support.ManagedList;
 import org.springframework.beans.factory.xml.ParserContext;
 import org.w3c.dom.Element;
 
@@ -53,6 +59,16 @@ public class SharedTokenDataConnectorBeanDefinitionParser extends
 					.getAttributeNS(null, "idpIdentifier"));
 		}
 
+		if (pluginConfig.hasAttributeNS(null, "pairwiseAttributeID")) {
+			pluginBuilder.addPropertyValue("pairwiseAttributeId", pluginConfig
+					.getAttributeNS(null, "pairwiseAttributeID"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "pairwiseSalt")) {
+			pluginBuilder.addPropertyValue("pairwiseSalt", pluginConfig
+					.getAttributeNS(null, "pairwiseSalt").getBytes());
+		}
+
 		if (pluginConfig.hasAttributeNS(null, "storeLdap")) {
 			pluginBuilder.addPropertyValue("storeLdap", AttributeSupport
 					.getAttributeValueAsBoolean(pluginConfig
@@ -68,6 +84,16 @@ public class SharedTokenDataConnectorBeanDefinitionParser extends
 			pluginBuilder.addPropertyValue("storedAttributeName", pluginConfig
 					.getAttributeNS(null, "storedAttributeName"));
 		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapEntryDnAttribute")) {
+			pluginBuilder.addPropertyValue("ldapEntryDnAttribute", pluginConfig
+					.getAttributeNS(null, "ldapEntryDnAttribute"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapDnTemplate")) {
+			pluginBuilder.addPropertyValue("ldapDnTemplate", pluginConfig
+					.getAttributeNS(null, "ldapDnTemplate"));
+		}
 		
 		pluginBuilder.addPropertyValue("sourceAttributeId", pluginConfig
 				.getAttributeNS(null, "sourceAttributeID"));
@@ -85,6 +111,244 @@ public class SharedTokenDataConnectorBeanDefinitionParser extends
 					.getAttributeNS(null, "databaseConnectionID"));
 		}
 
+		if (pluginConfig.hasAttributeNS(null, "databaseConnectionIDs")) {
+			ManagedList<RuntimeBeanReference> dataSources = new ManagedList<RuntimeBeanReference>();
+			List<String> names = new ArrayList<String>();
+			for (String id : pluginConfig.getAttributeNS(null, "databaseConnectionIDs").trim().split("[\\s,]+")) {
+				if (!id.isEmpty()) {
+					dataSources.add(new RuntimeBeanReference(id));
+					names.add(id);
+				}
+			}
+			pluginBuilder.addPropertyValue("dataSources", dataSources);
+			pluginBuilder.addPropertyValue("dataSourceNames", names);
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "sharding")) {
+			pluginBuilder.addPropertyValue("sharding", pluginConfig.getAttributeNS(null, "sharding"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "replicaConnectionIDs")) {
+			ManagedList<RuntimeBeanReference> dataSources = new ManagedList<RuntimeBeanReference>();
+			List<String> names = new ArrayList<String>();
+			for (String id : pluginConfig.getAttributeNS(null, "replicaConnectionIDs").trim().split("[\\s,]+")) {
+				if (!id.isEmpty()) {
+					dataSources.add(new RuntimeBeanReference(id));
+					names.add(id);
+				}
+			}
+			pluginBuilder.addPropertyValue("replicaDataSources", dataSources);
+			pluginBuilder.addPropertyValue("replicaDataSourceNames", names);
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "readYourWritesWindow")) {
+			pluginBuilder.addPropertyValue("readYourWritesWindow", Duration.parse(pluginConfig
+					.getAttributeNS(null, "readYourWritesWindow")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "hedgeReads")) {
+			pluginBuilder.addPropertyValue("hedgeReads", AttributeSupport
+					.getAttributeValueAsBoolean(pluginConfig
+							.getAttributeNodeNS(null, "hedgeReads")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "hedgeMinDelay")) {
+			pluginBuilder.addPropertyValue("hedgeMinDelay", Duration.parse(pluginConfig
+					.getAttributeNS(null, "hedgeMinDelay")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "preload")) {
+			pluginBuilder.addPropertyValue("preload", AttributeSupport
+					.getAttributeValueAsBoolean(pluginConfig
+							.getAttributeNodeNS(null, "preload")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "preloadFetchSize")) {
+			pluginBuilder.addPropertyValue("preloadFetchSize", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "preloadFetchSize")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "preloadRefreshInterval")) {
+			pluginBuilder.addPropertyValue("preloadRefreshInterval", Duration.parse(pluginConfig
+					.getAttributeNS(null, "preloadRefreshInterval")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "preloadReverseIndex")) {
+			pluginBuilder.addPropertyValue("preloadReverseIndex", AttributeSupport
+					.getAttributeValueAsBoolean(pluginConfig
+							.getAttributeNodeNS(null, "preloadReverseIndex")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "fileStoreDirectory")) {
+			pluginBuilder.addPropertyValue("fileStoreDirectory", pluginConfig
+					.getAttributeNS(null, "fileStoreDirectory"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "fileStoreCompactionInterval")) {
+			pluginBuilder.addPropertyValue("fileStoreCompactionInterval", Duration.parse(pluginConfig
+					.getAttributeNS(null, "fileStoreCompactionInterval")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapWritePoolMinSize")) {
+			pluginBuilder.addPropertyValue("ldapWritePoolMinSize", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "ldapWritePoolMinSize")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapWritePoolMaxSize")) {
+			pluginBuilder.addPropertyValue("ldapWritePoolMaxSize", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "ldapWritePoolMaxSize")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapWritePoolBlockWaitTime")) {
+			pluginBuilder.addPropertyValue("ldapWritePoolBlockWaitTime", Duration.parse(pluginConfig
+					.getAttributeNS(null, "ldapWritePoolBlockWaitTime")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapWritePoolValidatePeriod")) {
+			pluginBuilder.addPropertyValue("ldapWritePoolValidatePeriod", Duration.parse(pluginConfig
+					.getAttributeNS(null, "ldapWritePoolValidatePeriod")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapWritePoolValidateOnCheckOut")) {
+			pluginBuilder.addPropertyValue("ldapWritePoolValidateOnCheckOut", AttributeSupport
+					.getAttributeValueAsBoolean(pluginConfig
+							.getAttributeNodeNS(null, "ldapWritePoolValidateOnCheckOut")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseDialect")) {
+			pluginBuilder.addPropertyValue("databaseDialect", pluginConfig
+					.getAttributeNS(null, "databaseDialect"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseTable")) {
+			pluginBuilder.addPropertyValue("databaseTable", pluginConfig
+					.getAttributeNS(null, "databaseTable"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseUidColumn")) {
+			pluginBuilder.addPropertyValue("databaseUidColumn", pluginConfig
+					.getAttributeNS(null, "databaseUidColumn"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseTokenColumn")) {
+			pluginBuilder.addPropertyValue("databaseTokenColumn", pluginConfig
+					.getAttributeNS(null, "databaseTokenColumn"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseSeqColumn")) {
+			pluginBuilder.addPropertyValue("databaseSeqColumn", pluginConfig
+					.getAttributeNS(null, "databaseSeqColumn"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseTokenFormat")) {
+			pluginBuilder.addPropertyValue("databaseTokenFormat", pluginConfig
+					.getAttributeNS(null, "databaseTokenFormat"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseSchema")) {
+			pluginBuilder.addPropertyValue("databaseSchema", pluginConfig
+					.getAttributeNS(null, "databaseSchema"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "writeBehind")) {
+			pluginBuilder.addPropertyValue("writeBehind", AttributeSupport
+					.getAttributeValueAsBoolean(pluginConfig
+							.getAttributeNodeNS(null, "writeBehind")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "writeBehindDirectory")) {
+			pluginBuilder.addPropertyValue("writeBehindDirectory", pluginConfig
+					.getAttributeNS(null, "writeBehindDirectory"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "writeBehindInterval")) {
+			pluginBuilder.addPropertyValue("writeBehindInterval", Duration.parse(pluginConfig
+					.getAttributeNS(null, "writeBehindInterval")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "writeBehindBatchSize")) {
+			pluginBuilder.addPropertyValue("writeBehindBatchSize", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "writeBehindBatchSize")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "cacheSize")) {
+			pluginBuilder.addPropertyValue("cacheSize", Long.valueOf(pluginConfig
+					.getAttributeNS(null, "cacheSize")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "cacheTTL")) {
+			pluginBuilder.addPropertyValue("cacheTTL", Duration.parse(pluginConfig
+					.getAttributeNS(null, "cacheTTL")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "cacheStorageServiceRef")) {
+			pluginBuilder.addPropertyReference("cacheStorageService", pluginConfig
+					.getAttributeNS(null, "cacheStorageServiceRef"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "cacheStorageContext")) {
+			pluginBuilder.addPropertyValue("cacheStorageContext", pluginConfig
+					.getAttributeNS(null, "cacheStorageContext"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "cacheStorageTTL")) {
+			pluginBuilder.addPropertyValue("cacheStorageTTL", Duration.parse(pluginConfig
+					.getAttributeNS(null, "cacheStorageTTL")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "tokenSources")) {
+			pluginBuilder.addPropertyValue("tokenSources", pluginConfig
+					.getAttributeNS(null, "tokenSources"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseTimeout")) {
+			pluginBuilder.addPropertyValue("databaseTimeout", Duration.parse(pluginConfig
+					.getAttributeNS(null, "databaseTimeout")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "databaseMaxConcurrency")) {
+			pluginBuilder.addPropertyValue("databaseMaxConcurrency", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "databaseMaxConcurrency")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapTimeout")) {
+			pluginBuilder.addPropertyValue("ldapTimeout", Duration.parse(pluginConfig
+					.getAttributeNS(null, "ldapTimeout")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "ldapMaxConcurrency")) {
+			pluginBuilder.addPropertyValue("ldapMaxConcurrency", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "ldapMaxConcurrency")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "circuitBreakerThreshold")) {
+			pluginBuilder.addPropertyValue("circuitBreakerThreshold", Integer.valueOf(pluginConfig
+					.getAttributeNS(null, "circuitBreakerThreshold")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "circuitBreakerOpenTime")) {
+			pluginBuilder.addPropertyValue("circuitBreakerOpenTime", Duration.parse(pluginConfig
+					.getAttributeNS(null, "circuitBreakerOpenTime")));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "degradedPolicy")) {
+			pluginBuilder.addPropertyValue("degradedPolicy", pluginConfig
+					.getAttributeNS(null, "degradedPolicy"));
+		}
+
+		if (pluginConfig.hasAttributeNS(null, "metrics")) {
+			pluginBuilder.addPropertyValue("metrics", pluginConfig
+					.getAttributeNS(null, "metrics"));
+		}
+
+		if ("dropwizard".equals(pluginConfig.getAttributeNS(null, "metrics"))) {
+			String metricRegistryRef = "shibboleth.metrics.MetricRegistry";
+			if (pluginConfig.hasAttributeNS(null, "metricRegistryRef")) {
+				metricRegistryRef = pluginConfig.getAttributeNS(null, "metricRegistryRef");
+			}
+			pluginBuilder.addPropertyReference("metricRegistry", metricRegistryRef);
+		}
+
 	}
 
 }
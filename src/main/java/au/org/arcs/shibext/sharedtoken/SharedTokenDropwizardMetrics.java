@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * {@link SharedTokenMetrics} recorded in a Dropwizard {@link MetricRegistry},
+ * such as the one the IdP reports through its metrics endpoints.
+ *
+ * Metric names start with a prefix naming the connector: a timer per stage
+ * ({@code <prefix>.<stage>}), counters {@code <prefix>.cache.hits} and
+ * {@code <prefix>.cache.misses}, and a counter per stage and error type
+ * ({@code <prefix>.errors.<stage>.<type>}).
+ *
+ * The metrics are left in the registry when the connector is destroyed, so
+ * that a reloaded connector with the same ID carries on recording in them.
+ */
+public class SharedTokenDropwizardMetrics implements SharedTokenMetrics {
+
+	/** The registry. */
+	private final MetricRegistry registry;
+
+	/** Prefix of the metric names. */
+	private final String prefix;
+
+	/** Timer of each stage. */
+	private final Map<Stage, Timer> timers = new EnumMap<Stage, Timer>(Stage.class);
+
+	/** Counter of values found in the cache. */
+	private final Counter cacheHits;
+
+	/** Counter of values not found in the cache. */
+	private final Counter cacheMisses;
+
+	/** Counters of errors, keyed by metric name. */
+	private final ConcurrentMap<String, Counter> errors = new ConcurrentHashMap<String, Counter>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param registry the registry to record metrics in
+	 * @param prefix prefix of the metric names
+	 */
+	public SharedTokenDropwizardMetrics(MetricRegistry registry, String prefix) {
+		this.registry = registry;
+		this.prefix = prefix;
+		for (Stage stage : Stage.values()) {
+			timers.put(stage, registry.timer(MetricRegistry.name(prefix, stage.metricName())));
+		}
+		cacheHits = registry.counter(MetricRegistry.name(prefix, "cache", "hits"));
+		cacheMisses = registry.counter(MetricRegistry.name(prefix, "cache", "misses"));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void recordLatency(Stage stage, long nanos) {
+		timers.get(stage).update(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void recordCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).inc();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void recordError(Stage stage, Throwable error) {
+		String name = MetricRegistry.name(prefix, "errors", stage.metricName(), SharedTokenMetrics.errorType(error));
+		errors.computeIfAbsent(name, registry::counter).inc();
+	}
+
+}
@@ -0,0 +1,716 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SharedTokenStorage} in local files, for a single IdP node without a
+ * database.
+ *
+ * Values are kept in an immutable snapshot file of fixed size records, each
+ * the first 16 bytes of the SHA-256 hash of the principal name followed by
+ * the 20 raw bytes of the sharedToken, sorted by hash.  The snapshot is
+ * memory-mapped, not read, when the store is opened, and a lookup is a
+ * binary search of the mapped file.  New values are appended to a
+ * {@link SharedTokenJournal}, forced to disk before they are returned, and
+ * kept in memory until a background compaction merges them into a new
+ * snapshot.
+ *
+ * Looking up a principal with an ASCII name only allocates the returned
+ * String.  Only values in canonical form (see {@link SharedTokenCodec}) can
+ * be stored.  The files must not be shared by several IdP nodes.
+ */
+public class SharedTokenFileStore implements SharedTokenStorage {
+
+	/** First 8 bytes of a snapshot file: "STSNAP01". */
+	private static final long MAGIC = 0x5354534e41503031L;
+
+	/** Length of the snapshot header: magic, record count and reserved bytes. */
+	private static final int HEADER_LENGTH = 32;
+
+	/** Length of the hash of the principal name kept in a record. */
+	private static final int KEY_LENGTH = 16;
+
+	/** Length of a snapshot record. */
+	private static final int RECORD_LENGTH = KEY_LENGTH + SharedTokenCodec.RAW_LENGTH;
+
+	/** Prefix of snapshot file names. */
+	private static final String SNAPSHOT_PREFIX = "sharedtoken-";
+
+	/** Suffix of snapshot file names. */
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+	/** Per-thread digest and buffers. */
+	private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenFileStore.class);
+
+	/** Directory holding the snapshot files and the journal. */
+	private final Path directory;
+
+	/** Interval between compactions. */
+	private final Duration compactionInterval;
+
+	/** Values journalled since the snapshot was written, keyed by principal name. */
+	private final ConcurrentMap<String, String> delta = new ConcurrentHashMap<String, String>();
+
+	/** Serialises writes, so a principal gets one value. */
+	private final Object writeLock = new Object();
+
+	/** Serialises compactions. */
+	private final Object compactionLock = new Object();
+
+	/** The current snapshot. */
+	private volatile Snapshot snapshot;
+
+	/** Journal of the values written since the snapshot, open while the store is. */
+	private SharedTokenJournal journal;
+
+	/** Thread compacting the journal into the snapshot, running while the store is open. */
+	private ScheduledExecutorService compactor;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory directory holding the snapshot files and the journal
+	 * @param compactionInterval interval between compactions
+	 */
+	public SharedTokenFileStore(Path directory, Duration compactionInterval) {
+		if (compactionInterval.isNegative() || compactionInterval.isZero()) {
+			throw new IllegalArgumentException("Compaction interval must be positive");
+		}
+		this.directory = directory;
+		this.compactionInterval = compactionInterval;
+	}
+
+	/**
+	 * Maps the latest snapshot, reads the journal and starts compacting in
+	 * the background.
+	 *
+	 * @param name name of the connector, used to name the compaction thread
+	 * @throws IOException if the files cannot be opened or the snapshot is corrupt
+	 */
+	public synchronized void open(String name) throws IOException {
+		Files.createDirectories(directory);
+		List<Path> snapshots = listSnapshots();
+		if (snapshots.isEmpty()) {
+			snapshot = Snapshot.EMPTY;
+		} else {
+			snapshot = Snapshot.map(snapshots.get(snapshots.size() - 1));
+			// older snapshots were left behind by an interrupted compaction, or could not be deleted while mapped
+			for (Path old : snapshots.subList(0, snapshots.size() - 1)) {
+				deleteSnapshot(old);
+			}
+		}
+		Files.deleteIfExists(temporaryPath(snapshot.generation + 1));
+
+		journal = new SharedTokenJournal(directory.resolve("delta"));
+		for (Path segment : journal.roll()) {
+			journal.read(segment, delta);
+		}
+		log.info("SharedTokenFileStore: opened {} with {} values in the snapshot and {} in the journal",
+				directory, snapshot.count, delta.size());
+
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sharedtoken-compaction-" + name);
+			t.setDaemon(true);
+			return t;
+		});
+		long interval = compactionInterval.toMillis();
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compact();
+			} catch (Exception e) {
+				log.warn("SharedTokenFileStore: compaction failed, will retry", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops compacting and closes the journal.  Journalled values are
+	 * compacted after the next start.
+	 */
+	public synchronized void close() {
+		if (compactor != null) {
+			compactor.shutdown();
+			try {
+				compactor.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			compactor = null;
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				log.warn("SharedTokenFileStore: failed to close journal", e);
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * The database dialect does not apply to files.
+	 *
+	 * @param dialect ignored
+	 */
+	@Override
+	public void setDialect(SharedTokenStoreDialect dialect) {
+	}
+
+	/**
+	 * The query timeout does not apply to files.
+	 *
+	 * @param seconds ignored
+	 */
+	@Override
+	public void setQueryTimeout(int seconds) {
+	}
+
+	/**
+	 * The files do not have a table.
+	 *
+	 * @param schema ignored
+	 */
+	@Override
+	public void setSchema(SharedTokenSchema schema) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSharedToken(String uid) throws IMASTException {
+		String sharedToken = delta.get(uid);
+		if (sharedToken != null) {
+			return sharedToken;
+		}
+		return snapshot.get(uid);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * Not supported: the snapshot keeps a hash of each principal name, not
+	 * the name itself.
+	 */
+	@Override
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		throw new IMASTException("The file store keeps no principal names and cannot look principals up by value");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException {
+		String sharedToken = getSharedToken(uid);
+		if (sharedToken != null) {
+			return sharedToken;
+		}
+		synchronized (writeLock) {
+			sharedToken = getSharedToken(uid);
+			if (sharedToken != null) {
+				return sharedToken;
+			}
+			try {
+				sharedToken = generator.call();
+			} catch (Exception e) {
+				throw new IMASTException("Failed to generate SharedToken", e);
+			}
+			log.info("SharedTokenFileStore: storing value {} for uid {}", sharedToken, uid);
+			append(Collections.singletonMap(uid, sharedToken));
+			return sharedToken;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The values are journalled together and forced to disk once.
+	 */
+	@Override
+	public void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException {
+		synchronized (writeLock) {
+			Map<String, String> absent = new HashMap<String, String>();
+			for (Map.Entry<String, String> entry : sharedTokens.entrySet()) {
+				if (getSharedToken(entry.getKey()) == null) {
+					absent.put(entry.getKey(), entry.getValue());
+				}
+			}
+			append(absent);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void storeSharedToken(String uid, String sharedToken) throws IMASTException {
+		log.info("SharedTokenFileStore: storing value {} for uid {}", sharedToken, uid);
+		synchronized (writeLock) {
+			String existing = getSharedToken(uid);
+			if (existing != null) {
+				if (existing.equals(sharedToken)) {
+					return;
+				}
+				throw new IMASTException("uid " + uid + " already has a different SharedToken");
+			}
+			append(Collections.singletonMap(uid, sharedToken));
+		}
+	}
+
+	/**
+	 * Journals values and makes them visible to lookups.  Must be called
+	 * holding the write lock.
+	 *
+	 * @param sharedTokens sharedToken values keyed by principal name
+	 * @throws IMASTException if a value is not in canonical form or cannot be journalled
+	 */
+	private void append(Map<String, String> sharedTokens) throws IMASTException {
+		if (sharedTokens.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<String, String> entry : sharedTokens.entrySet()) {
+			if (SharedTokenCodec.decode(entry.getValue()) == null) {
+				throw new IMASTException("SharedToken " + entry.getValue() + " of uid " + entry.getKey()
+						+ " is not in canonical form and cannot be stored in a file");
+			}
+		}
+		try {
+			journal.appendAll(sharedTokens);
+		} catch (IOException e) {
+			log.error("Failed to journal SharedToken values", e);
+			throw new IMASTException("Failed to journal SharedToken values", e);
+		}
+		delta.putAll(sharedTokens);
+	}
+
+	/**
+	 * Merges the journalled values into a new snapshot, then deletes them
+	 * from the journal and from memory.  Values written meanwhile are kept
+	 * for the next compaction.
+	 *
+	 * @throws IOException if the new snapshot cannot be written
+	 */
+	public void compact() throws IOException {
+		synchronized (compactionLock) {
+			List<Path> segments = journal.roll();
+			if (segments.isEmpty()) {
+				return;
+			}
+			Map<String, String> entries = new HashMap<String, String>();
+			for (Path segment : segments) {
+				journal.read(segment, entries);
+			}
+			long start = System.nanoTime();
+
+			Snapshot current = snapshot;
+			Snapshot next = Snapshot.map(writeSnapshot(current, entries));
+			snapshot = next;
+			// the values are in the published snapshot now
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				delta.remove(entry.getKey(), entry.getValue());
+			}
+			for (Path segment : segments) {
+				journal.delete(segment);
+			}
+			if (current.path != null) {
+				deleteSnapshot(current.path);
+			}
+			log.info("SharedTokenFileStore: compacted {} values into {} with {} values in {} ms", entries.size(),
+					next.path.getFileName(), next.count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Writes the next snapshot: the records of the current one merged with new values.
+	 *
+	 * @param current the current snapshot
+	 * @param entries the new values, keyed by principal name
+	 * @return path of the new snapshot
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	private Path writeSnapshot(Snapshot current, Map<String, String> entries) throws IOException {
+		// the new values as records, sorted by key
+		byte[][] records = new byte[entries.size()][];
+		int n = 0;
+		State state = STATE.get();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			byte[] record = new byte[RECORD_LENGTH];
+			state.hash(entry.getKey());
+			System.arraycopy(state.hash, 0, record, 0, KEY_LENGTH);
+			if (!SharedTokenCodec.decode(entry.getValue(), record, KEY_LENGTH)) {
+				throw new IOException("SharedToken of uid " + entry.getKey() + " is not in canonical form");
+			}
+			records[n++] = record;
+		}
+		Arrays.sort(records, (a, b) -> compareKeys(key(a, 0), key(a, 8), key(b, 0), key(b, 8)));
+
+		long generation = current.generation + 1;
+		Path temporary = temporaryPath(generation);
+		long count = 0;
+		try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocate(RECORD_LENGTH * 4096);
+			out.position(HEADER_LENGTH);
+			long i = 0;
+			int j = 0;
+			byte[] old = new byte[RECORD_LENGTH];
+			while (i < current.count || j < records.length) {
+				int order;
+				if (i == current.count) {
+					order = 1;
+				} else if (j == records.length) {
+					order = -1;
+				} else {
+					order = compareKeys(current.hi(i), current.lo(i), key(records[j], 0), key(records[j], 8));
+				}
+				if (order <= 0) {
+					current.read(i++, old);
+					buf.put(old);
+					if (order == 0) {
+						// already in the snapshot, journalled again after an interrupted compaction
+						j++;
+					}
+				} else {
+					buf.put(records[j++]);
+				}
+				count++;
+				if (!buf.hasRemaining()) {
+					write(out, buf);
+				}
+			}
+			write(out, buf);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putLong(MAGIC).putLong(count).putLong(generation).flip();
+			out.write(header, 0);
+			out.force(true);
+		}
+		if ((long) HEADER_LENGTH + count * RECORD_LENGTH > Integer.MAX_VALUE) {
+			Files.deleteIfExists(temporary);
+			throw new IOException("Snapshot of " + count + " values is too large to be mapped");
+		}
+		Path path = directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, generation, SNAPSHOT_SUFFIX));
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+		// the rename must be on disk before the journal segments it replaces are deleted
+		forceDirectory();
+		return path;
+	}
+
+	/**
+	 * Forces the directory to disk, so that a snapshot renamed in it
+	 * survives a crash.
+	 *
+	 * @throws IOException if the directory cannot be forced
+	 */
+	private void forceDirectory() throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			// some platforms, such as Windows, cannot open a directory, and commit its entries with the file
+			log.debug("SharedTokenFileStore: cannot open {} to force it to disk: {}", directory, e.getMessage());
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes out a buffer and clears it.
+	 *
+	 * @param out the channel to write to
+	 * @param buf the buffer
+	 * @throws IOException if the buffer cannot be written
+	 */
+	private static void write(FileChannel out, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * @return the snapshot files in the directory, oldest first
+	 * @throws IOException if the directory cannot be listed
+	 */
+	private List<Path> listSnapshots() throws IOException {
+		List<Path> snapshots = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+			for (Path file : files) {
+				snapshots.add(file);
+			}
+		}
+		// zero-padded generations sort in creation order
+		Collections.sort(snapshots);
+		return snapshots;
+	}
+
+	/**
+	 * Deletes a snapshot no longer used.  A snapshot still mapped may not be
+	 * deletable on some platforms; it is then deleted at the next start.
+	 *
+	 * @param path the snapshot
+	 */
+	private void deleteSnapshot(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.debug("SharedTokenFileStore: could not delete old snapshot {} yet", path, e);
+		}
+	}
+
+	/**
+	 * @param generation generation of a snapshot
+	 * @return path the snapshot is written to before it is complete
+	 */
+	private Path temporaryPath(long generation) {
+		return directory.resolve(String.format("%s%016d%s.tmp", SNAPSHOT_PREFIX, generation, SNAPSHOT_SUFFIX));
+	}
+
+	/**
+	 * @param bytes an array
+	 * @param offset offset of 8 bytes in the array
+	 * @return the bytes as a big-endian long
+	 */
+	private static long key(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = value << 8 | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Compares keys as unsigned 128 bit numbers, the order of the records.
+	 *
+	 * @param hi1 high 8 bytes of the first key
+	 * @param lo1 low 8 bytes of the first key
+	 * @param hi2 high 8 bytes of the second key
+	 * @param lo2 low 8 bytes of the second key
+	 * @return negative, zero or positive as the first key is less than, equal to or greater than the second
+	 */
+	private static int compareKeys(long hi1, long lo1, long hi2, long lo2) {
+		int order = Long.compareUnsigned(hi1, hi2);
+		return order != 0 ? order : Long.compareUnsigned(lo1, lo2);
+	}
+
+	/** A mapped snapshot file. */
+	private static final class Snapshot {
+
+		/** Snapshot of a store that has none yet. */
+		private static final Snapshot EMPTY = new Snapshot(null, null, 0, 0);
+
+		/** The snapshot file, null for the empty snapshot. */
+		private final Path path;
+
+		/** The mapped file, null for the empty snapshot. */
+		private final MappedByteBuffer buffer;
+
+		/** Number of records. */
+		private final long count;
+
+		/** Generation of the snapshot, increasing with each compaction. */
+		private final long generation;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param path the snapshot file
+		 * @param buffer the mapped file
+		 * @param count number of records
+		 * @param generation generation of the snapshot
+		 */
+		private Snapshot(Path path, MappedByteBuffer buffer, long count, long generation) {
+			this.path = path;
+			this.buffer = buffer;
+			this.count = count;
+			this.generation = generation;
+		}
+
+		/**
+		 * Maps a snapshot file.  Only the header is read.
+		 *
+		 * @param path the snapshot file
+		 * @return the snapshot
+		 * @throws IOException if the file cannot be mapped or is not a valid snapshot
+		 */
+		private static Snapshot map(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+					throw new IOException("Snapshot " + path + " has invalid size " + size);
+				}
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				long count = buffer.getLong(8);
+				if (buffer.getLong(0) != MAGIC || size != HEADER_LENGTH + count * RECORD_LENGTH) {
+					throw new IOException("Snapshot " + path + " is corrupt");
+				}
+				return new Snapshot(path, buffer, count, buffer.getLong(16));
+			}
+		}
+
+		/**
+		 * Looks up the sharedToken of a principal.
+		 *
+		 * @param uid the principal name
+		 * @return the sharedToken, or null if the snapshot has none
+		 */
+		private String get(String uid) {
+			if (count == 0) {
+				return null;
+			}
+			State state = STATE.get();
+			state.hash(uid);
+			long hi = key(state.hash, 0);
+			long lo = key(state.hash, 8);
+			long low = 0;
+			long high = count - 1;
+			while (low <= high) {
+				long mid = (low + high) >>> 1;
+				int order = compareKeys(hi(mid), lo(mid), hi, lo);
+				if (order < 0) {
+					low = mid + 1;
+				} else if (order > 0) {
+					high = mid - 1;
+				} else {
+					int offset = offset(mid) + KEY_LENGTH;
+					for (int i = 0; i < SharedTokenCodec.RAW_LENGTH; i++) {
+						state.raw[i] = buffer.get(offset + i);
+					}
+					return SharedTokenCodec.encode(state.raw, 0);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @param record index of a record
+		 * @return high 8 bytes of the key of the record
+		 */
+		private long hi(long record) {
+			return buffer.getLong(offset(record));
+		}
+
+		/**
+		 * @param record index of a record
+		 * @return low 8 bytes of the key of the record
+		 */
+		private long lo(long record) {
+			return buffer.getLong(offset(record) + 8);
+		}
+
+		/**
+		 * Copies a record.
+		 *
+		 * @param record index of the record
+		 * @param bytes array to copy the record to
+		 */
+		private void read(long record, byte[] bytes) {
+			int offset = offset(record);
+			for (int i = 0; i < RECORD_LENGTH; i++) {
+				bytes[i] = buffer.get(offset + i);
+			}
+		}
+
+		/**
+		 * @param record index of a record
+		 * @return offset of the record in the file
+		 */
+		private static int offset(long record) {
+			return (int) (HEADER_LENGTH + record * RECORD_LENGTH);
+		}
+	}
+
+	/** Digest and buffers owned by one thread. */
+	private static final class State {
+
+		/** SHA-256 digest. */
+		private final MessageDigest digest;
+
+		/** Buffer receiving the hash. */
+		private final byte[] hash = new byte[32];
+
+		/** Buffer receiving a raw sharedToken. */
+		private final byte[] raw = new byte[SharedTokenCodec.RAW_LENGTH];
+
+		/** Buffer receiving the encoded principal name, grown as needed. */
+		private byte[] buffer = new byte[256];
+
+		/** Constructor. */
+		private State() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+
+		/**
+		 * Hashes the UTF-8 encoding of a principal name into {@link #hash}.
+		 *
+		 * @param uid the principal name
+		 */
+		private void hash(String uid) {
+			int length = uid.length();
+			if (length > buffer.length) {
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+			}
+			boolean ascii = true;
+			for (int i = 0; i < length && ascii; i++) {
+				char c = uid.charAt(i);
+				ascii = c < 0x80;
+				buffer[i] = (byte) c;
+			}
+			if (ascii) {
+				digest.update(buffer, 0, length);
+			} else {
+				digest.update(uid.getBytes(StandardCharsets.UTF_8));
+			}
+			try {
+				digest.digest(hash, 0, hash.length);
+			} catch (DigestException e) {
+				throw new IllegalStateException("SHA-256 digest failed", e);
+			}
+		}
+	}
+
+}
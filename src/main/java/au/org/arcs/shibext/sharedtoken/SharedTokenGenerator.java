@@ -0,0 +1,211 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes sharedToken values.
+ *
+ * The sharedToken is the SHA-1 hash of the UTF-8 encoding of the local ID,
+ * the IdP identifier and the salt (decoded with the platform charset),
+ * concatenated, encoded as URL-safe Base64 without padding.  This class does
+ * not depend on the IdP, so the same algorithm can be used by the command
+ * line tools.
+ *
+ * The encoded IdP identifier and salt are computed once per IdP identifier,
+ * and each thread reuses its own digest and buffers, so computing a value
+ * for an ASCII local ID only allocates the returned String.
+ */
+public class SharedTokenGenerator {
+
+	/** Maximum number of IdP identifiers whose encoded suffix is kept. */
+	private static final int MAX_CACHED_SUFFIXES = 64;
+
+	/** The salt, decoded with the platform charset as it always has been. */
+	private final String saltString;
+
+	/** IdP identifier whose suffix was computed at construction, may be null. */
+	private final String defaultIdpIdentifier;
+
+	/** UTF-8 encoding of the default IdP identifier and salt. */
+	private final byte[] defaultSuffix;
+
+	/** UTF-8 encoding of other IdP identifiers and the salt, keyed by IdP identifier. */
+	private final ConcurrentMap<String, byte[]> suffixes = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Per-thread digest and buffers.  Held by the instance rather than in a
+	 * static field, so that the threads of a container do not keep them, and
+	 * the webapp classloader, once the generator is discarded on reload.
+	 */
+	private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param salt salt used when computing the sharedToken
+	 */
+	public SharedTokenGenerator(byte[] salt) {
+		this(salt, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param salt salt used when computing the sharedToken
+	 * @param idpIdentifier IdP identifier normally used, whose encoding is precomputed; may be null
+	 */
+	public SharedTokenGenerator(byte[] salt, String idpIdentifier) {
+		if (salt == null) {
+			throw new IllegalArgumentException("Salt must not be null");
+		}
+		saltString = new String(salt);
+		defaultIdpIdentifier = idpIdentifier;
+		defaultSuffix = idpIdentifier != null ? encodeSuffix(idpIdentifier) : null;
+	}
+
+	/**
+	 * Creates the sharedToken for a local ID.
+	 *
+	 * @param localId
+	 *            principal the sharedToken represents, might be a combination
+	 *            of attributes, e.g. uid+mail.
+	 * @param idpIdentifier
+	 *            IdP identifier, normally the IdP entityID
+	 *
+	 * @return the created sharedToken
+	 */
+	public String generate(String localId, String idpIdentifier) {
+		// a null identifier has always been hashed as the string "null"
+		idpIdentifier = String.valueOf(idpIdentifier);
+		if (splitsSurrogatePair(localId, idpIdentifier)) {
+			// encoding the parts separately would not match encoding the whole
+			return generateSlow(localId, idpIdentifier);
+		}
+		State s = state.get();
+		s.updateUtf8(localId);
+		s.digest.update(getSuffix(idpIdentifier));
+		try {
+			s.digest.digest(s.hash, 0, SharedTokenCodec.RAW_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException("SHA-1 digest failed", e);
+		}
+		return SharedTokenCodec.encode(s.hash, 0);
+	}
+
+	/**
+	 * Creates the sharedToken by encoding the concatenated input as a whole.
+	 *
+	 * @param localId the local ID
+	 * @param idpIdentifier the IdP identifier
+	 * @return the created sharedToken
+	 */
+	private String generateSlow(String localId, String idpIdentifier) {
+		String globalUniqueID = localId + idpIdentifier + saltString;
+		byte[] hash = state.get().digest.digest(globalUniqueID.getBytes(StandardCharsets.UTF_8));
+		return SharedTokenCodec.encode(hash, 0);
+	}
+
+	/**
+	 * Gets the UTF-8 encoding of an IdP identifier followed by the salt.
+	 *
+	 * @param idpIdentifier the IdP identifier
+	 * @return the encoded suffix
+	 */
+	private byte[] getSuffix(String idpIdentifier) {
+		if (defaultSuffix != null && defaultIdpIdentifier.equals(idpIdentifier)) {
+			return defaultSuffix;
+		}
+		byte[] suffix = suffixes.get(idpIdentifier);
+		if (suffix == null) {
+			suffix = encodeSuffix(idpIdentifier);
+			if (suffixes.size() < MAX_CACHED_SUFFIXES) {
+				suffixes.putIfAbsent(idpIdentifier, suffix);
+			}
+		}
+		return suffix;
+	}
+
+	/**
+	 * @param idpIdentifier the IdP identifier
+	 * @return the UTF-8 encoding of the IdP identifier followed by the salt
+	 */
+	private byte[] encodeSuffix(String idpIdentifier) {
+		return (idpIdentifier + saltString).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Checks whether concatenating the local ID, IdP identifier and salt
+	 * would join a surrogate pair across a boundary, in which case the UTF-8
+	 * encoding of the whole differs from the encodings of the parts.
+	 *
+	 * @param localId the local ID
+	 * @param idpIdentifier the IdP identifier
+	 * @return true if a surrogate pair would be joined
+	 */
+	private boolean splitsSurrogatePair(String localId, String idpIdentifier) {
+		String idp = idpIdentifier;
+		String left = localId;
+		String right = idp.isEmpty() ? saltString : idp;
+		if (!left.isEmpty() && !right.isEmpty() && Character.isHighSurrogate(left.charAt(left.length() - 1))
+				&& Character.isLowSurrogate(right.charAt(0))) {
+			return true;
+		}
+		left = idp.isEmpty() ? localId : idp;
+		right = saltString;
+		return !left.isEmpty() && !right.isEmpty() && Character.isHighSurrogate(left.charAt(left.length() - 1))
+				&& Character.isLowSurrogate(right.charAt(0));
+	}
+
+	/** Digest and buffers owned by one thread. */
+	private static final class State {
+
+		/** SHA-1 digest. */
+		private final MessageDigest digest;
+
+		/** Buffer receiving the hash. */
+		private final byte[] hash = new byte[SharedTokenCodec.RAW_LENGTH];
+
+		/** Buffer receiving the encoded local ID, grown as needed. */
+		private byte[] buffer = new byte[256];
+
+		/** Constructor. */
+		private State() {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is not available", e);
+			}
+		}
+
+		/**
+		 * Feeds the UTF-8 encoding of a string to the digest.
+		 *
+		 * @param s the string
+		 */
+		private void updateUtf8(String s) {
+			int length = s.length();
+			if (length > buffer.length) {
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x80) {
+					// not ASCII, let the JDK encode it
+					digest.update(s.getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				buffer[i] = (byte) c;
+			}
+			digest.update(buffer, 0, length);
+		}
+	}
+
+}
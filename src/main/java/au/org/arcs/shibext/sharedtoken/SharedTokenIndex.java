@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Compact in-memory index of sharedToken values for a whole population of
+ * principals.
+ *
+ * Rather than holding each entry as a pair of Strings (some 150 bytes on
+ * the heap), the index keeps a 32 byte slot per entry in an open-addressing
+ * hash table outside the heap: a 64 bit hash of the principal name, an
+ * independent 32 bit hash to verify it, and the 20 raw bytes of the
+ * sharedToken.  Values are encoded again only when returned.  The hashes
+ * are seeded at random per index, so the chance of two principals sharing
+ * both is about n^2 / 2^97 for n principals.
+ *
+ * Values not in canonical form (see {@link SharedTokenCodec}) are kept in
+ * an ordinary map.  Lookups do not block on each other, and only allocate
+ * the returned String.  The table takes direct memory, limited by
+ * -XX:MaxDirectMemorySize, of 32 bytes per slot at up to 3/4 full.
+ */
+public class SharedTokenIndex {
+
+	/** Length of a slot: hash, check, raw sharedToken. */
+	private static final int SLOT_LENGTH = 32;
+
+	/** Offset of the check in a slot. */
+	private static final int CHECK_OFFSET = 8;
+
+	/** Offset of the raw sharedToken in a slot. */
+	private static final int TOKEN_OFFSET = 12;
+
+	/** Number of slots of an empty index. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Largest number of slots, keeping the table within a direct buffer: room for some 25 million principals. */
+	private static final int MAX_CAPACITY = 1 << 25;
+
+	/** Per-thread buffer receiving a raw sharedToken. */
+	private static final ThreadLocal<byte[]> RAW = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SharedTokenCodec.RAW_LENGTH];
+		}
+	};
+
+	/** Seed of the hash locating a principal. */
+	private final long hashSeed;
+
+	/** Seed of the hash verifying a principal. */
+	private final long checkSeed;
+
+	/** Guards the table: lookups read optimistically, inserts lock it. */
+	private final StampedLock lock = new StampedLock();
+
+	/** Values that are not in canonical form, keyed by principal name. */
+	private final ConcurrentMap<String, String> others = new ConcurrentHashMap<String, String>();
+
+	/** The slots, a power of 2 of them. */
+	private ByteBuffer table;
+
+	/** Number of slots in use. */
+	private int size;
+
+	/** Constructor. */
+	public SharedTokenIndex() {
+		SecureRandom random = new SecureRandom();
+		hashSeed = random.nextLong();
+		checkSeed = random.nextLong();
+		table = ByteBuffer.allocateDirect(INITIAL_CAPACITY * SLOT_LENGTH);
+	}
+
+	/**
+	 * Looks up the sharedToken of a principal.
+	 *
+	 * @param uid the principal name
+	 * @return the sharedToken, or null if the index has none
+	 */
+	public String get(String uid) {
+		long hash = hash(uid, hashSeed);
+		int check = check(uid);
+		byte[] raw = RAW.get();
+
+		long stamp = lock.tryOptimisticRead();
+		boolean found = find(table, hash, check, raw);
+		if (!lock.validate(stamp)) {
+			// an insert ran meanwhile, read again holding the lock
+			stamp = lock.readLock();
+			try {
+				found = find(table, hash, check, raw);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		if (found) {
+			return SharedTokenCodec.encode(raw, 0);
+		}
+		return others.isEmpty() ? null : others.get(uid);
+	}
+
+	/**
+	 * Adds or replaces the sharedToken of a principal.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken
+	 */
+	public void put(String uid, String sharedToken) {
+		byte[] raw = RAW.get();
+		if (!SharedTokenCodec.decode(sharedToken, raw, 0)) {
+			others.put(uid, sharedToken);
+			return;
+		}
+		long hash = hash(uid, hashSeed);
+		int check = check(uid);
+
+		long stamp = lock.writeLock();
+		try {
+			int offset = probe(table, hash, check) * SLOT_LENGTH;
+			if (table.getInt(offset + CHECK_OFFSET) == 0) {
+				if (size + 1 > table.capacity() / SLOT_LENGTH / 4 * 3) {
+					resize();
+					offset = probe(table, hash, check) * SLOT_LENGTH;
+				}
+				size++;
+			}
+			table.putLong(offset, hash);
+			table.putInt(offset + CHECK_OFFSET, check);
+			for (int i = 0; i < SharedTokenCodec.RAW_LENGTH; i++) {
+				table.put(offset + TOKEN_OFFSET + i, raw[i]);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return number of principals in the index
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size + others.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return number of bytes of direct memory taken by the table
+	 */
+	public long getTableBytes() {
+		long stamp = lock.readLock();
+		try {
+			return (long) table.capacity();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Doubles the number of slots.  Must be called holding the write lock.
+	 */
+	private void resize() {
+		int capacity = table.capacity() / SLOT_LENGTH * 2;
+		if (capacity > MAX_CAPACITY) {
+			throw new IllegalStateException("SharedToken index is full");
+		}
+		ByteBuffer bigger = ByteBuffer.allocateDirect(capacity * SLOT_LENGTH);
+		for (int offset = 0; offset < table.capacity(); offset += SLOT_LENGTH) {
+			int check = table.getInt(offset + CHECK_OFFSET);
+			if (check != 0) {
+				long hash = table.getLong(offset);
+				int to = probe(bigger, hash, check) * SLOT_LENGTH;
+				for (int i = 0; i < SLOT_LENGTH; i += 4) {
+					bigger.putInt(to + i, table.getInt(offset + i));
+				}
+			}
+		}
+		table = bigger;
+	}
+
+	/**
+	 * Finds a principal and copies its raw sharedToken.  May read a table
+	 * being written to, as long as the caller validates the read afterwards.
+	 *
+	 * @param table the slots
+	 * @param hash hash of the principal name
+	 * @param check check of the principal name
+	 * @param raw array receiving the raw sharedToken
+	 * @return whether the principal was found
+	 */
+	private static boolean find(ByteBuffer table, long hash, int check, byte[] raw) {
+		// the table is read once, so the mask always matches it
+		int mask = table.capacity() / SLOT_LENGTH - 1;
+		int slot = (int) hash & mask;
+		for (int probes = 0; probes <= mask; probes++) {
+			int offset = slot * SLOT_LENGTH;
+			int slotCheck = table.getInt(offset + CHECK_OFFSET);
+			if (slotCheck == 0) {
+				return false;
+			}
+			if (slotCheck == check && table.getLong(offset) == hash) {
+				for (int i = 0; i < SharedTokenCodec.RAW_LENGTH; i++) {
+					raw[i] = table.get(offset + TOKEN_OFFSET + i);
+				}
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @param table the slots, with at least one free
+	 * @param hash hash of a principal name
+	 * @param check check of the principal name
+	 * @return the slot holding the principal, or the free slot it would go in
+	 */
+	private static int probe(ByteBuffer table, long hash, int check) {
+		int mask = table.capacity() / SLOT_LENGTH - 1;
+		int slot = (int) hash & mask;
+		while (true) {
+			int offset = slot * SLOT_LENGTH;
+			int slotCheck = table.getInt(offset + CHECK_OFFSET);
+			if (slotCheck == 0 || (slotCheck == check && table.getLong(offset) == hash)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param uid a principal name
+	 * @return the check of the principal name, never 0, which marks a free slot
+	 */
+	private int check(String uid) {
+		int check = (int) (hash(uid, checkSeed) >>> 32);
+		return check != 0 ? check : 1;
+	}
+
+	/**
+	 * Seeded 64 bit hash of a string: FNV-1a over its chars, then the
+	 * MurmurHash3 finalizer to spread the bits.  Also used by the command
+	 * line tools to hold many principal names compactly.
+	 *
+	 * @param s the string
+	 * @param seed the seed
+	 * @return the hash
+	 */
+	public static long hash(String s, long seed) {
+		long h = seed ^ 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,418 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SharedTokenMetrics} kept in memory and published as platform MXBeans.
+ *
+ * One MXBean is registered under
+ * {@code au.org.arcs.shibext:type=SharedTokenDataConnector,name=<connector ID>}
+ * with the cache and error counts, and one per stage, with {@code stage=<stage>}
+ * added, with the count, mean, percentiles and maximum of its latency in
+ * milliseconds.  Values are cumulative since the connector was initialized.
+ * A connector storing values in several databases also registers the health
+ * of each shard, with {@code store=shards} added, and one reading from
+ * replicas the health of each replica and the number of lookups answered by
+ * replicas, the primary and hedged, with {@code store=replicas} added.
+ * A connector preloading tb_st registers the state and hit counts of its
+ * index with {@code store=preload} added.
+ * The circuit breaker state and counts of each guarded backend are
+ * registered with {@code backend=database} or {@code backend=ldap} added.
+ */
+public class SharedTokenJmxMetrics implements SharedTokenMetrics {
+
+	/** Domain of the MXBean names. */
+	public static final String DOMAIN = "au.org.arcs.shibext";
+
+	/** Which metrics registered each MXBean, so a reloaded connector does not unregister its replacement. */
+	private static final ConcurrentMap<ObjectName, SharedTokenJmxMetrics> OWNERS =
+			new ConcurrentHashMap<ObjectName, SharedTokenJmxMetrics>();
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenJmxMetrics.class);
+
+	/** Latency of each stage. */
+	private final Map<Stage, SharedTokenLatencyHistogram> latencies =
+			new EnumMap<Stage, SharedTokenLatencyHistogram>(Stage.class);
+
+	/** Number of values found in the cache. */
+	private final LongAdder cacheHits = new LongAdder();
+
+	/** Number of values not found in the cache. */
+	private final LongAdder cacheMisses = new LongAdder();
+
+	/** Number of errors, keyed by stage and error type. */
+	private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Names of the MXBeans registered. */
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/** Name of the connector MXBean, the base of the other names; null until registered. */
+	private String baseName;
+
+	/**
+	 * Constructor.
+	 */
+	public SharedTokenJmxMetrics() {
+		for (Stage stage : Stage.values()) {
+			latencies.put(stage, new SharedTokenLatencyHistogram());
+		}
+	}
+
+	/**
+	 * Registers the MXBeans.  MXBeans left registered by a previous instance
+	 * of the connector are replaced.
+	 *
+	 * @param connectorId ID of the connector
+	 * @throws JMException if the MXBeans cannot be registered
+	 */
+	public synchronized void register(String connectorId) throws JMException {
+		baseName = DOMAIN + ":type=SharedTokenDataConnector,name=" + ObjectName.quote(connectorId);
+		register(new ObjectName(baseName), new ConnectorView());
+		for (Stage stage : Stage.values()) {
+			register(new ObjectName(baseName + ",stage=" + stage.metricName()), new StageView(latencies.get(stage)));
+		}
+	}
+
+	/**
+	 * Registers the MXBean of the health of the shards of a store.  Must be
+	 * called after {@link #register(String)}.
+	 *
+	 * @param store the store
+	 * @throws JMException if the MXBean cannot be registered
+	 */
+	public synchronized void registerShards(ShardedSharedTokenStore store) throws JMException {
+		if (baseName == null) {
+			throw new IllegalStateException("the connector MXBeans are not registered");
+		}
+		ShardedSharedTokenStore.SharedTokenShardsMXBean view = store::getShardHealth;
+		register(new ObjectName(baseName + ",store=shards"), view);
+	}
+
+	/**
+	 * Registers the MXBean of the replicas of a store.  Must be called after
+	 * {@link #register(String)}.
+	 *
+	 * @param store the store
+	 * @throws JMException if the MXBean cannot be registered
+	 */
+	public synchronized void registerReplicas(final ReplicatedSharedTokenStore store) throws JMException {
+		if (baseName == null) {
+			throw new IllegalStateException("the connector MXBeans are not registered");
+		}
+		ReplicatedSharedTokenStore.SharedTokenReplicasMXBean view = new ReplicatedSharedTokenStore.SharedTokenReplicasMXBean() {
+			@Override
+			public List<SharedTokenShardHealth> getReplicas() {
+				return store.getReplicaHealth();
+			}
+
+			@Override
+			public long getReplicaReads() {
+				return store.getReplicaReads();
+			}
+
+			@Override
+			public long getPrimaryReads() {
+				return store.getPrimaryReads();
+			}
+
+			@Override
+			public long getHedgedReads() {
+				return store.getHedgedReads();
+			}
+
+			@Override
+			public double getHedgeDelayMillis() {
+				return store.getHedgeDelayNanos() / 1000000.0;
+			}
+		};
+		register(new ObjectName(baseName + ",store=replicas"), view);
+	}
+
+	/**
+	 * Registers the MXBean of the index of a preloaded store.  Must be called
+	 * after {@link #register(String)}.
+	 *
+	 * @param store the store
+	 * @throws JMException if the MXBean cannot be registered
+	 */
+	public synchronized void registerPreload(final PreloadedSharedTokenStore store) throws JMException {
+		if (baseName == null) {
+			throw new IllegalStateException("the connector MXBeans are not registered");
+		}
+		PreloadedSharedTokenStore.SharedTokenPreloadMXBean view = new PreloadedSharedTokenStore.SharedTokenPreloadMXBean() {
+			@Override
+			public boolean isReady() {
+				return store.isReady();
+			}
+
+			@Override
+			public int getSize() {
+				return store.getSize();
+			}
+
+			@Override
+			public long getIndexBytes() {
+				return store.getIndexBytes();
+			}
+
+			@Override
+			public long getHits() {
+				return store.getHits();
+			}
+
+			@Override
+			public long getMisses() {
+				return store.getMisses();
+			}
+		};
+		register(new ObjectName(baseName + ",store=preload"), view);
+	}
+
+	/**
+	 * Registers the MXBean of the guard of a backend.  Must be called after
+	 * {@link #register(String)}.
+	 *
+	 * @param backend the backend: database or ldap
+	 * @param guard the guard
+	 * @throws JMException if the MXBean cannot be registered
+	 */
+	public synchronized void registerBackend(String backend, final SharedTokenBackendGuard guard)
+			throws JMException {
+		if (baseName == null) {
+			throw new IllegalStateException("the connector MXBeans are not registered");
+		}
+		SharedTokenBackendGuard.SharedTokenBackendMXBean view = new SharedTokenBackendGuard.SharedTokenBackendMXBean() {
+			@Override
+			public String getState() {
+				return guard.getState().name();
+			}
+
+			@Override
+			public long getCalls() {
+				return guard.getCalls();
+			}
+
+			@Override
+			public long getFailures() {
+				return guard.getFailures();
+			}
+
+			@Override
+			public long getTimeouts() {
+				return guard.getTimeouts();
+			}
+
+			@Override
+			public long getRejections() {
+				return guard.getRejections();
+			}
+
+			@Override
+			public int getActiveOperations() {
+				return guard.getActiveOperations();
+			}
+		};
+		register(new ObjectName(baseName + ",backend=" + backend), view);
+	}
+
+	/**
+	 * Registers an MXBean.
+	 *
+	 * @param name the name
+	 * @param mxBean the MXBean
+	 * @throws JMException if the MXBean cannot be registered
+	 */
+	private void register(ObjectName name, Object mxBean) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name)) {
+			log.debug("SharedTokenJmxMetrics: replacing MXBean {}", name);
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(mxBean, name);
+		OWNERS.put(name, this);
+		registered.add(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void recordLatency(Stage stage, long nanos) {
+		latencies.get(stage).record(nanos);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void recordCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).increment();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void recordError(Stage stage, Throwable error) {
+		errors.computeIfAbsent(stage.metricName() + "." + SharedTokenMetrics.errorType(error),
+				k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Unregisters the MXBeans this instance registered and that have not been
+	 * replaced since.
+	 */
+	@Override
+	public synchronized void close() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			if (OWNERS.remove(name, this)) {
+				try {
+					server.unregisterMBean(name);
+				} catch (JMException e) {
+					log.debug("SharedTokenJmxMetrics: failed to unregister MXBean {}", name, e);
+				}
+			}
+		}
+		registered.clear();
+	}
+
+	/** Cache and error counts of a connector. */
+	public interface SharedTokenConnectorMXBean {
+
+		/** @return the number of values found in the cache */
+		long getCacheHits();
+
+		/** @return the number of values not found in the cache */
+		long getCacheMisses();
+
+		/** @return the number of errors, keyed by stage and error type */
+		Map<String, Long> getErrors();
+	}
+
+	/** Latency of a stage. */
+	public interface SharedTokenStageMXBean {
+
+		/** @return the number of times the stage completed */
+		long getCount();
+
+		/** @return the mean latency, in milliseconds */
+		double getMeanMillis();
+
+		/** @return the median latency, in milliseconds */
+		double get50thPercentileMillis();
+
+		/** @return the 95th percentile latency, in milliseconds */
+		double get95thPercentileMillis();
+
+		/** @return the 99th percentile latency, in milliseconds */
+		double get99thPercentileMillis();
+
+		/** @return the 99.9th percentile latency, in milliseconds */
+		double get999thPercentileMillis();
+
+		/** @return the largest latency, in milliseconds */
+		double getMaxMillis();
+	}
+
+	/** MXBean view of the cache and error counts. */
+	private final class ConnectorView implements SharedTokenConnectorMXBean {
+
+		/** {@inheritDoc} */
+		@Override
+		public long getCacheHits() {
+			return cacheHits.sum();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public long getCacheMisses() {
+			return cacheMisses.sum();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Map<String, Long> getErrors() {
+			Map<String, Long> counts = new TreeMap<String, Long>();
+			for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+				counts.put(entry.getKey(), entry.getValue().sum());
+			}
+			return counts;
+		}
+	}
+
+	/** MXBean view of the latency of a stage. */
+	private static final class StageView implements SharedTokenStageMXBean {
+
+		/** Nanoseconds per millisecond. */
+		private static final double NANOS_PER_MILLI = 1000000.0;
+
+		/** The latency histogram. */
+		private final SharedTokenLatencyHistogram histogram;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param histogram the latency histogram
+		 */
+		private StageView(SharedTokenLatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double getMeanMillis() {
+			return histogram.getMean() / NANOS_PER_MILLI;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double get50thPercentileMillis() {
+			return histogram.getPercentile(50) / NANOS_PER_MILLI;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double get95thPercentileMillis() {
+			return histogram.getPercentile(95) / NANOS_PER_MILLI;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double get99thPercentileMillis() {
+			return histogram.getPercentile(99) / NANOS_PER_MILLI;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double get999thPercentileMillis() {
+			return histogram.getPercentile(99.9) / NANOS_PER_MILLI;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double getMaxMillis() {
+			return histogram.getMax() / NANOS_PER_MILLI;
+		}
+	}
+
+}
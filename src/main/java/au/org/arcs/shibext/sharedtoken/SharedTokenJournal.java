@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, append-only local journal of sharedToken values not yet written
+ * to the store.
+ *
+ * Entries are appended to the active segment file and forced to disk before
+ * {@link #append(String, String)} returns.  {@link #roll()} closes the active
+ * segment so that it can be read and, once its entries are stored, deleted.
+ * Each entry carries a CRC, so an entry torn by a crash is detected and
+ * ignored together with anything after it in the same segment.  The
+ * directory is forced to disk too after a segment is created or deleted, so
+ * a crash cannot lose the entry of a segment holding forced entries.
+ */
+public class SharedTokenJournal implements Closeable {
+
+	/** Prefix of segment file names. */
+	private static final String SEGMENT_PREFIX = "sharedtoken-";
+
+	/** Suffix of segment file names. */
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenJournal.class);
+
+	/** Directory holding the segment files. */
+	private final Path directory;
+
+	/** Closed segments not yet deleted, oldest first. */
+	private final List<Path> closedSegments = new ArrayList<Path>();
+
+	/** The segment currently appended to, null if none is open. */
+	private FileChannel activeChannel;
+
+	/** Path of the segment currently appended to. */
+	private Path activeSegment;
+
+	/** Sequence number of the next segment to create. */
+	private long nextSequence;
+
+	/**
+	 * Constructor.  Any segments left in the directory by a previous run are
+	 * treated as closed segments still to be stored.
+	 *
+	 * @param directory directory holding the segment files, created if missing
+	 * @throws IOException if the directory cannot be created or listed
+	 */
+	public SharedTokenJournal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path segment : segments) {
+				closedSegments.add(segment);
+			}
+		}
+		// zero-padded sequence numbers sort in creation order
+		Collections.sort(closedSegments);
+		nextSequence = closedSegments.isEmpty() ? 1 : sequenceOf(closedSegments.get(closedSegments.size() - 1)) + 1;
+		if (!closedSegments.isEmpty()) {
+			log.info("SharedTokenJournal: found {} segments to replay in {}", closedSegments.size(), directory);
+		}
+	}
+
+	/**
+	 * Durably appends an entry.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken value
+	 * @throws IOException if the entry cannot be written and forced to disk
+	 */
+	public void append(String uid, String sharedToken) throws IOException {
+		appendAll(Collections.singletonMap(uid, sharedToken));
+	}
+
+	/**
+	 * Durably appends entries, forcing them to disk once.
+	 *
+	 * @param entries the sharedToken values keyed by principal name
+	 * @throws IOException if the entries cannot be written and forced to disk
+	 */
+	public synchronized void appendAll(Map<String, String> entries) throws IOException {
+		if (activeChannel == null) {
+			activeSegment = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+			activeChannel = FileChannel.open(activeSegment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			forceDirectory();
+		}
+		CRC32 crc = new CRC32();
+		for (Map.Entry<String, String> e : entries.entrySet()) {
+			byte[] uidBytes = e.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] tokenBytes = e.getValue().getBytes(StandardCharsets.UTF_8);
+			ByteBuffer payload = ByteBuffer.allocate(8 + uidBytes.length + tokenBytes.length);
+			payload.putInt(uidBytes.length).put(uidBytes).putInt(tokenBytes.length).put(tokenBytes);
+			crc.reset();
+			crc.update(payload.array());
+
+			ByteBuffer entry = ByteBuffer.allocate(8 + payload.capacity());
+			entry.putInt(payload.capacity()).putInt((int) crc.getValue()).put(payload.array());
+			entry.flip();
+			while (entry.hasRemaining()) {
+				activeChannel.write(entry);
+			}
+		}
+		activeChannel.force(false);
+	}
+
+	/**
+	 * Closes the active segment, if any, and returns all closed segments.
+	 *
+	 * @return the closed segments, oldest first
+	 * @throws IOException if the active segment cannot be closed
+	 */
+	public synchronized List<Path> roll() throws IOException {
+		if (activeChannel != null) {
+			activeChannel.close();
+			activeChannel = null;
+			closedSegments.add(activeSegment);
+			activeSegment = null;
+		}
+		return new ArrayList<Path>(closedSegments);
+	}
+
+	/**
+	 * Deletes a closed segment whose entries have all been stored.
+	 *
+	 * @param segment the segment
+	 * @throws IOException if the segment cannot be deleted
+	 */
+	public synchronized void delete(Path segment) throws IOException {
+		Files.deleteIfExists(segment);
+		closedSegments.remove(segment);
+		forceDirectory();
+	}
+
+	/**
+	 * Forces the directory to disk, so that segments created or deleted in it
+	 * survive a crash.
+	 *
+	 * @throws IOException if the directory cannot be forced
+	 */
+	private void forceDirectory() throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			// some platforms, such as Windows, cannot open a directory, and commit its entries with the file
+			log.debug("SharedTokenJournal: cannot open {} to force it to disk: {}", directory, e.getMessage());
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the entries of a closed segment.  Reading stops at the first
+	 * incomplete or corrupt entry.
+	 *
+	 * @param segment the segment
+	 * @param entries map to add the entries to, keyed by principal name
+	 * @throws IOException if the segment cannot be read
+	 */
+	public void read(Path segment, Map<String, String> entries) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(segment));
+		CRC32 crc = new CRC32();
+		while (buf.remaining() >= 8) {
+			int length = buf.getInt();
+			int checksum = buf.getInt();
+			if (length < 8 || length > buf.remaining()) {
+				log.warn("SharedTokenJournal: ignoring incomplete entry at the end of {}", segment);
+				return;
+			}
+			crc.reset();
+			crc.update(buf.array(), buf.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				log.warn("SharedTokenJournal: ignoring corrupt entry and the rest of {}", segment);
+				return;
+			}
+			String uid = readString(buf);
+			String sharedToken = readString(buf);
+			entries.put(uid, sharedToken);
+		}
+	}
+
+	/**
+	 * @param buf buffer positioned at a length-prefixed UTF-8 string
+	 * @return the string
+	 */
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	/**
+	 * @param segment a segment file
+	 * @return the sequence number in the segment file name
+	 */
+	private static long sequenceOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public synchronized void close() throws IOException {
+		roll();
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies, in nanoseconds, since creation.
+ *
+ * Values are counted in logarithmic buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} linear sub-buckets, so a percentile is reported
+ * to within about 12% of the recorded value whatever its magnitude.
+ * Recording a value is a few bit operations and a {@link LongAdder}
+ * increment, so it can be done on every resolution.
+ */
+public class SharedTokenLatencyHistogram {
+
+	/** log2 of the number of sub-buckets per power of two. */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/** Number of sub-buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Number of buckets, covering all non-negative long values. */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	/** Count of values in each bucket. */
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+	/** Number of values recorded. */
+	private final LongAdder count = new LongAdder();
+
+	/** Sum of values recorded. */
+	private final LongAdder sum = new LongAdder();
+
+	/** Largest value recorded. */
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/** Constructor. */
+	public SharedTokenLatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param nanos the value, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		counts[bucketOf(value)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean of the values recorded, 0 if none were
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @return the largest value recorded, 0 if none were
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets a percentile of the values recorded.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, capped at
+	 *         the largest value recorded; 0 if no values were recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @param value a non-negative value
+	 * @return the bucket counting the value
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+		return (exponent + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @param bucket a bucket
+	 * @return the largest value counted in the bucket
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long lowerBound = (SUB_BUCKETS + subBucket) << exponent;
+		return lowerBound + (1L << exponent) - 1;
+	}
+
+}
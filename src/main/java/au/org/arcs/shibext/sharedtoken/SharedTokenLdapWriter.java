@@ -0,0 +1,243 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.time.Duration;
+
+import org.ldaptive.Connection;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.ModifyOperation;
+import org.ldaptive.ModifyRequest;
+import org.ldaptive.Response;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchResult;
+import org.ldaptive.pool.BlockingConnectionPool;
+import org.ldaptive.pool.PoolConfig;
+import org.ldaptive.pool.PooledConnectionFactory;
+import org.ldaptive.pool.SearchValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes sharedToken values to LDAP over a bounded pool of connections.
+ *
+ * The pool is created on first use from the connection factory of the LDAP
+ * data connector, as that connector is only known at resolution time.  If
+ * that factory is already pooled it is used as is.  Every connection taken
+ * for a write is returned to the pool (or closed) whether the write succeeds
+ * or not.
+ */
+public class SharedTokenLdapWriter {
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenLdapWriter.class);
+
+	/** Minimum number of pooled connections. */
+	private int minPoolSize = 0;
+
+	/** Maximum number of pooled connections. */
+	private int maxPoolSize = 5;
+
+	/** How long to wait for a free connection when the pool is exhausted. */
+	private Duration blockWaitTime = Duration.ofSeconds(5);
+
+	/** How often idle pooled connections are validated, null to not validate periodically. */
+	private Duration validatePeriod = Duration.ofMinutes(5);
+
+	/** Whether to validate a connection each time it is taken from the pool. */
+	private boolean validateOnCheckOut = false;
+
+	/** Connection factory used for writes, created on first use. */
+	private volatile ConnectionFactory writeFactory;
+
+	/** Pool created by this writer, null if none was created. */
+	private BlockingConnectionPool pool;
+
+	/**
+	 * Modifies an entry.
+	 *
+	 * @param connectorFactory the connection factory of the LDAP data connector
+	 * @param request the modification
+	 * @throws LdapException if the modification fails or no connection is available in time
+	 * @throws IMASTException if the directory does not report success
+	 */
+	public void modify(ConnectionFactory connectorFactory, ModifyRequest request)
+			throws LdapException, IMASTException {
+		ConnectionFactory factory = getWriteFactory(connectorFactory);
+		Connection conn = factory.getConnection();
+		try {
+			if (!conn.isOpen()) {
+				checkResponse(conn.open());
+			}
+			checkResponse(new ModifyOperation(conn).execute(request));
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Reads the first value of an attribute of an entry over a write
+	 * connection, to see a value another node just wrote to the same server.
+	 *
+	 * @param connectorFactory the connection factory of the LDAP data connector
+	 * @param dn the DN of the entry
+	 * @param attributeName the attribute to read
+	 * @return the first value, or null if the entry has none
+	 * @throws LdapException if the search fails or no connection is available in time
+	 * @throws IMASTException if the connection cannot be opened
+	 */
+	public String read(ConnectionFactory connectorFactory, String dn, String attributeName)
+			throws LdapException, IMASTException {
+		ConnectionFactory factory = getWriteFactory(connectorFactory);
+		Connection conn = factory.getConnection();
+		try {
+			if (!conn.isOpen()) {
+				checkResponse(conn.open());
+			}
+			Response<SearchResult> response = new SearchOperation(conn).execute(
+					SearchRequest.newObjectScopeSearchRequest(dn, new String[] { attributeName }));
+			LdapEntry entry = response.getResult().getEntry();
+			LdapAttribute attribute = entry != null ? entry.getAttribute(attributeName) : null;
+			return attribute != null ? attribute.getStringValue() : null;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Gets the connection factory to use for writes, creating the pool on first use.
+	 *
+	 * @param connectorFactory the connection factory of the LDAP data connector
+	 * @return the connection factory to use for writes
+	 */
+	private ConnectionFactory getWriteFactory(ConnectionFactory connectorFactory) {
+		ConnectionFactory factory = writeFactory;
+		if (factory == null) {
+			synchronized (this) {
+				factory = writeFactory;
+				if (factory == null) {
+					factory = createWriteFactory(connectorFactory);
+					writeFactory = factory;
+				}
+			}
+		}
+		return factory;
+	}
+
+	/**
+	 * Creates the connection factory to use for writes.
+	 *
+	 * @param connectorFactory the connection factory of the LDAP data connector
+	 * @return the connection factory to use for writes
+	 */
+	private ConnectionFactory createWriteFactory(ConnectionFactory connectorFactory) {
+		if (connectorFactory instanceof PooledConnectionFactory) {
+			log.debug("LDAP connector is already pooled, using its pool for writes");
+			return connectorFactory;
+		}
+		if (!(connectorFactory instanceof DefaultConnectionFactory)) {
+			log.warn("Cannot create a pool for LDAP connection factory of type {}, writes will not be pooled",
+					connectorFactory.getClass().getName());
+			return connectorFactory;
+		}
+
+		PoolConfig poolConfig = new PoolConfig();
+		poolConfig.setMinPoolSize(minPoolSize);
+		poolConfig.setMaxPoolSize(maxPoolSize);
+		poolConfig.setValidateOnCheckOut(validateOnCheckOut);
+		if (validatePeriod != null) {
+			poolConfig.setValidatePeriodically(true);
+			poolConfig.setValidatePeriod(validatePeriod);
+		}
+		pool = new BlockingConnectionPool(poolConfig, (DefaultConnectionFactory) connectorFactory);
+		pool.setName("sharedToken-ldap-write");
+		pool.setBlockWaitTime(blockWaitTime);
+		pool.setValidator(new SearchValidator());
+		pool.initialize();
+		log.info("Created LDAP write connection pool of {} to {} connections", minPoolSize, maxPoolSize);
+		return new PooledConnectionFactory(pool);
+	}
+
+	/**
+	 * Closes the pool, if one was created.
+	 */
+	public synchronized void close() {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		writeFactory = null;
+	}
+
+	/**
+	 * @param response an LDAP response
+	 * @throws IMASTException if the response is not SUCCESS
+	 */
+	private void checkResponse(Response<Void> response) throws IMASTException {
+		if (response.getResultCode() != ResultCode.SUCCESS)
+			throw new IMASTException("LDAP response was not SUCCESS but " + response.getResultCode().toString() + " " + response.getMessage());
+	}
+
+	/**
+	 * @param minPoolSize the minimum number of pooled connections
+	 */
+	public void setMinPoolSize(int minPoolSize) {
+		if (minPoolSize < 0) {
+			throw new IllegalArgumentException("Minimum pool size must not be negative");
+		}
+		this.minPoolSize = minPoolSize;
+	}
+
+	/**
+	 * @param maxPoolSize the maximum number of pooled connections
+	 */
+	public void setMaxPoolSize(int maxPoolSize) {
+		if (maxPoolSize <= 0) {
+			throw new IllegalArgumentException("Maximum pool size must be positive");
+		}
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	/**
+	 * @param blockWaitTime how long to wait for a free connection when the pool is exhausted
+	 */
+	public void setBlockWaitTime(Duration blockWaitTime) {
+		this.blockWaitTime = blockWaitTime;
+	}
+
+	/**
+	 * @param validatePeriod how often idle connections are validated, null to not validate periodically
+	 */
+	public void setValidatePeriod(Duration validatePeriod) {
+		this.validatePeriod = validatePeriod;
+	}
+
+	/**
+	 * @param validateOnCheckOut whether to validate a connection each time it is taken from the pool
+	 */
+	public void setValidateOnCheckOut(boolean validateOnCheckOut) {
+		this.validateOnCheckOut = validateOnCheckOut;
+	}
+
+	/**
+	 * @return the minimum number of pooled connections
+	 */
+	public int getMinPoolSize() {
+		return minPoolSize;
+	}
+
+	/**
+	 * @return the maximum number of pooled connections
+	 */
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.Locale;
+
+/**
+ * Records what the {@link SharedTokenDataConnector} does: the latency of each
+ * stage of a resolution, cache hits and misses, and errors by stage and
+ * exception type.
+ *
+ * Implementations are called on every resolution and must be cheap and
+ * thread safe.
+ */
+public interface SharedTokenMetrics {
+
+	/** Stages of a resolution. */
+	enum Stage {
+		/** Whole resolution, for a connector storing values in a database. */
+		RESOLVE_DATABASE,
+		/** Whole resolution, for a connector not storing values in a database. */
+		RESOLVE_LDAP,
+		/** Looking up the value in the database, finding it. */
+		DATABASE_READ,
+		/** Looking up the value in the database, and storing (or journalling) a new one. */
+		DATABASE_WRITE,
+		/** Computing a new value. */
+		GENERATE,
+		/** Searching LDAP for the entry to store a new value in. */
+		LDAP_SEARCH,
+		/** Storing a new value in LDAP. */
+		LDAP_MODIFY;
+
+		/** @return the name used for the stage in metric names */
+		public String metricName() {
+			return name().toLowerCase(Locale.ROOT).replace('_', '.');
+		}
+	}
+
+	/** Metrics that record nothing. */
+	SharedTokenMetrics NONE = new SharedTokenMetrics() {
+		@Override
+		public void recordLatency(Stage stage, long nanos) {
+		}
+
+		@Override
+		public void recordCacheLookup(boolean hit) {
+		}
+
+		@Override
+		public void recordError(Stage stage, Throwable error) {
+		}
+	};
+
+	/**
+	 * Records the completion of a stage.
+	 *
+	 * @param stage the stage
+	 * @param nanos how long the stage took, in nanoseconds
+	 */
+	void recordLatency(Stage stage, long nanos);
+
+	/**
+	 * Records a lookup in the in-memory cache.
+	 *
+	 * @param hit whether the value was found
+	 */
+	void recordCacheLookup(boolean hit);
+
+	/**
+	 * Records a failure of a stage.
+	 *
+	 * @param stage the stage
+	 * @param error the error
+	 */
+	void recordError(Stage stage, Throwable error);
+
+	/**
+	 * Releases anything registered by these metrics.
+	 */
+	default void close() {
+	}
+
+	/**
+	 * Gets the name errors are counted under: the simple class name of the
+	 * innermost cause, so that wrapping exceptions do not hide what failed.
+	 *
+	 * @param error the error
+	 * @return the error type
+	 */
+	static String errorType(Throwable error) {
+		Throwable cause = error;
+		while (cause.getCause() != null && cause.getCause() != cause) {
+			cause = cause.getCause();
+		}
+		return cause.getClass().getSimpleName();
+	}
+
+}
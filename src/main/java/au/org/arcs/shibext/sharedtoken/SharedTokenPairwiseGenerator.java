@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes pairwise sharedToken values, targeted at one relying party.
+ *
+ * The pairwise value is the HMAC-SHA256, keyed with the salt, of the UTF-8
+ * encoding of the local ID, a zero byte and the relying party's entityID,
+ * truncated to the length of a sharedToken and encoded like one.  Different
+ * relying parties receive unrelated values for the same principal, and a
+ * value cannot be traced back to the sharedToken without the salt.
+ *
+ * The digest states after hashing the inner and outer padded key are
+ * computed once, and cloned for each value, so computing a value costs two
+ * SHA-256 compressions of the input and one of the inner hash, and no key
+ * setup.
+ */
+public class SharedTokenPairwiseGenerator {
+
+	/** Block size of SHA-256, in bytes. */
+	private static final int BLOCK_LENGTH = 64;
+
+	/** Length of a SHA-256 hash, in bytes. */
+	private static final int HASH_LENGTH = 32;
+
+	/** Digest that has hashed the key XORed with the inner pad. */
+	private final MessageDigest inner;
+
+	/** Digest that has hashed the key XORed with the outer pad. */
+	private final MessageDigest outer;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key key of the HMAC, normally the salt
+	 */
+	public SharedTokenPairwiseGenerator(byte[] key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key must not be null");
+		}
+		inner = newDigest();
+		outer = newDigest();
+		if (key.length > BLOCK_LENGTH) {
+			key = inner.digest(key);
+		}
+		byte[] pad = new byte[BLOCK_LENGTH];
+		for (int i = 0; i < BLOCK_LENGTH; i++) {
+			pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x36);
+		}
+		inner.update(pad);
+		for (int i = 0; i < BLOCK_LENGTH; i++) {
+			pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x5c);
+		}
+		outer.update(pad);
+		// fail now rather than on the first login if the provider cannot clone
+		copy(inner);
+	}
+
+	/**
+	 * Creates the pairwise value of a local ID for a relying party.
+	 *
+	 * @param localId
+	 *            principal the value represents, the same local ID the
+	 *            sharedToken is computed from
+	 * @param relyingPartyId
+	 *            entityID of the relying party receiving the value
+	 *
+	 * @return the pairwise value
+	 */
+	public String generate(String localId, String relyingPartyId) {
+		if (localId == null || relyingPartyId == null) {
+			throw new IllegalArgumentException("Local ID and relying party must not be null");
+		}
+		MessageDigest digest = copy(inner);
+		digest.update(localId.getBytes(StandardCharsets.UTF_8));
+		// the separator keeps "ab" + "c" apart from "a" + "bc"
+		digest.update((byte) 0);
+		digest.update(relyingPartyId.getBytes(StandardCharsets.UTF_8));
+		byte[] hash = new byte[HASH_LENGTH];
+		try {
+			digest.digest(hash, 0, HASH_LENGTH);
+			digest = copy(outer);
+			digest.update(hash);
+			digest.digest(hash, 0, HASH_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException("SHA-256 digest failed", e);
+		}
+		return SharedTokenCodec.encode(hash, 0);
+	}
+
+	/**
+	 * @param digest a digest holding a precomputed state
+	 * @return a copy of the digest, to be updated further
+	 */
+	private static MessageDigest copy(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException("SHA-256 digest cannot be cloned", e);
+		}
+	}
+
+	/**
+	 * @return a new SHA-256 digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+}
@@ -0,0 +1,330 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Names and layout of the table sharedToken values are kept in.
+ *
+ * SQL is written with <code>{table}</code>, <code>{uid}</code>,
+ * <code>{token}</code> and <code>{seq}</code> standing for the table and
+ * column names, and {@link #sql(String)} fills them in.  The token column
+ * holds either the value as text, as in the original tb_st table, or as its
+ * 20 raw bytes, which only works for values in canonical form (see
+ * {@link SharedTokenCodec}).  {@link #setToken(PreparedStatement, int, String)}
+ * and {@link #getToken(ResultSet, int)} convert between the two.
+ */
+public final class SharedTokenSchema {
+
+	/** What to do about the schema when the store is initialized. */
+	public enum Management {
+
+		/** Nothing: the table is assumed to be right. */
+		NONE,
+
+		/** Check that the table and columns exist with the right token format, failing if not. */
+		VERIFY,
+
+		/** Create the table if it does not exist, then verify it. */
+		CREATE;
+
+		/**
+		 * @param name a management mode name, in any case
+		 * @return the management mode
+		 * @throws IllegalArgumentException if the name is not a management mode
+		 */
+		public static Management fromName(String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/** A table or column name, optionally qualified by a schema name. */
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)?");
+
+	/** The original layout: tb_st (uid, sharedToken) with the value as text. */
+	public static final SharedTokenSchema DEFAULT = new SharedTokenSchema("tb_st", "uid", "sharedToken", "seq", false);
+
+	/** Class logger. */
+	private static final Logger LOG = LoggerFactory.getLogger(SharedTokenSchema.class);
+
+	/** Name of the table. */
+	private final String table;
+
+	/** Name of the principal name column. */
+	private final String uidColumn;
+
+	/** Name of the sharedToken column. */
+	private final String tokenColumn;
+
+	/** Name of the column numbering rows in insert order. */
+	private final String seqColumn;
+
+	/** Whether the sharedToken column holds raw bytes rather than text. */
+	private final boolean binary;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param table name of the table, optionally qualified by a schema name
+	 * @param uidColumn name of the principal name column
+	 * @param tokenColumn name of the sharedToken column
+	 * @param seqColumn name of the column numbering rows in insert order
+	 * @param binary whether the sharedToken column holds raw bytes rather than text
+	 * @throws IllegalArgumentException if a name is not a plain SQL identifier
+	 */
+	public SharedTokenSchema(String table, String uidColumn, String tokenColumn, String seqColumn, boolean binary) {
+		this.table = checkName(table, true);
+		this.uidColumn = checkName(uidColumn, false);
+		this.tokenColumn = checkName(tokenColumn, false);
+		this.seqColumn = checkName(seqColumn, false);
+		this.binary = binary;
+	}
+
+	/**
+	 * @param name a table or column name
+	 * @param qualified whether the name may be qualified by a schema name
+	 * @return the name
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	private static String checkName(String name, boolean qualified) {
+		// names are put into SQL as they are, so only allow plain identifiers
+		if (name == null || !IDENTIFIER.matcher(name).matches() || (!qualified && name.indexOf('.') >= 0)) {
+			throw new IllegalArgumentException("Invalid table or column name " + name);
+		}
+		return name;
+	}
+
+	/**
+	 * @return name of the table
+	 */
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * @return name of the principal name column
+	 */
+	public String getUidColumn() {
+		return uidColumn;
+	}
+
+	/**
+	 * @return name of the sharedToken column
+	 */
+	public String getTokenColumn() {
+		return tokenColumn;
+	}
+
+	/**
+	 * @return name of the column numbering rows in insert order
+	 */
+	public String getSeqColumn() {
+		return seqColumn;
+	}
+
+	/**
+	 * @return whether the sharedToken column holds raw bytes rather than text
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Fills in the table and column names.
+	 *
+	 * @param template SQL with {table}, {uid}, {token} and {seq} placeholders
+	 * @return the SQL
+	 */
+	public String sql(String template) {
+		return template.replace("{table}", table).replace("{uid}", uidColumn).replace("{token}", tokenColumn)
+				.replace("{seq}", seqColumn);
+	}
+
+	/**
+	 * Binds a sharedToken value to a statement parameter.
+	 *
+	 * @param st the statement
+	 * @param index index of the parameter
+	 * @param sharedToken the value
+	 * @throws SQLException if the parameter cannot be set, or the value cannot be stored as raw bytes
+	 */
+	public void setToken(PreparedStatement st, int index, String sharedToken) throws SQLException {
+		if (binary) {
+			byte[] raw = SharedTokenCodec.decode(sharedToken);
+			if (raw == null) {
+				throw new SQLException("SharedToken " + sharedToken + " is not in canonical form and cannot be stored in "
+						+ table + "." + tokenColumn);
+			}
+			st.setBytes(index, raw);
+		} else {
+			st.setString(index, sharedToken);
+		}
+	}
+
+	/**
+	 * Reads a sharedToken value from a result column.
+	 *
+	 * @param rs the result set, positioned on a row
+	 * @param index index of the column
+	 * @return the value, or null if the column is null
+	 * @throws SQLException if the column cannot be read or does not hold a raw value
+	 */
+	public String getToken(ResultSet rs, int index) throws SQLException {
+		if (!binary) {
+			return rs.getString(index);
+		}
+		byte[] raw = rs.getBytes(index);
+		if (raw == null) {
+			return null;
+		}
+		if (raw.length != SharedTokenCodec.RAW_LENGTH) {
+			throw new SQLException(table + "." + tokenColumn + " holds " + raw.length + " bytes rather than "
+					+ SharedTokenCodec.RAW_LENGTH);
+		}
+		return SharedTokenCodec.encode(raw, 0);
+	}
+
+	/**
+	 * Creates the table if it does not exist yet, then verifies it.
+	 *
+	 * @param conn a connection to the database
+	 * @param dialect the SQL dialect of the database
+	 * @throws SQLException if the table cannot be created or is not as expected
+	 */
+	public void create(Connection conn, SharedTokenStoreDialect dialect) throws SQLException {
+		if (readColumns(conn.getMetaData()) == null) {
+			String sql = dialect.getCreateTableSql(this);
+			LOG.info("SharedTokenSchema: creating table {}: {}", table, sql);
+			try (Statement st = conn.createStatement()) {
+				st.execute(sql);
+			}
+			if (!conn.getAutoCommit()) {
+				conn.commit();
+			}
+		}
+		verify(conn);
+	}
+
+	/**
+	 * Checks that the table exists with the principal name and sharedToken
+	 * columns, and that the sharedToken column holds the expected format.
+	 * Warns if the sharedToken column has no unique index.
+	 *
+	 * @param conn a connection to the database
+	 * @throws SQLException if the table is not as expected
+	 */
+	public void verify(Connection conn) throws SQLException {
+		DatabaseMetaData metaData = conn.getMetaData();
+		Map<String, Integer> columns = readColumns(metaData);
+		if (columns == null) {
+			throw new SQLException("Table " + table + " does not exist");
+		}
+		if (!columns.containsKey(uidColumn.toLowerCase(Locale.ROOT))) {
+			throw new SQLException("Table " + table + " has no column " + uidColumn);
+		}
+		Integer type = columns.get(tokenColumn.toLowerCase(Locale.ROOT));
+		if (type == null) {
+			throw new SQLException("Table " + table + " has no column " + tokenColumn);
+		}
+		boolean binaryColumn = type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY
+				|| type == Types.BLOB;
+		if (binaryColumn != binary) {
+			throw new SQLException("Column " + table + "." + tokenColumn + " holds " + (binaryColumn ? "raw bytes" : "text")
+					+ " but the " + (binary ? "binary" : "text") + " token format is configured");
+		}
+		if (!hasUniqueIndex(metaData, tokenColumn)) {
+			LOG.warn("SharedTokenSchema: {}.{} has no unique index, so duplicate values are not prevented"
+					+ " and looking up principals by value scans the table", table, tokenColumn);
+		}
+	}
+
+	/**
+	 * Reads the columns of the table, trying the name as given, in upper
+	 * case and in lower case, as databases store unquoted names differently.
+	 *
+	 * @param metaData metadata of a connection to the database
+	 * @return the SQL types of the columns keyed by lower case name, or null if the table does not exist
+	 * @throws SQLException if the metadata cannot be read
+	 */
+	private Map<String, Integer> readColumns(DatabaseMetaData metaData) throws SQLException {
+		for (String[] name : candidateNames()) {
+			Map<String, Integer> columns = new HashMap<String, Integer>();
+			try (ResultSet rs = metaData.getColumns(null, name[0], name[1], null)) {
+				while (rs.next()) {
+					columns.put(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT), rs.getInt("DATA_TYPE"));
+				}
+			}
+			if (!columns.isEmpty()) {
+				return columns;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param metaData metadata of a connection to the database
+	 * @param column a column of the table
+	 * @return whether a unique index of the table covers only that column
+	 * @throws SQLException if the metadata cannot be read
+	 */
+	private boolean hasUniqueIndex(DatabaseMetaData metaData, String column) throws SQLException {
+		for (String[] name : candidateNames()) {
+			Map<String, Integer> indexColumns = new HashMap<String, Integer>();
+			Map<String, Boolean> indexesColumn = new HashMap<String, Boolean>();
+			try (ResultSet rs = metaData.getIndexInfo(null, name[0], name[1], true, true)) {
+				while (rs.next()) {
+					String index = rs.getString("INDEX_NAME");
+					String indexColumn = rs.getString("COLUMN_NAME");
+					if (index == null || indexColumn == null) {
+						continue;
+					}
+					indexColumns.merge(index, 1, Integer::sum);
+					if (indexColumn.equalsIgnoreCase(column)) {
+						indexesColumn.put(index, true);
+					}
+				}
+			}
+			for (String index : indexesColumn.keySet()) {
+				if (indexColumns.get(index) == 1) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the schema and table names to look the table up by, as given, in upper and in lower case
+	 */
+	private String[][] candidateNames() {
+		int dot = table.indexOf('.');
+		String schema = dot < 0 ? null : table.substring(0, dot);
+		String name = table.substring(dot + 1);
+		return new String[][] {
+				{ schema, name },
+				{ schema == null ? null : schema.toUpperCase(Locale.ROOT), name.toUpperCase(Locale.ROOT) },
+				{ schema == null ? null : schema.toLowerCase(Locale.ROOT), name.toLowerCase(Locale.ROOT) } };
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return table + " (" + uidColumn + ", " + tokenColumn + (binary ? " binary" : " text") + ")";
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Health of one shard of a {@link ShardedSharedTokenStore}, or one replica of
+ * a {@link ReplicatedSharedTokenStore}, from the outcome of the operations
+ * sent to it.  A shard is healthy until an operation fails,
+ * and healthy again after the next one succeeds.  Changes are logged, so a
+ * failing shard is reported once rather than on every resolution.
+ */
+public class SharedTokenShardHealth {
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenShardHealth.class);
+
+	/** Name of the shard. */
+	private final String name;
+
+	/** Number of operations sent to the shard. */
+	private final AtomicLong operations = new AtomicLong();
+
+	/** Number of operations that failed. */
+	private final AtomicLong failures = new AtomicLong();
+
+	/** Number of operations that failed since the last success. */
+	private final AtomicLong consecutiveFailures = new AtomicLong();
+
+	/** Message of the last failure, null if none. */
+	private volatile String lastError;
+
+	/** Time of the last failure in milliseconds since the epoch, 0 if none. */
+	private volatile long lastFailureTime;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name name of the shard
+	 */
+	public SharedTokenShardHealth(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records an operation that succeeded.
+	 */
+	public void recordSuccess() {
+		operations.incrementAndGet();
+		long failed = consecutiveFailures.getAndSet(0);
+		if (failed > 0) {
+			log.info("SharedTokenShardHealth: shard {} recovered after {} failed operations", name, failed);
+		}
+	}
+
+	/**
+	 * Records an operation that failed.
+	 *
+	 * @param error the error
+	 */
+	public void recordFailure(Throwable error) {
+		operations.incrementAndGet();
+		failures.incrementAndGet();
+		Throwable cause = error;
+		while (cause.getCause() != null && cause.getCause() != cause) {
+			cause = cause.getCause();
+		}
+		lastError = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+		lastFailureTime = System.currentTimeMillis();
+		if (consecutiveFailures.getAndIncrement() == 0) {
+			log.warn("SharedTokenShardHealth: shard {} is failing: {}", name, lastError);
+		}
+	}
+
+	/**
+	 * @return name of the shard
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return whether the last operation sent to the shard succeeded
+	 */
+	public boolean isHealthy() {
+		return consecutiveFailures.get() == 0;
+	}
+
+	/**
+	 * @return number of operations sent to the shard
+	 */
+	public long getOperations() {
+		return operations.get();
+	}
+
+	/**
+	 * @return number of operations that failed
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return number of operations that failed since the last success
+	 */
+	public long getConsecutiveFailures() {
+		return consecutiveFailures.get();
+	}
+
+	/**
+	 * @return the type and message of the last failure, null if none
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return time of the last failure, null if none
+	 */
+	public Date getLastFailureTime() {
+		long time = lastFailureTime;
+		return time == 0 ? null : new Date(time);
+	}
+
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the shard holding the sharedToken of a principal.
+ *
+ * The principal name is hashed with MD5, which gives the same shard on every
+ * node and JVM, unlike {@link String#hashCode()} spread by a hash table.
+ * With {@link Sharding#MODULO} the hash picks a shard by its position in the
+ * list, so adding a shard moves most principals.  With
+ * {@link Sharding#CONSISTENT} each shard owns {@value #VIRTUAL_NODES} points on
+ * a hash ring derived from its name, and a principal belongs to the next point
+ * at or after its hash; adding a shard only moves the principals it takes
+ * over, about 1/N of them, and the order of the shards does not matter.
+ */
+public class SharedTokenShardRouter {
+
+	/** Ways of choosing a shard. */
+	public enum Sharding {
+		/** Hash modulo the number of shards. */
+		MODULO,
+		/** Consistent hashing on a ring of shard names. */
+		CONSISTENT;
+
+		/**
+		 * @param name the name, in any case
+		 * @return the sharding
+		 * @throws IllegalArgumentException if the name is unknown
+		 */
+		public static Sharding fromName(String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/** Points each shard owns on the consistent hashing ring. */
+	public static final int VIRTUAL_NODES = 160;
+
+	/** MD5 digests, one per thread. */
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	/** Names of the shards, in order. */
+	private final List<String> shardNames;
+
+	/** How the shard is chosen. */
+	private final Sharding sharding;
+
+	/** The consistent hashing ring: shard index keyed by point, null for modulo. */
+	private final TreeMap<Long, Integer> ring;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param shardNames names of the shards, in order, without duplicates
+	 * @param sharding how the shard is chosen
+	 */
+	public SharedTokenShardRouter(List<String> shardNames, Sharding sharding) {
+		if (shardNames.isEmpty()) {
+			throw new IllegalArgumentException("at least one shard is required");
+		}
+		if (new HashSet<String>(shardNames).size() != shardNames.size()) {
+			throw new IllegalArgumentException("shard names must be unique: " + shardNames);
+		}
+		this.shardNames = new ArrayList<String>(shardNames);
+		this.sharding = sharding;
+		if (sharding == Sharding.CONSISTENT) {
+			ring = new TreeMap<Long, Integer>();
+			for (int i = 0; i < shardNames.size(); i++) {
+				for (int node = 0; node < VIRTUAL_NODES; node++) {
+					ring.putIfAbsent(hash(shardNames.get(i) + "#" + node), i);
+				}
+			}
+		} else {
+			ring = null;
+		}
+	}
+
+	/**
+	 * @return names of the shards, in order
+	 */
+	public List<String> getShardNames() {
+		return shardNames;
+	}
+
+	/**
+	 * @return how the shard is chosen
+	 */
+	public Sharding getSharding() {
+		return sharding;
+	}
+
+	/**
+	 * @param uid the principal name
+	 * @return the index of the shard holding the principal's sharedToken
+	 */
+	public int shardOf(String uid) {
+		long hash = hash(uid);
+		if (ring == null) {
+			return (int) Math.floorMod(hash, (long) shardNames.size());
+		}
+		Map.Entry<Long, Integer> point = ring.ceilingEntry(hash);
+		return (point != null ? point : ring.firstEntry()).getValue();
+	}
+
+	/**
+	 * @param value a string
+	 * @return the first eight bytes of the MD5 digest of its UTF-8 encoding
+	 */
+	static long hash(String value) {
+		byte[] digest = DIGEST.get().digest(value.getBytes(StandardCharsets.UTF_8));
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent sharedToken lookups for the same principal.
+ *
+ * The first thread to ask for a given principal runs the lookup (and, if
+ * needed, generates and stores a new value).  Any other thread asking for the
+ * same principal while that is in progress waits for, and receives, the same
+ * result instead of running its own lookup.  This stops simultaneous first
+ * logins from generating and storing the value twice within one IdP node.
+ */
+public class SharedTokenSingleFlight {
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenSingleFlight.class);
+
+	/** Lookups currently in progress, keyed by principal. */
+	private final ConcurrentMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+
+	/**
+	 * Runs the lookup for a principal, or waits for the one already running.
+	 *
+	 * @param uid the principal name
+	 * @param lookup the lookup to run if none is in progress for this principal
+	 * @return the sharedToken value produced by the lookup
+	 * @throws IMASTException if the lookup failed
+	 */
+	public String execute(String uid, Callable<String> lookup) throws IMASTException {
+		FutureTask<String> task = new FutureTask<String>(lookup);
+		FutureTask<String> running = inFlight.putIfAbsent(uid, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(uid, task);
+			}
+			running = task;
+		} else {
+			log.debug("lookup for uid {} already in progress, waiting for its result", uid);
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IMASTException("Interrupted while waiting for sharedToken lookup", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IMASTException) {
+				throw (IMASTException) cause;
+			}
+			throw new IMASTException("Failed to look up sharedToken", cause);
+		}
+	}
+
+	/**
+	 * @return the number of lookups currently in progress
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Database storage of sharedToken values, keyed by principal name.
+ *
+ * Implemented by {@link SharedTokenStore} over a single DataSource and by
+ * {@link ShardedSharedTokenStore} over several.
+ */
+public interface SharedTokenStorage {
+
+	/**
+	 * @param dialect the SQL dialect to use, or null to detect it from the database
+	 */
+	void setDialect(SharedTokenStoreDialect dialect);
+
+	/**
+	 * @param seconds how long the database may take to run a statement, 0 for no limit
+	 */
+	void setQueryTimeout(int seconds);
+
+	/**
+	 * @param schema the table and columns values are kept in
+	 */
+	void setSchema(SharedTokenSchema schema);
+
+	/**
+	 * Gets the sharedToken for a principal.
+	 *
+	 * @param uid the principal name
+	 * @return the sharedToken, or null if none is stored
+	 * @throws IMASTException if the value cannot be read
+	 */
+	String getSharedToken(String uid) throws IMASTException;
+
+	/**
+	 * Looks up the principals holding sharedToken values, the reverse of
+	 * {@link #getSharedToken(String)}.
+	 *
+	 * @param sharedTokens the values
+	 * @return the principal names keyed by value, leaving out values no principal holds
+	 * @throws IMASTException if the principals cannot be read
+	 */
+	Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException;
+
+	/**
+	 * Gets the sharedToken for a principal, creating it if it does not exist
+	 * yet.  If another node stores a value first, that value is returned
+	 * instead of the generated one.
+	 *
+	 * @param uid the principal name
+	 * @param generator supplies a new sharedToken value, only called if none exists
+	 * @return the effective sharedToken value
+	 * @throws IMASTException if the value cannot be read, generated or stored
+	 */
+	String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException;
+
+	/**
+	 * Stores many sharedToken values.  Principals that already have a value keep it.
+	 *
+	 * @param sharedTokens sharedToken values keyed by principal name
+	 * @throws IMASTException if the values cannot be stored
+	 */
+	void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException;
+
+	/**
+	 * Stores the sharedToken for a principal that does not have one yet.  A
+	 * principal that has one by then, stored by another node, keeps it.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken value
+	 * @throws IMASTException if the value cannot be stored
+	 */
+	void storeSharedToken(String uid, String sharedToken) throws IMASTException;
+
+}
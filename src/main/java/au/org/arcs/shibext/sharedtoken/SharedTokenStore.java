@@ -7,6 +7,13 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.sql.DataSource;
 
@@ -17,89 +24,327 @@ import org.slf4j.LoggerFactory;
  * @author Damien Chen
  * 
  */
-public class SharedTokenStore {
+public class SharedTokenStore implements SharedTokenStorage {
+
+	/** Largest number of values looked up in one query by {@link #findPrincipals(Collection)}. */
+	private static final int LOOKUP_CHUNK_SIZE = 500;
 
 	/** Class logger. */
 	private final Logger log = LoggerFactory.getLogger(SharedTokenStore.class);
 
 	private DataSource dataSource;
 
+	/** SQL dialect of the database, detected on first use unless set explicitly. */
+	private volatile SharedTokenStoreDialect dialect;
+
+	/** How long the database may take to run a statement, in seconds, 0 for no limit. */
+	private volatile int queryTimeout;
+
+	/** The table and columns values are kept in. */
+	private volatile SharedTokenSchema schema = SharedTokenSchema.DEFAULT;
+
 	public SharedTokenStore(DataSource dataSource) {
 
 		this.dataSource = dataSource;
 
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public void setDialect(SharedTokenStoreDialect dialect) {
+		this.dialect = dialect;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) {
+		this.queryTimeout = seconds;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(SharedTokenSchema schema) {
+		this.schema = schema;
+	}
+
+	/**
+	 * Gets the SQL dialect, detecting it from the connection metadata if not known yet.
+	 *
+	 * @param conn an open connection to the database
+	 * @return the SQL dialect
+	 * @throws SQLException if the connection metadata cannot be read
+	 */
+	private SharedTokenStoreDialect getDialect(Connection conn) throws SQLException {
+		SharedTokenStoreDialect d = dialect;
+		if (d == null) {
+			d = SharedTokenStoreDialect.detect(conn.getMetaData());
+			log.info("SharedTokenStore: using SQL dialect {}", d);
+			dialect = d;
+		}
+		return d;
+	}
+
+	/** {@inheritDoc} */
+	@Override
 	public String getSharedToken(String uid)
 			throws IMASTException {
 		log.debug("calling getSharedToken ...");
 
-		Connection conn = null;
-		String sharedToken = null;
-		PreparedStatement st = null;
-		ResultSet rs = null;
+		String sharedToken;
+		try (Connection conn = dataSource.getConnection()) {
+			log.debug("SELECT sharedToken from {} WHERE uid={}", schema.getTable(), uid);
+			sharedToken = selectSharedToken(conn, uid);
+		} catch (SQLException e) {
+			log.error("Failed to get SharedToken from database", e);
+			throw new IMASTException("Failed to get SharedToken from database", e);
+		}
+		log.debug("SharedTokenStore: found value {} for uid {}", sharedToken, uid);
 
-		try {
+		return sharedToken;
+	}
 
-			try {
-				conn = dataSource.getConnection();
-				st = conn.prepareStatement("SELECT sharedToken from tb_st WHERE uid=?");
-				st.setString(1, uid);
-				log.debug("SELECT sharedToken from tb_st WHERE uid=" + uid);
-				rs = st.executeQuery();
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The values are looked up a few hundred per query, on one connection.
+	 * Without an index on the sharedToken column, each query scans the table.
+	 */
+	@Override
+	public Map<String, String> findPrincipals(Collection<String> sharedTokens) throws IMASTException {
+		log.debug("SharedTokenStore: looking up principals of {} values", sharedTokens.size());
+		SharedTokenSchema s = schema;
+		Map<String, String> principals = new HashMap<String, String>();
+		List<String> chunk = new ArrayList<String>(LOOKUP_CHUNK_SIZE);
+		try (Connection conn = dataSource.getConnection()) {
+			for (String sharedToken : sharedTokens) {
+				if (s.isBinary() && SharedTokenCodec.decode(sharedToken) == null) {
+					// cannot be held in a binary column, so no principal has it
+					continue;
+				}
+				chunk.add(sharedToken);
+				if (chunk.size() == LOOKUP_CHUNK_SIZE) {
+					selectPrincipals(conn, s, chunk, principals);
+					chunk.clear();
+				}
+			}
+			if (!chunk.isEmpty()) {
+				selectPrincipals(conn, s, chunk, principals);
+			}
+		} catch (SQLException e) {
+			log.error("Failed to look up principals by SharedToken in database", e);
+			throw new IMASTException("Failed to look up principals by SharedToken in database", e);
+		}
+		return principals;
+	}
 
+	/**
+	 * Looks up the principals holding a chunk of values.
+	 *
+	 * @param conn the connection to use
+	 * @param s the table and columns values are kept in
+	 * @param sharedTokens the values
+	 * @param principals where to put the principal names found, keyed by value
+	 * @throws SQLException if the query fails
+	 */
+	private void selectPrincipals(Connection conn, SharedTokenSchema s, List<String> sharedTokens,
+			Map<String, String> principals) throws SQLException {
+		String sql = s.sql("SELECT {token}, {uid} FROM {table} WHERE {token} IN (")
+				+ String.join(", ", Collections.nCopies(sharedTokens.size(), "?")) + ")";
+		try (PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setQueryTimeout(queryTimeout);
+			for (int i = 0; i < sharedTokens.size(); i++) {
+				s.setToken(st, i + 1, sharedTokens.get(i));
+			}
+			try (ResultSet rs = st.executeQuery()) {
 				while (rs.next()) {
-					sharedToken = rs.getString("sharedToken");
+					principals.put(s.getToken(rs, 1), rs.getString(2));
 				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the sharedToken for a principal, creating it if it does not exist yet.
+	 *
+	 * The lookup and, for a new principal, the insert are done on a single
+	 * connection.  The insert only takes effect if no value exists for the
+	 * principal at that point; if another node stored a value in the
+	 * meantime, that value is returned instead of the generated one.
+	 *
+	 * @param uid the principal name
+	 * @param generator supplies a new sharedToken value, only called if none exists
+	 * @return the effective sharedToken value
+	 * @throws IMASTException if the value cannot be read, generated or stored
+	 */
+	@Override
+	public String getOrCreateSharedToken(String uid, Callable<String> generator) throws IMASTException {
+		log.debug("calling getOrCreateSharedToken ...");
+
+		try (Connection conn = dataSource.getConnection()) {
+			String sharedToken = selectSharedToken(conn, uid);
+			if (sharedToken != null) {
+				log.debug("SharedTokenStore: found value {} for uid {}", sharedToken, uid);
+				return sharedToken;
+			}
+
+			String generated = generator.call();
+			log.info("SharedTokenStore: storing value {} for uid {}", generated, uid);
+			sharedToken = insertIfAbsent(conn, uid, generated);
+			if (!sharedToken.equals(generated)) {
+				log.info("SharedTokenStore: uid {} already had value {}, discarding generated value {}", uid,
+						sharedToken, generated);
+			}
+			return sharedToken;
+		} catch (IMASTException e) {
+			throw e;
+		} catch (Exception e) {
+			log.error("Failed to get or create SharedToken in database", e);
+			throw new IMASTException("Failed to get or create SharedToken in database", e);
+		}
+	}
+
+	/**
+	 * Stores many sharedToken values in one transaction, using a JDBC batch.
+	 * Principals that already have a value keep it.
+	 *
+	 * @param sharedTokens sharedToken values keyed by principal name
+	 * @throws IMASTException if the values cannot be stored
+	 */
+	@Override
+	public void storeSharedTokens(Map<String, String> sharedTokens) throws IMASTException {
+		log.debug("SharedTokenStore: storing {} values", sharedTokens.size());
+
+		try (Connection conn = dataSource.getConnection()) {
+			boolean autoCommit = conn.getAutoCommit();
+			boolean conflict = false;
+			conn.setAutoCommit(false);
+			SharedTokenSchema s = schema;
+			try (PreparedStatement st = conn.prepareStatement(getDialect(conn).getInsertIfAbsentSql(s))) {
+				st.setQueryTimeout(queryTimeout);
+				for (Map.Entry<String, String> entry : sharedTokens.entrySet()) {
+					st.setString(1, entry.getKey());
+					s.setToken(st, 2, entry.getValue());
+					st.addBatch();
+				}
+				st.executeBatch();
+				conn.commit();
 			} catch (SQLException e) {
-				log.error("Error executing SQL statement", e);
-				throw new IMASTException("Error executing SQL statement", e);
+				conn.rollback();
+				if (!SharedTokenStoreDialect.isConstraintViolation(e)) {
+					throw e;
+				}
+				log.debug("SharedTokenStore: another node stored some of the {} values first, storing them one at a time",
+						sharedTokens.size());
+				conflict = true;
 			} finally {
+				conn.setAutoCommit(autoCommit);
+			}
+			if (conflict) {
+				conn.setAutoCommit(true);
 				try {
-					rs.close();
-					conn.close();
-				} catch (SQLException e) {
-					throw new IMASTException("Error closing database connection", e);
+					for (Map.Entry<String, String> entry : sharedTokens.entrySet()) {
+						String stored = insertIfAbsent(conn, entry.getKey(), entry.getValue());
+						if (!stored.equals(entry.getValue())) {
+							log.info("SharedTokenStore: uid {} already had value {}, discarding value {}",
+									entry.getKey(), stored, entry.getValue());
+						}
+					}
+				} finally {
+					conn.setAutoCommit(autoCommit);
 				}
 			}
-		} catch (Exception e) {
-			log.error("Failed to get SharedToken from database", e);
-			throw new IMASTException("Failed to get SharedToken from database", e);
+		} catch (SQLException e) {
+			log.error("Failed to store SharedToken values into database", e);
+			throw new IMASTException("Failed to store SharedToken values into database", e);
 		}
-		log.debug("SharedTokenStore: found value {} for uid {}", sharedToken, uid);
+	}
 
-		return sharedToken;
+	/**
+	 * Inserts the sharedToken for a principal unless one already exists, and
+	 * returns the value the principal ends up with.  If another node stored a
+	 * value first, whether the insert then does not take effect or fails on
+	 * the duplicate key, that value is re-read on the same connection.
+	 *
+	 * @param conn the connection to use
+	 * @param uid the principal name
+	 * @param sharedToken the value to insert
+	 * @return the effective sharedToken value
+	 * @throws SQLException if a statement fails other than on a duplicate key
+	 * @throws IMASTException if the value was neither inserted nor found
+	 */
+	private String insertIfAbsent(Connection conn, String uid, String sharedToken)
+			throws SQLException, IMASTException {
+		String stored;
+		try {
+			stored = getDialect(conn).insertIfAbsent(conn, schema, uid, sharedToken, queryTimeout);
+		} catch (SQLException e) {
+			if (!SharedTokenStoreDialect.isConstraintViolation(e)) {
+				throw e;
+			}
+			log.debug("SharedTokenStore: another node stored a value for uid {} first (SQLState {}), reading it",
+					uid, e.getSQLState());
+			if (!conn.getAutoCommit()) {
+				// some databases refuse further statements in a transaction that failed
+				conn.rollback();
+			}
+			stored = null;
+		}
+		if (stored == null) {
+			// the insert did not take effect - someone else stored a value first
+			stored = selectSharedToken(conn, uid);
+			if (stored == null) {
+				throw new IMASTException("SharedToken for uid " + uid + " was neither inserted nor found,"
+						+ " value " + sharedToken + " may be held by another principal");
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Reads the sharedToken for a principal using an already open connection.
+	 *
+	 * @param conn the connection to use
+	 * @param uid the principal name
+	 * @return the sharedToken, or null if none is stored
+	 * @throws SQLException if the query fails
+	 */
+	private String selectSharedToken(Connection conn, String uid) throws SQLException {
+		SharedTokenSchema s = schema;
+		try (PreparedStatement st = conn.prepareStatement(s.sql("SELECT {token} from {table} WHERE {uid}=?"))) {
+			st.setQueryTimeout(queryTimeout);
+			st.setString(1, uid);
+			try (ResultSet rs = st.executeQuery()) {
+				return rs.next() ? s.getToken(rs, 1) : null;
+			}
+		}
 	}
 
+	/**
+	 * Stores the sharedToken for a principal unless one already exists.  A
+	 * principal that already has a value, for example because another node
+	 * stored it first, keeps it.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken value
+	 * @throws IMASTException if the value cannot be stored
+	 */
+	@Override
 	public void storeSharedToken(String uid, String sharedToken) throws IMASTException {
 		log.info("SharedTokenStore: storing value {} for uid {}", sharedToken, uid);
-		Connection conn = null;
-		PreparedStatement st = null;
 
-		try {
-
-			try {
-				conn = dataSource.getConnection();
-				st = conn.prepareStatement("INSERT INTO tb_st VALUES (?, ?)");
-				st.setString(1, uid);
-				st.setString(2, sharedToken);
-				st.executeUpdate();
-				log.debug("INSERT INTO tb_st VALUES ('{}', '{}')", uid, sharedToken);
+		try (Connection conn = dataSource.getConnection()) {
+			String stored = insertIfAbsent(conn, uid, sharedToken);
+			if (!stored.equals(sharedToken)) {
+				log.info("SharedTokenStore: uid {} already had value {}, discarding value {}", uid, stored,
+						sharedToken);
+			} else {
 				log.debug("Successfully stored the SharedToken value into database");
-			} catch (SQLException e) {
-				log.error("Failed to store SharedToken into database", e);
-				throw new IMASTException("Failed to store the SharedToken value into database", e);
-			} finally {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					throw new IMASTException("Error closing database connection", e);
-				}
 			}
-		} catch (Exception e) {
+		} catch (IMASTException e) {
+			throw e;
+		} catch (SQLException e) {
 			log.error("Failed to store SharedToken into database", e);
-			throw new IMASTException("Failed to store SharedToken into database", e);
+			throw new IMASTException("Failed to store the SharedToken value into database", e);
 		}
-
 	}
 }
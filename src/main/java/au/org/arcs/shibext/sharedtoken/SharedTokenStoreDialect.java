@@ -0,0 +1,260 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.Locale;
+
+/**
+ * SQL dialects supported by {@link SharedTokenStore}.
+ *
+ * Each dialect knows how to insert a sharedToken value only if the principal
+ * does not have one yet, in a single statement.  Where the database can
+ * return the effective value from that same statement (PostgreSQL), no
+ * further query is needed; otherwise the caller re-reads the value on the
+ * same connection when the insert did not take effect.  Each dialect but
+ * {@link #GENERIC} also knows how to create the table, with a unique index
+ * on the sharedToken and a seq column numbering rows in insert order.
+ *
+ * Even these statements can fail with a duplicate key when two IdP nodes
+ * insert a value for the same principal at the same moment, and a plain
+ * INSERT ({@link #GENERIC}) always does; {@link #isConstraintViolation}
+ * recognises such failures from their SQLState, whatever the database.
+ *
+ * Statements are written for a {@link SharedTokenSchema}, with
+ * <code>{tokenType}</code> standing for the type of the sharedToken column.
+ */
+public enum SharedTokenStoreDialect {
+
+	/** MySQL and MariaDB. */
+	MYSQL("INSERT INTO {table} ({uid}, {token}) VALUES (?, ?) ON DUPLICATE KEY UPDATE {uid} = {uid}",
+			"CREATE TABLE {table} ({uid} VARCHAR(100) NOT NULL, {token} {tokenType} NOT NULL, "
+					+ "{seq} BIGINT NOT NULL AUTO_INCREMENT, PRIMARY KEY ({uid}), UNIQUE KEY ({token}), UNIQUE KEY ({seq}))",
+			"VARCHAR(50)", "BINARY(20)") {
+		@Override
+		public String insertIfAbsent(Connection conn, SharedTokenSchema schema, String uid, String sharedToken,
+				int queryTimeout) throws SQLException {
+			// unlike INSERT IGNORE, the no-op update on a duplicate key does not turn other errors
+			// (e.g. a uid too long) into warnings; but Connector/J counts the rows found by default,
+			// so the update count does not tell whether the row was inserted, and the caller re-reads it
+			super.insertIfAbsent(conn, schema, uid, sharedToken, queryTimeout);
+			return null;
+		}
+
+		@Override
+		public int getStreamingFetchSize(int fetchSize) {
+			// Connector/J only streams rows, rather than reading them all into memory, with this fetch size
+			return Integer.MIN_VALUE;
+		}
+	},
+
+	/** PostgreSQL 9.5 or later. */
+	POSTGRESQL("INSERT INTO {table} ({uid}, {token}) VALUES (?, ?) ON CONFLICT ({uid}) DO NOTHING",
+			"CREATE TABLE {table} ({uid} VARCHAR(100) NOT NULL PRIMARY KEY, {token} {tokenType} NOT NULL UNIQUE, "
+					+ "{seq} BIGSERIAL NOT NULL UNIQUE)",
+			"VARCHAR(50)", "BYTEA") {
+		@Override
+		public String insertIfAbsent(Connection conn, SharedTokenSchema schema, String uid, String sharedToken,
+				int queryTimeout) throws SQLException {
+			// a no-op update on conflict makes RETURNING yield the existing row
+			try (PreparedStatement st = conn.prepareStatement(schema.sql("INSERT INTO {table} ({uid}, {token}) VALUES (?, ?) "
+					+ "ON CONFLICT ({uid}) DO UPDATE SET {token} = {table}.{token} RETURNING {token}"))) {
+				st.setQueryTimeout(queryTimeout);
+				st.setString(1, uid);
+				schema.setToken(st, 2, sharedToken);
+				try (ResultSet rs = st.executeQuery()) {
+					return rs.next() ? schema.getToken(rs, 1) : null;
+				}
+			}
+		}
+	},
+
+	/** Oracle 12c or later. */
+	ORACLE("MERGE INTO {table} t USING (SELECT ? AS s_uid, ? AS s_token FROM dual) s ON (t.{uid} = s.s_uid) "
+			+ "WHEN NOT MATCHED THEN INSERT ({uid}, {token}) VALUES (s.s_uid, s.s_token)",
+			"CREATE TABLE {table} ({uid} VARCHAR2(100) NOT NULL PRIMARY KEY, {token} {tokenType} NOT NULL UNIQUE, "
+					+ "{seq} NUMBER(19) GENERATED BY DEFAULT AS IDENTITY NOT NULL UNIQUE)",
+			"VARCHAR2(50)", "RAW(20)"),
+
+	/** Microsoft SQL Server. */
+	SQLSERVER("MERGE INTO {table} WITH (HOLDLOCK) AS t USING (VALUES (?, ?)) AS s (s_uid, s_token) ON t.{uid} = s.s_uid "
+			+ "WHEN NOT MATCHED THEN INSERT ({uid}, {token}) VALUES (s.s_uid, s.s_token);",
+			"CREATE TABLE {table} ({uid} VARCHAR(100) NOT NULL PRIMARY KEY, {token} {tokenType} NOT NULL UNIQUE, "
+					+ "{seq} BIGINT IDENTITY(1,1) NOT NULL UNIQUE)",
+			"VARCHAR(50)", "BINARY(20)"),
+
+	/** H2, mainly for testing. */
+	H2("MERGE INTO {table} t USING (SELECT CAST(? AS VARCHAR(255)) AS s_uid, CAST(? AS {tokenType}) AS s_token) s "
+			+ "ON (t.{uid} = s.s_uid) WHEN NOT MATCHED THEN INSERT ({uid}, {token}) VALUES (s.s_uid, s.s_token)",
+			"CREATE TABLE {table} ({uid} VARCHAR(100) NOT NULL PRIMARY KEY, {token} {tokenType} NOT NULL UNIQUE, "
+					+ "{seq} BIGINT GENERATED BY DEFAULT AS IDENTITY NOT NULL UNIQUE)",
+			"VARCHAR(50)", "VARBINARY(20)"),
+
+	/** Any other database: a plain INSERT, which fails if the principal already has a value. */
+	GENERIC("INSERT INTO {table} ({uid}, {token}) VALUES (?, ?)", null, "VARCHAR(50)", "VARBINARY(20)");
+
+	/** SQLState class of integrity constraint violations, such as a duplicate key. */
+	private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+	/** Statement inserting a (uid, sharedToken) row unless the uid already exists. */
+	private final String insertIfAbsentSql;
+
+	/** Statement creating the table, null if not known. */
+	private final String createTableSql;
+
+	/** Type of a sharedToken column holding text. */
+	private final String textType;
+
+	/** Type of a sharedToken column holding raw bytes. */
+	private final String binaryType;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param insertIfAbsentSql statement inserting a row unless the uid already exists
+	 * @param createTableSql statement creating the table, null if not known
+	 * @param textType type of a sharedToken column holding text
+	 * @param binaryType type of a sharedToken column holding raw bytes
+	 */
+	private SharedTokenStoreDialect(String insertIfAbsentSql, String createTableSql, String textType,
+			String binaryType) {
+		this.insertIfAbsentSql = insertIfAbsentSql;
+		this.createTableSql = createTableSql;
+		this.textType = textType;
+		this.binaryType = binaryType;
+	}
+
+	/**
+	 * @param schema the table the statement is for
+	 * @param template SQL with schema and {tokenType} placeholders
+	 * @return the SQL for the table
+	 */
+	private String sql(SharedTokenSchema schema, String template) {
+		return schema.sql(template.replace("{tokenType}", schema.isBinary() ? binaryType : textType));
+	}
+
+	/**
+	 * @param schema the table to insert into
+	 * @return statement taking (uid, sharedToken) parameters that inserts the
+	 *         row unless the uid already exists, suitable for batching; bind
+	 *         the sharedToken with {@link SharedTokenSchema#setToken}
+	 */
+	public String getInsertIfAbsentSql(SharedTokenSchema schema) {
+		return sql(schema, insertIfAbsentSql);
+	}
+
+	/**
+	 * @param schema the table to create
+	 * @return statement creating the table
+	 * @throws SQLException if the dialect does not know how to create it, or
+	 *             the principal name column is UID in an Oracle database
+	 */
+	public String getCreateTableSql(SharedTokenSchema schema) throws SQLException {
+		if (createTableSql == null) {
+			throw new SQLException("Cannot create table " + schema.getTable() + " in a " + this
+					+ " database, create it by hand");
+		}
+		if (this == ORACLE && "uid".equalsIgnoreCase(schema.getUidColumn())) {
+			// UID is an Oracle pseudocolumn, it cannot name a column unquoted
+			throw new SQLException("Cannot create table " + schema.getTable() + " with a column named "
+					+ schema.getUidColumn() + " in an ORACLE database, set databaseUidColumn to another name,"
+					+ " e.g. principal");
+		}
+		return sql(schema, createTableSql);
+	}
+
+	/**
+	 * Inserts the sharedToken for a principal unless one already exists.
+	 *
+	 * @param conn the connection to use
+	 * @param schema the table to insert into
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken value to insert
+	 * @param queryTimeout how long the statement may take, in seconds, 0 for no limit
+	 * @return the effective sharedToken if known from the insert itself, or
+	 *         null if the caller has to re-read it
+	 * @throws SQLException if the statement fails
+	 */
+	public String insertIfAbsent(Connection conn, SharedTokenSchema schema, String uid, String sharedToken,
+			int queryTimeout) throws SQLException {
+		try (PreparedStatement st = conn.prepareStatement(getInsertIfAbsentSql(schema))) {
+			st.setQueryTimeout(queryTimeout);
+			st.setString(1, uid);
+			schema.setToken(st, 2, sharedToken);
+			return st.executeUpdate() > 0 ? sharedToken : null;
+		}
+	}
+
+	/**
+	 * @param fetchSize the number of rows to fetch at a time
+	 * @return the fetch size to set on a statement reading a whole table,
+	 *         so that the driver streams the rows
+	 */
+	public int getStreamingFetchSize(int fetchSize) {
+		return fetchSize;
+	}
+
+	/**
+	 * Checks whether a statement failed because it broke a primary key or
+	 * unique constraint, such as when another node inserted a value for the
+	 * same principal first.  Drivers report these with SQLState class 23
+	 * (23000 for MySQL, Oracle and SQL Server, 23505 for PostgreSQL and H2),
+	 * possibly on an exception chained to the one thrown, as batches do.
+	 *
+	 * @param e the failure
+	 * @return true if the failure is an integrity constraint violation
+	 */
+	public static boolean isConstraintViolation(SQLException e) {
+		for (SQLException next = e; next != null; next = next.getNextException()) {
+			for (Throwable t = next; t != null; t = t.getCause()) {
+				if (t instanceof SQLIntegrityConstraintViolationException) {
+					return true;
+				}
+				if (t instanceof SQLException) {
+					String state = ((SQLException) t).getSQLState();
+					if (state != null && state.startsWith(INTEGRITY_CONSTRAINT_VIOLATION)) {
+						return true;
+					}
+				}
+				if (t.getCause() == t) {
+					break;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Selects the dialect matching a database.
+	 *
+	 * @param metaData metadata of a connection to the database
+	 * @return the matching dialect, or {@link #GENERIC} if not recognised
+	 * @throws SQLException if the metadata cannot be read
+	 */
+	public static SharedTokenStoreDialect detect(DatabaseMetaData metaData) throws SQLException {
+		String product = metaData.getDatabaseProductName();
+		if (product == null) {
+			return GENERIC;
+		}
+		product = product.toLowerCase(Locale.ROOT);
+		if (product.contains("mysql") || product.contains("mariadb")) {
+			return MYSQL;
+		} else if (product.contains("postgresql")) {
+			return POSTGRESQL;
+		} else if (product.contains("oracle")) {
+			return ORACLE;
+		} else if (product.contains("microsoft sql server")) {
+			return SQLSERVER;
+		} else if (product.startsWith("h2")) {
+			return H2;
+		}
+		return GENERIC;
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous write-behind of new sharedToken values to a
+ * {@link SharedTokenStorage}.
+ *
+ * A new value is appended to a local {@link SharedTokenJournal} and kept in
+ * memory, so it can be returned (and found again by later logins) without
+ * waiting for the database.  A background thread periodically stores the
+ * journalled values in batches and deletes them from the journal once
+ * stored; failed attempts are retried with exponential backoff.  Values
+ * journalled before a restart are read back and stored on startup.
+ *
+ * Pending values are only visible on this node until they are stored.
+ */
+public class SharedTokenWriteBehind {
+
+	/** Longest delay between retries of a failed drain. */
+	private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(SharedTokenWriteBehind.class);
+
+	/** The store values are written to. */
+	private final SharedTokenStorage store;
+
+	/** Directory holding the journal. */
+	private final Path directory;
+
+	/** Interval between drains. */
+	private final Duration interval;
+
+	/** Maximum number of values stored per batch. */
+	private final int batchSize;
+
+	/** Values journalled but not yet stored, keyed by principal name. */
+	private final ConcurrentMap<String, String> pending = new ConcurrentHashMap<String, String>();
+
+	/** The journal, open while started. */
+	private SharedTokenJournal journal;
+
+	/** Thread draining the journal, running while started. */
+	private ScheduledExecutorService drainer;
+
+	/** Number of consecutive failed drains. */
+	private int failures = 0;
+
+	/** Time (System.nanoTime) before which no drain is attempted after a failure. */
+	private long retryAfter = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store the store values are written to
+	 * @param directory directory holding the journal
+	 * @param interval interval between drains
+	 * @param batchSize maximum number of values stored per batch
+	 */
+	public SharedTokenWriteBehind(SharedTokenStorage store, Path directory, Duration interval, int batchSize) {
+		this.store = store;
+		this.directory = directory;
+		this.interval = interval;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Opens the journal, reads back values left from a previous run and starts
+	 * the background drain.
+	 *
+	 * @param name name used for the drain thread
+	 * @throws IOException if the journal cannot be opened or read
+	 */
+	public synchronized void start(String name) throws IOException {
+		journal = new SharedTokenJournal(directory);
+		for (Path segment : journal.roll()) {
+			journal.read(segment, pending);
+		}
+		if (!pending.isEmpty()) {
+			log.info("SharedTokenWriteBehind: replaying {} values not stored before shutdown", pending.size());
+		}
+
+		drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sharedtoken-write-behind-" + name);
+			t.setDaemon(true);
+			return t;
+		});
+		long millis = interval.toMillis();
+		drainer.scheduleWithFixedDelay(this::drain, 0, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets a value that has been journalled but not yet stored.
+	 *
+	 * @param uid the principal name
+	 * @return the pending value, or null if none is pending
+	 */
+	public String get(String uid) {
+		return pending.get(uid);
+	}
+
+	/**
+	 * Durably journals a value, to be stored in the background.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the sharedToken value
+	 * @throws IMASTException if the value cannot be journalled
+	 */
+	public void store(String uid, String sharedToken) throws IMASTException {
+		// make the value visible before the drain can see (and remove) it
+		pending.put(uid, sharedToken);
+		try {
+			journal.append(uid, sharedToken);
+		} catch (IOException e) {
+			pending.remove(uid, sharedToken);
+			throw new IMASTException("Failed to journal SharedToken value", e);
+		}
+		log.debug("SharedTokenWriteBehind: journalled value {} for uid {}", sharedToken, uid);
+	}
+
+	/**
+	 * @return the number of values journalled but not yet stored
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Stores all closed journal segments, unless backing off after a failure.
+	 */
+	private synchronized void drain() {
+		if (journal == null || (failures > 0 && System.nanoTime() - retryAfter < 0)) {
+			return;
+		}
+		try {
+			List<Path> segments = journal.roll();
+			for (Path segment : segments) {
+				Map<String, String> entries = new LinkedHashMap<String, String>();
+				journal.read(segment, entries);
+				Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator();
+				Map<String, String> batch = new LinkedHashMap<String, String>();
+				while (it.hasNext()) {
+					Map.Entry<String, String> entry = it.next();
+					batch.put(entry.getKey(), entry.getValue());
+					if (batch.size() == batchSize || !it.hasNext()) {
+						store.storeSharedTokens(batch);
+						batch.clear();
+					}
+				}
+				journal.delete(segment);
+				for (Map.Entry<String, String> entry : entries.entrySet()) {
+					pending.remove(entry.getKey(), entry.getValue());
+				}
+				log.debug("SharedTokenWriteBehind: stored {} values from {}", entries.size(), segment);
+			}
+			if (failures > 0) {
+				log.info("SharedTokenWriteBehind: storing values succeeded again after {} failed attempts", failures);
+				failures = 0;
+			}
+		} catch (Exception e) {
+			failures++;
+			long backoff = Math.min(interval.toMillis() << Math.min(failures, 16), MAX_BACKOFF.toMillis());
+			retryAfter = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+			if (failures == 1) {
+				log.error("SharedTokenWriteBehind: failed to store journalled values, will retry", e);
+			} else {
+				log.warn("SharedTokenWriteBehind: attempt {} to store journalled values failed, retrying in {} ms: {}",
+						failures, backoff, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops the background drain, makes a last attempt to store pending
+	 * values and closes the journal.  Values that could not be stored remain
+	 * in the journal for the next start.
+	 */
+	public synchronized void stop() {
+		if (drainer == null) {
+			return;
+		}
+		drainer.shutdownNow();
+		drainer = null;
+		failures = 0;
+		drain();
+		try {
+			journal.close();
+		} catch (IOException e) {
+			log.warn("SharedTokenWriteBehind: failed to close journal", e);
+		}
+		journal = null;
+	}
+
+}
@@ -0,0 +1,468 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import au.org.arcs.shibext.sharedtoken.SharedTokenGenerator;
+import au.org.arcs.shibext.sharedtoken.SharedTokenIndex;
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+
+/**
+ * Checks that stored sharedToken values are those the connector would
+ * compute, to catch values broken by renamed principals or a changed salt
+ * before a service provider does.
+ *
+ * The principals are read from a CSV or LDIF export of the user directory,
+ * in chunks of <code>--batch-size</code> records.  Each chunk is checked on
+ * one of <code>--threads</code> threads, each borrowing one of as many
+ * database connections: the value is computed from the source attributes exactly
+ * as the connector computes it, compared with the value stored in LDAP
+ * (<code>--stored-attribute</code>, taken from the export) and with the
+ * value in the database, which is looked up a few hundred principals per
+ * query.  Chunks are reported in input order, and at most a few per thread
+ * are held in memory at any time.
+ *
+ * With <code>--orphans</code>, the database table is then streamed with a
+ * cursor to report the rows of principals missing from the export.  This
+ * keeps an 8 byte hash of each principal name of the export in memory.
+ *
+ * Each problem is a line of the CSV report: principal name, issue, computed
+ * value, database value and LDAP value.
+ */
+public class AuditCommand implements ToolCommand {
+
+	/** Header line of the report. */
+	private static final String REPORT_HEADER = "uid,issue,expected,database,ldap";
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "audit";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "check stored sharedToken values against the values computed from a CSV or LDIF export";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		out.println("  --input FILE               CSV (with header line) or LDIF file of principals");
+		out.println("  --format csv|ldif          input format (default: from file extension)");
+		out.println("  --principal-attribute ID   attribute holding the principal name (default: uid)");
+		out.println("  --stored-attribute ID      attribute holding the value stored in LDAP, as storedAttributeName");
+		ToolSupport.printGeneratorUsage(out);
+		out.println("  --jdbc-url URL             JDBC URL of the sharedToken database, to check the values stored there");
+		out.println("  --jdbc-user USER           database user");
+		out.println("  --jdbc-password PASSWORD   database password (or set SHAREDTOKEN_JDBC_PASSWORD)");
+		ToolSupport.printSchemaUsage(out);
+		out.println("  --report FILE              CSV file to write the problems found to (default: standard output)");
+		out.println("  --report-missing           also report principals with no value in the database");
+		out.println("  --orphans                  also report database rows of principals missing from the input");
+		out.println("  --batch-size N             records per chunk (default: 1000)");
+		out.println("  --threads N                checking threads (default: number of processors)");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		String principalAttribute = args.get("principal-attribute", "uid");
+		String storedAttribute = args.get("stored-attribute");
+		String[] sourceAttributes = ToolSupport.getSourceAttributes(args);
+		String idpIdentifier = args.getRequired("idp-identifier");
+		SharedTokenGenerator generator = new SharedTokenGenerator(ToolSupport.getSalt(args), idpIdentifier);
+		boolean database = args.has("jdbc-url");
+		if (!database && storedAttribute == null) {
+			throw new IllegalArgumentException("At least one of --jdbc-url, --stored-attribute is required");
+		}
+		if (args.has("orphans") && !database) {
+			throw new IllegalArgumentException("Option --orphans requires --jdbc-url");
+		}
+		SharedTokenSchema schema = ToolSupport.getSchema(args);
+		int batchSize = args.getPositiveInt("batch-size", 1000);
+		int threads = args.getPositiveInt("threads", Runtime.getRuntime().availableProcessors());
+		Check check = new Check(principalAttribute, storedAttribute, sourceAttributes, idpIdentifier, generator,
+				schema, args.has("report-missing"));
+
+		Totals totals = new Totals();
+		UidHashes seen = args.has("orphans") ? new UidHashes() : null;
+		long start = System.nanoTime();
+		BlockingQueue<Connection> connections = new LinkedBlockingQueue<Connection>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		try (SourceRecordReader reader = SourceRecordReader.open(Paths.get(args.getRequired("input")),
+				args.get("format"));
+				Writer report = args.has("report")
+						? Files.newBufferedWriter(Paths.get(args.get("report")), StandardCharsets.UTF_8)
+						: new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+			if (database) {
+				for (int i = 0; i < threads; i++) {
+					connections.add(ToolSupport.openConnection(args));
+				}
+			}
+			report.write(REPORT_HEADER + "\n");
+
+			boolean more = true;
+			while (more || !pending.isEmpty()) {
+				if (more) {
+					List<SourceRecord> records = new ArrayList<SourceRecord>(batchSize);
+					SourceRecord record;
+					while (records.size() < batchSize && (record = reader.next()) != null) {
+						records.add(record);
+					}
+					more = records.size() == batchSize;
+					if (!records.isEmpty()) {
+						pending.add(pool.submit(() -> check.run(records, database ? connections : null)));
+					}
+				}
+				if (pending.isEmpty() || (more && pending.size() < threads * 2)) {
+					continue;
+				}
+
+				Chunk chunk = pending.remove().get();
+				for (String line : chunk.lines) {
+					report.write(line + "\n");
+				}
+				if (seen != null) {
+					seen.addAll(chunk.uidHashes, chunk.uidCount);
+				}
+				totals.add(chunk);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.err.printf("%d records checked, %d problems (%.0f records/s)%n", totals.records,
+						totals.problems(), totals.records / Math.max(seconds, 0.001));
+			}
+
+			if (seen != null) {
+				seen.sort();
+				totals.orphans = reportOrphans(connections.peek(), schema, seen, batchSize, report);
+			}
+			report.flush();
+		} finally {
+			pool.shutdownNow();
+			for (Connection conn : connections) {
+				conn.close();
+			}
+		}
+		System.err.println("Audit complete: " + totals.records + " records, " + totals.databaseMismatches
+				+ " database mismatches, " + totals.ldapMismatches + " LDAP mismatches, " + totals.missing
+				+ " missing from the database, " + totals.noSource + " without source attributes"
+				+ (seen != null ? ", " + totals.orphans + " orphaned rows" : ""));
+	}
+
+	/**
+	 * Streams the database table and reports the rows of principals missing
+	 * from the input.
+	 *
+	 * @param conn a connection to the database
+	 * @param schema the table and columns values are kept in
+	 * @param seen hashes of the principal names of the input, sorted
+	 * @param fetchSize number of rows fetched at a time
+	 * @param report where to write the problems
+	 * @return the number of rows reported
+	 * @throws Exception if the table cannot be read or the report written
+	 */
+	private static long reportOrphans(Connection conn, SharedTokenSchema schema, UidHashes seen, int fetchSize,
+			Writer report) throws Exception {
+		System.err.println("Scanning " + schema.getTable() + " for principals missing from the input");
+		long orphans = 0;
+		boolean autoCommit = conn.getAutoCommit();
+		// some drivers only use a cursor inside a transaction
+		conn.setAutoCommit(false);
+		try (PreparedStatement st = conn.prepareStatement(schema.sql("SELECT {uid}, {token} FROM {table}"),
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			st.setFetchSize(fetchSize);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					String uid = rs.getString(1);
+					if (uid != null && !seen.contains(SharedTokenIndex.hash(uid, 0))) {
+						report.write(line(uid, "orphan", null, schema.getToken(rs, 2), null) + "\n");
+						orphans++;
+					}
+				}
+			}
+			conn.rollback();
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+		return orphans;
+	}
+
+	/**
+	 * Formats a line of the report.
+	 *
+	 * @param uid the principal name
+	 * @param issue the problem found
+	 * @param expected the computed value, or null
+	 * @param database the value in the database, or null
+	 * @param ldap the value in LDAP, or null
+	 * @return the line, without line break
+	 */
+	private static String line(String uid, String issue, String expected, String database, String ldap) {
+		return csv(uid) + "," + issue + "," + csv(expected) + "," + csv(database) + "," + csv(ldap);
+	}
+
+	/**
+	 * @param value a field value, or null
+	 * @return the value as a CSV field, quoted if needed
+	 */
+	private static String csv(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+				&& value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/** Checks chunks of records; shared by the threads. */
+	private static final class Check {
+
+		/** Attribute holding the principal name. */
+		private final String principalAttribute;
+
+		/** Attribute holding the value stored in LDAP, or null. */
+		private final String storedAttribute;
+
+		/** Attributes forming the local ID. */
+		private final String[] sourceAttributes;
+
+		/** The IdP identifier. */
+		private final String idpIdentifier;
+
+		/** The sharedToken generator. */
+		private final SharedTokenGenerator generator;
+
+		/** The table and columns values are kept in. */
+		private final SharedTokenSchema schema;
+
+		/** Whether to report principals with no value in the database. */
+		private final boolean reportMissing;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param principalAttribute attribute holding the principal name
+		 * @param storedAttribute attribute holding the value stored in LDAP, or null
+		 * @param sourceAttributes attributes forming the local ID
+		 * @param idpIdentifier the IdP identifier
+		 * @param generator the sharedToken generator
+		 * @param schema the table and columns values are kept in
+		 * @param reportMissing whether to report principals with no value in the database
+		 */
+		private Check(String principalAttribute, String storedAttribute, String[] sourceAttributes,
+				String idpIdentifier, SharedTokenGenerator generator, SharedTokenSchema schema,
+				boolean reportMissing) {
+			this.principalAttribute = principalAttribute;
+			this.storedAttribute = storedAttribute;
+			this.sourceAttributes = sourceAttributes;
+			this.idpIdentifier = idpIdentifier;
+			this.generator = generator;
+			this.schema = schema;
+			this.reportMissing = reportMissing;
+		}
+
+		/**
+		 * Checks a chunk of records.
+		 *
+		 * @param records the records
+		 * @param connections connections to the database to borrow one from, or null to not check the database
+		 * @return the problems found
+		 * @throws Exception if the database cannot be read
+		 */
+		private Chunk run(List<SourceRecord> records, BlockingQueue<Connection> connections) throws Exception {
+			Chunk chunk = new Chunk(records.size());
+			List<String> uids = new ArrayList<String>(records.size());
+			for (SourceRecord record : records) {
+				String uid = record.getFirstValue(principalAttribute);
+				if (uid != null) {
+					uids.add(uid);
+				}
+			}
+			Map<String, String> stored = Collections.emptyMap();
+			if (connections != null && !uids.isEmpty()) {
+				Connection conn = connections.take();
+				try {
+					stored = ToolSupport.select(conn, schema, uids);
+				} finally {
+					connections.add(conn);
+				}
+			}
+
+			for (SourceRecord record : records) {
+				String uid = record.getFirstValue(principalAttribute);
+				if (uid == null) {
+					System.err.println("Skipping record without " + principalAttribute);
+					chunk.noSource++;
+					continue;
+				}
+				chunk.uidHashes[chunk.uidCount++] = SharedTokenIndex.hash(uid, 0);
+				String localId = record.getLocalId(sourceAttributes);
+				String database = stored.get(uid);
+				String ldap = storedAttribute != null ? record.getFirstValue(storedAttribute) : null;
+				if (localId == null) {
+					chunk.lines.add(line(uid, "no-source", null, database, ldap));
+					chunk.noSource++;
+					continue;
+				}
+				String expected = generator.generate(localId, idpIdentifier);
+				if (connections != null) {
+					if (database == null) {
+						chunk.missing++;
+						if (reportMissing) {
+							chunk.lines.add(line(uid, "missing", expected, null, ldap));
+						}
+					} else if (!database.equals(expected)) {
+						chunk.lines.add(line(uid, "database-mismatch", expected, database, ldap));
+						chunk.databaseMismatches++;
+					}
+				}
+				if (ldap != null && !ldap.equals(expected)) {
+					chunk.lines.add(line(uid, "ldap-mismatch", expected, database, ldap));
+					chunk.ldapMismatches++;
+				}
+			}
+			return chunk;
+		}
+	}
+
+	/** The outcome of checking a chunk of records. */
+	private static final class Chunk {
+
+		/** Number of records checked. */
+		private final int records;
+
+		/** Lines of the report. */
+		private final List<String> lines = new ArrayList<String>();
+
+		/** Hashes of the principal names checked, the first uidCount of them. */
+		private final long[] uidHashes;
+
+		/** Number of principal names checked. */
+		private int uidCount;
+
+		/** Principals whose database value differs from the computed one. */
+		private long databaseMismatches;
+
+		/** Principals whose LDAP value differs from the computed one. */
+		private long ldapMismatches;
+
+		/** Principals with no value in the database. */
+		private long missing;
+
+		/** Records without a principal name or source attributes. */
+		private long noSource;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param records number of records in the chunk
+		 */
+		private Chunk(int records) {
+			this.records = records;
+			uidHashes = new long[records];
+		}
+	}
+
+	/** Counts of a run. */
+	private static final class Totals {
+
+		/** Number of records checked. */
+		private long records;
+
+		/** Principals whose database value differs from the computed one. */
+		private long databaseMismatches;
+
+		/** Principals whose LDAP value differs from the computed one. */
+		private long ldapMismatches;
+
+		/** Principals with no value in the database. */
+		private long missing;
+
+		/** Records without a principal name or source attributes. */
+		private long noSource;
+
+		/** Database rows of principals missing from the input. */
+		private long orphans;
+
+		/**
+		 * @param chunk a chunk to add the counts of
+		 */
+		private void add(Chunk chunk) {
+			records += chunk.records;
+			databaseMismatches += chunk.databaseMismatches;
+			ldapMismatches += chunk.ldapMismatches;
+			missing += chunk.missing;
+			noSource += chunk.noSource;
+		}
+
+		/**
+		 * @return the number of problems reported so far
+		 */
+		private long problems() {
+			return databaseMismatches + ldapMismatches + noSource;
+		}
+	}
+
+	/** Hashes of principal names ({@link SharedTokenIndex#hash}), looked up once all are added. */
+	private static final class UidHashes {
+
+		/** The hashes, the first size of them. */
+		private long[] hashes = new long[1024];
+
+		/** Number of hashes. */
+		private int size;
+
+		/**
+		 * @param chunk hashes of principal names to add
+		 * @param count number of hashes to add, from the start of chunk
+		 */
+		private void addAll(long[] chunk, int count) {
+			if (size + count > hashes.length) {
+				hashes = Arrays.copyOf(hashes, Math.max(size + count, size * 2));
+			}
+			System.arraycopy(chunk, 0, hashes, size, count);
+			size += count;
+		}
+
+		/** Sorts the hashes, to be called before looking them up. */
+		private void sort() {
+			Arrays.sort(hashes, 0, size);
+		}
+
+		/**
+		 * @param hash a hash of a principal name
+		 * @return whether it was added
+		 */
+		private boolean contains(long hash) {
+			return Arrays.binarySearch(hashes, 0, size, hash) >= 0;
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads {@link SourceRecord}s from a CSV file (RFC 4180).
+ *
+ * The first line is a header naming the attribute in each column.  Fields may
+ * be quoted with double quotes, in which case they may contain commas, line
+ * breaks and doubled quotes.  Empty fields are treated as missing values.
+ */
+public class CsvSourceRecordReader implements SourceRecordReader {
+
+	/** The underlying input. */
+	private final BufferedReader in;
+
+	/** Column names, read from the header line. */
+	private final List<String> header;
+
+	/** Number of the line being read, for error messages. */
+	private long lineNumber = 0;
+
+	/**
+	 * Constructor.  Reads the header line.
+	 *
+	 * @param in the input
+	 * @throws IOException if the header cannot be read
+	 */
+	public CsvSourceRecordReader(BufferedReader in) throws IOException {
+		this.in = in;
+		header = readRow();
+		if (header == null) {
+			throw new IOException("CSV input is empty, expected a header line");
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SourceRecord next() throws IOException {
+		List<String> row;
+		do {
+			row = readRow();
+			if (row == null) {
+				return null;
+			}
+		} while (row.size() == 1 && row.get(0).isEmpty());
+
+		if (row.size() > header.size()) {
+			throw new IOException("CSV line " + lineNumber + " has " + row.size() + " fields, header has only "
+					+ header.size());
+		}
+		SourceRecord record = new SourceRecord();
+		for (int i = 0; i < row.size(); i++) {
+			if (!row.get(i).isEmpty()) {
+				record.addValue(header.get(i), row.get(i));
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * Reads one row of fields, which may span several lines if a quoted field
+	 * contains line breaks.
+	 *
+	 * @return the fields, or null at the end of the input
+	 * @throws IOException if the input cannot be read or a quote is not closed
+	 */
+	private List<String> readRow() throws IOException {
+		String line = in.readLine();
+		if (line == null) {
+			return null;
+		}
+		lineNumber++;
+
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		int i = 0;
+		while (true) {
+			if (i == line.length()) {
+				if (!quoted) {
+					break;
+				}
+				// quoted field continues on the next line
+				line = in.readLine();
+				if (line == null) {
+					throw new IOException("CSV line " + lineNumber + " has an unterminated quoted field");
+				}
+				lineNumber++;
+				field.append('\n');
+				i = 0;
+				continue;
+			}
+			char c = line.charAt(i++);
+			if (quoted) {
+				if (c == '"') {
+					if (i < line.length() && line.charAt(i) == '"') {
+						field.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Base64;
+import java.util.Locale;
+
+import au.org.arcs.shibext.sharedtoken.MiscHelper;
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+import au.org.arcs.shibext.sharedtoken.SharedTokenStoreDialect;
+
+/**
+ * Writes all sharedToken values in the database to a CSV or LDIF file, to
+ * be loaded into LDAP or, with the import command, into another database.
+ *
+ * The table is read with a forward-only cursor fetching
+ * <code>--fetch-size</code> rows at a time, so memory use does not grow with
+ * the number of rows.  CSV output has a header line naming the principal and
+ * sharedToken attributes, as read back by the import command.  LDIF output
+ * has an entry per principal, with its DN made from <code>--dn-template</code>
+ * like the connector's ldapDnTemplate, or with <code>--ldif-changes</code> a
+ * modify change record adding the value, for <code>ldapmodify</code>.
+ */
+public class ExportCommand implements ToolCommand {
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "export";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "write all sharedToken values in the database to a CSV or LDIF file";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		ToolSupport.printDatabaseUsage(out);
+		out.println("  --output FILE              file to write (default: standard output)");
+		out.println("  --format csv|ldif          output format (default: from file extension, csv for standard output)");
+		out.println("  --principal-attribute ID   attribute to write the principal name as (default: uid)");
+		out.println("  --token-attribute ID       attribute to write the value as, as storedAttributeName"
+				+ " (default: auEduPersonSharedToken)");
+		out.println("  --dn-template TEMPLATE     DN of LDIF entries, with {principal} for the principal name");
+		out.println("  --ldif-changes             write LDIF modify records adding the value, for ldapmodify");
+		out.println("  --fetch-size N             rows fetched from the database at a time (default: 10000)");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		String output = args.get("output");
+		String format = args.get("format", output != null && output.toLowerCase(Locale.ROOT).endsWith(".ldif") ? "ldif" : "csv");
+		boolean ldif;
+		if ("ldif".equalsIgnoreCase(format)) {
+			ldif = true;
+		} else if ("csv".equalsIgnoreCase(format)) {
+			ldif = false;
+		} else {
+			throw new IllegalArgumentException("Unknown output format " + format + ", expected csv or ldif");
+		}
+		String principalAttribute = args.get("principal-attribute", "uid");
+		String tokenAttribute = args.get("token-attribute", "auEduPersonSharedToken");
+		String dnTemplate = ldif ? args.getRequired("dn-template") : null;
+		boolean changes = args.has("ldif-changes");
+		int fetchSize = args.getPositiveInt("fetch-size", 10000);
+		SharedTokenSchema schema = ToolSupport.getSchema(args);
+
+		long exported = 0;
+		long start = System.nanoTime();
+		try (Connection conn = ToolSupport.openConnection(args);
+				Writer out = output != null ? Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)
+						: new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+			SharedTokenStoreDialect dialect = ToolSupport.getDialect(args, conn);
+			// some drivers only use a cursor inside a transaction
+			conn.setAutoCommit(false);
+			try (PreparedStatement st = conn.prepareStatement(schema.sql("SELECT {uid}, {token} FROM {table}"),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				st.setFetchSize(dialect.getStreamingFetchSize(fetchSize));
+				if (!ldif) {
+					out.write(csv(principalAttribute) + "," + csv(tokenAttribute) + "\n");
+				} else {
+					out.write("version: 1\n");
+				}
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						String uid = rs.getString(1);
+						String sharedToken = schema.getToken(rs, 2);
+						if (uid == null || sharedToken == null) {
+							continue;
+						}
+						if (!ldif) {
+							out.write(csv(uid) + "," + csv(sharedToken) + "\n");
+						} else {
+							out.write("\n");
+							out.write(ldifLine("dn", dnTemplate.replace("{principal}", MiscHelper.escapeDnValue(uid))));
+							if (changes) {
+								out.write("changetype: modify\n");
+								out.write("add: " + tokenAttribute + "\n");
+								out.write(ldifLine(tokenAttribute, sharedToken));
+								out.write("-\n");
+							} else {
+								out.write(ldifLine(principalAttribute, uid));
+								out.write(ldifLine(tokenAttribute, sharedToken));
+							}
+						}
+						exported++;
+						if (exported % 100000 == 0) {
+							double seconds = (System.nanoTime() - start) / 1e9;
+							System.err.printf("%d values exported (%.0f values/s)%n", exported,
+									exported / Math.max(seconds, 0.001));
+						}
+					}
+				}
+			}
+			conn.rollback();
+			out.flush();
+		}
+		System.err.println("Export complete: " + exported + " values");
+	}
+
+	/**
+	 * @param value a field value
+	 * @return the value as a CSV field, quoted if needed
+	 */
+	private static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+				&& value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Formats an LDIF attribute line, base64 encoding values that are not
+	 * safe strings (RFC 2849).
+	 *
+	 * @param name the attribute name
+	 * @param value the value
+	 * @return the line, with its line break
+	 */
+	private static String ldifLine(String name, String value) {
+		boolean safe = value.isEmpty() || (value.charAt(0) != ' ' && value.charAt(0) != ':'
+				&& value.charAt(0) != '<' && value.charAt(value.length() - 1) != ' ');
+		for (int i = 0; safe && i < value.length(); i++) {
+			char c = value.charAt(i);
+			safe = c > 0 && c < 0x80 && c != '\n' && c != '\r';
+		}
+		if (safe) {
+			return name + ": " + value + "\n";
+		}
+		return name + ":: " + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) + "\n";
+	}
+
+}
@@ -0,0 +1,350 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ldaptive.AttributeModification;
+import org.ldaptive.AttributeModificationType;
+import org.ldaptive.BindConnectionInitializer;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.Credential;
+import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapException;
+import org.ldaptive.ModifyRequest;
+import org.ldaptive.ResultCode;
+
+import au.org.arcs.shibext.sharedtoken.MiscHelper;
+import au.org.arcs.shibext.sharedtoken.SharedTokenCodec;
+import au.org.arcs.shibext.sharedtoken.SharedTokenLdapWriter;
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+import au.org.arcs.shibext.sharedtoken.SharedTokenStoreDialect;
+
+/**
+ * Loads sharedToken values from a CSV or LDIF file into the database or
+ * into LDAP, such as the output of the export command or of
+ * <code>ldapsearch</code>.
+ *
+ * The input is streamed.  Into the database, values are written in batches
+ * of <code>--batch-size</code>, one transaction each; principals that
+ * already have the same value are left alone, so a run can simply be
+ * repeated.  Into LDAP, the value is added to each entry over a pool of
+ * <code>--ldap-connections</code> connections, with that many modifications
+ * in flight at once; an entry that already has the value is left alone.  A
+ * principal that already has a different value is reported as a conflict,
+ * unless <code>--replace</code> is given, in which case the value is
+ * replaced.
+ */
+public class ImportCommand implements ToolCommand {
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "import";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "load sharedToken values from a CSV or LDIF file into the database or LDAP";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		out.println("  --input FILE               CSV (with header line) or LDIF file of values");
+		out.println("  --format csv|ldif          input format (default: from file extension)");
+		out.println("  --principal-attribute ID   attribute holding the principal name (default: uid)");
+		out.println("  --token-attribute ID       attribute holding the value (default: auEduPersonSharedToken)");
+		out.println("  --replace                  replace values that differ, rather than reporting them");
+		out.println("To import into the database:");
+		ToolSupport.printDatabaseUsage(out);
+		out.println("  --batch-size N             rows per JDBC batch and transaction (default: 1000)");
+		out.println("To import into LDAP:");
+		out.println("  --ldap-url URL             LDAP URL of the directory");
+		out.println("  --ldap-bind-dn DN          DN to bind as");
+		out.println("  --ldap-bind-password PW    password to bind with (or set SHAREDTOKEN_LDAP_PASSWORD)");
+		out.println("  --dn-template TEMPLATE     DN of the entry to modify, with {principal} for the principal name"
+				+ " (default: the dn of LDIF entries)");
+		out.println("  --ldap-connections N       connections, and modifications in flight (default: 8)");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		if (args.has("jdbc-url") == args.has("ldap-url")) {
+			throw new IllegalArgumentException("One of --jdbc-url, --ldap-url is required");
+		}
+		Counts counts = new Counts();
+		try (SourceRecordReader reader = SourceRecordReader.open(Paths.get(args.getRequired("input")),
+				args.get("format"))) {
+			if (args.has("jdbc-url")) {
+				importIntoDatabase(reader, args, counts);
+			} else {
+				importIntoLdap(reader, args, counts);
+			}
+		}
+		System.err.println("Import complete: " + counts);
+	}
+
+	/**
+	 * Writes the values to the database.
+	 *
+	 * @param reader the input
+	 * @param args the command options
+	 * @param counts counts to add to
+	 * @throws Exception if the input cannot be read or the database written
+	 */
+	private static void importIntoDatabase(SourceRecordReader reader, ToolArguments args, Counts counts)
+			throws Exception {
+		String principalAttribute = args.get("principal-attribute", "uid");
+		String tokenAttribute = args.get("token-attribute", "auEduPersonSharedToken");
+		boolean replace = args.has("replace");
+		int batchSize = args.getPositiveInt("batch-size", 1000);
+		SharedTokenSchema schema = ToolSupport.getSchema(args);
+
+		try (Connection conn = ToolSupport.openConnection(args)) {
+			SharedTokenStoreDialect dialect = ToolSupport.getDialect(args, conn);
+			conn.setAutoCommit(false);
+			try (PreparedStatement insert = conn.prepareStatement(dialect.getInsertIfAbsentSql(schema));
+					PreparedStatement update = conn.prepareStatement(
+							schema.sql("UPDATE {table} SET {token} = ? WHERE {uid} = ?"))) {
+				Map<String, String> batch = new LinkedHashMap<String, String>();
+				SourceRecord record;
+				while ((record = reader.next()) != null) {
+					String uid = record.getFirstValue(principalAttribute);
+					String sharedToken = record.getFirstValue(tokenAttribute);
+					if (uid == null || sharedToken == null || sharedToken.isEmpty()) {
+						System.err.println("Skipping record without " + principalAttribute + " or " + tokenAttribute
+								+ (uid != null ? ": " + uid : ""));
+						counts.skipped.incrementAndGet();
+						continue;
+					}
+					if (schema.isBinary() && SharedTokenCodec.decode(sharedToken) == null) {
+						System.err.println("Skipping " + uid + ": value " + sharedToken
+								+ " is not in canonical form and cannot be stored as raw bytes");
+						counts.skipped.incrementAndGet();
+						continue;
+					}
+					batch.put(uid, sharedToken);
+					if (batch.size() == batchSize) {
+						writeBatch(conn, schema, insert, update, batch, replace, counts);
+						batch.clear();
+					}
+				}
+				if (!batch.isEmpty()) {
+					writeBatch(conn, schema, insert, update, batch, replace, counts);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of values to the database in one transaction.
+	 *
+	 * @param conn the connection, without auto-commit
+	 * @param schema the table and columns values are kept in
+	 * @param insert statement inserting a value if the principal has none
+	 * @param update statement replacing the value of a principal
+	 * @param batch the values, keyed by principal name
+	 * @param replace whether to replace values that differ
+	 * @param counts counts to add to
+	 * @throws Exception if the database cannot be read or written
+	 */
+	private static void writeBatch(Connection conn, SharedTokenSchema schema, PreparedStatement insert,
+			PreparedStatement update, Map<String, String> batch, boolean replace, Counts counts) throws Exception {
+		Map<String, String> existing = ToolSupport.select(conn, schema, batch.keySet());
+		int inserts = 0;
+		int updates = 0;
+		for (Map.Entry<String, String> entry : batch.entrySet()) {
+			String uid = entry.getKey();
+			String current = existing.get(uid);
+			if (current == null) {
+				insert.setString(1, uid);
+				schema.setToken(insert, 2, entry.getValue());
+				insert.addBatch();
+				inserts++;
+			} else if (current.equals(entry.getValue())) {
+				counts.present.incrementAndGet();
+			} else if (replace) {
+				schema.setToken(update, 1, entry.getValue());
+				update.setString(2, uid);
+				update.addBatch();
+				updates++;
+			} else {
+				System.err.println("Conflict: " + uid + " already has value " + current + " rather than "
+						+ entry.getValue() + ", left as it is");
+				counts.conflicts.incrementAndGet();
+			}
+		}
+		if (inserts > 0) {
+			insert.executeBatch();
+		}
+		if (updates > 0) {
+			update.executeBatch();
+		}
+		conn.commit();
+		counts.written.addAndGet(inserts);
+		counts.replaced.addAndGet(updates);
+		counts.progress();
+	}
+
+	/**
+	 * Writes the values to LDAP, keeping a modification in flight on each
+	 * connection.
+	 *
+	 * @param reader the input
+	 * @param args the command options
+	 * @param counts counts to add to
+	 * @throws Exception if the input cannot be read
+	 */
+	private static void importIntoLdap(SourceRecordReader reader, ToolArguments args, Counts counts)
+			throws Exception {
+		String principalAttribute = args.get("principal-attribute", "uid");
+		String tokenAttribute = args.get("token-attribute", "auEduPersonSharedToken");
+		boolean replace = args.has("replace");
+		String dnTemplate = args.get("dn-template");
+		int connections = args.getPositiveInt("ldap-connections", 8);
+
+		ConnectionConfig config = new ConnectionConfig(args.getRequired("ldap-url"));
+		if (args.has("ldap-bind-dn")) {
+			String password = args.get("ldap-bind-password", System.getenv("SHAREDTOKEN_LDAP_PASSWORD"));
+			config.setConnectionInitializer(new BindConnectionInitializer(args.get("ldap-bind-dn"),
+					new Credential(password)));
+		}
+		DefaultConnectionFactory factory = new DefaultConnectionFactory(config);
+		SharedTokenLdapWriter writer = new SharedTokenLdapWriter();
+		writer.setMaxPoolSize(connections);
+
+		// a full queue makes the reading thread run the next modification itself, which bounds memory
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(connections, connections, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(connections * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			SourceRecord record;
+			while ((record = reader.next()) != null) {
+				String uid = record.getFirstValue(principalAttribute);
+				String sharedToken = record.getFirstValue(tokenAttribute);
+				String dn = dnTemplate != null && uid != null
+						? dnTemplate.replace("{principal}", MiscHelper.escapeDnValue(uid))
+						: record.getFirstValue("dn");
+				if (dn == null || sharedToken == null || sharedToken.isEmpty()) {
+					System.err.println("Skipping record without a DN or " + tokenAttribute
+							+ (uid != null ? ": " + uid : ""));
+					counts.skipped.incrementAndGet();
+					continue;
+				}
+				executor.execute(() -> modify(writer, factory, dn, tokenAttribute, sharedToken, replace, counts));
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Adds a value to an LDAP entry, or replaces its values.
+	 *
+	 * @param writer writes over the pool of connections
+	 * @param factory the connection factory
+	 * @param dn the DN of the entry
+	 * @param tokenAttribute attribute holding the value
+	 * @param sharedToken the value
+	 * @param replace whether to replace the values of the entry rather than add to them
+	 * @param counts counts to add to
+	 */
+	private static void modify(SharedTokenLdapWriter writer, DefaultConnectionFactory factory, String dn,
+			String tokenAttribute, String sharedToken, boolean replace, Counts counts) {
+		try {
+			writer.modify(factory, new ModifyRequest(dn, new AttributeModification(
+					replace ? AttributeModificationType.REPLACE : AttributeModificationType.ADD,
+					new LdapAttribute(tokenAttribute, sharedToken))));
+			(replace ? counts.replaced : counts.written).incrementAndGet();
+		} catch (LdapException e) {
+			if (e.getResultCode() == ResultCode.ATTRIBUTE_OR_VALUE_EXISTS) {
+				counts.present.incrementAndGet();
+			} else if (e.getResultCode() == ResultCode.CONSTRAINT_VIOLATION) {
+				System.err.println("Conflict: " + dn + " already has another " + tokenAttribute + ", left as it is");
+				counts.conflicts.incrementAndGet();
+			} else {
+				System.err.println("Failed to modify " + dn + ": " + e.getMessage());
+				counts.failed.incrementAndGet();
+			}
+		} catch (Exception e) {
+			System.err.println("Failed to modify " + dn + ": " + e.getMessage());
+			counts.failed.incrementAndGet();
+		}
+		counts.progress();
+	}
+
+	/** Counts of a run, updated by several threads. */
+	private static final class Counts {
+
+		/** Number of processed records between progress reports. */
+		private static final long PROGRESS_INTERVAL = 10000;
+
+		/** Values written where the principal had none. */
+		private final AtomicLong written = new AtomicLong();
+
+		/** Values that replaced a different value. */
+		private final AtomicLong replaced = new AtomicLong();
+
+		/** Values already in place. */
+		private final AtomicLong present = new AtomicLong();
+
+		/** Values left out because the principal has a different value. */
+		private final AtomicLong conflicts = new AtomicLong();
+
+		/** Records without the attributes needed. */
+		private final AtomicLong skipped = new AtomicLong();
+
+		/** Values that could not be written. */
+		private final AtomicLong failed = new AtomicLong();
+
+		/** When the run started, from {@link System#nanoTime()}. */
+		private final long start = System.nanoTime();
+
+		/** Processed count at the last progress report. */
+		private final AtomicLong reported = new AtomicLong();
+
+		/**
+		 * @return number of records processed
+		 */
+		private long processed() {
+			return written.get() + replaced.get() + present.get() + conflicts.get() + skipped.get() + failed.get();
+		}
+
+		/**
+		 * Reports progress now and then.
+		 */
+		private void progress() {
+			long processed = processed();
+			long last = reported.get();
+			if (processed - last >= PROGRESS_INTERVAL && reported.compareAndSet(last, processed)) {
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.err.printf("%s (%.0f records/s)%n", this, processed / Math.max(seconds, 0.001));
+			}
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public String toString() {
+			return processed() + " records processed, " + written + " written, " + replaced + " replaced, "
+					+ present + " already present, " + conflicts + " conflicts, " + skipped + " skipped, " + failed
+					+ " failed";
+		}
+	}
+
+}
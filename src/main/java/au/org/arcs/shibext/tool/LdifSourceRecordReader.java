@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Reads {@link SourceRecord}s from an LDIF file (RFC 2849), such as the
+ * output of <code>ldapsearch -LLL</code>.
+ *
+ * Each entry becomes one record; the entry DN is available as the
+ * <code>dn</code> attribute.  Folded lines, comments and base64 encoded
+ * (<code>::</code>) values are supported.  Values given by URL
+ * (<code>:&lt;</code>) and change records are not.
+ */
+public class LdifSourceRecordReader implements SourceRecordReader {
+
+	/** The underlying input. */
+	private final BufferedReader in;
+
+	/** A line read ahead while checking for folded continuation lines. */
+	private String pending;
+
+	/** Number of the last line read, for error messages. */
+	private long lineNumber = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in the input
+	 */
+	public LdifSourceRecordReader(BufferedReader in) {
+		this.in = in;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SourceRecord next() throws IOException {
+		SourceRecord record = new SourceRecord();
+		String line;
+		while ((line = readLogicalLine()) != null) {
+			if (line.isEmpty()) {
+				if (!record.isEmpty()) {
+					return record;
+				}
+				continue;
+			}
+			if (line.startsWith("#")) {
+				continue;
+			}
+			int colon = line.indexOf(':');
+			if (colon <= 0) {
+				throw new IOException("LDIF line " + lineNumber + " is not an attribute line");
+			}
+			String name = line.substring(0, colon);
+			if (record.isEmpty() && "version".equalsIgnoreCase(name)) {
+				continue;
+			}
+			String value;
+			if (line.startsWith("::", colon)) {
+				try {
+					value = new String(Base64.getMimeDecoder().decode(line.substring(colon + 2).trim()),
+							StandardCharsets.UTF_8);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("LDIF line " + lineNumber + " has an invalid base64 value", e);
+				}
+			} else if (line.startsWith(":<", colon)) {
+				throw new IOException("LDIF line " + lineNumber + " uses a URL value, which is not supported");
+			} else {
+				value = line.substring(colon + 1).trim();
+			}
+			if ("changetype".equalsIgnoreCase(name)) {
+				throw new IOException("LDIF line " + lineNumber + " is a change record, which is not supported");
+			}
+			record.addValue(name, value);
+		}
+		return record.isEmpty() ? null : record;
+	}
+
+	/**
+	 * Reads one logical line, unfolding continuation lines (those starting
+	 * with a single space).
+	 *
+	 * @return the line, or null at the end of the input
+	 * @throws IOException if the input cannot be read
+	 */
+	private String readLogicalLine() throws IOException {
+		String line = pending != null ? pending : readPhysicalLine();
+		pending = null;
+		if (line == null) {
+			return null;
+		}
+		StringBuilder unfolded = null;
+		String next;
+		while ((next = readPhysicalLine()) != null && next.startsWith(" ")) {
+			if (unfolded == null) {
+				unfolded = new StringBuilder(line);
+			}
+			unfolded.append(next, 1, next.length());
+		}
+		pending = next;
+		return unfolded != null ? unfolded.toString() : line;
+	}
+
+	/**
+	 * @return the next physical line, or null at the end of the input
+	 * @throws IOException if the input cannot be read
+	 */
+	private String readPhysicalLine() throws IOException {
+		String line = in.readLine();
+		if (line != null) {
+			lineNumber++;
+		}
+		return line;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
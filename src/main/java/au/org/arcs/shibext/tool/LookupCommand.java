@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import au.org.arcs.shibext.sharedtoken.SharedTokenStore;
+
+/**
+ * Looks up the principals holding sharedToken values, such as those sent by
+ * a service provider about an account to deprovision.
+ *
+ * The values are read from <code>--token</code> or, one per line, from
+ * <code>--input</code>, and looked up <code>--batch-size</code> at a time
+ * with {@link SharedTokenStore#findPrincipals}, a few hundred per query.  For each value a line with the value and
+ * the principal name, separated by a tab, is printed in input order; the
+ * principal name is empty if no principal holds the value.  Without an index
+ * on the sharedToken column, every query scans the table.
+ */
+public class LookupCommand implements ToolCommand {
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "lookup";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "find the principals holding sharedToken values";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		out.println("  --token VALUE              sharedToken value to look up");
+		out.println("  --input FILE               file of values to look up, one per line, - for standard input");
+		ToolSupport.printDatabaseUsage(out);
+		out.println("  --batch-size N             values read and looked up at a time (default: 1000)");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		if (args.has("token") == args.has("input")) {
+			throw new IllegalArgumentException("One of --token, --input is required");
+		}
+		int batchSize = args.getPositiveInt("batch-size", 1000);
+		DataSource dataSource = ToolSupport.getDataSource(args);
+		SharedTokenStore store = new SharedTokenStore(dataSource);
+		store.setSchema(ToolSupport.getSchema(args));
+		try (Connection conn = dataSource.getConnection()) {
+			store.setDialect(ToolSupport.getDialect(args, conn));
+		}
+
+		long read = 0;
+		long found = 0;
+		if (args.has("token")) {
+			List<String> values = Collections.singletonList(args.get("token").trim());
+			found += print(values, store.findPrincipals(values));
+			read++;
+		} else {
+			String input = args.get("input");
+			try (BufferedReader in = "-".equals(input)
+					? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+					: Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+				List<String> values = new ArrayList<String>(batchSize);
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty()) {
+						continue;
+					}
+					values.add(line);
+					if (values.size() == batchSize) {
+						found += print(values, store.findPrincipals(values));
+						read += values.size();
+						values.clear();
+					}
+				}
+				if (!values.isEmpty()) {
+					found += print(values, store.findPrincipals(values));
+					read += values.size();
+				}
+			}
+		}
+		System.err.println("Lookup complete: " + read + " values, " + found + " found, " + (read - found)
+				+ " not found");
+	}
+
+	/**
+	 * Prints the principals of a batch of values.
+	 *
+	 * @param values the values, in input order
+	 * @param principals the principal names found, keyed by value
+	 * @return the number of values found
+	 */
+	private static int print(List<String> values, Map<String, String> principals) {
+		int found = 0;
+		for (String value : values) {
+			String uid = principals.get(value);
+			if (uid != null) {
+				found++;
+			}
+			System.out.println(value + "\t" + (uid != null ? uid : ""));
+		}
+		return found;
+	}
+
+}
@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import au.org.arcs.shibext.sharedtoken.SharedTokenCodec;
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+import au.org.arcs.shibext.sharedtoken.SharedTokenStoreDialect;
+
+/**
+ * Copies sharedToken values from one table to another, typically from the
+ * original tb_st to a table holding the values as raw bytes with a unique
+ * index on them (see databaseTokenFormat).
+ *
+ * The source table is read in principal name order, <code>--batch-size</code>
+ * rows per query, each query starting after the last name read.  No query
+ * holds locks or a cursor open for long, so the IdPs can keep using the
+ * source table meanwhile.  Each batch is inserted into the target table in
+ * one transaction, leaving principals that already have a value there
+ * untouched; a principal whose value differs between the tables is reported
+ * as a conflict.  If a batch breaks a constraint of the target table, for
+ * example because a value is already held by another principal there, it
+ * is rolled back and its rows are inserted one at a time, and the rows that
+ * still fail are reported as conflicts.  Values that cannot be stored as raw bytes are reported
+ * and skipped.  Running the command again copies only what is missing, so
+ * it can be resumed after a failure (with <code>--after</code> to skip what
+ * was already copied) and re-run after the IdPs are switched to the target
+ * table, to pick up values created on the source table in the meantime.
+ */
+public class MigrateCommand implements ToolCommand {
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "migrate";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "copy sharedToken values to a table with another layout, such as the binary token format";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		ToolSupport.printDatabaseUsage(out);
+		out.println("  --to-table NAME            table to copy the values to");
+		out.println("  --to-uid-column NAME       principal name column of the target table (default: uid)");
+		out.println("  --to-token-column NAME     sharedToken column of the target table (default: sharedToken)");
+		out.println("  --to-token-format FORMAT   text or binary, format of the target table (default: binary)");
+		out.println("  --create                   create the target table if it does not exist");
+		out.println("  --batch-size N             rows per query and transaction (default: 1000)");
+		out.println("  --after UID                only copy principals whose names sort after UID, to resume");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		SharedTokenSchema from = ToolSupport.getSchema(args);
+		args.getRequired("to-table");
+		SharedTokenSchema to = ToolSupport.getSchema(args, "to-", "binary");
+		if (from.getTable().equalsIgnoreCase(to.getTable())) {
+			throw new IllegalArgumentException("Option --to-table must name another table than --table");
+		}
+		int batchSize = args.getPositiveInt("batch-size", 1000);
+		String after = args.get("after");
+
+		long copied = 0;
+		long present = 0;
+		long conflicts = 0;
+		long skipped = 0;
+		long start = System.nanoTime();
+		try (Connection reader = ToolSupport.openConnection(args);
+				Connection writer = ToolSupport.openConnection(args)) {
+			SharedTokenStoreDialect dialect = ToolSupport.getDialect(args, writer);
+			if (args.has("create")) {
+				to.create(writer, dialect);
+			} else {
+				to.verify(writer);
+			}
+			reader.setAutoCommit(true);
+			writer.setAutoCommit(false);
+			if (after != null) {
+				System.err.println("Resuming after " + after);
+			}
+
+			try (PreparedStatement insert = writer.prepareStatement(dialect.getInsertIfAbsentSql(to))) {
+				while (true) {
+					Map<String, String> rows = read(reader, from, after, batchSize);
+					if (rows.isEmpty()) {
+						break;
+					}
+					for (String uid : rows.keySet()) {
+						after = uid;
+					}
+
+					Map<String, String> existing = ToolSupport.select(writer, to, rows.keySet());
+					Map<String, String> missing = new LinkedHashMap<String, String>();
+					for (Map.Entry<String, String> row : rows.entrySet()) {
+						String uid = row.getKey();
+						String sharedToken = row.getValue();
+						if (sharedToken == null || existing.containsKey(uid)) {
+							continue;
+						}
+						if (to.isBinary() && SharedTokenCodec.decode(sharedToken) == null) {
+							System.err.println("Skipping " + uid + ": value " + sharedToken
+									+ " is not in canonical form and cannot be stored as raw bytes");
+							skipped++;
+							continue;
+						}
+						missing.put(uid, sharedToken);
+					}
+					Set<String> failed = ToolSupport.insert(writer, to, insert, missing);
+
+					Map<String, String> stored = ToolSupport.select(writer, to, rows.keySet());
+					for (Map.Entry<String, String> row : rows.entrySet()) {
+						String uid = row.getKey();
+						String value = stored.get(uid);
+						if (row.getValue() == null) {
+							continue;
+						}
+						if (value == null) {
+							if (failed.contains(uid)) {
+								System.err.println("Conflict: " + uid + " was not copied, its value " + row.getValue()
+										+ " breaks a constraint of " + to.getTable()
+										+ ", it may already be held by another principal");
+								conflicts++;
+							} else if (missing.containsKey(uid)) {
+								// MySQL leaves out a row whose value another principal holds without an error
+								System.err.println("Conflict: " + uid + " was not copied, its value " + row.getValue()
+										+ " may already be held by another principal in " + to.getTable());
+								conflicts++;
+							}
+						} else if (!value.equals(row.getValue())) {
+							System.err.println("Conflict: " + uid + " has a different value in " + to.getTable()
+									+ " than in " + from.getTable() + ", left as it is");
+							conflicts++;
+						} else if (existing.containsKey(uid)) {
+							present++;
+						} else {
+							copied++;
+						}
+					}
+
+					double seconds = (System.nanoTime() - start) / 1e9;
+					System.err.printf("%d copied, %d already present, %d conflicts, %d skipped (%.0f rows/s),"
+							+ " resume with --after %s%n", copied, present, conflicts, skipped,
+							(copied + present + conflicts + skipped) / Math.max(seconds, 0.001), after);
+				}
+			}
+		}
+		System.out.println("Migration complete: " + copied + " copied, " + present + " already present, "
+				+ conflicts + " conflicts, " + skipped + " skipped");
+	}
+
+	/**
+	 * Reads the next batch of rows of the source table, in principal name
+	 * order.
+	 *
+	 * @param conn a connection to the database, in auto-commit
+	 * @param schema the source table and columns
+	 * @param after the last principal name read, or null to start from the first
+	 * @param batchSize the number of rows to read
+	 * @return the sharedToken values, null for rows without one, keyed by principal name in order
+	 * @throws SQLException if the rows cannot be read
+	 */
+	private static Map<String, String> read(Connection conn, SharedTokenSchema schema, String after, int batchSize)
+			throws SQLException {
+		String sql = schema.sql(after == null ? "SELECT {uid}, {token} FROM {table} ORDER BY {uid}"
+				: "SELECT {uid}, {token} FROM {table} WHERE {uid} > ? ORDER BY {uid}");
+		Map<String, String> rows = new LinkedHashMap<String, String>();
+		try (PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setMaxRows(batchSize);
+			st.setFetchSize(batchSize);
+			if (after != null) {
+				st.setString(1, after);
+			}
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					// rows without a value are kept, so the next batch starts after them
+					rows.put(rs.getString(1), schema.getToken(rs, 2));
+				}
+			}
+		}
+		return rows;
+	}
+
+}
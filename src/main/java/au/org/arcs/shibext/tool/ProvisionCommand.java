@@ -0,0 +1,246 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import au.org.arcs.shibext.sharedtoken.SharedTokenGenerator;
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+import au.org.arcs.shibext.sharedtoken.SharedTokenStoreDialect;
+
+/**
+ * Pre-populates the sharedToken database from a CSV or LDIF export of the
+ * user directory.
+ *
+ * The input is read in chunks of <code>--batch-size</code> records.  Each
+ * chunk is hashed on a worker thread; chunks are then inserted in input
+ * order, one JDBC batch and one transaction per chunk.  At most a few chunks
+ * per worker are held in memory at any time.  Principals that already have a
+ * value are looked up first and left untouched.  If a batch still breaks a
+ * constraint, for example because a value is already held by another
+ * principal, its rows are inserted one at a time and those that fail are
+ * reported as conflicts.  After each committed chunk the number of input
+ * records processed is written to the checkpoint file, and a later run with
+ * the same checkpoint file skips those records.
+ */
+public class ProvisionCommand implements ToolCommand {
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "provision";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "generate and store sharedToken values for all principals in a CSV or LDIF file";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		out.println("  --input FILE               CSV (with header line) or LDIF file of principals");
+		out.println("  --format csv|ldif          input format (default: from file extension)");
+		out.println("  --principal-attribute ID   attribute holding the principal name (default: uid)");
+		ToolSupport.printGeneratorUsage(out);
+		ToolSupport.printDatabaseUsage(out);
+		out.println("  --batch-size N             rows per JDBC batch and transaction (default: 1000)");
+		out.println("  --threads N                hashing threads (default: number of processors)");
+		out.println("  --checkpoint FILE          file recording progress, to resume an interrupted run");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		Path input = Paths.get(args.getRequired("input"));
+		String principalAttribute = args.get("principal-attribute", "uid");
+		String[] sourceAttributes = ToolSupport.getSourceAttributes(args);
+		String idpIdentifier = args.getRequired("idp-identifier");
+		SharedTokenGenerator generator = new SharedTokenGenerator(ToolSupport.getSalt(args));
+		int batchSize = args.getPositiveInt("batch-size", 1000);
+		int threads = args.getPositiveInt("threads", Runtime.getRuntime().availableProcessors());
+		Path checkpoint = args.has("checkpoint") ? Paths.get(args.get("checkpoint")) : null;
+		SharedTokenSchema schema = ToolSupport.getSchema(args);
+
+		long skip = readCheckpoint(checkpoint);
+		long processed = skip;
+		long inserted = 0;
+		long present = 0;
+		long conflicts = 0;
+		long skipped = 0;
+		long start = System.nanoTime();
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		try (SourceRecordReader reader = SourceRecordReader.open(input, args.get("format"));
+				Connection conn = ToolSupport.openConnection(args)) {
+			SharedTokenStoreDialect dialect = ToolSupport.getDialect(args, conn);
+			conn.setAutoCommit(false);
+			try (PreparedStatement st = conn.prepareStatement(dialect.getInsertIfAbsentSql(schema))) {
+				for (long i = 0; i < skip; i++) {
+					if (reader.next() == null) {
+						break;
+					}
+				}
+				if (skip > 0) {
+					System.err.println("Resuming after " + skip + " records");
+				}
+
+				boolean more = true;
+				while (more || !pending.isEmpty()) {
+					if (more) {
+						List<SourceRecord> records = new ArrayList<SourceRecord>(batchSize);
+						SourceRecord record;
+						while (records.size() < batchSize && (record = reader.next()) != null) {
+							records.add(record);
+						}
+						more = records.size() == batchSize;
+						if (!records.isEmpty()) {
+							pending.add(workers.submit(() -> hash(records, principalAttribute, sourceAttributes,
+									idpIdentifier, generator)));
+						}
+					}
+					if (pending.isEmpty() || (more && pending.size() < threads * 2)) {
+						continue;
+					}
+
+					Chunk chunk = pending.remove().get();
+					Map<String, String> values = new LinkedHashMap<String, String>();
+					for (int i = 0; i < chunk.uids.size(); i++) {
+						values.putIfAbsent(chunk.uids.get(i), chunk.tokens.get(i));
+					}
+					Map<String, String> existing = ToolSupport.select(conn, schema, values.keySet());
+					values.keySet().removeAll(existing.keySet());
+					ToolSupport.insert(conn, schema, st, values);
+					Map<String, String> stored = ToolSupport.select(conn, schema, values.keySet());
+					for (Map.Entry<String, String> value : values.entrySet()) {
+						String uid = value.getKey();
+						if (value.getValue().equals(stored.get(uid))) {
+							inserted++;
+						} else if (stored.containsKey(uid)) {
+							// stored by an IdP in the meantime
+							present++;
+						} else {
+							System.err.println("Conflict: " + uid + " was not provisioned, its value "
+									+ value.getValue() + " may already be held by another principal");
+							conflicts++;
+						}
+					}
+					processed += chunk.records;
+					// records without the attributes, and repeated principals
+					skipped += chunk.records - values.size() - existing.size();
+					present += existing.size();
+					writeCheckpoint(checkpoint, processed);
+
+					double seconds = (System.nanoTime() - start) / 1e9;
+					System.err.printf("%d records processed, %d inserted, %d already present, %d conflicts, %d skipped"
+							+ " (%.0f records/s)%n", processed, inserted, present, conflicts, skipped,
+							(processed - skip) / Math.max(seconds, 0.001));
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+		System.out.println("Provisioning complete: " + processed + " records processed, " + inserted
+				+ " inserted, " + present + " already present, " + conflicts + " conflicts, " + skipped + " skipped");
+	}
+
+	/**
+	 * Computes the sharedToken values for a chunk of records.
+	 *
+	 * @param records the records
+	 * @param principalAttribute attribute holding the principal name
+	 * @param sourceAttributes attributes forming the local ID
+	 * @param idpIdentifier the IdP identifier
+	 * @param generator the sharedToken generator
+	 * @return the principals and values, skipping records lacking any of the attributes
+	 */
+	private static Chunk hash(List<SourceRecord> records, String principalAttribute, String[] sourceAttributes,
+			String idpIdentifier, SharedTokenGenerator generator) {
+		Chunk chunk = new Chunk(records.size());
+		for (SourceRecord record : records) {
+			String uid = record.getFirstValue(principalAttribute);
+			String localId = record.getLocalId(sourceAttributes);
+			if (uid == null || localId == null) {
+				System.err.println("Skipping record without " + principalAttribute + " or source attributes"
+						+ (uid != null ? ": " + uid : ""));
+				continue;
+			}
+			chunk.uids.add(uid);
+			chunk.tokens.add(generator.generate(localId, idpIdentifier));
+		}
+		return chunk;
+	}
+
+	/**
+	 * @param checkpoint the checkpoint file, or null
+	 * @return the number of records already processed, 0 if there is no checkpoint
+	 * @throws IOException if the checkpoint cannot be read
+	 */
+	private static long readCheckpoint(Path checkpoint) throws IOException {
+		if (checkpoint == null || !Files.exists(checkpoint)) {
+			return 0;
+		}
+		return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+	}
+
+	/**
+	 * Atomically replaces the checkpoint file.
+	 *
+	 * @param checkpoint the checkpoint file, or null
+	 * @param processed the number of records processed
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	private static void writeCheckpoint(Path checkpoint, long processed) throws IOException {
+		if (checkpoint == null) {
+			return;
+		}
+		Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		Files.write(tmp, Long.toString(processed).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** A chunk of hashed records. */
+	private static final class Chunk {
+
+		/** Number of input records in the chunk, including skipped ones. */
+		private final int records;
+
+		/** Principal names. */
+		private final List<String> uids;
+
+		/** SharedToken values, in the same order as the principal names. */
+		private final List<String> tokens;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param records number of input records in the chunk
+		 */
+		private Chunk(int records) {
+			this.records = records;
+			uids = new ArrayList<String>(records);
+			tokens = new ArrayList<String>(records);
+		}
+	}
+
+}
@@ -0,0 +1,351 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+import au.org.arcs.shibext.sharedtoken.SharedTokenShardRouter;
+import au.org.arcs.shibext.sharedtoken.SharedTokenStoreDialect;
+
+/**
+ * Moves sharedToken values between the shards of a sharded store after shards
+ * are added or removed, so every principal's value is in the shard the
+ * connector now looks it up in.
+ *
+ * Every shard is read in principal name order, <code>--batch-size</code>
+ * rows per query, each query starting after the last name read, and each
+ * row whose principal belongs to another shard is copied there and then
+ * deleted from where it was.  Rows are moved a query's worth at a time, one
+ * transaction on each side per destination shard, and no query is open on
+ * the shard while its rows are deleted.  A row is only deleted once the destination holds
+ * the same value; if the destination already holds a different value, the
+ * row is reported and left in place.  Running the command again moves
+ * nothing that is already in place, so it can be resumed after a failure
+ * and re-run after the connector is reconfigured to pick up values created
+ * on the old shards in the meantime.
+ *
+ * The shards are described in a properties file:
+ *
+ * <pre>
+ * # the shards, in the order of databaseConnectionIDs
+ * shards = shard0, shard1, shard2
+ * # shards being removed, emptied into the others
+ * drain = oldshard
+ * shard0.url = jdbc:mysql://db0/sharedtoken?useCursorFetch=true
+ * shard0.user = idp_admin
+ * shard0.password = secret
+ * ...
+ * </pre>
+ *
+ * The shard names must be the bean IDs listed in databaseConnectionIDs, as
+ * consistent hashing places the shards by name.
+ */
+public class RebalanceCommand implements ToolCommand {
+
+	/** {@inheritDoc} */
+	@Override
+	public String getName() {
+		return "rebalance";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getDescription() {
+		return "move sharedToken values to the shard they belong to after shards are added or removed";
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void printUsage(PrintStream out) {
+		out.println("  --shards-file FILE         properties file listing the shards and their JDBC URLs, users and passwords");
+		out.println("  --sharding NAME            modulo or consistent, as the connector's sharding (default: modulo)");
+		out.println("  --dialect NAME             MYSQL, POSTGRESQL, ORACLE, SQLSERVER, H2 or GENERIC (default: detected)");
+		ToolSupport.printSchemaUsage(out);
+		out.println("  --batch-size N             rows per destination shard per transaction (default: 1000)");
+		out.println("  --dry-run                  only count the rows that would be moved");
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void run(ToolArguments args) throws Exception {
+		Properties config = new Properties();
+		try (InputStream in = Files.newInputStream(Paths.get(args.getRequired("shards-file")))) {
+			config.load(in);
+		}
+		List<String> names = splitNames(config.getProperty("shards"));
+		if (names.isEmpty()) {
+			throw new IllegalArgumentException("shards must be set in the shards file");
+		}
+		List<String> drained = splitNames(config.getProperty("drain"));
+		SharedTokenShardRouter router = new SharedTokenShardRouter(names,
+				SharedTokenShardRouter.Sharding.fromName(args.get("sharding", "modulo")));
+		int batchSize = args.getPositiveInt("batch-size", 1000);
+		boolean dryRun = args.has("dry-run");
+
+		Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+		try {
+			List<String> scanned = new ArrayList<String>(names);
+			scanned.addAll(drained);
+			for (String name : scanned) {
+				shards.put(name, new Shard(name, config, args));
+			}
+
+			Totals totals = new Totals();
+			for (String name : scanned) {
+				rebalance(shards.get(name), router, shards, batchSize, dryRun, totals);
+			}
+			System.out.println("Rebalancing " + (dryRun ? "dry run " : "") + "complete: " + totals.scanned
+					+ " rows scanned, " + totals.moved + (dryRun ? " to move, " : " moved, ") + totals.conflicts
+					+ " conflicts");
+		} finally {
+			for (Shard shard : shards.values()) {
+				shard.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves the rows of a shard that belong to other shards.
+	 *
+	 * @param source the shard to scan
+	 * @param router chooses the shard of a principal
+	 * @param shards all shards, keyed by name
+	 * @param batchSize rows per destination shard per transaction
+	 * @param dryRun whether to only count the rows to move
+	 * @param totals counts to add to
+	 * @throws SQLException if a shard cannot be read or written
+	 */
+	private static void rebalance(Shard source, SharedTokenShardRouter router, Map<String, Shard> shards,
+			int batchSize, boolean dryRun, Totals totals) throws SQLException {
+		System.err.println("Scanning shard " + source.name);
+		long scanned = 0;
+		try (Connection scan = source.open()) {
+			scan.setAutoCommit(true);
+			SharedTokenStoreDialect dialect = ToolSupport.getDialect(source.args, scan);
+			String after = null;
+			while (true) {
+				Map<String, String> rows = read(scan, source.schema, dialect, after, batchSize);
+				if (rows.isEmpty()) {
+					break;
+				}
+				Map<String, Map<String, String>> pending = new HashMap<String, Map<String, String>>();
+				for (Map.Entry<String, String> row : rows.entrySet()) {
+					String uid = row.getKey();
+					after = uid;
+					scanned++;
+					String target = router.getShardNames().get(router.shardOf(uid));
+					if (target.equals(source.name)) {
+						continue;
+					}
+					if (dryRun) {
+						totals.moved++;
+						continue;
+					}
+					pending.computeIfAbsent(target, k -> new LinkedHashMap<String, String>()).put(uid, row.getValue());
+				}
+				for (Map.Entry<String, Map<String, String>> entry : pending.entrySet()) {
+					move(source, shards.get(entry.getKey()), entry.getValue(), totals);
+				}
+			}
+		}
+		totals.scanned += scanned;
+		System.err.println("Shard " + source.name + ": " + scanned + " rows scanned");
+	}
+
+	/**
+	 * Reads the next batch of rows of a shard, in principal name order.
+	 *
+	 * @param conn a connection to the shard, in auto-commit
+	 * @param schema the table and columns values are kept in
+	 * @param dialect the SQL dialect of the shard
+	 * @param after the last principal name read, or null to start from the first
+	 * @param batchSize the number of rows to read
+	 * @return the sharedToken values keyed by principal name, in order
+	 * @throws SQLException if the rows cannot be read
+	 */
+	private static Map<String, String> read(Connection conn, SharedTokenSchema schema, SharedTokenStoreDialect dialect,
+			String after, int batchSize) throws SQLException {
+		String sql = schema.sql(after == null ? "SELECT {uid}, {token} FROM {table} ORDER BY {uid}"
+				: "SELECT {uid}, {token} FROM {table} WHERE {uid} > ? ORDER BY {uid}");
+		Map<String, String> rows = new LinkedHashMap<String, String>();
+		try (PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setMaxRows(batchSize);
+			st.setFetchSize(dialect.getStreamingFetchSize(batchSize));
+			if (after != null) {
+				st.setString(1, after);
+			}
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					rows.put(rs.getString(1), schema.getToken(rs, 2));
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Copies a batch of rows to their shard, then deletes those the
+	 * destination now holds from the source.
+	 *
+	 * @param source the shard the rows are in
+	 * @param target the shard the rows belong to
+	 * @param rows the sharedToken values, keyed by principal name
+	 * @param totals counts to add to
+	 * @throws SQLException if a shard cannot be read or written
+	 */
+	private static void move(Shard source, Shard target, Map<String, String> rows, Totals totals)
+			throws SQLException {
+		Connection to = target.writer();
+		Map<String, String> missing = new LinkedHashMap<String, String>(rows);
+		missing.keySet().removeAll(ToolSupport.select(to, target.schema, rows.keySet()).keySet());
+		try (PreparedStatement st = to.prepareStatement(target.dialect.getInsertIfAbsentSql(target.schema))) {
+			ToolSupport.insert(to, target.schema, st, missing);
+		}
+
+		Map<String, String> stored = ToolSupport.select(to, target.schema, rows.keySet());
+		Connection from = source.writer();
+		try (PreparedStatement st = from.prepareStatement(source.schema.sql("DELETE FROM {table} WHERE {uid} = ? AND {token} = ?"))) {
+			for (Map.Entry<String, String> row : rows.entrySet()) {
+				if (row.getValue().equals(stored.get(row.getKey()))) {
+					st.setString(1, row.getKey());
+					source.schema.setToken(st, 2, row.getValue());
+					st.addBatch();
+					totals.moved++;
+				} else {
+					System.err.println("Conflict: " + row.getKey() + " has a different value in shard " + target.name
+							+ " than in shard " + source.name + ", left in place");
+					totals.conflicts++;
+				}
+			}
+			st.executeBatch();
+		}
+		from.commit();
+	}
+
+	/**
+	 * @param value comma or space separated names, or null
+	 * @return the names
+	 */
+	private static List<String> splitNames(String value) {
+		List<String> names = new ArrayList<String>();
+		if (value != null) {
+			for (String name : value.trim().split("[\\s,]+")) {
+				if (!name.isEmpty()) {
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+
+	/** A shard and the connection used to write to it. */
+	private static final class Shard {
+
+		/** Name of the shard. */
+		private final String name;
+
+		/** JDBC URL. */
+		private final String url;
+
+		/** Database user. */
+		private final String user;
+
+		/** Database password. */
+		private final String password;
+
+		/** Connection used to write to the shard, opened on first use. */
+		private Connection writer;
+
+		/** SQL dialect of the shard, known once the writer is open. */
+		private SharedTokenStoreDialect dialect;
+
+		/** Command options, for the dialect. */
+		private final ToolArguments args;
+
+		/** The table and columns values are kept in. */
+		private final SharedTokenSchema schema;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param name name of the shard
+		 * @param config the shards file
+		 * @param args the command options
+		 */
+		private Shard(String name, Properties config, ToolArguments args) {
+			this.name = name;
+			url = config.getProperty(name + ".url");
+			if (url == null) {
+				throw new IllegalArgumentException(name + ".url must be set in the shards file");
+			}
+			user = config.getProperty(name + ".user");
+			password = config.getProperty(name + ".password");
+			this.args = args;
+			schema = ToolSupport.getSchema(args);
+		}
+
+		/**
+		 * @return a new connection to the shard
+		 * @throws SQLException if the connection cannot be opened
+		 */
+		private Connection open() throws SQLException {
+			return DriverManager.getConnection(url, user, password);
+		}
+
+		/**
+		 * @return the connection used to write to the shard, without auto-commit
+		 * @throws SQLException if the connection cannot be opened
+		 */
+		private Connection writer() throws SQLException {
+			if (writer == null) {
+				writer = open();
+				writer.setAutoCommit(false);
+				dialect = ToolSupport.getDialect(args, writer);
+			}
+			return writer;
+		}
+
+		/**
+		 * Closes the writer connection, if open.
+		 */
+		private void close() {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (SQLException e) {
+					System.err.println("Failed to close connection to shard " + name + ": " + e);
+				}
+			}
+		}
+	}
+
+	/** Counts of a run. */
+	private static final class Totals {
+
+		/** Rows scanned. */
+		private long scanned;
+
+		/** Rows moved, or to move in a dry run. */
+		private long moved;
+
+		/** Rows left in place because the destination holds a different value. */
+		private long conflicts;
+	}
+
+}
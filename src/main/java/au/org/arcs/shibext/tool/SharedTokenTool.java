@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point for the sharedToken maintenance tools.
+ *
+ * Usage: <code>sharedtoken.sh COMMAND [--option value ...]</code>
+ */
+public final class SharedTokenTool {
+
+	/** Available commands, keyed by name. */
+	private static final Map<String, ToolCommand> COMMANDS = new LinkedHashMap<String, ToolCommand>();
+
+	static {
+		register(new ProvisionCommand());
+		register(new RebalanceCommand());
+		register(new MigrateCommand());
+		register(new LookupCommand());
+		register(new AuditCommand());
+		register(new ExportCommand());
+		register(new ImportCommand());
+	}
+
+	/** Constructor. */
+	private SharedTokenTool() {
+	}
+
+	/**
+	 * @param command the command to make available
+	 */
+	private static void register(ToolCommand command) {
+		COMMANDS.put(command.getName(), command);
+	}
+
+	/**
+	 * Runs a command.
+	 *
+	 * @param args the command name followed by its options
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0 || !COMMANDS.containsKey(args[0])) {
+			if (args.length > 0 && !"help".equals(args[0])) {
+				System.err.println("Unknown command " + args[0]);
+			}
+			printUsage(System.err);
+			System.exit(2);
+		}
+
+		ToolCommand command = COMMANDS.get(args[0]);
+		try {
+			command.run(new ToolArguments(Arrays.copyOfRange(args, 1, args.length)));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: sharedtoken.sh " + command.getName() + " [options]");
+			command.printUsage(System.err);
+			System.exit(2);
+		} catch (Exception e) {
+			System.err.println(command.getName() + " failed: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param out where to print the list of commands and their options
+	 */
+	private static void printUsage(PrintStream out) {
+		out.println("Usage: sharedtoken.sh COMMAND [options]");
+		for (ToolCommand command : COMMANDS.values()) {
+			out.println();
+			out.println(command.getName() + " - " + command.getDescription());
+			command.printUsage(out);
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One entry read from a CSV or LDIF input file: a set of attributes, each
+ * with one or more values in the order they appeared.  Attribute names are
+ * case insensitive.
+ */
+public class SourceRecord {
+
+	/** Attribute values, keyed by lower case attribute name. */
+	private final Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+
+	/**
+	 * Adds a value to an attribute.
+	 *
+	 * @param name the attribute name
+	 * @param value the value to add
+	 */
+	public void addValue(String name, String value) {
+		String key = name.toLowerCase(Locale.ROOT);
+		List<String> values = attributes.get(key);
+		if (values == null) {
+			values = new ArrayList<String>(1);
+			attributes.put(key, values);
+		}
+		values.add(value);
+	}
+
+	/**
+	 * @param name the attribute name
+	 * @return the first value of the attribute, or null if it has none
+	 */
+	public String getFirstValue(String name) {
+		List<String> values = attributes.get(name.toLowerCase(Locale.ROOT));
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * Builds the local ID from the first values of the given attributes, the
+	 * same way the data connector does from its source attributes.
+	 *
+	 * @param sourceAttributeIds the source attribute names, in order
+	 * @return the local ID, or null if any of the attributes has no non-empty value
+	 */
+	public String getLocalId(String[] sourceAttributeIds) {
+		StringBuilder localId = new StringBuilder();
+		for (int i = 0; i < sourceAttributeIds.length; i++) {
+			String value = getFirstValue(sourceAttributeIds[i]);
+			if (value == null || value.isEmpty()) {
+				return null;
+			}
+			localId.append(value);
+		}
+		return localId.toString();
+	}
+
+	/**
+	 * @return whether the record has no attributes
+	 */
+	public boolean isEmpty() {
+		return attributes.isEmpty();
+	}
+
+}
@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Streams {@link SourceRecord}s from an input file, one at a time, so that
+ * inputs larger than memory can be processed.
+ */
+public interface SourceRecordReader extends Closeable {
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the next record, or null at the end of the input
+	 * @throws IOException if the input cannot be read or is malformed
+	 */
+	SourceRecord next() throws IOException;
+
+	/**
+	 * Opens a reader for a file, in the given format or, if the format is
+	 * null, in the format suggested by the file extension.
+	 *
+	 * @param file the input file, read as UTF-8
+	 * @param format "csv" or "ldif", or null
+	 * @return the reader
+	 * @throws IOException if the file cannot be opened
+	 */
+	static SourceRecordReader open(Path file, String format) throws IOException {
+		if (format == null) {
+			format = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".ldif") ? "ldif" : "csv";
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(file),
+				StandardCharsets.UTF_8), 1 << 16);
+		if ("csv".equalsIgnoreCase(format)) {
+			return new CsvSourceRecordReader(in);
+		} else if ("ldif".equalsIgnoreCase(format)) {
+			return new LdifSourceRecordReader(in);
+		}
+		in.close();
+		throw new IllegalArgumentException("Unknown input format " + format + ", expected csv or ldif");
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of the sharedToken tools.
+ *
+ * Options take the form <code>--name value</code>; an option given without
+ * a value (followed by another option or at the end) is treated as a flag.
+ * Anything not starting with <code>--</code> is a positional argument.
+ */
+public class ToolArguments {
+
+	/** Option values, keyed by option name without the leading dashes. */
+	private final Map<String, String> options = new HashMap<String, String>();
+
+	/** Positional arguments. */
+	private final List<String> positional = new ArrayList<String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param args the command line arguments, not including the command name
+	 */
+	public ToolArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("--") && args[i].length() > 2) {
+				String name = args[i].substring(2);
+				int eq = name.indexOf('=');
+				if (eq > 0) {
+					options.put(name.substring(0, eq), name.substring(eq + 1));
+				} else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+					options.put(name, args[++i]);
+				} else {
+					options.put(name, "true");
+				}
+			} else {
+				positional.add(args[i]);
+			}
+		}
+	}
+
+	/**
+	 * @param name the option name
+	 * @return whether the option was given
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * @param name the option name
+	 * @return the option value, or null if not given
+	 */
+	public String get(String name) {
+		return options.get(name);
+	}
+
+	/**
+	 * @param name the option name
+	 * @param defaultValue value to return if the option was not given
+	 * @return the option value, or the default
+	 */
+	public String get(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @param name the option name
+	 * @return the option value
+	 * @throws IllegalArgumentException if the option was not given
+	 */
+	public String getRequired(String name) {
+		String value = options.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing required option --" + name);
+		}
+		return value;
+	}
+
+	/**
+	 * @param name the option name
+	 * @param defaultValue value to return if the option was not given
+	 * @return the option value as an integer, or the default
+	 * @throws IllegalArgumentException if the value is not a positive integer
+	 */
+	public int getPositiveInt(String name, int defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int i = Integer.parseInt(value);
+			if (i > 0) {
+				return i;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException("Option --" + name + " must be a positive integer, not " + value);
+	}
+
+	/**
+	 * @return the positional arguments
+	 */
+	public List<String> getPositional() {
+		return Collections.unmodifiableList(positional);
+	}
+
+}
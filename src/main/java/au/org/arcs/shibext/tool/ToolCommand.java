@@ -0,0 +1,38 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.PrintStream;
+
+/**
+ * A command of the sharedToken command line tool.
+ */
+public interface ToolCommand {
+
+	/**
+	 * @return the name used to invoke the command
+	 */
+	String getName();
+
+	/**
+	 * @return a one line description of the command
+	 */
+	String getDescription();
+
+	/**
+	 * Prints the options accepted by the command.
+	 *
+	 * @param out where to print
+	 */
+	void printUsage(PrintStream out);
+
+	/**
+	 * Runs the command.
+	 *
+	 * @param args the command options
+	 * @throws Exception if the command fails
+	 */
+	void run(ToolArguments args) throws Exception;
+
+}
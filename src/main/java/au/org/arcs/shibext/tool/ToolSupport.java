@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import au.org.arcs.shibext.sharedtoken.SharedTokenSchema;
+import au.org.arcs.shibext.sharedtoken.SharedTokenStoreDialect;
+
+/**
+ * Option handling shared by the sharedToken tool commands.
+ */
+public final class ToolSupport {
+
+	/** Largest number of principals looked up in one query. */
+	private static final int LOOKUP_CHUNK_SIZE = 500;
+
+	/** Constructor. */
+	private ToolSupport() {
+	}
+
+	/**
+	 * Prints the options used to connect to the database.
+	 *
+	 * @param out where to print
+	 */
+	public static void printDatabaseUsage(PrintStream out) {
+		out.println("  --jdbc-url URL             JDBC URL of the sharedToken database (driver must be on the classpath)");
+		out.println("  --jdbc-user USER           database user");
+		out.println("  --jdbc-password PASSWORD   database password (or set SHAREDTOKEN_JDBC_PASSWORD)");
+		out.println("  --dialect NAME             MYSQL, POSTGRESQL, ORACLE, SQLSERVER, H2 or GENERIC (default: detected)");
+		printSchemaUsage(out);
+	}
+
+	/**
+	 * Prints the options naming the table and columns values are kept in.
+	 *
+	 * @param out where to print
+	 */
+	public static void printSchemaUsage(PrintStream out) {
+		out.println("  --table NAME               table holding the values, as databaseTable (default: tb_st)");
+		out.println("  --uid-column NAME          principal name column, as databaseUidColumn (default: uid)");
+		out.println("  --token-column NAME        sharedToken column, as databaseTokenColumn (default: sharedToken)");
+		out.println("  --token-format text|binary format of the sharedToken column, as databaseTokenFormat (default: text)");
+	}
+
+	/**
+	 * Prints the options used to compute sharedToken values.
+	 *
+	 * @param out where to print
+	 */
+	public static void printGeneratorUsage(PrintStream out) {
+		out.println("  --source-attributes IDS    comma separated attributes forming the local ID, as sourceAttributeID");
+		out.println("  --idp-identifier ID        IdP identifier, as idpIdentifier or the IdP entityID");
+		out.println("  --salt-file FILE           file containing the salt (or --salt SALT)");
+	}
+
+	/**
+	 * Opens a connection to the database given by the --jdbc-* options.
+	 *
+	 * @param args the command options
+	 * @return the connection
+	 * @throws SQLException if the connection cannot be opened
+	 */
+	public static Connection openConnection(ToolArguments args) throws SQLException {
+		String password = args.get("jdbc-password", System.getenv("SHAREDTOKEN_JDBC_PASSWORD"));
+		return DriverManager.getConnection(args.getRequired("jdbc-url"), args.get("jdbc-user"), password);
+	}
+
+	/**
+	 * Gets a DataSource opening connections to the database given by the
+	 * --jdbc-* options, for the connector's stores.  Each connection is
+	 * opened anew, there is no pool.
+	 *
+	 * @param args the command options
+	 * @return the DataSource
+	 */
+	public static DataSource getDataSource(ToolArguments args) {
+		return new DriverManagerDataSource(args);
+	}
+
+	/**
+	 * Gets the SQL dialect given by the --dialect option, or detects it.
+	 *
+	 * @param args the command options
+	 * @param conn a connection to the database
+	 * @return the dialect
+	 * @throws SQLException if the dialect cannot be detected
+	 */
+	public static SharedTokenStoreDialect getDialect(ToolArguments args, Connection conn) throws SQLException {
+		String name = args.get("dialect");
+		if (name != null) {
+			return SharedTokenStoreDialect.valueOf(name.trim().toUpperCase(Locale.ROOT));
+		}
+		return SharedTokenStoreDialect.detect(conn.getMetaData());
+	}
+
+	/**
+	 * Gets the table and columns given by the --table, --uid-column,
+	 * --token-column and --token-format options.
+	 *
+	 * @param args the command options
+	 * @return the table and columns values are kept in
+	 */
+	public static SharedTokenSchema getSchema(ToolArguments args) {
+		return getSchema(args, "", "text");
+	}
+
+	/**
+	 * Gets the table and columns given by options with a prefix, such as
+	 * --to-table.
+	 *
+	 * @param args the command options
+	 * @param prefix prefix of the option names
+	 * @param defaultFormat the token format if the option is not given, text or binary
+	 * @return the table and columns values are kept in
+	 */
+	public static SharedTokenSchema getSchema(ToolArguments args, String prefix, String defaultFormat) {
+		SharedTokenSchema defaults = SharedTokenSchema.DEFAULT;
+		String format = args.get(prefix + "token-format", defaultFormat);
+		if (!"text".equals(format) && !"binary".equals(format)) {
+			throw new IllegalArgumentException("Option --" + prefix + "token-format must be text or binary, not "
+					+ format);
+		}
+		return new SharedTokenSchema(args.get(prefix + "table", defaults.getTable()),
+				args.get(prefix + "uid-column", defaults.getUidColumn()),
+				args.get(prefix + "token-column", defaults.getTokenColumn()), defaults.getSeqColumn(),
+				"binary".equals(format));
+	}
+
+	/**
+	 * Gets the salt given by the --salt-file or --salt option.  The salt is
+	 * used as the bytes of the string, exactly as the connector's salt
+	 * attribute; a trailing line break in the salt file is ignored.
+	 *
+	 * @param args the command options
+	 * @return the salt
+	 * @throws IOException if the salt file cannot be read
+	 */
+	public static byte[] getSalt(ToolArguments args) throws IOException {
+		String salt;
+		if (args.has("salt-file")) {
+			salt = new String(Files.readAllBytes(Paths.get(args.get("salt-file"))), StandardCharsets.UTF_8);
+			salt = salt.replaceAll("[\r\n]+$", "");
+		} else {
+			salt = args.getRequired("salt");
+		}
+		return salt.getBytes();
+	}
+
+	/**
+	 * Gets the source attribute names given by the --source-attributes option.
+	 *
+	 * @param args the command options
+	 * @return the source attribute names
+	 */
+	public static String[] getSourceAttributes(ToolArguments args) {
+		return args.getRequired("source-attributes").split(",");
+	}
+
+	/**
+	 * Looks up the sharedToken values of many principals, a few hundred per
+	 * query.  Ends the transaction if the connection is not in auto-commit.
+	 *
+	 * @param conn a connection to the database
+	 * @param schema the table and columns values are kept in
+	 * @param uids the principal names
+	 * @return the values found, keyed by principal name
+	 * @throws SQLException if the values cannot be read
+	 */
+	public static Map<String, String> select(Connection conn, SharedTokenSchema schema, Iterable<String> uids)
+			throws SQLException {
+		Map<String, String> values = new HashMap<String, String>();
+		List<String> chunk = new ArrayList<String>(LOOKUP_CHUNK_SIZE);
+		for (String uid : uids) {
+			chunk.add(uid);
+			if (chunk.size() == LOOKUP_CHUNK_SIZE) {
+				select(conn, schema, chunk, values);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			select(conn, schema, chunk, values);
+		}
+		if (!conn.getAutoCommit()) {
+			conn.commit();
+		}
+		return values;
+	}
+
+	/**
+	 * Inserts values in one JDBC batch and transaction.  If the batch breaks
+	 * a primary key or unique constraint, for example because a value is
+	 * already held by another principal, the transaction is rolled back and
+	 * the values are inserted one at a time, each in its own transaction, so
+	 * that only the offending rows are left out.
+	 *
+	 * @param conn the connection, without auto-commit
+	 * @param schema the table and columns values are kept in
+	 * @param insert statement inserting a (uid, sharedToken) row
+	 * @param values the values to insert, keyed by principal name
+	 * @return the principal names whose row broke a constraint and was not inserted
+	 * @throws SQLException if a statement fails other than on a constraint
+	 */
+	public static Set<String> insert(Connection conn, SharedTokenSchema schema, PreparedStatement insert,
+			Map<String, String> values) throws SQLException {
+		Set<String> failed = new LinkedHashSet<String>();
+		if (values.isEmpty()) {
+			return failed;
+		}
+		try {
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				insert.setString(1, entry.getKey());
+				schema.setToken(insert, 2, entry.getValue());
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			conn.commit();
+			return failed;
+		} catch (SQLException e) {
+			insert.clearBatch();
+			conn.rollback();
+			if (!SharedTokenStoreDialect.isConstraintViolation(e)) {
+				throw e;
+			}
+		}
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			try {
+				insert.setString(1, entry.getKey());
+				schema.setToken(insert, 2, entry.getValue());
+				insert.executeUpdate();
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				if (!SharedTokenStoreDialect.isConstraintViolation(e)) {
+					throw e;
+				}
+				failed.add(entry.getKey());
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Looks up the values of a chunk of principals.
+	 *
+	 * @param conn a connection to the database
+	 * @param schema the table and columns values are kept in
+	 * @param uids the principal names
+	 * @param values where to put the values found, keyed by principal name
+	 * @throws SQLException if the rows cannot be read
+	 */
+	private static void select(Connection conn, SharedTokenSchema schema, List<String> uids,
+			Map<String, String> values) throws SQLException {
+		String sql = schema.sql("SELECT {uid}, {token} FROM {table} WHERE {uid} IN (")
+				+ String.join(", ", Collections.nCopies(uids.size(), "?")) + ")";
+		try (PreparedStatement st = conn.prepareStatement(sql)) {
+			for (int i = 0; i < uids.size(); i++) {
+				st.setString(i + 1, uids.get(i));
+			}
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					values.put(rs.getString(1), schema.getToken(rs, 2));
+				}
+			}
+		}
+	}
+
+	/** A DataSource opening connections with the --jdbc-* options. */
+	private static final class DriverManagerDataSource implements DataSource {
+
+		/** The command options. */
+		private final ToolArguments args;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param args the command options
+		 */
+		private DriverManagerDataSource(ToolArguments args) {
+			this.args = args;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Connection getConnection() throws SQLException {
+			return openConnection(args);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			return DriverManager.getConnection(args.getRequired("jdbc-url"), username, password);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public PrintWriter getLogWriter() {
+			return DriverManager.getLogWriter();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void setLogWriter(PrintWriter out) {
+			DriverManager.setLogWriter(out);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void setLoginTimeout(int seconds) {
+			DriverManager.setLoginTimeout(seconds);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int getLoginTimeout() {
+			return DriverManager.getLoginTimeout();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			if (iface.isInstance(this)) {
+				return iface.cast(this);
+			}
+			throw new SQLException("Not a wrapper for " + iface.getName());
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public boolean isWrapperFor(Class<?> iface) {
+			return iface.isInstance(this);
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+#!/bin/sh
+#
+# Command line tools for auEduPersonSharedToken values.
+#
+# Runs against the libraries of an installed IdP, so IDP_HOME must point to
+# the IdP installation (defaults to /opt/shibboleth-idp).  The JDBC driver for
+# the sharedToken database must be on the classpath, either in the IdP's
+# edit-webapp/WEB-INF/lib or added with the CLASSPATH environment variable.
+#
+# Run without arguments for a list of commands.
+
+IDP_HOME=${IDP_HOME:-/opt/shibboleth-idp}
+BASEDIR=$(cd "$(dirname "$0")/.." && pwd)
+
+CP="$BASEDIR/lib/*:$IDP_HOME/webapp/WEB-INF/lib/*:$IDP_HOME/edit-webapp/WEB-INF/lib/*"
+if [ -n "$CLASSPATH" ]; then
+    CP="$CP:$CLASSPATH"
+fi
+
+exec "${JAVA_HOME:+$JAVA_HOME/bin/}java" $JAVA_OPTS -cp "$CP" au.org.arcs.shibext.tool.SharedTokenTool "$@"
@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+/**
+ * Tests {@link SharedTokenBackendGuard} and {@link GuardedSharedTokenStore}.
+ */
+public class SharedTokenBackendGuardTest {
+
+	/**
+	 * A timeout without a bulkhead is rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testTimeoutRequiresMaxConcurrency() {
+		new SharedTokenBackendGuard("test", Duration.ofSeconds(1), 0, 0, Duration.ofSeconds(30));
+	}
+
+	/**
+	 * SQL errors open the circuit, other errors do not.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testOnlyBackendErrorsOpenCircuit() throws Exception {
+		SharedTokenBackendGuard guard = new SharedTokenBackendGuard("test", Duration.ofSeconds(1), 2, 2,
+				Duration.ofMinutes(1));
+		try {
+			for (int i = 0; i < 5; i++) {
+				callFailing(guard, new IMASTException("no entry found"));
+			}
+			assertEquals(SharedTokenBackendGuard.State.CLOSED, guard.getState());
+			assertEquals(0, guard.getFailures());
+
+			callFailing(guard, new IMASTException("failed", new SQLException("connection refused")));
+			callFailing(guard, new IMASTException("failed", new SQLException("connection refused")));
+			assertEquals(SharedTokenBackendGuard.State.OPEN, guard.getState());
+			assertEquals(2, guard.getFailures());
+		} finally {
+			guard.close();
+		}
+	}
+
+	/**
+	 * A probe rejected by a full bulkhead keeps the circuit open for another
+	 * open time, rather than letting the next operation probe at once.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testRejectedProbeReopensCircuit() throws Exception {
+		SharedTokenBackendGuard guard = new SharedTokenBackendGuard("test", Duration.ofMillis(50), 1, 1,
+				Duration.ofMillis(200));
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			// times out, opening the circuit, and keeps the only place in the bulkhead
+			try {
+				guard.call(() -> {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return null;
+				});
+				fail("timeout not reported");
+			} catch (SharedTokenBackendUnavailableException e) {
+				assertEquals(SharedTokenBackendGuard.State.OPEN, guard.getState());
+			}
+
+			Thread.sleep(300);
+			try {
+				guard.call(() -> null);
+				fail("probe not rejected");
+			} catch (SharedTokenBackendUnavailableException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith("too many operations waiting"));
+			}
+			try {
+				guard.call(() -> null);
+				fail("operation let through");
+			} catch (SharedTokenBackendUnavailableException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith("circuit open"));
+			}
+			assertEquals(SharedTokenBackendGuard.State.OPEN, guard.getState());
+		} finally {
+			release.countDown();
+			guard.close();
+		}
+	}
+
+	/**
+	 * The guarded store generates a value on the calling thread, only for a
+	 * principal without one, and its failures are not database failures.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testGuardedStoreGeneratesOnCallingThread() throws Exception {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+		try (Connection conn = dataSource.getConnection()) {
+			SharedTokenSchema.DEFAULT.create(conn, SharedTokenStoreDialect.H2);
+		}
+		SharedTokenBackendGuard guard = new SharedTokenBackendGuard("test", Duration.ofSeconds(5), 2, 1,
+				Duration.ofMinutes(1));
+		try {
+			GuardedSharedTokenStore store = new GuardedSharedTokenStore(new SharedTokenStore(dataSource), guard);
+			Thread caller = Thread.currentThread();
+			int[] generated = { 0 };
+			String value = store.getOrCreateSharedToken("jsmith", () -> {
+				assertEquals(caller, Thread.currentThread());
+				generated[0]++;
+				return "value";
+			});
+			assertEquals("value", value);
+			assertEquals("value", store.getOrCreateSharedToken("jsmith", () -> {
+				generated[0]++;
+				return "other";
+			}));
+			assertEquals(1, generated[0]);
+
+			try {
+				store.getOrCreateSharedToken("asmith", () -> {
+					throw new IllegalStateException("cannot generate");
+				});
+				fail("generator failure not reported");
+			} catch (IMASTException e) {
+				assertEquals(IllegalStateException.class, e.getCause().getClass());
+			}
+			assertEquals(SharedTokenBackendGuard.State.CLOSED, guard.getState());
+			assertEquals(0, guard.getFailures());
+		} finally {
+			guard.close();
+		}
+	}
+
+	/**
+	 * Runs an operation failing with an error through a guard.
+	 *
+	 * @param guard the guard
+	 * @param error the error
+	 */
+	private static void callFailing(SharedTokenBackendGuard guard, IMASTException error) {
+		try {
+			guard.call(() -> {
+				throw error;
+			});
+			fail("error not thrown");
+		} catch (IMASTException e) {
+			assertEquals(error, e);
+		}
+	}
+
+}
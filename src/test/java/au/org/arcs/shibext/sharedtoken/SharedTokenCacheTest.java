@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.impl.MemoryStorageService;
+
+/**
+ * Tests {@link SharedTokenCache} backed by a {@link MemoryStorageService},
+ * standing for the storage service shared by the nodes of an IdP cluster.
+ */
+public class SharedTokenCacheTest {
+
+	/** Context of the values in the storage service. */
+	private static final String CONTEXT = "sharedToken";
+
+	/** The storage service. */
+	private MemoryStorageService storage;
+
+	/**
+	 * Creates the storage service.
+	 *
+	 * @throws Exception if the storage service cannot be initialized
+	 */
+	@Before
+	public void setUp() throws Exception {
+		storage = new MemoryStorageService();
+		storage.setId("test");
+		storage.setCleanupInterval(Duration.ZERO);
+		storage.setKeySize(64);
+		storage.initialize();
+	}
+
+	/**
+	 * Destroys the storage service.
+	 */
+	@After
+	public void tearDown() {
+		storage.destroy();
+	}
+
+	/**
+	 * A cached value is written through to the storage service, expiring
+	 * after the storage time to live.
+	 *
+	 * @throws Exception if the storage service fails
+	 */
+	@Test
+	public void testWriteThroughOnCreate() throws Exception {
+		SharedTokenCache cache = new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMinutes(5));
+		long before = System.currentTimeMillis();
+		cache.put("jsmith", "value");
+
+		StorageRecord<?> record = storage.read(CONTEXT, "jsmith");
+		assertNotNull(record);
+		assertEquals("value", record.getValue());
+		long expiration = record.getExpiration();
+		assertTrue(expiration >= before + Duration.ofMinutes(5).toMillis());
+		assertTrue(expiration <= System.currentTimeMillis() + Duration.ofMinutes(5).toMillis());
+	}
+
+	/**
+	 * A value cached by one node is found by another, and by a cache that
+	 * only uses the storage service.
+	 */
+	@Test
+	public void testReadByOtherNode() {
+		new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMinutes(5)).put("jsmith", "value");
+
+		SharedTokenCache other = new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMinutes(5));
+		assertEquals("value", other.get("jsmith"));
+		assertEquals(1, other.size());
+		assertNull(other.get("asmith"));
+
+		SharedTokenCache storageOnly = new SharedTokenCache(0, null, storage, CONTEXT, Duration.ofMinutes(5));
+		assertEquals("value", storageOnly.get("jsmith"));
+		assertEquals(0, storageOnly.size());
+	}
+
+	/**
+	 * A value read from the storage service expires from memory when its
+	 * record does, rather than a full time to live after it was read.
+	 *
+	 * @throws Exception if the test is interrupted
+	 */
+	@Test
+	public void testExpiryCarriedFromStorage() throws Exception {
+		new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMillis(300)).put("jsmith", "value");
+		SharedTokenCache other = new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMillis(300));
+		assertEquals("value", other.get("jsmith"));
+
+		Thread.sleep(500);
+		assertNull(storage.read(CONTEXT, "jsmith"));
+		assertNull(other.get("jsmith"));
+		// still held in memory while the store is unavailable
+		assertEquals("value", other.getStale("jsmith"));
+	}
+
+	/**
+	 * A value read from the storage service still expires from memory after
+	 * the time to live, if that is sooner than its record.
+	 *
+	 * @throws Exception if the test is interrupted
+	 */
+	@Test
+	public void testExpiryOfMemory() throws Exception {
+		SharedTokenCache cache = new SharedTokenCache(10, Duration.ofMillis(300), storage, CONTEXT, Duration.ofHours(1));
+		cache.put("jsmith", "value");
+		Thread.sleep(500);
+		// expired from memory, read again from the storage service
+		assertEquals("value", cache.get("jsmith"));
+		storage.delete(CONTEXT, "jsmith");
+		assertEquals("value", cache.get("jsmith"));
+	}
+
+	/**
+	 * A principal name longer than the storage service allows as a key is
+	 * stored under its SHA-256 hash.
+	 *
+	 * @throws Exception if the storage service fails
+	 */
+	@Test
+	public void testLongKeyHashed() throws Exception {
+		StringBuilder uid = new StringBuilder();
+		while (uid.length() <= 64) {
+			uid.append("jsmith@example.org;");
+		}
+		new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMinutes(5)).put(uid.toString(), "value");
+
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(uid.toString().getBytes(StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder();
+		for (byte b : hash) {
+			key.append(String.format("%02x", b));
+		}
+		StorageRecord<?> record = storage.read(CONTEXT, key.toString());
+		assertNotNull(record);
+		assertEquals("value", record.getValue());
+
+		SharedTokenCache other = new SharedTokenCache(10, Duration.ofHours(1), storage, CONTEXT, Duration.ofMinutes(5));
+		assertEquals("value", other.get(uid.toString()));
+	}
+
+}
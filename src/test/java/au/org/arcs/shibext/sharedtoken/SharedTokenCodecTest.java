@@ -0,0 +1,100 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SharedTokenCodec}.
+ */
+public class SharedTokenCodecTest {
+
+	/** Number of random hashes to round trip. */
+	private static final int ROUNDS = 10000;
+
+	/**
+	 * Random hashes encode like URL-safe unpadded Base64 and decode back.
+	 */
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(42);
+		byte[] raw = new byte[SharedTokenCodec.RAW_LENGTH];
+		for (int i = 0; i < ROUNDS; i++) {
+			random.nextBytes(raw);
+			String sharedToken = SharedTokenCodec.encode(raw, 0);
+			assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(raw), sharedToken);
+			assertEquals(SharedTokenCodec.ENCODED_LENGTH, sharedToken.length());
+			assertArrayEquals(raw, SharedTokenCodec.decode(sharedToken));
+		}
+	}
+
+	/**
+	 * Hashes are read and written at the given offsets.
+	 */
+	@Test
+	public void testOffsets() {
+		byte[] raw = new byte[SharedTokenCodec.RAW_LENGTH + 10];
+		new Random(7).nextBytes(raw);
+		String sharedToken = SharedTokenCodec.encode(raw, 5);
+		assertArrayEquals(Arrays.copyOfRange(raw, 5, 5 + SharedTokenCodec.RAW_LENGTH),
+				SharedTokenCodec.decode(sharedToken));
+
+		byte[] out = new byte[raw.length];
+		SharedTokenCodec.decode(sharedToken, out, 3);
+		assertArrayEquals(Arrays.copyOfRange(raw, 5, 5 + SharedTokenCodec.RAW_LENGTH),
+				Arrays.copyOfRange(out, 3, 3 + SharedTokenCodec.RAW_LENGTH));
+		assertEquals(0, out[2]);
+		assertEquals(0, out[3 + SharedTokenCodec.RAW_LENGTH]);
+	}
+
+	/**
+	 * The all-zero and all-one hashes round trip.
+	 */
+	@Test
+	public void testExtremes() {
+		byte[] zeros = new byte[SharedTokenCodec.RAW_LENGTH];
+		assertEquals("AAAAAAAAAAAAAAAAAAAAAAAAAAA", SharedTokenCodec.encode(zeros, 0));
+		assertArrayEquals(zeros, SharedTokenCodec.decode("AAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+
+		byte[] ones = new byte[SharedTokenCodec.RAW_LENGTH];
+		Arrays.fill(ones, (byte) 0xff);
+		assertEquals("__________________________8", SharedTokenCodec.encode(ones, 0));
+		assertArrayEquals(ones, SharedTokenCodec.decode("__________________________8"));
+	}
+
+	/**
+	 * Values that are not a canonical sharedToken are rejected, and nothing
+	 * is written for them.
+	 */
+	@Test
+	public void testRejectsNonCanonical() {
+		assertNull(SharedTokenCodec.decode(null));
+		assertNull(SharedTokenCodec.decode(""));
+		// wrong length
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-U"));
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-UEA"));
+		// standard rather than URL-safe alphabet, padding, non-ASCII
+		assertNull(SharedTokenCodec.decode("T2R+XLs892IvCYgWo3hJeOhn-UE"));
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn/UE"));
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-U="));
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-UÉ"));
+		// the low 2 bits of the last character set
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-UF"));
+		assertNull(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-UH"));
+
+		byte[] raw = new byte[SharedTokenCodec.RAW_LENGTH];
+		assertFalse(SharedTokenCodec.decode("T2R-XLs892IvCYgWo3hJeOhn-UF", raw, 0));
+		assertArrayEquals(new byte[SharedTokenCodec.RAW_LENGTH], raw);
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link SharedTokenGenerator} against values computed with the
+ * original algorithm: SHA-1 of localId + idp + salt, Base64 encoded with "/"
+ * replaced by "_", "+" by "-" and the padding removed.  A sharedToken must
+ * never change, so these values must never be edited.
+ */
+public class SharedTokenGeneratorTest {
+
+	/** Salt of the vectors. */
+	private static final byte[] SALT = "ThisIsRandomText".getBytes(StandardCharsets.UTF_8);
+
+	/** IdP identifier of the vectors. */
+	private static final String IDP = "https://idp.example.org/idp/shibboleth";
+
+	/** Vectors of local ID, IdP identifier and expected sharedToken. */
+	private static final String[][] VECTORS = {
+			{ "jsmith", IDP, "T2R-XLs892IvCYgWo3hJeOhn-UE" },
+			{ "jsmith001jsmith@example.org", IDP, "o3mRyizi5zmpSxPvrzKUHMsYzz8" },
+			{ "", IDP, "edqdd8wxEAhy5JWDi9M11s9xkLo" },
+			// a null identifier has always been hashed as "null"
+			{ "jsmith", null, "tXGv979Rg3UJcuobo1pjwWGPWYg" },
+			{ "jsmith", "", "I48b-m91-0qw3aFgFJVc9FqG710" },
+			{ "jörg.müller", IDP, "7UeywY9k6EuKRTCUI9iAyqvQsy0" },
+			{ "张伟", IDP, "CzELu9FnBxP0PRASGBXVVIikz9I" },
+			{ "user😀", IDP, "VV7sodnB3x8ewaW1MYp1ZfDMXIQ" },
+			// a surrogate pair split between the local ID and the identifier
+			{ "user\ud83d", "\ude00idp", "wNWI2jbiQYG3WHAaVK8O4sBUzQQ" },
+			// a lone surrogate ending the local ID, before an empty identifier
+			{ "user\ud83d", "", "TsiXbIyuXd3EE0n2v0vcYU2Mn4o" }, };
+
+	/**
+	 * The generator without a default IdP identifier gives the original values.
+	 */
+	@Test
+	public void testVectors() {
+		SharedTokenGenerator generator = new SharedTokenGenerator(SALT);
+		for (String[] vector : VECTORS) {
+			assertEquals(describe(vector), vector[2], generator.generate(vector[0], vector[1]));
+		}
+	}
+
+	/**
+	 * The generator gives the original values for its default IdP identifier
+	 * and for other identifiers, repeatedly.
+	 */
+	@Test
+	public void testVectorsWithDefaultIdp() {
+		SharedTokenGenerator generator = new SharedTokenGenerator(SALT, IDP);
+		for (int round = 0; round < 3; round++) {
+			for (String[] vector : VECTORS) {
+				assertEquals(describe(vector), vector[2], generator.generate(vector[0], vector[1]));
+			}
+		}
+	}
+
+	/**
+	 * Generators on other threads give the same values.
+	 *
+	 * @throws Exception if a thread fails
+	 */
+	@Test
+	public void testVectorsOnOtherThread() throws Exception {
+		SharedTokenGenerator generator = new SharedTokenGenerator(SALT, IDP);
+		String[] received = new String[VECTORS.length];
+		Thread thread = new Thread(() -> {
+			for (int i = 0; i < VECTORS.length; i++) {
+				received[i] = generator.generate(VECTORS[i][0], VECTORS[i][1]);
+			}
+		});
+		thread.start();
+		thread.join();
+		for (int i = 0; i < VECTORS.length; i++) {
+			assertEquals(describe(VECTORS[i]), VECTORS[i][2], received[i]);
+		}
+	}
+
+	/**
+	 * @param vector a vector
+	 * @return the vector's input, for assertion messages
+	 */
+	private static String describe(String[] vector) {
+		return "localId=" + vector[0] + " idp=" + vector[1];
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress tests {@link SharedTokenSingleFlight} and
+ * {@link SharedTokenStore#getOrCreateSharedToken} with many threads asking
+ * for the same few principals at once, against an in-memory H2 database.
+ */
+public class SharedTokenSingleFlightTest {
+
+	/** Number of threads asking at once. */
+	private static final int THREADS = 200;
+
+	/** Number of principals the threads ask for. */
+	private static final int PRINCIPALS = 20;
+
+	/** Number of times each thread asks. */
+	private static final int ROUNDS = 5;
+
+	/** The database. */
+	private JdbcDataSource dataSource;
+
+	/** Connection keeping the in-memory database open. */
+	private Connection keepAlive;
+
+	/** The store under test. */
+	private SharedTokenStore store;
+
+	/** Number of values generated, keyed by principal. */
+	private final ConcurrentMap<String, AtomicInteger> generated = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Creates the database and table.
+	 *
+	 * @throws Exception if the database cannot be set up
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime());
+		keepAlive = dataSource.getConnection();
+		SharedTokenSchema.DEFAULT.create(keepAlive, SharedTokenStoreDialect.H2);
+		store = new SharedTokenStore(dataSource);
+	}
+
+	/**
+	 * Drops the database.
+	 *
+	 * @throws Exception if the database cannot be closed
+	 */
+	@After
+	public void tearDown() throws Exception {
+		keepAlive.close();
+	}
+
+	/**
+	 * Many threads going through the single flight store each principal's
+	 * value once and all receive it.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testSingleFlightGeneratesOncePerPrincipal() throws Exception {
+		SharedTokenSingleFlight singleFlight = new SharedTokenSingleFlight();
+		List<String> results = run(uid -> singleFlight.execute(uid,
+				() -> store.getOrCreateSharedToken(uid, () -> generate(uid))));
+
+		assertResults(results);
+		for (int i = 0; i < PRINCIPALS; i++) {
+			assertEquals("values generated for user" + i, 1, generated.get("user" + i).get());
+		}
+		assertEquals(0, singleFlight.size());
+	}
+
+	/**
+	 * Many threads calling the store directly, as separate IdP nodes would,
+	 * store each principal's value once and all receive the stored value.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testStoreInsertsOncePerPrincipal() throws Exception {
+		List<String> results = run(uid -> store.getOrCreateSharedToken(uid, () -> generate(uid)));
+
+		assertResults(results);
+	}
+
+	/**
+	 * Has {@link #THREADS} threads ask for the principals, starting at once.
+	 *
+	 * @param lookup the lookup each thread runs
+	 * @return the values received, as "uid=value"
+	 * @throws Exception if a lookup failed
+	 */
+	private List<String> run(Lookup lookup) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+		try {
+			for (int t = 0; t < THREADS; t++) {
+				int first = t;
+				futures.add(executor.submit(() -> {
+					start.await();
+					List<String> received = new ArrayList<String>();
+					for (int i = 0; i < PRINCIPALS * ROUNDS; i++) {
+						String uid = "user" + ((first + i) % PRINCIPALS);
+						received.add(uid + "=" + lookup.get(uid));
+					}
+					return received;
+				}));
+			}
+			start.countDown();
+			List<String> results = new ArrayList<String>();
+			for (Future<List<String>> future : futures) {
+				results.addAll(future.get(60, TimeUnit.SECONDS));
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Checks the table has one row per principal and every thread received
+	 * the value in it.
+	 *
+	 * @param results the values received, as "uid=value"
+	 * @throws Exception if the table cannot be read
+	 */
+	private void assertResults(List<String> results) throws Exception {
+		ConcurrentMap<String, String> stored = new ConcurrentHashMap<String, String>();
+		try (Statement st = keepAlive.createStatement();
+				ResultSet rs = st.executeQuery("SELECT uid, sharedToken FROM tb_st")) {
+			while (rs.next()) {
+				assertEquals("rows for " + rs.getString(1), null, stored.put(rs.getString(1), rs.getString(2)));
+			}
+		}
+		assertEquals(PRINCIPALS, stored.size());
+		assertEquals(THREADS * PRINCIPALS * ROUNDS, results.size());
+		for (String result : results) {
+			String uid = result.substring(0, result.indexOf('='));
+			assertNotNull(stored.get(uid));
+			assertEquals(uid + "=" + stored.get(uid), result);
+		}
+	}
+
+	/**
+	 * Generates a value for a principal, different each time so that a
+	 * value generated twice would show.
+	 *
+	 * @param uid the principal name
+	 * @return the value
+	 */
+	private String generate(String uid) {
+		int n = generated.computeIfAbsent(uid, k -> new AtomicInteger()).incrementAndGet();
+		return uid + "-" + n;
+	}
+
+	/** A lookup of a principal's value. */
+	private interface Lookup {
+
+		/**
+		 * @param uid the principal name
+		 * @return the value
+		 * @throws Exception if the lookup fails
+		 */
+		String get(String uid) throws Exception;
+	}
+
+}
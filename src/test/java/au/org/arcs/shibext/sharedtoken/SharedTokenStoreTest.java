@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package au.org.arcs.shibext.sharedtoken;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SharedTokenStore} with the {@link SharedTokenStoreDialect#GENERIC}
+ * dialect, whose plain INSERT fails on a principal that already has a value,
+ * as when another node stored one first.
+ */
+public class SharedTokenStoreTest {
+
+	/** The database. */
+	private JdbcDataSource dataSource;
+
+	/** The store. */
+	private SharedTokenStore store;
+
+	/**
+	 * Creates the table and the store.
+	 *
+	 * @throws SQLException if the table cannot be created
+	 */
+	@Before
+	public void setUp() throws SQLException {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+		try (Connection conn = dataSource.getConnection()) {
+			SharedTokenSchema.DEFAULT.create(conn, SharedTokenStoreDialect.H2);
+		}
+		store = new SharedTokenStore(dataSource);
+		store.setDialect(SharedTokenStoreDialect.GENERIC);
+	}
+
+	/**
+	 * A principal that already has a value gets it back, without a value
+	 * being generated.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testGetOrCreateReturnsStoredValue() throws Exception {
+		insert("jsmith", "theirs");
+		assertEquals("theirs", store.getOrCreateSharedToken("jsmith", () -> {
+			throw new IllegalStateException("value generated for a principal that has one");
+		}));
+	}
+
+	/**
+	 * When another node stores a value between the lookup and the insert,
+	 * the insert fails on the duplicate key and the value of the other node
+	 * is returned rather than an error.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testGetOrCreateReturnsValueStoredMeanwhile() throws Exception {
+		assertEquals("theirs", store.getOrCreateSharedToken("jsmith", () -> {
+			insert("jsmith", "theirs");
+			return "mine";
+		}));
+		assertEquals("theirs", store.getSharedToken("jsmith"));
+	}
+
+	/**
+	 * Storing a value for a principal that already has one keeps that value.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testStoreKeepsStoredValue() throws Exception {
+		insert("jsmith", "theirs");
+		store.storeSharedToken("jsmith", "mine");
+		assertEquals("theirs", store.getSharedToken("jsmith"));
+	}
+
+	/**
+	 * A batch that fails on a principal that already has a value is stored
+	 * one value at a time: the other values are stored, and the principal
+	 * keeps its value.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testStoreManyFallsBackToOneAtATime() throws Exception {
+		insert("jsmith", "theirs");
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		values.put("asmith", "a");
+		values.put("jsmith", "mine");
+		values.put("zsmith", "z");
+		store.storeSharedTokens(values);
+
+		assertEquals("a", store.getSharedToken("asmith"));
+		assertEquals("theirs", store.getSharedToken("jsmith"));
+		assertEquals("z", store.getSharedToken("zsmith"));
+	}
+
+	/**
+	 * Inserts a row, standing for another node storing a value.
+	 *
+	 * @param uid the principal name
+	 * @param sharedToken the value
+	 * @throws SQLException if the row cannot be inserted
+	 */
+	private void insert(String uid, String sharedToken) throws SQLException {
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement st = conn.prepareStatement("INSERT INTO tb_st (uid, sharedToken) VALUES (?, ?)")) {
+			st.setString(1, uid);
+			st.setString(2, sharedToken);
+			st.executeUpdate();
+		}
+	}
+
+}